@@ -0,0 +1,255 @@
+package org.opendatakit.tables.data;
+
+import android.graphics.Color;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.data.ColorGuide;
+import org.opendatakit.data.ColorRule;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.util.TestTables;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks each rule operator of a {@link CompiledColorRuleGroup} on each kind
+ * of column, that coloring a single row and a whole table agree, and that the
+ * compiled rules match the same rows as {@link ColorRule#checkMatch}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class CompiledColorRuleGroupTest {
+  private static final String NUMBER = "number";
+  private static final String INTEGER = "integer";
+  private static final String FLAG = "flag";
+  private static final String DAY = "day";
+  private static final String TEXT = "text";
+  private static final String[] elementKeys = { NUMBER, INTEGER, FLAG, DAY, TEXT };
+  private static final OrderedColumns columns = TestTables.makeColumns(elementKeys,
+      new String[] { "number", "integer", "boolean", "date", "string" });
+
+  private static final ColorRule.RuleType[] operators = { ColorRule.RuleType.LESS_THAN,
+      ColorRule.RuleType.LESS_THAN_OR_EQUAL, ColorRule.RuleType.EQUAL,
+      ColorRule.RuleType.GREATER_THAN_OR_EQUAL, ColorRule.RuleType.GREATER_THAN };
+
+  @Test
+  public void numbers() {
+    String[] values = { "9", "10", "10.0", "1e1", "11", "abc", null };
+    boolean[][] expected = {
+        { true, false, false, false, false, false, false },
+        { true, true, true, true, false, false, false },
+        { false, true, true, true, false, false, false },
+        { false, true, true, true, true, false, false },
+        { false, false, false, false, true, false, false } };
+    for (int i = 0; i < operators.length; i++) {
+      assertArrayEquals(operators[i].name(), expected[i], matches(NUMBER, operators[i], "10",
+          values));
+      // integer columns are compared as numbers too
+      assertArrayEquals(operators[i].name(), expected[i], matches(INTEGER, operators[i], "10",
+          values));
+    }
+  }
+
+  @Test
+  public void numbers_ruleValueThatDoesntParse() {
+    String[] values = { "-1", "0", "abc", "xyz" };
+    for (ColorRule.RuleType operator : operators) {
+      assertArrayEquals(operator.name(), new boolean[4], matches(NUMBER, operator, "abc",
+          values));
+    }
+  }
+
+  @Test
+  public void booleans() {
+    String[] values = { "true", "TRUE", "1", "false", "0", null };
+    boolean[][] expected = {
+        { false, false, false, true, true, false },
+        { true, true, true, true, true, false },
+        { true, true, true, false, false, false },
+        { true, true, true, false, false, false },
+        { false, false, false, false, false, false } };
+    for (int i = 0; i < operators.length; i++) {
+      assertArrayEquals(operators[i].name(), expected[i], matches(FLAG, operators[i], "true",
+          values));
+    }
+    // a rule value of 0 is false
+    assertArrayEquals(new boolean[] { false, false, false, true, true, false },
+        matches(FLAG, ColorRule.RuleType.EQUAL, "0", values));
+  }
+
+  @Test
+  public void dates() {
+    String[] values = { "2017-03-03", "2017-03-04", "2017-03-04T00:00:00.000000000",
+        "2017-03-04T12:00:00.000000000", "2017-03-05", null };
+    boolean[][] expected = {
+        { true, false, false, false, false, false },
+        { true, true, true, false, false, false },
+        { false, true, true, false, false, false },
+        { false, true, true, true, true, false },
+        { false, false, false, true, true, false } };
+    for (int i = 0; i < operators.length; i++) {
+      assertArrayEquals(operators[i].name(), expected[i], matches(DAY, operators[i],
+          "2017-03-04", values));
+    }
+  }
+
+  @Test
+  public void dates_thatDontPackAreComparedAsText() {
+    // a time zone can't be packed, so the strings are compared instead
+    String[] values = { "2017-03-04T12:00:00Z", "2017-03-03Z" };
+    assertArrayEquals(new boolean[] { false, true },
+        matches(DAY, ColorRule.RuleType.LESS_THAN, "2017-03-04", values));
+    assertArrayEquals(new boolean[] { true, false },
+        matches(DAY, ColorRule.RuleType.GREATER_THAN, "2017-03-04", values));
+    assertArrayEquals(new boolean[] { true, true },
+        matches(DAY, ColorRule.RuleType.LESS_THAN, "soon", values));
+  }
+
+  @Test
+  public void strings() {
+    String[] values = { "a", "B", "b", "ba", "", null };
+    boolean[][] expected = {
+        { true, true, false, false, true, false },
+        { true, true, true, false, true, false },
+        { false, false, true, false, false, false },
+        { false, false, true, true, false, false },
+        { false, false, false, true, false, false } };
+    for (int i = 0; i < operators.length; i++) {
+      assertArrayEquals(operators[i].name(), expected[i], matches(TEXT, operators[i], "b",
+          values));
+    }
+  }
+
+  @Test
+  public void metadataColumnsAreComparedAsText() {
+    String[] rowIds = { "uuid:a", "uuid:b", "uuid:c" };
+    UserTable table = TestTables.makeTable(columns, rowIds, new String[3][elementKeys.length]);
+    CompiledColorRuleGroup group = CompiledColorRuleGroup.compile(Collections.singletonList(
+        new ColorRule(DataTableColumns.ID, ColorRule.RuleType.GREATER_THAN, "uuid:a", Color.RED,
+            Color.WHITE)), columns);
+    ColorGuide[] guides = group.getColorGuides(table);
+    assertNull(guides[0]);
+    assertEquals(Color.RED, guides[1].getForeground());
+    assertEquals(Color.RED, guides[2].getForeground());
+  }
+
+  @Test
+  public void firstMatchingRuleWins() {
+    List<ColorRule> rules = new ArrayList<>();
+    rules.add(new ColorRule(NUMBER, ColorRule.RuleType.GREATER_THAN, "5", Color.RED,
+        Color.WHITE));
+    rules.add(new ColorRule(TEXT, ColorRule.RuleType.EQUAL, "x", Color.BLUE, Color.BLACK));
+    rules.add(new ColorRule(NUMBER, ColorRule.RuleType.GREATER_THAN, "0", Color.GREEN,
+        Color.GRAY));
+    CompiledColorRuleGroup group = CompiledColorRuleGroup.compile(rules, columns);
+    assertEquals(Arrays.asList(NUMBER, TEXT), group.getColumnElementKeys());
+
+    String[][] rows = {
+        { "7", null, null, null, "x" },
+        { "3", null, null, null, "x" },
+        { "3", null, null, null, "y" },
+        { "-1", null, null, null, "y" },
+        { null, null, null, null, null } };
+    UserTable table = TestTables.makeTable(columns, makeRowIds(rows.length), rows);
+    ColorGuide[] guides = group.getColorGuides(table);
+    int[] foregrounds = { Color.RED, Color.BLUE, Color.GREEN };
+    int[] backgrounds = { Color.WHITE, Color.BLACK, Color.GRAY };
+    int[] expected = { 0, 1, 2, -1, -1 };
+    for (int i = 0; i < rows.length; i++) {
+      ColorGuide single = group.getColorGuide(table.getRowAtIndex(i));
+      if (expected[i] < 0) {
+        assertNull(guides[i]);
+        assertNull(single);
+      } else {
+        assertEquals(foregrounds[expected[i]], guides[i].getForeground());
+        assertEquals(backgrounds[expected[i]], guides[i].getBackground());
+        assertEquals(foregrounds[expected[i]], single.getForeground());
+        assertEquals(backgrounds[expected[i]], single.getBackground());
+      }
+    }
+  }
+
+  @Test
+  public void compile_withoutRules() {
+    assertNull(CompiledColorRuleGroup.compile((List<ColorRule>) null, columns));
+    assertNull(CompiledColorRuleGroup.compile(new ArrayList<ColorRule>(), columns));
+  }
+
+  @Test
+  public void matchesTheUncompiledRules() {
+    String[] numbers = { "-3", "0", "2.5", "10", "11", null };
+    String[] texts = { "a", "abc", "b", "B", null };
+    ElementDataType[] types = { ElementDataType.number, ElementDataType.integer,
+        ElementDataType.string };
+    String[] keys = { NUMBER, INTEGER, TEXT };
+    String[][] ruleValues = { { "0", "2.5", "10" }, { "0", "10" }, { "a", "abc", "B" } };
+    String[][] columnValues = { numbers, { "-3", "0", "10", "11", null }, texts };
+    for (int k = 0; k < keys.length; k++) {
+      UserTable table = makeTable(keys[k], columnValues[k]);
+      for (String ruleValue : ruleValues[k]) {
+        for (ColorRule.RuleType operator : operators) {
+          ColorRule rule = new ColorRule(keys[k], operator, ruleValue, Color.RED, Color.WHITE);
+          boolean[] expected = new boolean[columnValues[k].length];
+          for (int i = 0; i < expected.length; i++) {
+            expected[i] = rule.checkMatch(types[k], table.getRowAtIndex(i));
+          }
+          assertArrayEquals(keys[k] + " " + operator.name() + " " + ruleValue, expected,
+              matches(keys[k], operator, ruleValue, columnValues[k]));
+        }
+      }
+    }
+  }
+
+  /**
+   * Checks one rule against a table with one row for each value, both a row at a time and for
+   * the whole table, which have to agree
+   *
+   * @return which rows matched
+   */
+  private static boolean[] matches(String elementKey, ColorRule.RuleType operator,
+      String ruleValue, String[] values) {
+    CompiledColorRuleGroup group = CompiledColorRuleGroup.compile(Collections.singletonList(
+        new ColorRule(elementKey, operator, ruleValue, Color.RED, Color.WHITE)), columns);
+    UserTable table = makeTable(elementKey, values);
+    ColorGuide[] guides = group.getColorGuides(table);
+    boolean[] matched = new boolean[values.length];
+    boolean[] matchedOne = new boolean[values.length];
+    for (int i = 0; i < values.length; i++) {
+      matched[i] = guides[i] != null;
+      matchedOne[i] = group.getColorGuide(table.getRowAtIndex(i)) != null;
+    }
+    assertArrayEquals(matched, matchedOne);
+    return matched;
+  }
+
+  /**
+   * @return a table with one row for each value in the given column, and nulls elsewhere
+   */
+  private static UserTable makeTable(String elementKey, String[] values) {
+    int column = Arrays.asList(elementKeys).indexOf(elementKey);
+    String[][] rows = new String[values.length][elementKeys.length];
+    for (int i = 0; i < values.length; i++) {
+      rows[i][column] = values[i];
+    }
+    return TestTables.makeTable(columns, makeRowIds(values.length), rows);
+  }
+
+  private static String[] makeRowIds(int numOfRows) {
+    String[] rowIds = new String[numOfRows];
+    for (int i = 0; i < numOfRows; i++) {
+      rowIds[i] = "uuid:" + i;
+    }
+    return rowIds;
+  }
+}
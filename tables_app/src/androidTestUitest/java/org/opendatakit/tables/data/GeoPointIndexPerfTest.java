@@ -0,0 +1,150 @@
+package org.opendatakit.tables.data;
+
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Times range and nearest point queries on a {@link GeoPointIndex} against a
+ * linear scan of the same points, and checks that both find the same rows.
+ * The timings are only logged, since they depend on the device.
+ * <p>
+ * This should never be run on the build server!
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class GeoPointIndexPerfTest {
+  private static final String TAG = GeoPointIndexPerfTest.class.getSimpleName();
+
+  private static final int numOfPoints = 100000;
+  private static final int numOfQueries = 200;
+  private static final int numOfNeighbours = 10;
+  // the points are spread over about the size of a city, where a table's rows usually are
+  private static final double CENTER_LATITUDE = 47.65;
+  private static final double CENTER_LONGITUDE = -122.3;
+  private static final double SPREAD = 0.5;
+  // a screen's worth of map at a street level zoom
+  private static final double QUERY_SIZE = 0.02;
+
+  private static double[] latitudes;
+  private static double[] longitudes;
+
+  @BeforeClass
+  public static void makePoints() {
+    Random random = new Random(numOfPoints);
+    latitudes = new double[numOfPoints];
+    longitudes = new double[numOfPoints];
+    for (int i = 0; i < numOfPoints; i++) {
+      latitudes[i] = CENTER_LATITUDE + (random.nextDouble() - 0.5) * SPREAD;
+      longitudes[i] = CENTER_LONGITUDE + (random.nextDouble() - 0.5) * SPREAD;
+    }
+  }
+
+  @Test
+  public void findInBounds_matchesLinearScan() {
+    long start = System.nanoTime();
+    GeoPointIndex index = new GeoPointIndex(latitudes, longitudes, numOfPoints);
+    long buildNanos = System.nanoTime() - start;
+
+    Random random = new Random(numOfQueries);
+    int[] found = new int[numOfPoints];
+    int[] scanned = new int[numOfPoints];
+    long indexNanos = 0;
+    long scanNanos = 0;
+    for (int q = 0; q < numOfQueries; q++) {
+      double south = CENTER_LATITUDE + (random.nextDouble() - 0.5) * SPREAD;
+      double west = CENTER_LONGITUDE + (random.nextDouble() - 0.5) * SPREAD;
+      double north = south + QUERY_SIZE;
+      double east = west + QUERY_SIZE;
+
+      start = System.nanoTime();
+      int numFound = index.findInBounds(south, west, north, east, found);
+      indexNanos += System.nanoTime() - start;
+
+      start = System.nanoTime();
+      int numScanned = 0;
+      for (int i = 0; i < numOfPoints; i++) {
+        if (latitudes[i] >= south && latitudes[i] <= north && longitudes[i] >= west
+            && longitudes[i] <= east) {
+          scanned[numScanned++] = i;
+        }
+      }
+      scanNanos += System.nanoTime() - start;
+
+      assertEquals(numScanned, numFound);
+      Arrays.sort(found, 0, numFound);
+      assertArrayEquals(Arrays.copyOf(scanned, numScanned), Arrays.copyOf(found, numFound));
+    }
+
+    Log.i(TAG, "build " + numOfPoints + " points: " + buildNanos / 1000000 + " ms");
+    Log.i(TAG, "findInBounds x" + numOfQueries + ": index " + indexNanos / 1000000
+        + " ms, linear scan " + scanNanos / 1000000 + " ms");
+  }
+
+  @Test
+  public void findNearest_matchesLinearScan() {
+    GeoPointIndex index = new GeoPointIndex(latitudes, longitudes, numOfPoints);
+
+    Random random = new Random(numOfQueries + 1);
+    int[] scanned = new int[numOfNeighbours];
+    double[] scannedDistances = new double[numOfNeighbours];
+    long indexNanos = 0;
+    long scanNanos = 0;
+    for (int q = 0; q < numOfQueries; q++) {
+      double latitude = CENTER_LATITUDE + (random.nextDouble() - 0.5) * SPREAD;
+      double longitude = CENTER_LONGITUDE + (random.nextDouble() - 0.5) * SPREAD;
+
+      long start = System.nanoTime();
+      int[] nearest = index.findNearest(latitude, longitude, numOfNeighbours);
+      indexNanos += System.nanoTime() - start;
+
+      // keep the nearest points in a sorted array, with the same distance the index uses
+      start = System.nanoTime();
+      double scale = Math.cos(Math.toRadians(latitude));
+      int numScanned = 0;
+      for (int i = 0; i < numOfPoints; i++) {
+        double distance = distance(latitude, longitude, scale, i);
+        if (numScanned == numOfNeighbours && distance >= scannedDistances[numScanned - 1]) {
+          continue;
+        }
+        int at = numScanned < numOfNeighbours ? numScanned++ : numScanned - 1;
+        while (at > 0 && scannedDistances[at - 1] > distance) {
+          scanned[at] = scanned[at - 1];
+          scannedDistances[at] = scannedDistances[at - 1];
+          at--;
+        }
+        scanned[at] = i;
+        scannedDistances[at] = distance;
+      }
+      scanNanos += System.nanoTime() - start;
+
+      assertEquals(numOfNeighbours, nearest.length);
+      for (int i = 0; i < numOfNeighbours; i++) {
+        // compare distances rather than rows, points the same distance away may come either way
+        assertEquals(scannedDistances[i], distance(latitude, longitude, scale, nearest[i]), 0);
+      }
+    }
+
+    Log.i(TAG, "findNearest k=" + numOfNeighbours + " x" + numOfQueries + ": index "
+        + indexNanos / 1000000 + " ms, linear scan " + scanNanos / 1000000 + " ms");
+  }
+
+  /**
+   * @return the squared distance from a location to a point, in degrees with the longitude
+   * shrunk by the latitude
+   */
+  private static double distance(double latitude, double longitude, double scale, int point) {
+    double dy = latitude - latitudes[point];
+    double dx = (longitude - longitudes[point]) * scale;
+    return dx * dx + dy * dy;
+  }
+}
@@ -0,0 +1,72 @@
+package org.opendatakit.tables.data;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link ColumnVectors#packDate(String)} orders dates the same way
+ * comparing their strings does, and turns down what it can't order.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PackDateTest {
+
+  @Test
+  public void packDate_ordersLikeTheStrings() {
+    String[] ordered = {
+        "0001-01-01T00:00:00.000000000",
+        "1999-12-31T23:59:59.999999999",
+        "2000-01-01T00:00:00.000000000",
+        "2017-03-04T09:05:00.000000000",
+        "2017-03-04T12:00:00.000000000",
+        "2017-03-04T12:00:00.500000000",
+        "2017-03-05T00:00:00.000000000",
+        "9999-12-31T23:59:59.999999999" };
+    for (int i = 1; i < ordered.length; i++) {
+      assertTrue(ordered[i], ColumnVectors.packDate(ordered[i - 1])
+          < ColumnVectors.packDate(ordered[i]));
+    }
+  }
+
+  @Test
+  public void packDate_missingFieldsAreZero() {
+    long date = ColumnVectors.packDate("2017-03-04");
+    assertEquals(date, ColumnVectors.packDate("2017-03-04T00:00:00.000000000"));
+    assertEquals(date, ColumnVectors.packDate("2017-03-04 00:00"));
+    assertTrue(date < ColumnVectors.packDate("2017-03-04T00:00:00.000000001"));
+
+    // times on their own pack the same way
+    assertTrue(ColumnVectors.packDate("09:30") < ColumnVectors.packDate("10:00:00"));
+    assertEquals(ColumnVectors.packDate("10"), ColumnVectors.packDate("10:00:00.000"));
+  }
+
+  @Test
+  public void packDate_ignoresDigitsPastTheLastOneKept() {
+    // only the first 18 digits are kept, down to a tenth of a microsecond
+    assertEquals(ColumnVectors.packDate("2017-03-04T12:00:00.1234000"),
+        ColumnVectors.packDate("2017-03-04T12:00:00.123456789"));
+    assertTrue(ColumnVectors.packDate("2017-03-04T12:00:00.1233999")
+        < ColumnVectors.packDate("2017-03-04T12:00:00.123456789"));
+  }
+
+  @Test
+  public void packDate_largestValueFits() {
+    long packed = ColumnVectors.packDate("9999-12-31T23:59:59.999999999");
+    assertEquals(999912312359599999L, packed);
+  }
+
+  @Test
+  public void packDate_rejectsWhatItCantOrder() {
+    assertEquals(-1, ColumnVectors.packDate(""));
+    assertEquals(-1, ColumnVectors.packDate("--::"));
+    assertEquals(-1, ColumnVectors.packDate("yesterday"));
+    assertEquals(-1, ColumnVectors.packDate("2017-03-04T12:00:00Z"));
+    assertEquals(-1, ColumnVectors.packDate("2017-03-04T12:00:00+01:00"));
+    assertEquals(-1, ColumnVectors.packDate("2017/03/04"));
+  }
+}
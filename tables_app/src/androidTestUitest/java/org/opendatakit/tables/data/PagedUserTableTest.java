@@ -0,0 +1,268 @@
+package org.opendatakit.tables.data;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.TypedRow;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.tables.utils.SQLQueryStruct;
+import org.opendatakit.util.TestConstants;
+import org.opendatakit.util.TestTables;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which rows a {@link PagedUserTable} fetches for each page, which
+ * pages it keeps, and how it maps rows it has sorted in memory back onto the
+ * pages, with the rows coming from memory rather than the database.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PagedUserTableTest {
+  private static final String NUMBER = "number";
+  private static final String TEXT = "text";
+  private static final OrderedColumns columns = TestTables
+      .makeColumns(new String[] { NUMBER, TEXT },
+          new ElementDataType[] { ElementDataType.number, ElementDataType.string });
+
+  private static final int pageSize = 3;
+  private static final int maxCachedPages = 2;
+
+  @Test
+  public void getRowAtIndex_fetchesThePageHoldingTheRow() throws Exception {
+    FakeSource source = new FakeSource(10);
+    PagedUserTable table = makeTable(source, sortedBy(NUMBER));
+    assertEquals(10, table.getNumberOfRows());
+
+    assertEquals("uuid:4", getRowId(table.getRowAtIndex(4)));
+    source.assertFetched("3+3");
+    // the rest of the page is already there
+    assertEquals("uuid:3", getRowId(table.getRowAtIndex(3)));
+    assertEquals("uuid:5", getRowId(table.getRowAtIndex(5)));
+    source.assertFetched();
+
+    // the last page is short
+    assertEquals("uuid:9", getRowId(table.getRowAtIndex(9)));
+    source.assertFetched("3+9");
+    assertEquals(1, table.getPageForRow(9).getNumberOfRows());
+
+    assertNull(table.getRowAtIndex(10));
+    assertNull(table.getRowAtIndex(-1));
+    source.assertFetched();
+  }
+
+  @Test
+  public void getRowAtIndex_fetchesOnlyTheProjectedColumns() throws Exception {
+    FakeSource source = new FakeSource(4);
+    String[] projection = { DataTableColumns.ID, NUMBER };
+    PagedUserTable table = new PagedUserTable(TestConstants.APP_NAME, TestTables.TABLE_ID,
+        columns, sortedBy(NUMBER), projection, source, pageSize, maxCachedPages);
+    table.getRowAtIndex(0);
+    assertArrayEquals(projection, source.lastColumns);
+  }
+
+  @Test
+  public void pages_leastRecentlyUsedIsDropped() throws Exception {
+    FakeSource source = new FakeSource(10);
+    PagedUserTable table = makeTable(source, sortedBy(NUMBER));
+    table.getRowAtIndex(0);
+    table.getRowAtIndex(3);
+    source.assertFetched("3+0", "3+3");
+    // use the first page again, so the second one is the one dropped
+    table.getRowAtIndex(1);
+    table.getRowAtIndex(6);
+    source.assertFetched("3+6");
+
+    assertNotNull(table.getLoadedPageForRow(0));
+    assertNull(table.getLoadedPageForRow(3));
+    assertNotNull(table.getLoadedPageForRow(6));
+
+    table.getRowAtIndex(4);
+    source.assertFetched("3+3");
+    // the first page was used less recently than the third
+    assertNull(table.getLoadedPageForRow(0));
+  }
+
+  @Test
+  public void getLoadedRowAtIndex_neverFetches() throws Exception {
+    FakeSource source = new FakeSource(10);
+    PagedUserTable table = makeTable(source, sortedBy(NUMBER));
+    for (int i = -1; i <= 10; i++) {
+      assertNull(table.getLoadedRowAtIndex(i));
+    }
+    source.assertFetched();
+
+    table.getRowAtIndex(7);
+    source.assertFetched("3+6");
+    assertNull(table.getLoadedRowAtIndex(5));
+    assertEquals("uuid:6", getRowId(table.getLoadedRowAtIndex(6)));
+    assertEquals("uuid:8", getRowId(table.getLoadedRowAtIndex(8)));
+    assertNull(table.getLoadedRowAtIndex(9));
+    source.assertFetched();
+  }
+
+  @Test
+  public void shortPage_shrinksTheTable() throws Exception {
+    // the rows were counted before three of them went away
+    FakeSource source = new FakeSource(7);
+    source.count = 10;
+    PagedUserTable table = makeTable(source, sortedBy(NUMBER));
+    assertEquals(10, table.getNumberOfRows());
+    assertEquals("uuid:6", getRowId(table.getRowAtIndex(6)));
+    assertEquals(7, table.getNumberOfRows());
+    assertNull(table.getRowAtIndex(7));
+  }
+
+  @Test
+  public void sortInMemory_mapsOntoTheQueriedPages() throws Exception {
+    FakeSource source = new FakeSource(8);
+    PagedUserTable table = makeTable(source, sortedBy(NUMBER));
+    table.getRowAtIndex(0);
+    source.assertFetched("3+0");
+
+    assertTrue(table.sortInMemory(new String[] { TEXT }, new String[] { "DESC" }));
+    // only the sort column and _id are read, all of them at once
+    source.assertFetched(PagedUserTable.SORT_KEY_PAGE_SIZE + "+0");
+    assertArrayEquals(new String[] { TEXT, DataTableColumns.ID }, source.lastColumns);
+
+    // ties on the text are broken by _id
+    int[] expected = { 2, 5, 1, 4, 7, 0, 3, 6 };
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], table.getSourceIndex(i));
+      assertEquals("uuid:" + expected[i], getRowId(table.getRowAtIndex(i)));
+    }
+    // past the end maps onto itself
+    assertEquals(8, table.getSourceIndex(8));
+
+    // the rows of the page fetched before the sort are still there, wherever they are now
+    table = makeTable(source = new FakeSource(8), sortedBy(NUMBER));
+    table.getRowAtIndex(0);
+    table.sortInMemory(new String[] { TEXT }, new String[] { "DESC" });
+    source.assertFetched("3+0", PagedUserTable.SORT_KEY_PAGE_SIZE + "+0");
+    assertEquals("uuid:2", getRowId(table.getLoadedRowAtIndex(0)));
+    assertEquals("uuid:1", getRowId(table.getLoadedRowAtIndex(2)));
+    assertEquals("uuid:0", getRowId(table.getLoadedRowAtIndex(5)));
+    assertNull(table.getLoadedRowAtIndex(1));
+    source.assertFetched();
+  }
+
+  @Test
+  public void sortInMemory_replacesTheEarlierSort() throws Exception {
+    FakeSource source = new FakeSource(8);
+    PagedUserTable table = makeTable(source, sortedBy(NUMBER));
+    assertTrue(table.sortInMemory(new String[] { TEXT }, new String[] { "DESC" }));
+    assertEquals(2, table.getSourceIndex(0));
+    // missing directions are ascending
+    assertTrue(table.sortInMemory(new String[] { TEXT }, null));
+    int[] expected = { 0, 3, 6, 1, 4, 7, 2, 5 };
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], table.getSourceIndex(i));
+    }
+    // sorting by _id alone puts the rows back in the queried order
+    assertTrue(table.sortInMemory(new String[] { DataTableColumns.ID }, null));
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(i, table.getSourceIndex(i));
+    }
+  }
+
+  @Test
+  public void sortInMemory_onlyForSortedUngroupedQueries() throws Exception {
+    FakeSource source = new FakeSource(8);
+    PagedUserTable table = makeTable(source, new SQLQueryStruct(null, null, null, null, null,
+        null));
+    assertFalse(table.sortInMemory(new String[] { TEXT }, null));
+
+    SQLQueryStruct grouped = sortedBy(NUMBER);
+    grouped.groupBy = new String[] { TEXT };
+    table = makeTable(source, grouped);
+    assertFalse(table.sortInMemory(new String[] { TEXT }, null));
+    source.assertFetched();
+    assertEquals(3, table.getSourceIndex(3));
+  }
+
+  @Test
+  public void sortInMemory_givesUpIfTheTableChanged() throws Exception {
+    FakeSource source = new FakeSource(8);
+    PagedUserTable table = makeTable(source, sortedBy(NUMBER));
+    source.rows = Arrays.copyOf(source.rows, 6);
+    assertFalse(table.sortInMemory(new String[] { TEXT }, null));
+    assertEquals(0, table.getSourceIndex(0));
+  }
+
+  private static PagedUserTable makeTable(FakeSource source, SQLQueryStruct query)
+      throws ServicesAvailabilityException {
+    return new PagedUserTable(TestConstants.APP_NAME, TestTables.TABLE_ID, columns, query, null,
+        source, pageSize, maxCachedPages);
+  }
+
+  private static SQLQueryStruct sortedBy(String elementKey) {
+    return new SQLQueryStruct(null, null, null, null, elementKey, "ASC");
+  }
+
+  private static String getRowId(TypedRow row) {
+    assertNotNull(row);
+    return row.getRawStringByKey(DataTableColumns.ID);
+  }
+
+  /**
+   * Hands out slices of rows held in memory, in the order the query would return them, and
+   * remembers what was asked for
+   */
+  private static final class FakeSource implements PagedUserTable.Source {
+    // the rows in the queried order, with ids uuid:0, uuid:1 and so on in that order
+    String[][] rows;
+    int count;
+    String[] lastColumns;
+    private final List<String> fetches = new ArrayList<>();
+
+    FakeSource(int numOfRows) {
+      rows = new String[numOfRows][];
+      for (int i = 0; i < numOfRows; i++) {
+        // the text cycles so an in memory sort has ties for the ids to break
+        rows[i] = new String[] { Integer.toString(i), Character.toString((char) ('a' + i % 3)) };
+      }
+      count = numOfRows;
+    }
+
+    @Override
+    public int countRows() {
+      return count;
+    }
+
+    @Override
+    public UserTable fetchRows(String[] columns, int limit, int offset) {
+      fetches.add(limit + "+" + offset);
+      lastColumns = columns;
+      int from = Math.min(offset, rows.length);
+      int to = Math.min(offset + limit, rows.length);
+      String[] rowIds = new String[to - from];
+      for (int i = from; i < to; i++) {
+        rowIds[i - from] = "uuid:" + i;
+      }
+      return TestTables
+          .makeTable(PagedUserTableTest.columns, rowIds, Arrays.copyOfRange(rows, from, to));
+    }
+
+    /**
+     * Checks the fetches since the last check, as limit+offset
+     */
+    void assertFetched(String... expected) {
+      assertEquals(Arrays.asList(expected), fetches);
+      fetches.clear();
+    }
+  }
+}
@@ -0,0 +1,243 @@
+package org.opendatakit.tables.data;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.tables.utils.SQLQueryStruct;
+import org.opendatakit.util.TestTables;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a {@link QueryResultCache} runs each query once however many
+ * callers ask for it at the same time, forgets failed and outdated loads, and
+ * keeps different queries apart.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class QueryResultCacheTest {
+
+  @Test
+  public void get_loadsEachQueryOnce() throws Exception {
+    QueryResultCache cache = new QueryResultCache();
+    CountingLoader loader = new CountingLoader();
+    UserTable result = cache.get("a", loader);
+    assertSame(result, cache.get("a", loader));
+    assertEquals(1, loader.loads.get());
+
+    UserTable other = cache.get("b", loader);
+    assertNotSame(result, other);
+    assertEquals(2, loader.loads.get());
+  }
+
+  @Test
+  public void get_concurrentCallersShareOneLoad() throws Exception {
+    final QueryResultCache cache = new QueryResultCache();
+    final CountingLoader loader = new CountingLoader();
+    loader.gate = new CountDownLatch(1);
+    final int numOfThreads = 8;
+    final UserTable[] results = new UserTable[numOfThreads];
+    final CountDownLatch done = new CountDownLatch(numOfThreads);
+    for (int i = 0; i < numOfThreads; i++) {
+      final int thread = i;
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            results[thread] = cache.get("a", loader);
+          } catch (ServicesAvailabilityException e) {
+            // the result stays null
+          } finally {
+            done.countDown();
+          }
+        }
+      }).start();
+      if (i == 0) {
+        // the rest all ask while the first one's load is running
+        assertTrue(loader.started.await(5, TimeUnit.SECONDS));
+      }
+    }
+    loader.gate.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(1, loader.loads.get());
+    for (UserTable result : results) {
+      assertSame(results[0], result);
+    }
+  }
+
+  @Test
+  public void get_failedLoadIsRetried() throws Exception {
+    QueryResultCache cache = new QueryResultCache();
+    CountingLoader loader = new CountingLoader();
+    loader.failuresLeft = 1;
+    try {
+      cache.get("a", loader);
+      fail("the load should have failed");
+    } catch (ServicesAvailabilityException e) {
+      // expected
+    }
+    UserTable result = cache.get("a", loader);
+    assertSame(result, cache.get("a", loader));
+    assertEquals(2, loader.loads.get());
+  }
+
+  @Test
+  public void get_runtimeExceptionsArePassedOn() throws Exception {
+    QueryResultCache cache = new QueryResultCache();
+    try {
+      cache.get("a", new QueryResultCache.Loader() {
+        @Override
+        public UserTable load() {
+          throw new IllegalArgumentException("no such column");
+        }
+      });
+      fail("the load should have failed");
+    } catch (IllegalArgumentException e) {
+      assertEquals("no such column", e.getMessage());
+    }
+    CountingLoader loader = new CountingLoader();
+    cache.get("a", loader);
+    assertEquals(1, loader.loads.get());
+  }
+
+  @Test
+  public void invalidate_dropsTheResults() throws Exception {
+    QueryResultCache cache = new QueryResultCache();
+    CountingLoader loader = new CountingLoader();
+    UserTable before = cache.get("a", loader);
+    cache.invalidate();
+    assertNotSame(before, cache.get("a", loader));
+    assertEquals(2, loader.loads.get());
+  }
+
+  @Test
+  public void invalidate_loadsInFlightArentHandedOut() throws Exception {
+    final QueryResultCache cache = new QueryResultCache();
+    final CountingLoader loader = new CountingLoader();
+    loader.gate = new CountDownLatch(1);
+    final UserTable[] before = new UserTable[1];
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          before[0] = cache.get("a", loader);
+        } catch (ServicesAvailabilityException e) {
+          // the result stays null
+        }
+      }
+    });
+    thread.start();
+    assertTrue(loader.started.await(5, TimeUnit.SECONDS));
+    // the table is written to while the first load is still running
+    cache.invalidate();
+    loader.gate.countDown();
+
+    UserTable after = cache.get("a", loader);
+    thread.join(5000);
+    assertEquals(2, loader.loads.get());
+    assertNotSame(before[0], after);
+    // the load from after the write is the one kept
+    assertSame(after, cache.get("a", loader));
+  }
+
+  @Test
+  public void get_keepsOnlyTheResultsUsedMostRecently() throws Exception {
+    QueryResultCache cache = new QueryResultCache();
+    CountingLoader loader = new CountingLoader();
+    UserTable first = cache.get("first", loader);
+    for (int i = 0; i < 3; i++) {
+      cache.get("key" + i, loader);
+      // keep using the first one, so it is never the least recently used
+      assertSame(first, cache.get("first", loader));
+    }
+    assertEquals(4, loader.loads.get());
+
+    // a fifth key pushes out the least recently used, key0
+    cache.get("key3", loader);
+    assertSame(first, cache.get("first", loader));
+    cache.get("key2", loader);
+    assertEquals(5, loader.loads.get());
+    cache.get("key0", loader);
+    assertEquals(6, loader.loads.get());
+  }
+
+  @Test
+  public void getKey_keepsTheTypeOfTheBindArgs() {
+    String withNumber = QueryResultCache.getKey(TestTables.TABLE_ID,
+        query(new BindArgs(new Object[] { 1 })), null);
+    String withText = QueryResultCache.getKey(TestTables.TABLE_ID,
+        query(new BindArgs(new Object[] { "1" })), null);
+    assertNotEquals(withNumber, withText);
+    assertEquals(withNumber, QueryResultCache.getKey(TestTables.TABLE_ID,
+        query(new BindArgs(new Object[] { 1 })), null));
+
+    assertNotEquals(QueryResultCache.getKey(TestTables.TABLE_ID,
+        query(new BindArgs(new Object[] { null })), null),
+        QueryResultCache.getKey(TestTables.TABLE_ID, query(new BindArgs(new Object[] {})),
+            null));
+  }
+
+  @Test
+  public void getKey_partsCantRunTogether() {
+    SQLQueryStruct query = query(null);
+    assertNotEquals(QueryResultCache.getKey(TestTables.TABLE_ID, query, new String[] { "a", "bc" }),
+        QueryResultCache.getKey(TestTables.TABLE_ID, query, new String[] { "ab", "c" }));
+    // no projection fetches every column, an empty one fetches none
+    assertNotEquals(QueryResultCache.getKey(TestTables.TABLE_ID, query, null),
+        QueryResultCache.getKey(TestTables.TABLE_ID, query, new String[0]));
+    assertNotEquals(QueryResultCache.getKey(TestTables.TABLE_ID, query, null),
+        QueryResultCache.getKey("other_table", query, null));
+
+    SQLQueryStruct sorted = query(null);
+    sorted.orderByElementKey = "a";
+    assertNotEquals(QueryResultCache.getKey(TestTables.TABLE_ID, query, null),
+        QueryResultCache.getKey(TestTables.TABLE_ID, sorted, null));
+  }
+
+  private static SQLQueryStruct query(BindArgs bindArgs) {
+    return new SQLQueryStruct("\"a\" = ?", bindArgs, null, null, null, null);
+  }
+
+  /**
+   * Hands out a new table for every load and counts the loads
+   */
+  private static final class CountingLoader implements QueryResultCache.Loader {
+    final AtomicInteger loads = new AtomicInteger();
+    // counted down as soon as a load starts
+    final CountDownLatch started = new CountDownLatch(1);
+    // if set, loads wait for it
+    CountDownLatch gate = null;
+    int failuresLeft = 0;
+
+    @Override
+    public UserTable load() throws ServicesAvailabilityException {
+      loads.incrementAndGet();
+      started.countDown();
+      if (gate != null) {
+        try {
+          gate.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          throw new ServicesAvailabilityException("interrupted");
+        }
+      }
+      if (failuresLeft > 0) {
+        --failuresLeft;
+        throw new ServicesAvailabilityException("the services are down");
+      }
+      return TestTables.makeTable(new String[] { "uuid:" + loads.get() });
+    }
+  }
+}
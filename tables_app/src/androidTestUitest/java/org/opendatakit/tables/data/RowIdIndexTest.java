@@ -0,0 +1,86 @@
+package org.opendatakit.tables.data;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.util.TestTables;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that {@link RowIdIndex} finds every row by its _id, whatever the
+ * number of rows and however their ids' hash codes collide.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class RowIdIndexTest {
+
+  @Test
+  public void indexOf_findsEveryRowForAnyNumberOfRows() {
+    // the table's capacity doubles at each power of two, so go past a few of them
+    for (int numOfRows = 0; numOfRows <= 70; numOfRows++) {
+      String[] ids = new String[numOfRows];
+      for (int i = 0; i < numOfRows; i++) {
+        ids[i] = "uuid:" + i;
+      }
+      RowIdIndex index = RowIdIndex.of(TestTables.makeTable(ids));
+      for (int i = 0; i < numOfRows; i++) {
+        assertEquals(i, index.indexOf(ids[i]));
+      }
+      assertEquals(RowIdIndex.NOT_FOUND, index.indexOf("uuid:" + numOfRows));
+    }
+  }
+
+  @Test
+  public void indexOf_findsEveryRowOfABigTable() {
+    int numOfRows = 50000;
+    String[] ids = new String[numOfRows];
+    for (int i = 0; i < numOfRows; i++) {
+      ids[i] = "uuid:" + UUID.randomUUID().toString();
+    }
+    RowIdIndex index = RowIdIndex.of(TestTables.makeTable(ids));
+    for (int i = 0; i < numOfRows; i++) {
+      assertEquals(i, index.indexOf(ids[i]));
+    }
+    assertEquals(RowIdIndex.NOT_FOUND, index.indexOf("uuid:" + UUID.randomUUID().toString()));
+  }
+
+  @Test
+  public void indexOf_idsWithTheSameHashCode() {
+    // "Aa" and "BB" have the same hash code, so every id here lands in the same slot
+    String[] ids = { "AaAaAa", "AaAaBB", "AaBBAa", "AaBBBB", "BBAaAa", "BBAaBB", "BBBBAa" };
+    for (int i = 1; i < ids.length; i++) {
+      assertEquals(ids[0].hashCode(), ids[i].hashCode());
+    }
+    RowIdIndex index = RowIdIndex.of(TestTables.makeTable(ids));
+    for (int i = 0; i < ids.length; i++) {
+      assertEquals(i, index.indexOf(ids[i]));
+    }
+    // the one combination left out probes past all of them
+    assertEquals(ids[0].hashCode(), "BBBBBB".hashCode());
+    assertEquals(RowIdIndex.NOT_FOUND, index.indexOf("BBBBBB"));
+  }
+
+  @Test
+  public void indexOf_missingAndDuplicateIds() {
+    String[] ids = { null, "a", "b", null, "a", "c" };
+    RowIdIndex index = RowIdIndex.of(TestTables.makeTable(ids));
+    // the first row with an id is the one found
+    assertEquals(1, index.indexOf("a"));
+    assertEquals(2, index.indexOf("b"));
+    assertEquals(5, index.indexOf("c"));
+    assertEquals(RowIdIndex.NOT_FOUND, index.indexOf(null));
+    assertEquals(RowIdIndex.NOT_FOUND, index.indexOf(""));
+  }
+
+  @Test
+  public void of_sharesTheIndexOfATable() {
+    UserTable table = TestTables.makeTable(new String[] { "a", "b" });
+    assertSame(RowIdIndex.of(table), RowIdIndex.of(table));
+  }
+}
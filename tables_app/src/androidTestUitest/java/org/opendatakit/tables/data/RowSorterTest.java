@@ -0,0 +1,252 @@
+package org.opendatakit.tables.data;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.util.TestTables;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Checks that {@link RowSorter} orders rows spread over several pages the way
+ * an ORDER BY would, breaking ties by _id the way the paged queries do.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class RowSorterTest {
+  private static final String NUMBER = "number";
+  private static final String INTEGER = "integer";
+  private static final String TEXT = "text";
+  private static final String FLAG = "flag";
+  private static final String[] elementKeys = { NUMBER, INTEGER, TEXT, FLAG };
+  private static final ElementDataType[] types = { ElementDataType.number,
+      ElementDataType.integer, ElementDataType.string, ElementDataType.bool };
+  private static final OrderedColumns columns = TestTables.makeColumns(elementKeys, types);
+
+  // a small page size, so even short tables span a few pages
+  private static final int pageSize = 3;
+
+  @Test
+  public void sort_ordersTiesByRowId() {
+    String[][] rows = {
+        { "2", "1", "b", "true" },
+        { "1", "1", "a", "false" },
+        { "2", "1", "b", "true" },
+        { "1", "1", "a", "false" },
+        { "2", "1", "b", "true" },
+        { "1", "1", "a", "false" },
+        { "2", "1", "b", "true" } };
+    assertArrayEquals(new int[] { 1, 3, 5, 0, 2, 4, 6 }, sort(rows, NUMBER, "ASC"));
+    assertArrayEquals(new int[] { 0, 2, 4, 6, 1, 3, 5 }, sort(rows, TEXT, "DESC"));
+    assertArrayEquals(new int[] { 1, 3, 5, 0, 2, 4, 6 }, sort(rows, FLAG, "ASC"));
+    // every row ties, and the ids are in order, so nothing moves
+    assertArrayEquals(new int[] { 0, 1, 2, 3, 4, 5, 6 }, sort(rows, INTEGER, "DESC"));
+
+    // the ids decide, not the order the rows came in
+    String[] rowIds = { "uuid:g", "uuid:f", "uuid:e", "uuid:d", "uuid:c", "uuid:b", "uuid:a" };
+    assertArrayEquals(new int[] { 5, 3, 1, 6, 4, 2, 0 },
+        sort(rowIds, rows, new String[] { NUMBER }, new String[] { "ASC" }));
+    assertArrayEquals(new int[] { 6, 5, 4, 3, 2, 1, 0 },
+        sort(rowIds, rows, new String[] { INTEGER }, new String[] { "DESC" }));
+  }
+
+  @Test
+  public void sort_rowsWithoutAnIdKeepTheirOrder() {
+    // grouped rows may not have an _id, those that still tie don't move
+    String[] rowIds = { null, "uuid:a", null, null };
+    String[][] rows = {
+        { "1", null, null, null },
+        { "1", null, null, null },
+        { "0", null, null, null },
+        { "1", null, null, null } };
+    assertArrayEquals(new int[] { 2, 0, 3, 1 },
+        sort(rowIds, rows, new String[] { NUMBER }, new String[] { "ASC" }));
+  }
+
+  @Test
+  public void sort_laterColumnsBreakTies() {
+    String[][] rows = {
+        { "1", "3", "a", null },
+        { "2", "1", "a", null },
+        { "1", "1", "b", null },
+        { "2", "2", "b", null },
+        { "1", "2", "a", null } };
+    assertArrayEquals(new int[] { 0, 4, 2, 3, 1 },
+        sort(rows, new String[] { NUMBER, INTEGER }, new String[] { "ASC", "DESC" }));
+    assertArrayEquals(new int[] { 1, 0, 4, 3, 2 },
+        sort(rows, new String[] { TEXT, NUMBER }, new String[] { "asc", "desc" }));
+    // missing directions are ascending
+    assertArrayEquals(new int[] { 2, 4, 0, 1, 3 },
+        sort(rows, new String[] { NUMBER, INTEGER }, null));
+    assertArrayEquals(new int[] { 4, 0, 2, 1, 3 },
+        sort(rows, new String[] { NUMBER, TEXT, INTEGER }, new String[] { "ASC" }));
+  }
+
+  @Test
+  public void sort_nullsFirstAscendingAndLastDescending() {
+    String[][] rows = {
+        { "1.5", "7", "m", "true" },
+        { null, null, null, null },
+        { "-2", "-3", "a", "false" },
+        { null, null, null, null },
+        { "10", "20", "z", "true" } };
+    for (String elementKey : elementKeys) {
+      if (elementKey.equals(FLAG)) {
+        assertArrayEquals(new int[] { 1, 3, 2, 0, 4 }, sort(rows, elementKey, "ASC"));
+        assertArrayEquals(new int[] { 0, 4, 2, 1, 3 }, sort(rows, elementKey, "DESC"));
+      } else {
+        assertArrayEquals(elementKey, new int[] { 1, 3, 2, 0, 4 },
+            sort(rows, elementKey, "ASC"));
+        assertArrayEquals(elementKey, new int[] { 4, 0, 2, 1, 3 },
+            sort(rows, elementKey, "DESC"));
+      }
+    }
+  }
+
+  @Test
+  public void sort_unparseableValuesSortWithTheNulls() {
+    String[][] rows = {
+        { "3", "3", null, null },
+        { "abc", "1.5", null, null },
+        { "1", "1", null, null },
+        { null, null, null, null },
+        { "", "", null, null } };
+    assertArrayEquals(new int[] { 1, 3, 4, 2, 0 }, sort(rows, NUMBER, "ASC"));
+    assertArrayEquals(new int[] { 1, 3, 4, 2, 0 }, sort(rows, INTEGER, "ASC"));
+    assertArrayEquals(new int[] { 0, 2, 1, 3, 4 }, sort(rows, INTEGER, "DESC"));
+  }
+
+  @Test
+  public void sort_comparesByTheColumnsType() {
+    String[][] rows = {
+        { "10", "10", "10", null },
+        { "9", "9", "9", null },
+        { "-1", "-1", "-1", null },
+        { "1e1", "100", "100", null } };
+    assertArrayEquals(new int[] { 2, 1, 0, 3 }, sort(rows, NUMBER, "ASC"));
+    assertArrayEquals(new int[] { 2, 1, 0, 3 }, sort(rows, INTEGER, "ASC"));
+    assertArrayEquals(new int[] { 2, 0, 3, 1 }, sort(rows, TEXT, "ASC"));
+  }
+
+  @Test
+  public void sort_metadataColumnsSortAsText() {
+    String[] rowIds = { "uuid:c", "uuid:a", "uuid:b" };
+    UserTable[] pages = makePages(rowIds, new String[3][elementKeys.length]);
+    assertArrayEquals(new int[] { 1, 2, 0 }, RowSorter.sort(pages, pageSize, rowIds.length,
+        columns, new String[] { DataTableColumns.ID }, null));
+  }
+
+  @Test
+  public void sort_withoutColumnsKeepsTheOrder() {
+    String[][] rows = new String[5][elementKeys.length];
+    int[] identity = { 0, 1, 2, 3, 4 };
+    assertArrayEquals(identity, sort(rows, new String[0], null));
+    assertArrayEquals(identity, sort(rows, (String[]) null, null));
+  }
+
+  @Test
+  public void sort_matchesAStableSortOfTheRows() {
+    int numOfRows = 1000;
+    final String[][] rows = new String[numOfRows][];
+    final String[] rowIds = makeRowIds(numOfRows);
+    Random random = new Random(numOfRows);
+    for (int i = 0; i < numOfRows; i++) {
+      // few distinct values, so there are plenty of ties
+      rows[i] = new String[] {
+          random.nextInt(8) == 0 ? null : Double.toString(random.nextInt(5) / 2.0),
+          random.nextInt(8) == 0 ? null : Integer.toString(random.nextInt(5) - 2),
+          random.nextInt(8) == 0 ? null : Character.toString((char) ('a' + random.nextInt(5))),
+          random.nextBoolean() ? "true" : "false" };
+    }
+    final String[] sortKeys = { FLAG, TEXT, NUMBER, INTEGER };
+    final String[] directions = { "DESC", "ASC", "DESC", "ASC" };
+
+    Integer[] expected = new Integer[numOfRows];
+    for (int i = 0; i < numOfRows; i++) {
+      expected[i] = i;
+    }
+    Arrays.sort(expected, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        for (int k = 0; k < sortKeys.length; k++) {
+          int column = Arrays.asList(elementKeys).indexOf(sortKeys[k]);
+          int result = compareValues(types[column], rows[a][column], rows[b][column]);
+          if (result != 0) {
+            return directions[k].equals("DESC") ? -result : result;
+          }
+        }
+        return rowIds[a].compareTo(rowIds[b]);
+      }
+    });
+
+    int[] expectedOrder = new int[numOfRows];
+    for (int i = 0; i < numOfRows; i++) {
+      expectedOrder[i] = expected[i];
+    }
+    assertArrayEquals(expectedOrder, sort(rowIds, rows, sortKeys, directions));
+  }
+
+  private static int compareValues(ElementDataType type, String a, String b) {
+    if (a == null || b == null) {
+      return a == null ? (b == null ? 0 : -1) : 1;
+    }
+    switch (type) {
+    case number:
+      return Double.compare(Double.parseDouble(a), Double.parseDouble(b));
+    case integer:
+      return Long.valueOf(a).compareTo(Long.valueOf(b));
+    case bool:
+      return Boolean.valueOf(a).compareTo(Boolean.valueOf(b));
+    default:
+      return a.compareTo(b);
+    }
+  }
+
+  private static int[] sort(String[][] rows, String elementKey, String direction) {
+    return sort(rows, new String[] { elementKey }, new String[] { direction });
+  }
+
+  private static int[] sort(String[][] rows, String[] sortKeys, String[] directions) {
+    return sort(makeRowIds(rows.length), rows, sortKeys, directions);
+  }
+
+  private static int[] sort(String[] rowIds, String[][] rows, String[] sortKeys,
+      String[] directions) {
+    return RowSorter.sort(makePages(rowIds, rows), pageSize, rows.length, columns, sortKeys,
+        directions);
+  }
+
+  /**
+   * @return ids that sort in the same order as the rows for fewer than ten rows
+   */
+  private static String[] makeRowIds(int numOfRows) {
+    String[] rowIds = new String[numOfRows];
+    for (int i = 0; i < numOfRows; i++) {
+      rowIds[i] = "uuid:" + i;
+    }
+    return rowIds;
+  }
+
+  /**
+   * Splits the rows into pages the way a paged table holds them
+   */
+  private static UserTable[] makePages(String[] rowIds, String[][] rows) {
+    UserTable[] pages = new UserTable[(rows.length + pageSize - 1) / pageSize];
+    for (int p = 0; p < pages.length; p++) {
+      int from = p * pageSize;
+      int to = Math.min(from + pageSize, rows.length);
+      pages[p] = TestTables.makeTable(columns, Arrays.copyOfRange(rowIds, from, to),
+          Arrays.copyOfRange(rows, from, to));
+    }
+    return pages;
+  }
+}
@@ -0,0 +1,240 @@
+package org.opendatakit.tables.data;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.util.TestConstants;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks when a {@link SharedDbHandle} opens and closes its handle, with a
+ * fake standing in for the database services.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class SharedDbHandleTest {
+  // short, so the tests don't wait long for a handle to go idle
+  private static final long IDLE_TIMEOUT = 50;
+  // long enough that a handle that was going to be closed would have been
+  private static final long SETTLE_TIME = 4 * IDLE_TIMEOUT + 200;
+
+  @Test
+  public void lease_sharesOneHandle() throws Exception {
+    FakeOpener opener = new FakeOpener();
+    SharedDbHandle database = new SharedDbHandle(TestConstants.APP_NAME, opener, 60000);
+    SharedDbHandle.Lease first = database.lease();
+    SharedDbHandle.Lease second = database.lease();
+    assertEquals(1, opener.getOpened().size());
+    assertSame(first.getHandle(), second.getHandle());
+
+    first.close();
+    // closing a lease twice doesn't give back the other one's lease
+    first.close();
+    SharedDbHandle.Lease third = database.lease();
+    assertSame(first.getHandle(), third.getHandle());
+    second.close();
+    third.close();
+    assertEquals(1, opener.getOpened().size());
+    assertEquals(0, opener.getClosed().size());
+  }
+
+  @Test
+  public void release_closesTheHandleOnceIdle() throws Exception {
+    FakeOpener opener = new FakeOpener();
+    SharedDbHandle database = new SharedDbHandle(TestConstants.APP_NAME, opener, IDLE_TIMEOUT);
+    DbHandle handle;
+    try (SharedDbHandle.Lease lease = database.lease()) {
+      handle = lease.getHandle();
+    }
+    opener.awaitClosed(1);
+    assertEquals(Collections.singletonList(handle), opener.getClosed());
+
+    // the next lease opens a new one
+    try (SharedDbHandle.Lease lease = database.lease()) {
+      assertNotSame(handle, lease.getHandle());
+    }
+    assertEquals(2, opener.getOpened().size());
+    opener.awaitClosed(2);
+  }
+
+  @Test
+  public void lease_keepsTheHandleOpenWhileLeased() throws Exception {
+    FakeOpener opener = new FakeOpener();
+    SharedDbHandle database = new SharedDbHandle(TestConstants.APP_NAME, opener, IDLE_TIMEOUT);
+    SharedDbHandle.Lease held = database.lease();
+    // a lease that comes and goes while another is held doesn't start the idle timeout
+    database.lease().close();
+    Thread.sleep(SETTLE_TIME);
+    assertEquals(0, opener.getClosed().size());
+
+    held.close();
+    opener.awaitClosed(1);
+    assertEquals(1, opener.getOpened().size());
+  }
+
+  @Test
+  public void discard_forgetsTheHandleWithoutClosingIt() throws Exception {
+    FakeOpener opener = new FakeOpener();
+    SharedDbHandle database = new SharedDbHandle(TestConstants.APP_NAME, opener, IDLE_TIMEOUT);
+    SharedDbHandle.Lease lease = database.lease();
+    database.discard();
+    SharedDbHandle.Lease next = database.lease();
+    assertNotSame(lease.getHandle(), next.getHandle());
+    assertEquals(2, opener.getOpened().size());
+
+    // the services took the discarded handle with them, so it is never closed
+    lease.close();
+    next.close();
+    opener.awaitClosed(1);
+    Thread.sleep(SETTLE_TIME);
+    assertEquals(Collections.singletonList(next.getHandle()), opener.getClosed());
+  }
+
+  @Test
+  public void shutDown_closesTheHandleOnceReleased() throws Exception {
+    FakeOpener opener = new FakeOpener();
+    SharedDbHandle database = new SharedDbHandle(TestConstants.APP_NAME, opener, 60000);
+    SharedDbHandle.Lease lease = database.lease();
+    database.shutDown();
+    Thread.sleep(SETTLE_TIME);
+    assertEquals(0, opener.getClosed().size());
+    lease.close();
+    opener.awaitClosed(1);
+
+    // anything still running gets a handle of its own, closed as soon as it is done
+    database.lease().close();
+    opener.awaitClosed(2);
+    assertEquals(2, opener.getOpened().size());
+  }
+
+  @Test
+  public void lease_waitsForTheHandleBeingOpened() throws Exception {
+    final FakeOpener opener = new FakeOpener();
+    opener.openGate = new CountDownLatch(1);
+    final SharedDbHandle database = new SharedDbHandle(TestConstants.APP_NAME, opener, 60000);
+    final int numOfThreads = 8;
+    final DbHandle[] handles = new DbHandle[numOfThreads];
+    final CountDownLatch done = new CountDownLatch(numOfThreads);
+    Thread[] threads = new Thread[numOfThreads];
+    for (int i = 0; i < numOfThreads; i++) {
+      final int thread = i;
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try (SharedDbHandle.Lease lease = database.lease()) {
+            handles[thread] = lease.getHandle();
+          } catch (ServicesAvailabilityException e) {
+            // the handle stays null
+          } finally {
+            done.countDown();
+          }
+        }
+      });
+      threads[i].start();
+      if (i == 0) {
+        // the rest all ask while the first one is still opening the handle
+        assertTrue(opener.opening.await(5, TimeUnit.SECONDS));
+      }
+    }
+    opener.openGate.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+
+    assertEquals(1, opener.getOpened().size());
+    for (DbHandle handle : handles) {
+      assertSame(opener.getOpened().get(0), handle);
+    }
+  }
+
+  @Test
+  public void lease_triesAgainAfterAFailedOpen() throws Exception {
+    FakeOpener opener = new FakeOpener();
+    opener.failuresLeft = 1;
+    SharedDbHandle database = new SharedDbHandle(TestConstants.APP_NAME, opener, 60000);
+    try {
+      database.lease();
+      fail("the open should have failed");
+    } catch (ServicesAvailabilityException e) {
+      // expected
+    }
+    try (SharedDbHandle.Lease lease = database.lease()) {
+      assertSame(opener.getOpened().get(0), lease.getHandle());
+    }
+  }
+
+  /**
+   * Hands out new handles and remembers which ones were opened and closed
+   */
+  private static final class FakeOpener implements SharedDbHandle.Opener {
+    // counted down as soon as an open starts
+    final CountDownLatch opening = new CountDownLatch(1);
+    // if set, opens wait for it
+    CountDownLatch openGate = null;
+    int failuresLeft = 0;
+    private final List<DbHandle> opened = new ArrayList<>();
+    private final List<DbHandle> closed = new ArrayList<>();
+
+    @Override
+    public DbHandle open() throws ServicesAvailabilityException {
+      opening.countDown();
+      if (openGate != null) {
+        try {
+          openGate.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          throw new ServicesAvailabilityException("interrupted");
+        }
+      }
+      synchronized (this) {
+        if (failuresLeft > 0) {
+          --failuresLeft;
+          throw new ServicesAvailabilityException("the services are down");
+        }
+        DbHandle handle = new DbHandle("handle" + opened.size());
+        opened.add(handle);
+        return handle;
+      }
+    }
+
+    @Override
+    public synchronized void close(DbHandle handle) {
+      closed.add(handle);
+      notifyAll();
+    }
+
+    synchronized List<DbHandle> getOpened() {
+      return new ArrayList<>(opened);
+    }
+
+    synchronized List<DbHandle> getClosed() {
+      return new ArrayList<>(closed);
+    }
+
+    /**
+     * Waits for the given number of handles to have been closed, which happens on a database
+     * thread
+     */
+    synchronized void awaitClosed(int numOfHandles) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 5000;
+      while (closed.size() < numOfHandles) {
+        long left = deadline - System.currentTimeMillis();
+        if (left <= 0) {
+          fail("only " + closed.size() + " of " + numOfHandles + " handles were closed");
+        }
+        wait(left);
+      }
+    }
+  }
+}
@@ -0,0 +1,194 @@
+package org.opendatakit.tables.data;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.KeyValueStoreConstants;
+import org.opendatakit.database.LocalKeyValueStoreConstants;
+import org.opendatakit.database.data.KeyValueStoreEntry;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.util.TestConstants;
+import org.opendatakit.util.TestTables;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how a {@link TableMetadataSnapshot} picks a table's properties out of
+ * its key value store entries, and when a snapshot is reused.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class TableMetadataSnapshotTest {
+  private static final String[] elementKeys = { "name", "price", "stock" };
+  private static final OrderedColumns columns = TestTables.makeColumns(elementKeys,
+      new ElementDataType[] { ElementDataType.string, ElementDataType.number,
+          ElementDataType.integer });
+  private static final String LOCALE = "en";
+  private static final int FONT_SIZE = 16;
+
+  @Test
+  public void tableProperties() throws Exception {
+    List<KeyValueStoreEntry> entries = new ArrayList<>();
+    entries.add(tableEntry(KeyValueStoreConstants.TABLE_SORT_COL, "price"));
+    entries.add(tableEntry(KeyValueStoreConstants.TABLE_SORT_ORDER, "DESC"));
+    entries.add(tableEntry(KeyValueStoreConstants.TABLE_INDEX_COL, "name"));
+    entries.add(tableEntry(KeyValueStoreConstants.TABLE_GROUP_BY_COLS, "[\"stock\",\"name\"]"));
+    entries.add(tableEntry(KeyValueStoreConstants.TABLE_COL_ORDER,
+        "[\"stock\",\"price\",\"name\"]"));
+    TableMetadataSnapshot snapshot = makeSnapshot("rev1", entries);
+
+    assertEquals("rev1", snapshot.getRevId());
+    assertEquals(TestTables.TABLE_ID, snapshot.getTableId());
+    assertEquals("price", snapshot.getSortColumn());
+    assertEquals("DESC", snapshot.getSortOrder());
+    assertEquals("name", snapshot.getIndexColumn());
+    assertEquals(Arrays.asList("stock", "name"), snapshot.getGroupByColumns());
+    assertEquals(Arrays.asList("stock", "price", "name"), snapshot.getColumnOrder());
+    assertEquals(FONT_SIZE, snapshot.getFontSize());
+  }
+
+  @Test
+  public void tableProperties_missing() throws Exception {
+    TableMetadataSnapshot snapshot = makeSnapshot("rev1", new ArrayList<KeyValueStoreEntry>());
+    assertNull(snapshot.getSortColumn());
+    assertNull(snapshot.getSortOrder());
+    assertNull(snapshot.getIndexColumn());
+    assertEquals(Collections.<String>emptyList(), snapshot.getGroupByColumns());
+    // with no column order the columns are displayed in the order they were defined
+    assertEquals(Arrays.asList(elementKeys), snapshot.getColumnOrder());
+  }
+
+  @Test
+  public void tableProperties_onlyFromTheDefaultAspect() throws Exception {
+    List<KeyValueStoreEntry> entries = new ArrayList<>();
+    KeyValueStoreEntry elsewhere = tableEntry(KeyValueStoreConstants.TABLE_SORT_COL, "price");
+    elsewhere.aspect = "some_view";
+    entries.add(elsewhere);
+    KeyValueStoreEntry otherPartition = tableEntry(KeyValueStoreConstants.TABLE_INDEX_COL,
+        "name");
+    otherPartition.partition = "SomePartition";
+    entries.add(otherPartition);
+    TableMetadataSnapshot snapshot = makeSnapshot("rev1", entries);
+    assertNull(snapshot.getSortColumn());
+    assertNull(snapshot.getIndexColumn());
+  }
+
+  @Test
+  public void badLists_areEmpty() throws Exception {
+    List<KeyValueStoreEntry> entries = new ArrayList<>();
+    entries.add(tableEntry(KeyValueStoreConstants.TABLE_GROUP_BY_COLS, "stock"));
+    entries.add(tableEntry(KeyValueStoreConstants.TABLE_COL_ORDER, "[\"stock\","));
+    TableMetadataSnapshot snapshot = makeSnapshot("rev1", entries);
+    assertEquals(Collections.<String>emptyList(), snapshot.getGroupByColumns());
+    // a column order that can't be read falls back on the defined order too
+    assertEquals(Arrays.asList(elementKeys), snapshot.getColumnOrder());
+
+    entries.clear();
+    entries.add(tableEntry(KeyValueStoreConstants.TABLE_COL_ORDER, "[]"));
+    assertEquals(Arrays.asList(elementKeys), makeSnapshot("rev1", entries).getColumnOrder());
+  }
+
+  @Test
+  public void columnWidths() throws Exception {
+    List<KeyValueStoreEntry> entries = new ArrayList<>();
+    entries.add(widthEntry("name", "250"));
+    entries.add(widthEntry("price", "wide"));
+    entries.add(widthEntry("stock", ""));
+    TableMetadataSnapshot snapshot = makeSnapshot("rev1", entries);
+    assertEquals(250, snapshot.getColumnWidth("name"));
+    // widths that aren't numbers are left at the default
+    assertEquals(LocalKeyValueStoreConstants.Spreadsheet.DEFAULT_COL_WIDTH,
+        snapshot.getColumnWidth("price"));
+    assertEquals(LocalKeyValueStoreConstants.Spreadsheet.DEFAULT_COL_WIDTH,
+        snapshot.getColumnWidth("stock"));
+    assertEquals(LocalKeyValueStoreConstants.Spreadsheet.DEFAULT_COL_WIDTH,
+        snapshot.getColumnWidth("no_such_column"));
+  }
+
+  @Test
+  public void displayNames_defaultWhenNoneStored() throws Exception {
+    TableMetadataSnapshot snapshot = makeSnapshot("rev1", new ArrayList<KeyValueStoreEntry>());
+    for (String elementKey : elementKeys) {
+      assertEquals("default " + elementKey, snapshot.getLocalizedDisplayName(elementKey));
+    }
+    // columns the table doesn't have are shown by their element key
+    assertEquals("no_such_column", snapshot.getLocalizedDisplayName("no_such_column"));
+  }
+
+  @Test
+  public void isCurrent_onlyIfNothingTheSnapshotDependsOnChanged() throws Exception {
+    TableMetadataSnapshot snapshot = makeSnapshot("rev1", new ArrayList<KeyValueStoreEntry>());
+    assertTrue(snapshot.isCurrent("rev1", LOCALE, FONT_SIZE));
+    assertFalse(snapshot.isCurrent("rev2", LOCALE, FONT_SIZE));
+    assertFalse(snapshot.isCurrent(null, LOCALE, FONT_SIZE));
+    // the user's preferences change these without the table changing
+    assertFalse(snapshot.isCurrent("rev1", "fr", FONT_SIZE));
+    assertFalse(snapshot.isCurrent("rev1", null, FONT_SIZE));
+    assertFalse(snapshot.isCurrent("rev1", LOCALE, FONT_SIZE + 2));
+  }
+
+  @Test
+  public void isCurrent_neverWithoutARevision() throws Exception {
+    TableMetadataSnapshot snapshot = makeSnapshot(null, new ArrayList<KeyValueStoreEntry>());
+    assertFalse(snapshot.isCurrent(null, LOCALE, FONT_SIZE));
+
+    TableMetadataSnapshot noLocale = new TableMetadataSnapshot(TestConstants.APP_NAME,
+        TestTables.TABLE_ID, columns, "rev1", new ArrayList<KeyValueStoreEntry>(), null,
+        FONT_SIZE, new FakeDefaults());
+    assertTrue(noLocale.isCurrent("rev1", null, FONT_SIZE));
+    assertFalse(noLocale.isCurrent("rev1", LOCALE, FONT_SIZE));
+  }
+
+  private static TableMetadataSnapshot makeSnapshot(String revId,
+      List<KeyValueStoreEntry> entries) throws ServicesAvailabilityException {
+    return new TableMetadataSnapshot(TestConstants.APP_NAME, TestTables.TABLE_ID, columns, revId,
+        entries, LOCALE, FONT_SIZE, new FakeDefaults());
+  }
+
+  private static KeyValueStoreEntry tableEntry(String key, String value) {
+    return makeEntry(KeyValueStoreConstants.PARTITION_TABLE, KeyValueStoreConstants.ASPECT_DEFAULT,
+        key, value);
+  }
+
+  private static KeyValueStoreEntry widthEntry(String elementKey, String value) {
+    return makeEntry(LocalKeyValueStoreConstants.Spreadsheet.PARTITION, elementKey,
+        LocalKeyValueStoreConstants.Spreadsheet.KEY_COLUMN_WIDTH, value);
+  }
+
+  private static KeyValueStoreEntry makeEntry(String partition, String aspect, String key,
+      String value) {
+    KeyValueStoreEntry entry = new KeyValueStoreEntry();
+    entry.tableId = TestTables.TABLE_ID;
+    entry.partition = partition;
+    entry.aspect = aspect;
+    entry.key = key;
+    entry.value = value;
+    return entry;
+  }
+
+  /**
+   * Names each column "default" and its element key, and knows of no views
+   */
+  private static final class FakeDefaults implements TableMetadataSnapshot.Defaults {
+    @Override
+    public String getDefaultDisplayName(String elementKey) {
+      return "default " + elementKey;
+    }
+
+    @Override
+    public PossibleTableViewTypes getPossibleTableViewTypes() {
+      return null;
+    }
+  }
+}
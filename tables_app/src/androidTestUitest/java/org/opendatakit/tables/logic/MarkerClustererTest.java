@@ -0,0 +1,167 @@
+package org.opendatakit.tables.logic;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link MarkerClusterer} puts every marker in exactly one
+ * cluster, with counts, averages and bounds that match its markers.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class MarkerClustererTest {
+  private static final int numOfPoints = 5000;
+  private static final double CENTER_LATITUDE = 47.65;
+  private static final double CENTER_LONGITUDE = -122.3;
+  private static final double SPREAD = 0.5;
+
+  @Test
+  public void cluster_everyMarkerInOneCluster() {
+    double[] latitudes = new double[numOfPoints];
+    double[] longitudes = new double[numOfPoints];
+    Random random = new Random(numOfPoints);
+    for (int i = 0; i < numOfPoints; i++) {
+      latitudes[i] = CENTER_LATITUDE + (random.nextDouble() - 0.5) * SPREAD;
+      longitudes[i] = CENTER_LONGITUDE + (random.nextDouble() - 0.5) * SPREAD;
+    }
+    MarkerClusterer clusterer = new MarkerClusterer(latitudes, longitudes, numOfPoints);
+
+    for (int zoom = 0; zoom <= MarkerClusterer.MAX_CLUSTER_ZOOM; zoom++) {
+      MarkerClusterer.Clusters clusters = clusterer.cluster(zoom);
+      assertEquals(zoom, clusters.getZoom());
+
+      int[] counts = new int[clusters.size()];
+      double[] sumLatitudes = new double[clusters.size()];
+      double[] sumLongitudes = new double[clusters.size()];
+      for (int i = 0; i < numOfPoints; i++) {
+        int c = clusters.getClusterOf(i);
+        assertTrue(c >= 0 && c < clusters.size());
+        if (counts[c] == 0) {
+          // clusters are numbered in the order their first marker comes
+          assertEquals(i, clusters.getFirstMarker(c));
+        }
+        counts[c]++;
+        sumLatitudes[c] += latitudes[i];
+        sumLongitudes[c] += longitudes[i];
+        assertTrue(latitudes[i] >= clusters.getMinLatitude(c));
+        assertTrue(latitudes[i] <= clusters.getMaxLatitude(c));
+        assertTrue(longitudes[i] >= clusters.getMinLongitude(c));
+        assertTrue(longitudes[i] <= clusters.getMaxLongitude(c));
+      }
+
+      int total = 0;
+      for (int c = 0; c < clusters.size(); c++) {
+        assertEquals(counts[c], clusters.getCount(c));
+        assertEquals(sumLatitudes[c] / counts[c], clusters.getLatitude(c), 1e-9);
+        assertEquals(sumLongitudes[c] / counts[c], clusters.getLongitude(c), 1e-9);
+        total += counts[c];
+      }
+      assertEquals(numOfPoints, total);
+    }
+  }
+
+  @Test
+  public void cluster_fewerClustersZoomedOut() {
+    double[] latitudes = new double[numOfPoints];
+    double[] longitudes = new double[numOfPoints];
+    Random random = new Random(numOfPoints + 1);
+    for (int i = 0; i < numOfPoints; i++) {
+      latitudes[i] = CENTER_LATITUDE + (random.nextDouble() - 0.5) * SPREAD;
+      longitudes[i] = CENTER_LONGITUDE + (random.nextDouble() - 0.5) * SPREAD;
+    }
+    MarkerClusterer clusterer = new MarkerClusterer(latitudes, longitudes, numOfPoints);
+
+    // the whole city fits in one cell of the world
+    assertEquals(1, clusterer.cluster(0).size());
+    int previous = 1;
+    for (int zoom = 1; zoom < MarkerClusterer.MAX_CLUSTER_ZOOM; zoom++) {
+      int size = clusterer.cluster(zoom).size();
+      assertTrue(size >= previous);
+      previous = size;
+    }
+  }
+
+  @Test
+  public void cluster_maxZoomKeepsMarkersApart() {
+    // the same location twice still makes two clusters once markers aren't grouped
+    double[] latitudes = { 10, 10, 20 };
+    double[] longitudes = { 30, 30, 40 };
+    MarkerClusterer clusterer = new MarkerClusterer(latitudes, longitudes, 3);
+
+    MarkerClusterer.Clusters clusters = clusterer.cluster(MarkerClusterer.MAX_CLUSTER_ZOOM);
+    assertEquals(3, clusters.size());
+    for (int i = 0; i < 3; i++) {
+      assertEquals(i, clusters.getClusterOf(i));
+      assertEquals(1, clusters.getCount(i));
+      assertEquals(i, clusters.getFirstMarker(i));
+    }
+
+    clusters = clusterer.cluster(MarkerClusterer.MAX_CLUSTER_ZOOM - 1);
+    assertEquals(2, clusters.size());
+    assertEquals(clusters.getClusterOf(0), clusters.getClusterOf(1));
+    assertEquals(2, clusters.getCount(clusters.getClusterOf(0)));
+  }
+
+  @Test
+  public void cluster_countIgnoresTheRestOfTheArrays() {
+    double[] latitudes = { 1, 2, 3, 4 };
+    double[] longitudes = { 1, 2, 3, 4 };
+    MarkerClusterer clusterer = new MarkerClusterer(latitudes, longitudes, 2);
+    assertEquals(2, clusterer.getCount());
+    MarkerClusterer.Clusters clusters = clusterer.cluster(MarkerClusterer.MAX_CLUSTER_ZOOM);
+    assertEquals(2, clusters.size());
+
+    clusters = new MarkerClusterer(latitudes, longitudes, 0).cluster(5);
+    assertEquals(0, clusters.size());
+  }
+
+  @Test
+  public void cluster_edgesOfTheMap() {
+    // past the poles is drawn at the edge, and both sides of the antimeridian stay apart
+    double[] latitudes = { 89.9, 86, -89.9, -86, 0, 0 };
+    double[] longitudes = { 0, 0, 0, 0, -179.9, 179.9 };
+    MarkerClusterer clusterer = new MarkerClusterer(latitudes, longitudes, 6);
+
+    MarkerClusterer.Clusters clusters = clusterer.cluster(3);
+    assertEquals(clusters.getClusterOf(0), clusters.getClusterOf(1));
+    assertEquals(clusters.getClusterOf(2), clusters.getClusterOf(3));
+    assertNotEquals(clusters.getClusterOf(0), clusters.getClusterOf(2));
+    assertNotEquals(clusters.getClusterOf(4), clusters.getClusterOf(5));
+    assertEquals(4, clusters.size());
+  }
+
+  @Test
+  public void findInBounds_findsClustersOnScreen() {
+    double[] latitudes = { 10, 10.001, -10, 50, 0, 0 };
+    double[] longitudes = { 10, 10.001, -10, 50, -179.5, 179.5 };
+    MarkerClusterer.Clusters clusters = new MarkerClusterer(latitudes, longitudes, 6)
+        .cluster(8);
+    assertEquals(5, clusters.size());
+
+    int[] found = new int[clusters.size()];
+    int numFound = clusters.findInBounds(0, 0, 20, 20, found);
+    assertEquals(1, numFound);
+    assertEquals(clusters.getClusterOf(0), found[0]);
+
+    numFound = clusters.findInBounds(-20, -20, 60, 60, found);
+    assertEquals(3, numFound);
+
+    // an area across the antimeridian has its west edge greater than its east edge
+    numFound = clusters.findInBounds(-1, 179, 1, -179, found);
+    assertEquals(2, numFound);
+    Arrays.sort(found, 0, numFound);
+    int[] expected = { clusters.getClusterOf(4), clusters.getClusterOf(5) };
+    Arrays.sort(expected);
+    assertArrayEquals(expected, Arrays.copyOf(found, numFound));
+  }
+}
@@ -0,0 +1,92 @@
+package org.opendatakit.util;
+
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.Row;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.provider.DataTableColumns;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds small tables in memory, for testing code that reads a {@link UserTable}
+ * without going through the database.
+ */
+public class TestTables {
+  public static final String TABLE_ID = "test_table";
+
+  /**
+   * @param elementKeys the user columns
+   * @param types       the type of each user column
+   * @return the columns, in the same order
+   */
+  public static OrderedColumns makeColumns(String[] elementKeys, ElementDataType[] types) {
+    String[] elementTypes = new String[types.length];
+    for (int i = 0; i < types.length; i++) {
+      // a boolean column's element type is spelled out
+      elementTypes[i] = types[i] == ElementDataType.bool ? "boolean" : types[i].name();
+    }
+    return makeColumns(elementKeys, elementTypes);
+  }
+
+  /**
+   * @param elementKeys  the user columns
+   * @param elementTypes the element type of each user column, e.g. date or dateTime
+   * @return the columns, in the same order
+   */
+  public static OrderedColumns makeColumns(String[] elementKeys, String[] elementTypes) {
+    List<Column> columns = new ArrayList<>();
+    for (int i = 0; i < elementKeys.length; i++) {
+      columns.add(new Column(elementKeys[i], elementKeys[i], elementTypes[i], "[]"));
+    }
+    return new OrderedColumns(TestConstants.APP_NAME, TABLE_ID, columns);
+  }
+
+  /**
+   * Builds a table with the given user columns followed by an _id column
+   *
+   * @param columns the user columns
+   * @param rowIds  the _id of each row, may contain nulls
+   * @param rows    the raw value of each user column in each row, may contain nulls
+   * @return the table
+   */
+  public static UserTable makeTable(OrderedColumns columns, String[] rowIds, String[][] rows) {
+    List<String> elementKeys = columns.getRetentionColumnNames();
+    int numberOfColumns = elementKeys.size() + 1;
+    String[] elementKeyForIndex = new String[numberOfColumns];
+    Map<String, Integer> elementKeyToIndex = new HashMap<>();
+    for (int i = 0; i < elementKeys.size(); i++) {
+      elementKeyForIndex[i] = elementKeys.get(i);
+      elementKeyToIndex.put(elementKeys.get(i), i);
+    }
+    elementKeyForIndex[numberOfColumns - 1] = DataTableColumns.ID;
+    elementKeyToIndex.put(DataTableColumns.ID, numberOfColumns - 1);
+
+    BaseTable baseTable = new BaseTable(null, elementKeyForIndex, elementKeyToIndex,
+        rowIds.length);
+    for (int r = 0; r < rowIds.length; r++) {
+      String[] data = new String[numberOfColumns];
+      if (rows != null) {
+        System.arraycopy(rows[r], 0, data, 0, rows[r].length);
+      }
+      data[numberOfColumns - 1] = rowIds[r];
+      baseTable.addRow(new Row(data, baseTable));
+    }
+    return new UserTable(baseTable, columns, new String[] { DataTableColumns.ID });
+  }
+
+  /**
+   * Builds a table with just an _id column
+   *
+   * @param rowIds the _id of each row, may contain nulls
+   * @return the table
+   */
+  public static UserTable makeTable(String[] rowIds) {
+    return makeTable(makeColumns(new String[0], new ElementDataType[0]), rowIds, null);
+  }
+}
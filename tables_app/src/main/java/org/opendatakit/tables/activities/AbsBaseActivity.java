@@ -27,7 +27,6 @@ import org.opendatakit.activities.BaseActivity;
 import org.opendatakit.application.CommonApplication;
 import org.opendatakit.consts.IntentConsts;
 import org.opendatakit.consts.RequestCodeConsts;
-import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.database.service.TableHealthInfo;
 import org.opendatakit.database.service.TableHealthStatus;
 import org.opendatakit.dependencies.DependencyChecker;
@@ -37,6 +36,7 @@ import org.opendatakit.logging.WebLogger;
 import org.opendatakit.properties.CommonToolProperties;
 import org.opendatakit.properties.PropertiesSingleton;
 import org.opendatakit.tables.R;
+import org.opendatakit.tables.data.SharedDbHandle;
 import org.opendatakit.tables.utils.Constants;
 import org.opendatakit.tables.utils.TableFileUtils;
 
@@ -70,6 +70,11 @@ public abstract class AbsBaseActivity extends BaseActivity {
    */
   private String mActionTableId = null;
 
+  /**
+   * The database handle shared by everything this activity and its fragments read or write
+   */
+  private SharedDbHandle mSharedDbHandle;
+
   private Bundle mCheckpointTables = new Bundle();
   private Bundle mConflictTables = new Bundle();
 
@@ -77,6 +82,7 @@ public abstract class AbsBaseActivity extends BaseActivity {
   protected void onCreate(Bundle savedInstanceState) {
     this.mAppName = retrieveAppNameFromIntent();
     this.mProps = CommonToolProperties.get(this, mAppName);
+    this.mSharedDbHandle = new SharedDbHandle(mAppName);
     if (savedInstanceState != null) {
       if (savedInstanceState.containsKey(Constants.IntentKeys.ACTION_TABLE_ID)) {
         mActionTableId = savedInstanceState.getString(Constants.IntentKeys.ACTION_TABLE_ID);
@@ -127,6 +133,24 @@ public abstract class AbsBaseActivity extends BaseActivity {
     ((CommonApplication) getApplication()).fireDatabaseConnectionListener();
   }
 
+  @Override
+  protected void onDestroy() {
+    super.onDestroy();
+    if (mSharedDbHandle != null) {
+      mSharedDbHandle.shutDown();
+    }
+  }
+
+  /**
+   * Gets the database handle shared by this activity and its fragments. Lease it rather than
+   * opening a handle of your own, so that bursts of calls share one handle.
+   *
+   * @return the shared handle
+   */
+  public SharedDbHandle getSharedDbHandle() {
+    return mSharedDbHandle;
+  }
+
   public String getActionTableId() {
     return mActionTableId;
   }
@@ -145,16 +169,14 @@ public abstract class AbsBaseActivity extends BaseActivity {
         .i(TAG, "scanAllTables -- searching for conflicts and checkpoints ");
 
     CommonApplication app = (CommonApplication) getApplication();
-    DbHandle db = null;
 
     if (app.getDatabase() == null) {
       return;
     }
 
-    try {
-      db = app.getDatabase().openDatabase(mAppName);
+    try (SharedDbHandle.Lease lease = mSharedDbHandle.lease()) {
       List<TableHealthInfo> tableHealthList = app.getDatabase()
-          .getTableHealthStatuses(mAppName, db);
+          .getTableHealthStatuses(mAppName, lease.getHandle());
 
       Bundle checkpointTables = new Bundle();
       Bundle conflictTables = new Bundle();
@@ -176,14 +198,6 @@ public abstract class AbsBaseActivity extends BaseActivity {
       mConflictTables = conflictTables;
     } catch (ServicesAvailabilityException e) {
       handleError(e);
-    } finally {
-      if (db != null) {
-        try {
-          app.getDatabase().closeDatabase(mAppName, db);
-        } catch (ServicesAvailabilityException e) {
-          handleError(e);
-        }
-      }
     }
 
     long elapsed = System.currentTimeMillis() - start;
@@ -300,6 +314,8 @@ public abstract class AbsBaseActivity extends BaseActivity {
    */
   @Override
   public void databaseUnavailable() {
+    // the handle went away with the services
+    mSharedDbHandle.discard();
     FragmentManager mgr = this.getSupportFragmentManager();
     int idxLast = mgr.getBackStackEntryCount() - 1;
     if (idxLast >= 0) {
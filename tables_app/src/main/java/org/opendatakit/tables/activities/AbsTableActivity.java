@@ -19,10 +19,10 @@ import android.os.Bundle;
 import org.opendatakit.application.CommonApplication;
 import org.opendatakit.consts.IntentConsts;
 import org.opendatakit.database.data.OrderedColumns;
-import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.data.SharedDbHandle;
 
 /**
  * This class is the base for any Activity that will display information about
@@ -65,24 +65,13 @@ public abstract class AbsTableActivity extends AbsBaseActivity {
       WebLogger.getLogger(getAppName()).e(TAG, "[onCreate] building mColumnDefinitions.");
       CommonApplication app = Tables.getInstance();
       if (app.getDatabase() != null) {
-        DbHandle db = null;
-        try {
-          db = app.getDatabase().openDatabase(getAppName());
+        try (SharedDbHandle.Lease lease = getSharedDbHandle().lease()) {
           mColumnDefinitions = app.getDatabase()
-              .getUserDefinedColumns(getAppName(), db, getTableId());
+              .getUserDefinedColumns(getAppName(), lease.getHandle(), getTableId());
         } catch (ServicesAvailabilityException e) {
           WebLogger.getLogger(getAppName()).e(TAG, "[onCreate] unable to access database.");
           WebLogger.getLogger(getAppName()).printStackTrace(e);
           throw new IllegalStateException("database went down -- handle this! " + e);
-        } finally {
-          if (db != null) {
-            try {
-              app.getDatabase().closeDatabase(getAppName(), db);
-            } catch (ServicesAvailabilityException e) {
-              WebLogger.getLogger(getAppName()).e(TAG, "[onCreate] unable to close database.");
-              WebLogger.getLogger(getAppName()).printStackTrace(e);
-            }
-          }
         }
       }
     }
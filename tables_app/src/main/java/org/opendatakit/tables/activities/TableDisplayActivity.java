@@ -35,20 +35,26 @@ import android.view.View;
 import android.widget.Toast;
 import org.opendatakit.consts.IntentConsts;
 import org.opendatakit.consts.RequestCodeConsts;
-import org.opendatakit.data.utilities.TableUtil;
+import org.opendatakit.data.ColorRule;
+import org.opendatakit.data.ColorRuleGroup;
 import org.opendatakit.database.data.UserTable;
 import org.opendatakit.database.queries.ArbitraryQuery;
 import org.opendatakit.database.queries.BindArgs;
 import org.opendatakit.database.queries.ResumableQuery;
+import org.opendatakit.database.queries.SimpleQuery;
 import org.opendatakit.database.queries.SingleRowQuery;
 import org.opendatakit.database.service.DbHandle;
-import org.opendatakit.database.service.UserDbInterface;
 import org.opendatakit.database.utilities.QueryUtil;
 import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.listener.DatabaseConnectionListener;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.tables.R;
+import org.opendatakit.tables.data.ColumnProjection;
+import org.opendatakit.tables.data.PagedUserTable;
 import org.opendatakit.tables.data.PossibleTableViewTypes;
+import org.opendatakit.tables.data.QueryResultCache;
+import org.opendatakit.tables.data.SharedDbHandle;
+import org.opendatakit.tables.data.TableMetadataSnapshot;
 import org.opendatakit.tables.data.ViewFragmentType;
 import org.opendatakit.tables.fragments.DetailViewFragment;
 import org.opendatakit.tables.fragments.DetailWithListDetailViewFragment;
@@ -60,6 +66,7 @@ import org.opendatakit.tables.fragments.NavigateFragment;
 import org.opendatakit.tables.fragments.SpreadsheetFragment;
 import org.opendatakit.tables.fragments.TableMapInnerFragment;
 import org.opendatakit.tables.fragments.TableMapInnerFragment.TableMapInnerFragmentListener;
+import org.opendatakit.tables.tasks.DatabaseExecutor;
 import org.opendatakit.tables.utils.ActivityUtil;
 import org.opendatakit.tables.utils.Constants;
 import org.opendatakit.tables.utils.IntentUtil;
@@ -71,7 +78,11 @@ import org.opendatakit.views.OdkData;
 import org.opendatakit.webkitserver.utilities.UrlUtils;
 
 import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  * Displays information about a table. List, Map, and Detail views are all
@@ -154,6 +165,50 @@ public class TableDisplayActivity extends AbsBaseWebActivity
    * The {@link UserTable} that is being displayed in this activity.
    */
   private UserTable mUserTable = null;
+  /**
+   * A windowed view of the same rows as {@link #mUserTable}, used by the spreadsheet.
+   */
+  private PagedUserTable mPagedUserTable = null;
+  /**
+   * The rows fetched by each query, shared by every fragment of this activity. Dropped whenever
+   * the table may have been written to.
+   */
+  private final QueryResultCache mQueryResults = new QueryResultCache();
+  /**
+   * Bumped every time the props the rows are queried with change. Loads remember the generation
+   * they were started in, and a load from an older generation is dropped when it finishes rather
+   * than displayed, so quickly re-sorting or re-grouping only ever shows the latest state.
+   * Only written on the UI thread, read on the database threads to skip work no one wants.
+   */
+  private volatile int mDataGeneration = 0;
+  /**
+   * The load of {@link #mPagedUserTable} in flight, if any
+   */
+  private Future<?> mPagedTableLoad = null;
+  /**
+   * Everyone waiting for {@link #mPagedUserTable} to be loaded, told once the latest load
+   * finishes
+   */
+  private final List<DatabaseExecutor.Callback<PagedUserTable>> mPagedTableCallbacks =
+      new ArrayList<>();
+  /**
+   * Told when the latest re-sort or re-query finishes. Only the latest one, since it is the only
+   * one whose result is displayed.
+   */
+  private DatabaseExecutor.Callback<PagedUserTable> mDataChangedCallback = null;
+  /**
+   * Held while re-sorting the rows in memory, so two re-sorts never reorder the rows at once
+   */
+  private final Object mResortLock = new Object();
+  /**
+   * The table's properties, read once when the table is shown and shared by every fragment.
+   */
+  private TableMetadataSnapshot mTableMetadata = null;
+  /**
+   * Bumped every time {@link #mTableMetadata} is dropped, so a read of the properties that
+   * started before then isn't kept
+   */
+  private int mMetadataGeneration = 0;
   private boolean pullFromDatabase;
   private String mDefaultRowId;
 
@@ -409,10 +464,11 @@ public class TableDisplayActivity extends AbsBaseWebActivity
   }
 
   /**
-   * Do nothing if the database goes away
+   * Do nothing if the database goes away, other than forgetting the handle that went with it
    */
   @Override
   public void databaseUnavailable() {
+    getSharedDbHandle().discard();
   }
 
   /**
@@ -422,21 +478,46 @@ public class TableDisplayActivity extends AbsBaseWebActivity
   @Override
   public void databaseAvailable() {
     WebLogger.getLogger(getAppName()).i(TAG, "databaseAvailable called");
-    if (pullFromDatabase) {
-      try {
-        UserDbInterface dbInt = getDatabase();
-        DbHandle db = dbInt.openDatabase(mAppName);
-        props.setSortOrder(TableUtil.get().getSortOrder(dbInt, mAppName, db, getTableId()));
-        props.setSort(TableUtil.get().getSortColumn(dbInt, mAppName, db, getTableId()));
-        List<String> temp = TableUtil.get().getGroupByColumns(dbInt, mAppName, db, getTableId());
-        props.setGroupBy(temp.toArray(new String[temp.size()]));
-        pullFromDatabase = false;
-      } catch (ServicesAvailabilityException e) {
-        Toast.makeText(this, R.string.database_unavailable, Toast.LENGTH_LONG).show();
+    // the properties may have been changed while we were away, check them again
+    dropTableMetadata();
+    showCurrentDisplayFragmentWhenLoaded();
+  }
+
+  /**
+   * Reads the table's properties on a database thread, then recreates the current fragment. The
+   * sort and group by columns are taken from the properties if they weren't in the saved
+   * instance state or the intent. If the properties can't be read the fragment is still shown,
+   * with the defaults.
+   */
+  private void showCurrentDisplayFragmentWhenLoaded() {
+    loadTableMetadata(new DatabaseExecutor.Callback<TableMetadataSnapshot>() {
+      @Override
+      public void onSuccess(TableMetadataSnapshot metadata) {
+        if (destroyed || getSupportFragmentManager().isStateSaved()) {
+          // databaseAvailable is called again when we come back
+          return;
+        }
+        if (pullFromDatabase) {
+          props.setSortOrder(metadata.getSortOrder());
+          props.setSort(metadata.getSortColumn());
+          List<String> temp = metadata.getGroupByColumns();
+          props.setGroupBy(temp.toArray(new String[temp.size()]));
+          pullFromDatabase = false;
+        }
+        showCurrentDisplayFragment(true);
+      }
+
+      @Override
+      public void onFailure(Exception e) {
+        if (destroyed || getSupportFragmentManager().isStateSaved()) {
+          return;
+        }
         WebLogger.getLogger(getAppName()).printStackTrace(e);
+        Toast.makeText(TableDisplayActivity.this, R.string.database_unavailable,
+            Toast.LENGTH_LONG).show();
+        showCurrentDisplayFragment(true);
       }
-    }
-    showCurrentDisplayFragment(true);
+    });
   }
 
   /**
@@ -466,54 +547,514 @@ public class TableDisplayActivity extends AbsBaseWebActivity
   }
 
   /**
-   * Get the {@link UserTable} that is being held by this activity. AND CHANGES mUserTable! to
-   * be that table
+   * Builds the query used to populate the table views from the intent and the current props.
    * If we're in a collection, put an empty group by in the query so we don't only get one result.
    * Getting only the rows in this collection is handled by the where clause passed in to the
    * intent by SpreadsheetFragment's openCollectionView
    *
-   * @return the UserTable pulled from tables
+   * @return the where, group by, having and order by clauses for the displayed table
    */
-  public UserTable getUserTable() {
-    String[] emptyArray = {};
-    if (mUserTable == null) {
-      DbHandle db = null;
-      try {
-        db = getDatabase().openDatabase(getAppName());
-        SQLQueryStruct sqlQueryStruct = IntentUtil
-            .getSQLQueryStructFromBundle(this.getIntent().getExtras());
-
-        if (getIntentExtras().containsKey("inCollection")) {
-          sqlQueryStruct.groupBy = null;
-        } else {
-          sqlQueryStruct.groupBy = props.getGroupBy();
+  private SQLQueryStruct getDisplayQuery() {
+    SQLQueryStruct sqlQueryStruct = IntentUtil
+        .getSQLQueryStructFromBundle(this.getIntent().getExtras());
+
+    if (getIntentExtras().containsKey("inCollection")) {
+      sqlQueryStruct.groupBy = null;
+    } else {
+      sqlQueryStruct.groupBy = props.getGroupBy();
+    }
+
+    sqlQueryStruct.orderByElementKey = props.getSort();
+    sqlQueryStruct.orderByDirection = props.getSortOrder();
+    return sqlQueryStruct;
+  }
+
+  /**
+   * Gets the rows of the displayed query, every column, without blocking the UI thread. If they
+   * aren't loaded yet they are queried on a database thread. The rows are shared through the
+   * query result cache, so views over the same query don't fetch them again.
+   *
+   * @param callback given the rows on the UI thread
+   */
+  public void loadUserTable(final DatabaseExecutor.Callback<UserTable> callback) {
+    if (mUserTable != null) {
+      callback.onSuccess(mUserTable);
+      return;
+    }
+    final int generation = mDataGeneration;
+    final SQLQueryStruct sqlQueryStruct = getDisplayQuery();
+    final String key = QueryResultCache.getKey(getTableId(), sqlQueryStruct, null);
+    DatabaseExecutor.execute(getAppName(), new DatabaseExecutor.Task<UserTable>() {
+      @Override
+      public UserTable run() throws ServicesAvailabilityException {
+        if (generation != mDataGeneration) {
+          return null;
+        }
+        return mQueryResults.get(key, new QueryResultCache.Loader() {
+          @Override
+          public UserTable load() throws ServicesAvailabilityException {
+            return queryDisplayTable(sqlQueryStruct);
+          }
+        });
+      }
+    }, new DatabaseExecutor.Callback<UserTable>() {
+      @Override
+      public void onSuccess(UserTable result) {
+        if (generation != mDataGeneration) {
+          // the props changed while we were querying, query again with the new ones
+          loadUserTable(callback);
+          return;
         }
+        mUserTable = result;
+        callback.onSuccess(result);
+      }
 
-        sqlQueryStruct.orderByElementKey = props.getSort();
-        sqlQueryStruct.orderByDirection = props.getSortOrder();
-
-        mUserTable = getDatabase()
-            .simpleQuery(this.getAppName(), db, this.getTableId(), getColumnDefinitions(),
-                sqlQueryStruct.whereClause, sqlQueryStruct.selectionArgs,
-                sqlQueryStruct.groupBy == null ? emptyArray : sqlQueryStruct.groupBy,
-                sqlQueryStruct.having,
-                QueryUtil.convertStringToArray(sqlQueryStruct.orderByElementKey),
-                QueryUtil.convertStringToArray(sqlQueryStruct.orderByDirection),
-                null, null);
-      } catch (ServicesAvailabilityException e) {
-        WebLogger.getLogger(getAppName()).printStackTrace(e);
-      } finally {
-        if (db != null) {
-          try {
-            getDatabase().closeDatabase(getAppName(), db);
-          } catch (ServicesAvailabilityException e) {
-            Toast.makeText(this, R.string.database_unavailable, Toast.LENGTH_LONG).show();
-            WebLogger.getLogger(getAppName()).printStackTrace(e);
+      @Override
+      public void onFailure(Exception e) {
+        if (generation != mDataGeneration) {
+          loadUserTable(callback);
+          return;
+        }
+        callback.onFailure(e);
+      }
+    });
+  }
+
+  /**
+   * Runs the same query as {@link #getProjectedViewTable(String, Collection)} on a database
+   * thread
+   *
+   * @param fragmentID  which fragment's query to run
+   * @param elementKeys the columns the fragment uses
+   * @param callback    given the rows on the UI thread
+   */
+  public void loadProjectedViewTable(final String fragmentID,
+      final Collection<String> elementKeys, DatabaseExecutor.Callback<UserTable> callback) {
+    DatabaseExecutor.execute(getAppName(), new DatabaseExecutor.Task<UserTable>() {
+      @Override
+      public UserTable run() throws ServicesAvailabilityException {
+        return getProjectedViewTable(fragmentID, elementKeys);
+      }
+    }, callback);
+  }
+
+  /**
+   * Runs the query for the displayed table against the database, every column of every row
+   *
+   * @param sqlQueryStruct the clauses of the query
+   * @return the rows
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  private UserTable queryDisplayTable(SQLQueryStruct sqlQueryStruct)
+      throws ServicesAvailabilityException {
+    String[] emptyArray = {};
+    try (SharedDbHandle.Lease lease = getSharedDbHandle().lease()) {
+      DbHandle db = lease.getHandle();
+      return getDatabase()
+          .simpleQuery(this.getAppName(), db, this.getTableId(), getColumnDefinitions(),
+              sqlQueryStruct.whereClause, sqlQueryStruct.selectionArgs,
+              sqlQueryStruct.groupBy == null ? emptyArray : sqlQueryStruct.groupBy,
+              sqlQueryStruct.having,
+              QueryUtil.convertStringToArray(sqlQueryStruct.orderByElementKey),
+              QueryUtil.convertStringToArray(sqlQueryStruct.orderByDirection),
+              null, null);
+    }
+  }
+
+  /**
+   * Get the {@link PagedUserTable} over the same query as
+   * {@link #loadUserTable(DatabaseExecutor.Callback)}. Only the number of rows is read up front,
+   * the rows themselves are fetched a page at a time as they are needed, so this is what views
+   * over potentially very large tables should use.
+   * <p>
+   * Only the columns the spreadsheet can show are fetched: the displayed columns, the columns
+   * the table is sorted and grouped by and the columns the table's color rules test.
+   * <p>
+   * Never touches the database, see {@link #loadPagedUserTable(DatabaseExecutor.Callback)} for
+   * loading it.
+   *
+   * @return the paged table, or null if it hasn't been loaded
+   */
+  public PagedUserTable getPagedUserTable() {
+    return mPagedUserTable;
+  }
+
+  /**
+   * Gets the {@link PagedUserTable} and the table's properties without blocking the UI thread.
+   * Whatever isn't loaded yet is read on a database thread. If the props change before the load
+   * finishes, the callback is given the table queried with the new props instead.
+   *
+   * @param callback given the paged table on the UI thread
+   */
+  public void loadPagedUserTable(DatabaseExecutor.Callback<PagedUserTable> callback) {
+    if (mPagedUserTable != null && mTableMetadata != null) {
+      callback.onSuccess(mPagedUserTable);
+      return;
+    }
+    mPagedTableCallbacks.add(callback);
+    if (mPagedTableLoad == null) {
+      startPagedTableLoad();
+    }
+  }
+
+  /**
+   * Starts loading the paged table with the current props. Whoever is waiting for it is told
+   * once it is loaded, unless a newer load replaced it by then.
+   */
+  private void startPagedTableLoad() {
+    final int generation = mDataGeneration;
+    final SQLQueryStruct query = getDisplayQuery();
+    final String[] groupBy = props.getGroupBy();
+    final TableMetadataSnapshot knownMetadata = mTableMetadata;
+    final int metadataGeneration = mMetadataGeneration;
+    final TableMetadataSnapshot[] metadata = new TableMetadataSnapshot[1];
+    mPagedTableLoad = DatabaseExecutor
+        .execute(getAppName(), new DatabaseExecutor.Task<PagedUserTable>() {
+          @Override
+          public PagedUserTable run() throws ServicesAvailabilityException {
+            if (generation != mDataGeneration) {
+              // superseded before it started, don't bother counting the rows
+              return null;
+            }
+            metadata[0] = knownMetadata != null ? knownMetadata : readTableMetadata();
+            return createPagedUserTable(metadata[0], query, groupBy);
           }
+        }, new DatabaseExecutor.Callback<PagedUserTable>() {
+          @Override
+          public void onSuccess(PagedUserTable result) {
+            if (generation != mDataGeneration) {
+              // a newer load is on its way and will tell everyone
+              return;
+            }
+            mPagedTableLoad = null;
+            if (metadataGeneration == mMetadataGeneration) {
+              mTableMetadata = metadata[0];
+            }
+            mPagedUserTable = result;
+            deliverPagedUserTable(result, null);
+          }
+
+          @Override
+          public void onFailure(Exception e) {
+            if (generation != mDataGeneration) {
+              return;
+            }
+            mPagedTableLoad = null;
+            deliverPagedUserTable(null, e);
+          }
+        });
+  }
+
+  /**
+   * Tells everyone waiting for the paged table how its load went. The view is told its data
+   * changed before any new view is built, so nothing is drawn twice.
+   *
+   * @param table the paged table, or null if the load failed
+   * @param e     why the load failed, or null if it didn't
+   */
+  private void deliverPagedUserTable(PagedUserTable table, Exception e) {
+    List<DatabaseExecutor.Callback<PagedUserTable>> callbacks = new ArrayList<>();
+    if (mDataChangedCallback != null) {
+      callbacks.add(mDataChangedCallback);
+      mDataChangedCallback = null;
+    }
+    callbacks.addAll(mPagedTableCallbacks);
+    mPagedTableCallbacks.clear();
+    for (DatabaseExecutor.Callback<PagedUserTable> callback : callbacks) {
+      if (e == null) {
+        callback.onSuccess(table);
+      } else {
+        callback.onFailure(e);
+      }
+    }
+  }
+
+  /**
+   * Starts a new generation of the data, so that whatever is still loading with the old props is
+   * dropped. A load that hasn't started yet is cancelled outright.
+   */
+  private void supersedeDataLoads() {
+    ++mDataGeneration;
+    if (mPagedTableLoad != null) {
+      mPagedTableLoad.cancel(false);
+      mPagedTableLoad = null;
+    }
+  }
+
+  /**
+   * Counts the rows of the displayed query and sets up the paged table over them. Only touches
+   * the database and state that doesn't change, so it is safe to call off the UI thread.
+   *
+   * @param metadata the table's properties, or null to fetch every column
+   * @param query    the query to page through
+   * @param groupBy  the group by columns of the props, which a collection's rows are opened by
+   *                 even though its query isn't grouped
+   * @return the paged table
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  private PagedUserTable createPagedUserTable(TableMetadataSnapshot metadata,
+      SQLQueryStruct query, String[] groupBy) throws ServicesAvailabilityException {
+    try (SharedDbHandle.Lease lease = getSharedDbHandle().lease()) {
+      DbHandle db = lease.getHandle();
+      String[] projection = null;
+      if (metadata != null) {
+        List<String> elementKeys = new ArrayList<>(metadata.getColumnOrder());
+        if (query.groupBy != null) {
+          elementKeys.addAll(Arrays.asList(query.groupBy));
+        }
+        if (groupBy != null) {
+          elementKeys.addAll(Arrays.asList(groupBy));
         }
+        elementKeys.add(metadata.getSortColumn());
+        String[] orderBy = QueryUtil.convertStringToArray(query.orderByElementKey);
+        if (orderBy != null) {
+          elementKeys.addAll(Arrays.asList(orderBy));
+        }
+        String[] adminColumns = getDatabase().getAdminColumns();
+        ColorRuleGroup tableRules = ColorRuleGroup
+            .getTableColorRuleGroup(getDatabase(), getAppName(), db, getTableId(),
+                adminColumns);
+        for (ColorRule rule : tableRules.getColorRules()) {
+          elementKeys.add(rule.getColumnElementKey());
+        }
+        projection = ColumnProjection
+            .getColumns(adminColumns, getColumnDefinitions(), elementKeys);
+      }
+      return new PagedUserTable(getSharedDbHandle(), getTableId(), getColumnDefinitions(), query,
+          projection);
+    }
+  }
+
+  /**
+   * Runs the query of one of the fragments, only fetching the given columns and the metadata
+   * columns. Views that only use a few columns, like the map, should use this rather than
+   * {@link #loadUserTable(DatabaseExecutor.Callback)}. Arbitrary queries are run as they are,
+   * since the columns they return are up to the query. The rows are shared through the query
+   * result cache, so asking for the same columns of the same query again doesn't fetch them
+   * again.
+   *
+   * @param fragmentID  which fragment's query to run
+   * @param elementKeys the columns the fragment uses
+   * @return the rows, or null if the fragment has no query
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  public UserTable getProjectedViewTable(String fragmentID, Collection<String> elementKeys)
+      throws ServicesAvailabilityException {
+    final ResumableQuery resumableQuery = getViewQuery(fragmentID);
+    if (resumableQuery == null) {
+      return null;
+    }
+    final String[] columns = resumableQuery instanceof ArbitraryQuery ?
+        null :
+        ColumnProjection
+            .getColumns(getDatabase().getAdminColumns(), getColumnDefinitions(), elementKeys);
+    String key = QueryResultCache.getKey(resumableQuery, columns);
+    if (key == null) {
+      WebLogger.getLogger(getAppName()).e(TAG, "invalid query type");
+      return null;
+    }
+    return mQueryResults.get(key, new QueryResultCache.Loader() {
+      @Override
+      public UserTable load() throws ServicesAvailabilityException {
+        return queryProjection(resumableQuery, columns);
+      }
+    });
+  }
+
+  /**
+   * Runs a fragment's query against the database
+   *
+   * @param resumableQuery the query to run
+   * @param columns        the columns to fetch, ignored for arbitrary queries
+   * @return the rows
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  private UserTable queryProjection(ResumableQuery resumableQuery, String[] columns)
+      throws ServicesAvailabilityException {
+    try (SharedDbHandle.Lease lease = getSharedDbHandle().lease()) {
+      DbHandle db = lease.getHandle();
+      if (resumableQuery instanceof ArbitraryQuery) {
+        ArbitraryQuery query = (ArbitraryQuery) resumableQuery;
+        return getDatabase()
+            .arbitrarySqlQuery(getAppName(), db, query.getTableId(), getColumnDefinitions(),
+                query.getSqlCommand(), query.getSqlBindArgs(), -1, 0);
+      } else if (resumableQuery instanceof SimpleQuery) {
+        SimpleQuery query = (SimpleQuery) resumableQuery;
+        String sql = ColumnProjection
+            .buildSelect(query.getTableId(), columns, query.getWhereClause(),
+                query.getGroupByArgs(), query.getHavingClause(), query.getOrderByColNames(),
+                query.getOrderByDirections());
+        return getDatabase()
+            .arbitrarySqlQuery(getAppName(), db, query.getTableId(), getColumnDefinitions(), sql,
+                query.getSqlBindArgs(), -1, 0);
       }
+      WebLogger.getLogger(getAppName()).e(TAG, "invalid query type");
+      return null;
     }
-    return mUserTable;
+  }
+
+  /**
+   * Gets the properties of the table being displayed if they have been read. Never touches the
+   * database, see {@link #loadTableMetadata(DatabaseExecutor.Callback)} for reading them.
+   *
+   * @return the table's properties, or null if they haven't been loaded
+   */
+  public TableMetadataSnapshot getTableMetadata() {
+    return mTableMetadata;
+  }
+
+  /**
+   * Gets the properties of the table being displayed without blocking the UI thread. If they
+   * aren't loaded yet they are read from the database in one pass on a database thread.
+   *
+   * @param callback given the properties on the UI thread
+   */
+  public void loadTableMetadata(final DatabaseExecutor.Callback<TableMetadataSnapshot> callback) {
+    if (mTableMetadata != null) {
+      callback.onSuccess(mTableMetadata);
+      return;
+    }
+    final int generation = mMetadataGeneration;
+    DatabaseExecutor.execute(getAppName(), new DatabaseExecutor.Task<TableMetadataSnapshot>() {
+      @Override
+      public TableMetadataSnapshot run() throws ServicesAvailabilityException {
+        return readTableMetadata();
+      }
+    }, new DatabaseExecutor.Callback<TableMetadataSnapshot>() {
+      @Override
+      public void onSuccess(TableMetadataSnapshot result) {
+        if (generation != mMetadataGeneration) {
+          // the properties were changed while we were reading them, read them again
+          loadTableMetadata(callback);
+          return;
+        }
+        mTableMetadata = result;
+        callback.onSuccess(result);
+      }
+
+      @Override
+      public void onFailure(Exception e) {
+        callback.onFailure(e);
+      }
+    });
+  }
+
+  /**
+   * Reads the table's properties from the database. Safe to call off the UI thread.
+   *
+   * @return the table's properties
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  private TableMetadataSnapshot readTableMetadata() throws ServicesAvailabilityException {
+    try (SharedDbHandle.Lease lease = getSharedDbHandle().lease()) {
+      DbHandle db = lease.getHandle();
+      return TableMetadataSnapshot
+          .load(getApplicationContext(), getDatabase(), getAppName(), db, getTableId(),
+              getColumnDefinitions());
+    }
+  }
+
+  /**
+   * Drops the table's properties so they are read again the next time they are asked for, e.g.
+   * after a fragment changed them.
+   */
+  public void refreshTableMetadata() {
+    dropTableMetadata();
+  }
+
+  /**
+   * Forgets the table's properties, and drops any read of them still in flight
+   */
+  private void dropTableMetadata() {
+    ++mMetadataGeneration;
+    mTableMetadata = null;
+  }
+
+  /**
+   * Drops the rows and queries them again with the current props, e.g. after the group by
+   * columns changed, without destroying the displayed fragment. The rows are counted on a
+   * database thread. Anything still loading with the old props is dropped, so if this is called
+   * again before it finishes only the latest call's callback is told.
+   *
+   * @param callback given the new paged table on the UI thread
+   */
+  public void requeryData(DatabaseExecutor.Callback<PagedUserTable> callback) {
+    supersedeDataLoads();
+    mDataChangedCallback = callback;
+    reloadPagedUserTable();
+  }
+
+  /**
+   * Drops the rows and starts loading them again in the current generation
+   */
+  private void reloadPagedUserTable() {
+    mQueryResults.invalidate();
+    mUserTable = null;
+    mPagedUserTable = null;
+    startPagedTableLoad();
+  }
+
+  /**
+   * Applies the sort column and direction in the props to the data without destroying the
+   * displayed fragment. Where it can, the paged table reads just the sort columns and re-sorts
+   * its rows in place, see {@link PagedUserTable#sortInMemory(String[], String[])}, otherwise it
+   * is queried again in the new order. Either way the work is
+   * done on a database thread, and as with {@link #requeryData(DatabaseExecutor.Callback)} only
+   * the latest call's callback is told.
+   *
+   * @param callback given the re-sorted paged table on the UI thread
+   */
+  public void resortData(DatabaseExecutor.Callback<PagedUserTable> callback) {
+    supersedeDataLoads();
+    mDataChangedCallback = callback;
+    // anything else that uses the rows will query them again in the new order when it asks
+    mUserTable = null;
+    SQLQueryStruct query = getDisplayQuery();
+    final PagedUserTable table = mPagedUserTable;
+    if (table == null || query.orderByElementKey == null) {
+      // with no sort column the rows go back to the order the database returns them in, which
+      // only the database knows
+      reloadPagedUserTable();
+      return;
+    }
+    final int generation = mDataGeneration;
+    final String[] elementKeys = QueryUtil.convertStringToArray(query.orderByElementKey);
+    final String[] directions = QueryUtil.convertStringToArray(query.orderByDirection);
+    mPagedTableLoad = DatabaseExecutor
+        .execute(getAppName(), new DatabaseExecutor.Task<Boolean>() {
+          @Override
+          public Boolean run() {
+            synchronized (mResortLock) {
+              if (generation != mDataGeneration) {
+                // a newer sort is waiting behind us, leave the rows to it
+                return false;
+              }
+              return table.sortInMemory(elementKeys, directions);
+            }
+          }
+        }, new DatabaseExecutor.Callback<Boolean>() {
+          @Override
+          public void onSuccess(Boolean sorted) {
+            if (generation != mDataGeneration) {
+              return;
+            }
+            mPagedTableLoad = null;
+            if (sorted && table == mPagedUserTable) {
+              deliverPagedUserTable(table, null);
+            } else {
+              reloadPagedUserTable();
+            }
+          }
+
+          @Override
+          public void onFailure(Exception e) {
+            if (generation != mDataGeneration) {
+              return;
+            }
+            mPagedTableLoad = null;
+            reloadPagedUserTable();
+          }
+        });
   }
 
   /**
@@ -853,11 +1394,17 @@ public class TableDisplayActivity extends AbsBaseWebActivity
    */
   public void refreshDataAndDisplayFragment() {
     WebLogger.getLogger(getAppName()).d(TAG, "refreshDataAndDisplayFragment called");
-    // drop cached table, if any...
+    // drop cached table, if any, and anything still loading...
+    supersedeDataLoads();
+    mDataChangedCallback = null;
+    mPagedTableCallbacks.clear();
+    mQueryResults.invalidate();
     mUserTable = null;
+    mPagedUserTable = null;
     // drop default filenames...
     mPossibleTableViewTypes = null;
-    showCurrentDisplayFragment(true);
+    dropTableMetadata();
+    showCurrentDisplayFragmentWhenLoaded();
   }
 
   /**
@@ -887,29 +1434,15 @@ public class TableDisplayActivity extends AbsBaseWebActivity
   private void possiblySupplyDefaults() {
 
     if (mPossibleTableViewTypes == null && getDatabase() != null) {
-      UserDbInterface dbInterface = getDatabase();
-      DbHandle db = null;
-      try {
-        db = dbInterface.openDatabase(getAppName());
-        mPossibleTableViewTypes = new PossibleTableViewTypes(dbInterface, getAppName(), db,
-            getTableId(), getColumnDefinitions());
-      } catch (ServicesAvailabilityException e) {
-        WebLogger.getLogger(getAppName()).printStackTrace(e);
+      // read on a database thread before the fragment is shown, see
+      // showCurrentDisplayFragmentWhenLoaded
+      TableMetadataSnapshot metadata = mTableMetadata;
+      if (metadata != null) {
+        mPossibleTableViewTypes = metadata.getPossibleTableViewTypes();
+      } else {
         WebLogger.getLogger(getAppName()).e(TAG, "[databaseAvailable] unable to access database");
         Toast.makeText(this, getString(R.string.error_accessing_database), Toast.LENGTH_LONG)
             .show();
-      } finally {
-        if (db != null) {
-          try {
-            getDatabase().closeDatabase(getAppName(), db);
-          } catch (ServicesAvailabilityException e) {
-            WebLogger.getLogger(getAppName()).printStackTrace(e);
-            WebLogger.getLogger(getAppName())
-                .e(TAG, "[databaseAvailable] unable to access database");
-            Toast.makeText(this, getString(R.string.error_accessing_database), Toast.LENGTH_LONG)
-                .show();
-          }
-        }
       }
     }
 
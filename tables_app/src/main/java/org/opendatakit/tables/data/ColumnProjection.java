@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import org.opendatakit.database.data.OrderedColumns;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Builds queries that only select the columns a view actually uses, rather
+ * than every column in the table. The metadata columns are always selected,
+ * since the rows can't be identified or displayed without them.
+ * <p>
+ * The where, group by, having and order by clauses are the same as the ones a
+ * simple query would use, so row n of a projected result is row n of the full
+ * result.
+ */
+public final class ColumnProjection {
+
+  /**
+   * Do not instantiate this class
+   */
+  private ColumnProjection() {
+  }
+
+  /**
+   * Works out which columns to select. Element keys that aren't stored in the table, such as
+   * columns that have since been deleted or the parent of a geopoint, are left out.
+   *
+   * @param adminColumns the metadata columns of the table, always selected
+   * @param orderedDefns the columns of the table
+   * @param elementKeys  the user defined columns the view uses, may contain nulls and duplicates
+   * @return the columns to select, metadata columns first
+   */
+  public static String[] getColumns(String[] adminColumns, OrderedColumns orderedDefns,
+      Collection<String> elementKeys) {
+    Set<String> columns = new LinkedHashSet<>();
+    for (String adminColumn : adminColumns) {
+      columns.add(adminColumn);
+    }
+    List<String> retentionColumns = orderedDefns.getRetentionColumnNames();
+    for (String elementKey : elementKeys) {
+      if (elementKey != null && retentionColumns.contains(elementKey)) {
+        columns.add(elementKey);
+      }
+    }
+    return columns.toArray(new String[columns.size()]);
+  }
+
+  /**
+   * Builds a select statement over a table that only returns the given columns
+   *
+   * @param tableId           the table to select from
+   * @param columns           the columns to select
+   * @param whereClause       the where clause, may be null
+   * @param groupBy           the columns to group by, may be null
+   * @param having            the having clause, only used if there is a group by, may be null
+   * @param orderByElementKey the columns to sort by, may be null
+   * @param orderByDirection  ASC or DESC for each of those columns, may be null
+   * @return the select statement
+   */
+  public static String buildSelect(String tableId, String[] columns, String whereClause,
+      String[] groupBy, String having, String[] orderByElementKey, String[] orderByDirection) {
+    StringBuilder b = new StringBuilder();
+    b.append("SELECT ");
+    appendColumns(b, columns);
+    b.append(" FROM \"").append(tableId).append("\"");
+    if (whereClause != null && !whereClause.isEmpty()) {
+      b.append(" WHERE ").append(whereClause);
+    }
+    if (groupBy != null && groupBy.length != 0) {
+      b.append(" GROUP BY ");
+      appendColumns(b, groupBy);
+      if (having != null && !having.isEmpty()) {
+        b.append(" HAVING ").append(having);
+      }
+    }
+    List<String> orderBy = new ArrayList<>();
+    if (orderByElementKey != null) {
+      for (int i = 0; i < orderByElementKey.length; ++i) {
+        if (orderByElementKey[i] == null || orderByElementKey[i].isEmpty()) {
+          continue;
+        }
+        String direction = orderByDirection != null && i < orderByDirection.length ?
+            orderByDirection[i] : null;
+        orderBy.add("\"" + orderByElementKey[i] + "\"" + (direction == null || direction
+            .isEmpty() ? "" : " " + direction));
+      }
+    }
+    if (!orderBy.isEmpty()) {
+      b.append(" ORDER BY ");
+      for (int i = 0; i < orderBy.size(); ++i) {
+        if (i != 0) {
+          b.append(", ");
+        }
+        b.append(orderBy.get(i));
+      }
+    }
+    return b.toString();
+  }
+
+  private static void appendColumns(StringBuilder b, String[] columns) {
+    for (int i = 0; i < columns.length; ++i) {
+      if (i != 0) {
+        b.append(", ");
+      }
+      b.append("\"").append(columns[i]).append("\"");
+    }
+  }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import org.opendatakit.database.data.UserTable;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The numeric, integer and date columns of a {@link UserTable} parsed into
+ * primitive arrays, one per column. The rows of a table keep every value as a
+ * string, so anything that compares or plots values, like the map, in memory
+ * sorts and color rules, would otherwise parse the same strings again every
+ * time it looks at them.
+ * <p>
+ * Each column is parsed the first time it is asked for and kept for as long as
+ * the table is, and the vectors of a table are shared by everyone using it,
+ * see {@link #of(UserTable)}. A loaded table's rows don't change, so neither
+ * do its vectors. Ask for them on a database thread if the table is big.
+ * <p>
+ * Safe to use from any thread.
+ */
+public final class ColumnVectors {
+
+  // The digits kept from a date, enough for yyyyMMddHHmmssSSSS
+  private static final int DATE_DIGITS = 18;
+
+  // the vectors of every table that has been asked for them and is still in use. The tables are
+  // only weakly held, so a table that is dropped takes its vectors with it. The vectors must not
+  // hold their table strongly either, or no entry would ever be dropped
+  private static final Map<UserTable, ColumnVectors> tables = new WeakHashMap<>();
+
+  /**
+   * The parsed values of one column, indexed by row. Rows whose value is null or doesn't parse
+   * have no value; which of the two it is can be told apart, since a value that doesn't parse
+   * may still be compared as text.
+   */
+  public static abstract class Vector {
+    // one bit per row, set where the raw value is null
+    private final long[] nulls;
+    // one bit per row, set where the raw value is there but doesn't parse
+    private final long[] invalid;
+
+    Vector(int numberOfRows) {
+      nulls = new long[(numberOfRows + 63) >>> 6];
+      invalid = new long[nulls.length];
+    }
+
+    void setNull(int row) {
+      nulls[row >>> 6] |= 1L << row;
+    }
+
+    void setInvalid(int row) {
+      invalid[row >>> 6] |= 1L << row;
+    }
+
+    /**
+     * @param row the index of the row
+     * @return whether the row has a parsed value in this column
+     */
+    public final boolean hasValue(int row) {
+      return ((nulls[row >>> 6] | invalid[row >>> 6]) & (1L << row)) == 0;
+    }
+
+    /**
+     * @param row the index of the row
+     * @return whether the row's value in this column is null
+     */
+    public final boolean isNull(int row) {
+      return (nulls[row >>> 6] & (1L << row)) != 0;
+    }
+  }
+
+  /**
+   * A column of floating point values
+   */
+  public static final class DoubleVector extends Vector {
+    private final double[] values;
+
+    DoubleVector(int numberOfRows) {
+      super(numberOfRows);
+      values = new double[numberOfRows];
+    }
+
+    /**
+     * @param row the index of the row
+     * @return the row's value, or 0 if it has none, see {@link #hasValue(int)}
+     */
+    public double get(int row) {
+      return values[row];
+    }
+
+    /**
+     * Copies the values into a longer array, e.g. to put the pages of a table together, as many
+     * as fit
+     */
+    void copyTo(double[] into, int offset) {
+      System.arraycopy(values, 0, into, offset, Math.min(values.length, into.length - offset));
+    }
+  }
+
+  /**
+   * A column of integer values, or of dates packed into integers
+   */
+  public static final class LongVector extends Vector {
+    private final long[] values;
+
+    LongVector(int numberOfRows) {
+      super(numberOfRows);
+      values = new long[numberOfRows];
+    }
+
+    /**
+     * @param row the index of the row
+     * @return the row's value, or 0 if it has none, see {@link #hasValue(int)}
+     */
+    public long get(int row) {
+      return values[row];
+    }
+
+    /**
+     * Copies the values into a longer array, e.g. to put the pages of a table together, as many
+     * as fit
+     */
+    void copyTo(long[] into, int offset) {
+      System.arraycopy(values, 0, into, offset, Math.min(values.length, into.length - offset));
+    }
+  }
+
+  // weak for the same reason as the keys of tables, whoever asks for a column holds the table
+  private final WeakReference<UserTable> table;
+  // the vectors parsed so far, by element key. Guarded by this
+  private final Map<String, DoubleVector> numbers = new HashMap<>();
+  private final Map<String, LongVector> integers = new HashMap<>();
+  private final Map<String, LongVector> dates = new HashMap<>();
+
+  private ColumnVectors(UserTable table) {
+    this.table = new WeakReference<>(table);
+  }
+
+  /**
+   * Gets the vectors of a table, shared by everyone who asks for them
+   *
+   * @param table the table whose columns to parse
+   * @return the table's vectors
+   */
+  public static ColumnVectors of(UserTable table) {
+    synchronized (tables) {
+      ColumnVectors vectors = tables.get(table);
+      if (vectors == null) {
+        vectors = new ColumnVectors(table);
+        tables.put(table, vectors);
+      }
+      return vectors;
+    }
+  }
+
+  /**
+   * Gets a column parsed as floating point numbers, whatever its declared type, e.g. for the
+   * latitude of a location
+   *
+   * @param elementKey the column
+   * @return the parsed column
+   */
+  public synchronized DoubleVector getNumbers(String elementKey) {
+    DoubleVector vector = numbers.get(elementKey);
+    if (vector == null) {
+      UserTable table = getTable();
+      int numberOfRows = table.getNumberOfRows();
+      vector = new DoubleVector(numberOfRows);
+      for (int i = 0; i < numberOfRows; ++i) {
+        String raw = table.getRowAtIndex(i).getRawStringByKey(elementKey);
+        if (raw == null) {
+          vector.setNull(i);
+          continue;
+        }
+        try {
+          vector.values[i] = Double.parseDouble(raw);
+        } catch (NumberFormatException e) {
+          vector.setInvalid(i);
+        }
+      }
+      numbers.put(elementKey, vector);
+    }
+    return vector;
+  }
+
+  /**
+   * Gets a column parsed as integers, with true and false read as 1 and 0 so that boolean
+   * columns can be read this way too
+   *
+   * @param elementKey the column
+   * @return the parsed column
+   */
+  public synchronized LongVector getIntegers(String elementKey) {
+    LongVector vector = integers.get(elementKey);
+    if (vector == null) {
+      UserTable table = getTable();
+      int numberOfRows = table.getNumberOfRows();
+      vector = new LongVector(numberOfRows);
+      for (int i = 0; i < numberOfRows; ++i) {
+        String raw = table.getRowAtIndex(i).getRawStringByKey(elementKey);
+        if (raw == null) {
+          vector.setNull(i);
+        } else if ("true".equalsIgnoreCase(raw)) {
+          vector.values[i] = 1;
+        } else if ("false".equalsIgnoreCase(raw)) {
+          vector.values[i] = 0;
+        } else {
+          try {
+            vector.values[i] = Long.parseLong(raw);
+          } catch (NumberFormatException e) {
+            vector.setInvalid(i);
+          }
+        }
+      }
+      integers.put(elementKey, vector);
+    }
+    return vector;
+  }
+
+  /**
+   * Gets a date, time or date and time column with each value packed by
+   * {@link #packDate(String)}, so dates compare as integers
+   *
+   * @param elementKey the column
+   * @return the parsed column
+   */
+  public synchronized LongVector getDates(String elementKey) {
+    LongVector vector = dates.get(elementKey);
+    if (vector == null) {
+      UserTable table = getTable();
+      int numberOfRows = table.getNumberOfRows();
+      vector = new LongVector(numberOfRows);
+      for (int i = 0; i < numberOfRows; ++i) {
+        String raw = table.getRowAtIndex(i).getRawStringByKey(elementKey);
+        if (raw == null) {
+          vector.setNull(i);
+          continue;
+        }
+        long packed = packDate(raw);
+        if (packed < 0) {
+          vector.setInvalid(i);
+        } else {
+          vector.values[i] = packed;
+        }
+      }
+      dates.put(elementKey, vector);
+    }
+    return vector;
+  }
+
+  /**
+   * @return the table, which is still there since the caller got these vectors from it
+   */
+  private UserTable getTable() {
+    UserTable userTable = table.get();
+    if (userTable == null) {
+      throw new IllegalStateException("The table of these vectors is gone");
+    }
+    return userTable;
+  }
+
+  /**
+   * Packs the digits of an ISO 8601 date, time or date and time into a long, so that comparing
+   * two packed values orders them the same as comparing the strings. Missing trailing fields
+   * count as zero.
+   *
+   * @param value the date to pack
+   * @return the packed value, or -1 if the value isn't in a format that can be packed
+   */
+  public static long packDate(String value) {
+    long packed = 0;
+    int digits = 0;
+    for (int i = 0; i < value.length() && digits < DATE_DIGITS; ++i) {
+      char c = value.charAt(i);
+      if (c >= '0' && c <= '9') {
+        packed = packed * 10 + (c - '0');
+        ++digits;
+      } else if (c != '-' && c != ':' && c != 'T' && c != '.' && c != ' ') {
+        // e.g. a time zone, which a packed value can't order properly
+        return -1;
+      }
+    }
+    if (digits == 0) {
+      return -1;
+    }
+    for (; digits < DATE_DIGITS; ++digits) {
+      packed *= 10;
+    }
+    return packed;
+  }
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.ElementType;
+import org.opendatakit.data.ColorGuide;
+import org.opendatakit.data.ColorRule;
+import org.opendatakit.data.ColorRuleGroup;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.TypedRow;
+import org.opendatakit.database.data.UserTable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A {@link ColorRuleGroup} compiled for fast evaluation. Each rule's value is
+ * parsed once, by the type of the column it tests, into a number, a packed
+ * date, a boolean or a string, so checking a row is a primitive comparison
+ * rather than parsing the rule every time. Rules are checked in order and the
+ * first one that matches decides the colors, the same as
+ * {@link ColorRuleGroup#getColorGuide(OrderedColumns, TypedRow)}.
+ * <p>
+ * When coloring many rows at once, use {@link #getColorGuides(UserTable)},
+ * which reads the tested columns from the table's {@link ColumnVectors}, so
+ * they are parsed once per table however many rule groups test them.
+ * <p>
+ * A compiled group doesn't change, so it is safe to share between threads.
+ */
+public final class CompiledColorRuleGroup {
+
+  // How a column's values, and the rule values tested against them, are compared
+  private static final int KIND_NUMBER = 0;
+  private static final int KIND_DATE = 1;
+  private static final int KIND_BOOLEAN = 2;
+  private static final int KIND_STRING = 3;
+
+  // the columns tested by any rule, and how each is compared
+  private final String[] columnElementKeys;
+  private final int[] columnKinds;
+  private final CompiledRule[] rules;
+
+  private CompiledColorRuleGroup(String[] columnElementKeys, int[] columnKinds,
+      CompiledRule[] rules) {
+    this.columnElementKeys = columnElementKeys;
+    this.columnKinds = columnKinds;
+    this.rules = rules;
+  }
+
+  /**
+   * Compiles the rules in a group
+   *
+   * @param group        the rules to compile, may be null
+   * @param orderedDefns the columns of the table the rules are for
+   * @return the compiled rules, or null if there are no rules to evaluate
+   */
+  public static CompiledColorRuleGroup compile(ColorRuleGroup group,
+      OrderedColumns orderedDefns) {
+    return group == null ? null : compile(group.getColorRules(), orderedDefns);
+  }
+
+  /**
+   * Compiles a list of rules, checked in order
+   *
+   * @param rules        the rules to compile, may be null
+   * @param orderedDefns the columns of the table the rules are for
+   * @return the compiled rules, or null if there are no rules to evaluate
+   */
+  public static CompiledColorRuleGroup compile(List<ColorRule> rules,
+      OrderedColumns orderedDefns) {
+    if (rules == null || rules.isEmpty()) {
+      return null;
+    }
+    List<String> elementKeys = new ArrayList<>();
+    List<Integer> kinds = new ArrayList<>();
+    List<CompiledRule> compiled = new ArrayList<>();
+    for (ColorRule rule : rules) {
+      String elementKey = rule.getColumnElementKey();
+      int column = elementKeys.indexOf(elementKey);
+      if (column < 0) {
+        column = elementKeys.size();
+        elementKeys.add(elementKey);
+        kinds.add(getKind(orderedDefns, elementKey));
+      }
+      compiled.add(new CompiledRule(rule, column, kinds.get(column)));
+    }
+    int[] columnKinds = new int[kinds.size()];
+    for (int i = 0; i < columnKinds.length; ++i) {
+      columnKinds[i] = kinds.get(i);
+    }
+    return new CompiledColorRuleGroup(elementKeys.toArray(new String[elementKeys.size()]),
+        columnKinds, compiled.toArray(new CompiledRule[compiled.size()]));
+  }
+
+  private static int getKind(OrderedColumns orderedDefns, String elementKey) {
+    ElementType type;
+    try {
+      type = orderedDefns.find(elementKey).getType();
+    } catch (IllegalArgumentException e) {
+      // not a user defined column, e.g. one of the metadata columns, which are all text
+      return KIND_STRING;
+    }
+    ElementDataType dataType = type.getDataType();
+    if (dataType == ElementDataType.number || dataType == ElementDataType.integer) {
+      return KIND_NUMBER;
+    } else if (dataType == ElementDataType.bool) {
+      return KIND_BOOLEAN;
+    }
+    String elementType = type.getElementType();
+    if ("date".equals(elementType) || "dateTime".equals(elementType) || "time"
+        .equals(elementType)) {
+      return KIND_DATE;
+    }
+    return KIND_STRING;
+  }
+
+  /**
+   * @return the element keys of the columns the rules test, so that a query can fetch only the
+   * columns needed to evaluate them
+   */
+  public List<String> getColumnElementKeys() {
+    return Collections.unmodifiableList(Arrays.asList(columnElementKeys));
+  }
+
+  /**
+   * Finds the colors for a single row
+   *
+   * @param row the row to color
+   * @return the colors of the first rule the row matches, or null if it matches none
+   */
+  public ColorGuide getColorGuide(TypedRow row) {
+    return evaluate(new RowValues(row), 0);
+  }
+
+  /**
+   * Finds the colors for every row of a table. The tested columns are read from the table's
+   * vectors, then the rules are checked against the parsed values.
+   *
+   * @param table the rows to color
+   * @return the colors of the first rule each row matches, null for rows that match none
+   */
+  public ColorGuide[] getColorGuides(UserTable table) {
+    int numberOfRows = table.getNumberOfRows();
+    TableValues values = new TableValues(table);
+    ColorGuide[] guides = new ColorGuide[numberOfRows];
+    for (int i = 0; i < numberOfRows; ++i) {
+      guides[i] = evaluate(values, i);
+    }
+    return guides;
+  }
+
+  private ColorGuide evaluate(Values values, int row) {
+    for (CompiledRule rule : rules) {
+      if (rule.matches(values, row)) {
+        return rule.guide;
+      }
+    }
+    return null;
+  }
+
+  private static int parseBoolean(String value) {
+    if ("true".equalsIgnoreCase(value) || "1".equals(value)) {
+      return 1;
+    } else if ("false".equalsIgnoreCase(value) || "0".equals(value)) {
+      return 0;
+    }
+    return -1;
+  }
+
+  /**
+   * The values of the tested columns of some rows, parsed by kind. Columns are indexed the same
+   * as {@link #columnElementKeys}.
+   */
+  private abstract class Values {
+    /**
+     * @return the raw value, may be null
+     */
+    abstract String getString(int column, int row);
+
+    /**
+     * @return whether the value is null
+     */
+    abstract boolean isNull(int column, int row);
+
+    /**
+     * @return whether the value parsed as its column's kind, if not only the string is usable
+     */
+    abstract boolean hasValue(int column, int row);
+
+    abstract double getNumber(int column, int row);
+
+    /**
+     * @return the packed date, or the boolean as 1 or 0
+     */
+    abstract long getLong(int column, int row);
+  }
+
+  /**
+   * The values of every row of a table, read from its vectors
+   */
+  private final class TableValues extends Values {
+    private final UserTable table;
+    private final ColumnVectors.DoubleVector[] numbers;
+    private final ColumnVectors.LongVector[] longs;
+
+    TableValues(UserTable table) {
+      this.table = table;
+      ColumnVectors vectors = ColumnVectors.of(table);
+      numbers = new ColumnVectors.DoubleVector[columnElementKeys.length];
+      longs = new ColumnVectors.LongVector[columnElementKeys.length];
+      for (int c = 0; c < columnElementKeys.length; ++c) {
+        switch (columnKinds[c]) {
+        case KIND_NUMBER:
+          numbers[c] = vectors.getNumbers(columnElementKeys[c]);
+          break;
+        case KIND_DATE:
+          longs[c] = vectors.getDates(columnElementKeys[c]);
+          break;
+        case KIND_BOOLEAN:
+          longs[c] = vectors.getIntegers(columnElementKeys[c]);
+          break;
+        default:
+          break;
+        }
+      }
+    }
+
+    @Override
+    String getString(int column, int row) {
+      return table.getRowAtIndex(row).getRawStringByKey(columnElementKeys[column]);
+    }
+
+    @Override
+    boolean isNull(int column, int row) {
+      if (numbers[column] != null) {
+        return numbers[column].isNull(row);
+      } else if (longs[column] != null) {
+        return longs[column].isNull(row);
+      }
+      return getString(column, row) == null;
+    }
+
+    @Override
+    boolean hasValue(int column, int row) {
+      if (numbers[column] != null) {
+        return numbers[column].hasValue(row);
+      } else if (longs[column] != null) {
+        if (!longs[column].hasValue(row)) {
+          return false;
+        }
+        // the integer vector takes any integer, but only 1 and 0 are booleans
+        long value = longs[column].get(row);
+        return columnKinds[column] != KIND_BOOLEAN || value == 0 || value == 1;
+      }
+      return true;
+    }
+
+    @Override
+    double getNumber(int column, int row) {
+      return numbers[column].get(row);
+    }
+
+    @Override
+    long getLong(int column, int row) {
+      return longs[column].get(row);
+    }
+  }
+
+  /**
+   * The values of a single row, parsed as they are asked for
+   */
+  private final class RowValues extends Values {
+    private final TypedRow row;
+
+    RowValues(TypedRow row) {
+      this.row = row;
+    }
+
+    @Override
+    String getString(int column, int unused) {
+      return row.getRawStringByKey(columnElementKeys[column]);
+    }
+
+    @Override
+    boolean isNull(int column, int unused) {
+      return getString(column, 0) == null;
+    }
+
+    @Override
+    boolean hasValue(int column, int unused) {
+      String value = getString(column, 0);
+      if (value == null) {
+        return false;
+      }
+      switch (columnKinds[column]) {
+      case KIND_NUMBER:
+        try {
+          Double.parseDouble(value);
+          return true;
+        } catch (NumberFormatException e) {
+          return false;
+        }
+      case KIND_DATE:
+        return ColumnVectors.packDate(value) >= 0;
+      case KIND_BOOLEAN:
+        return parseBoolean(value) >= 0;
+      default:
+        return true;
+      }
+    }
+
+    @Override
+    double getNumber(int column, int unused) {
+      return Double.parseDouble(getString(column, 0));
+    }
+
+    @Override
+    long getLong(int column, int unused) {
+      String value = getString(column, 0);
+      return columnKinds[column] == KIND_DATE ? ColumnVectors.packDate(value) :
+          parseBoolean(value);
+    }
+  }
+
+  /**
+   * One rule, with its value parsed for the kind of column it tests
+   */
+  private static final class CompiledRule {
+    final int column;
+    final ColorRule.RuleType operator;
+    final ColorGuide guide;
+    // the rule value as a string, used for string columns and values that don't parse
+    final String stringValue;
+    // whether the rule value parsed as the column's kind
+    final boolean parsed;
+    final int kind;
+    final double numberValue;
+    final long longValue;
+
+    CompiledRule(ColorRule rule, int column, int kind) {
+      this.column = column;
+      this.operator = rule.getOperator();
+      // every row that matches shares the same guide
+      this.guide = new ColorGuide(rule.getForeground(), rule.getBackground());
+      this.stringValue = rule.getVal();
+      this.kind = kind;
+      double number = 0;
+      long packed = 0;
+      boolean ok = stringValue != null;
+      if (ok) {
+        switch (kind) {
+        case KIND_NUMBER:
+          try {
+            number = Double.parseDouble(stringValue);
+          } catch (NumberFormatException e) {
+            ok = false;
+          }
+          break;
+        case KIND_DATE:
+          packed = ColumnVectors.packDate(stringValue);
+          ok = packed >= 0;
+          break;
+        case KIND_BOOLEAN:
+          packed = parseBoolean(stringValue);
+          ok = packed >= 0;
+          break;
+        default:
+          break;
+        }
+      }
+      this.parsed = ok;
+      this.numberValue = number;
+      this.longValue = packed;
+    }
+
+    boolean matches(Values values, int row) {
+      if (stringValue == null || values.isNull(column, row)) {
+        return false;
+      }
+      int comparison;
+      if (kind == KIND_STRING || !parsed || !values.hasValue(column, row)) {
+        if (kind == KIND_NUMBER) {
+          // a number that doesn't parse can't be compared numerically, so it never matches
+          return false;
+        }
+        comparison = values.getString(column, row).compareTo(stringValue);
+      } else if (kind == KIND_NUMBER) {
+        comparison = Double.compare(values.getNumber(column, row), numberValue);
+      } else {
+        long v = values.getLong(column, row);
+        comparison = v < longValue ? -1 : (v == longValue ? 0 : 1);
+      }
+      switch (operator) {
+      case LESS_THAN:
+        return comparison < 0;
+      case LESS_THAN_OR_EQUAL:
+        return comparison <= 0;
+      case EQUAL:
+        return comparison == 0;
+      case GREATER_THAN_OR_EQUAL:
+        return comparison >= 0;
+      case GREATER_THAN:
+        return comparison > 0;
+      default:
+        return false;
+      }
+    }
+  }
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import org.opendatakit.database.data.UserTable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Finds the rows of a table by location, without scanning every row: the rows
+ * in an area, like what is on screen, or the rows nearest a point, like where
+ * the user tapped.
+ * <p>
+ * The locations are kept in a KD-tree, bulk loaded once by splitting the
+ * points at the median latitude, then each half at the median longitude, and
+ * so on. The tree is balanced and implicit: the points are stored in tree
+ * order in flat arrays, and the node for a range of them is its middle point,
+ * so there are no node objects and queries don't allocate.
+ * <p>
+ * Use {@link #of(UserTable, String, String)} for the locations of a table,
+ * which is shared by everyone asking for the same columns of the same table.
+ * An index doesn't change once it is built, so it is safe to share between
+ * threads.
+ */
+public final class GeoPointIndex {
+
+  /**
+   * Returned when there is no row to find
+   */
+  public static final int NOT_FOUND = -1;
+
+  // the indexes of every table that has been asked for one and is still in use, by latitude and
+  // longitude column. The tables are only weakly held, so a table that is dropped takes its
+  // indexes with it
+  private static final Map<UserTable, Map<String, GeoPointIndex>> tables = new WeakHashMap<>();
+
+  // the points in tree order
+  private final double[] latitudes;
+  private final double[] longitudes;
+  // the row each point is for
+  private final int[] rows;
+  private final int size;
+
+  /**
+   * Indexes some points, which are found by their position in the arrays
+   *
+   * @param latitudes  the latitude of each point
+   * @param longitudes the longitude of each point
+   * @param count      the number of points, the arrays may be longer
+   */
+  public GeoPointIndex(double[] latitudes, double[] longitudes, int count) {
+    this(copy(latitudes, count), copy(longitudes, count), identity(count), count);
+  }
+
+  /**
+   * @param latitudes  the latitude of each point, reordered into tree order
+   * @param longitudes the longitude of each point, reordered into tree order
+   * @param rows       the row of each point, reordered into tree order
+   * @param count      the number of points
+   */
+  private GeoPointIndex(double[] latitudes, double[] longitudes, int[] rows, int count) {
+    this.latitudes = latitudes;
+    this.longitudes = longitudes;
+    this.rows = rows;
+    this.size = count;
+    build(0, count, 0);
+  }
+
+  /**
+   * Gets the index of the locations in a table, building it the first time it is asked for.
+   * Rows without a location, or whose location isn't a number, are left out. Build it on a
+   * database thread if the table is big.
+   *
+   * @param table               the rows to index
+   * @param latitudeElementKey  the column with the latitude of each row, see
+   *                            TableUtil#getMapListViewLatitudeElementKey
+   * @param longitudeElementKey the column with the longitude of each row, see
+   *                            TableUtil#getMapListViewLongitudeElementKey
+   * @return the index, which finds rows by their index in the table
+   */
+  public static GeoPointIndex of(UserTable table, String latitudeElementKey,
+      String longitudeElementKey) {
+    String key = latitudeElementKey + "," + longitudeElementKey;
+    synchronized (tables) {
+      Map<String, GeoPointIndex> indexes = tables.get(table);
+      GeoPointIndex index = indexes == null ? null : indexes.get(key);
+      if (index != null) {
+        return index;
+      }
+    }
+    // built without the lock, so a big table doesn't hold up lookups of indexes that are already
+    // built. Two threads may both build the same index, the first one to finish is kept
+    GeoPointIndex built = build(table, latitudeElementKey, longitudeElementKey);
+    synchronized (tables) {
+      Map<String, GeoPointIndex> indexes = tables.get(table);
+      if (indexes == null) {
+        indexes = new HashMap<>();
+        tables.put(table, indexes);
+      }
+      GeoPointIndex index = indexes.get(key);
+      if (index == null) {
+        index = built;
+        indexes.put(key, index);
+      }
+      return index;
+    }
+  }
+
+  private static GeoPointIndex build(UserTable table, String latitudeElementKey,
+      String longitudeElementKey) {
+    ColumnVectors vectors = ColumnVectors.of(table);
+    ColumnVectors.DoubleVector latitudeVector = vectors.getNumbers(latitudeElementKey);
+    ColumnVectors.DoubleVector longitudeVector = vectors.getNumbers(longitudeElementKey);
+    int numberOfRows = table.getNumberOfRows();
+    double[] latitudes = new double[numberOfRows];
+    double[] longitudes = new double[numberOfRows];
+    int[] rows = new int[numberOfRows];
+    int count = 0;
+    for (int i = 0; i < numberOfRows; ++i) {
+      if (latitudeVector.hasValue(i) && longitudeVector.hasValue(i)) {
+        latitudes[count] = latitudeVector.get(i);
+        longitudes[count] = longitudeVector.get(i);
+        rows[count] = i;
+        ++count;
+      }
+    }
+    return new GeoPointIndex(latitudes, longitudes, rows, count);
+  }
+
+  /**
+   * @return the number of points indexed
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Finds the points in an area. An area that crosses the antimeridian has a west edge greater
+   * than its east edge.
+   *
+   * @param south the southern edge
+   * @param west  the western edge
+   * @param north the northern edge
+   * @param east  the eastern edge
+   * @param into  where to put the rows found, at least {@link #size()} long
+   * @return the number of rows found
+   */
+  public int findInBounds(double south, double west, double north, double east, int[] into) {
+    if (west > east) {
+      int found = findInBounds(0, size, 0, south, west, north, 180, into, 0);
+      return findInBounds(0, size, 0, south, -180, north, east, into, found);
+    }
+    return findInBounds(0, size, 0, south, west, north, east, into, 0);
+  }
+
+  private int findInBounds(int from, int to, int depth, double south, double west, double north,
+      double east, int[] into, int found) {
+    while (from < to) {
+      int mid = (from + to) >>> 1;
+      double latitude = latitudes[mid];
+      double longitude = longitudes[mid];
+      if (latitude >= south && latitude <= north && longitude >= west && longitude <= east) {
+        into[found++] = rows[mid];
+      }
+      // points before the middle are no greater on the split axis, points after no smaller
+      double split = (depth & 1) == 0 ? latitude : longitude;
+      double min = (depth & 1) == 0 ? south : west;
+      double max = (depth & 1) == 0 ? north : east;
+      boolean left = min <= split;
+      boolean right = max >= split;
+      ++depth;
+      if (left && right) {
+        found = findInBounds(from, mid, depth, south, west, north, east, into, found);
+        from = mid + 1;
+      } else if (left) {
+        to = mid;
+      } else {
+        from = mid + 1;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Finds the point nearest a location
+   *
+   * @param latitude  the latitude of the location
+   * @param longitude the longitude of the location
+   * @return the row of the nearest point, or {@link #NOT_FOUND} if there are none
+   */
+  public int findNearest(double latitude, double longitude) {
+    int[] nearest = findNearest(latitude, longitude, 1);
+    return nearest.length == 0 ? NOT_FOUND : nearest[0];
+  }
+
+  /**
+   * Finds the points nearest a location. Distances are measured on a flat map centered on the
+   * location, with degrees of longitude shrunk by the cosine of its latitude, which orders
+   * points the same as the distance on the ground for anything but very far apart points. The
+   * antimeridian isn't wrapped across.
+   *
+   * @param latitude  the latitude of the location
+   * @param longitude the longitude of the location
+   * @param k         the number of points to find
+   * @return the rows of the nearest points, nearest first, fewer than k if there aren't k points
+   */
+  public int[] findNearest(double latitude, double longitude, int k) {
+    k = Math.min(k, size);
+    if (k <= 0) {
+      return new int[0];
+    }
+    Nearest nearest = new Nearest(k, latitude, longitude);
+    findNearest(0, size, 0, nearest);
+    return nearest.sortedRows();
+  }
+
+  private void findNearest(int from, int to, int depth, Nearest nearest) {
+    while (from < to) {
+      int mid = (from + to) >>> 1;
+      nearest.offer(mid);
+      double difference;
+      if ((depth & 1) == 0) {
+        difference = nearest.latitude - latitudes[mid];
+      } else {
+        difference = (nearest.longitude - longitudes[mid]) * nearest.longitudeScale;
+      }
+      ++depth;
+      // look on the side of the split the location is on first, then on the other side if a
+      // point there could still be nearer than the farthest one found
+      int nearFrom = difference <= 0 ? from : mid + 1;
+      int nearTo = difference <= 0 ? mid : to;
+      findNearest(nearFrom, nearTo, depth, nearest);
+      if (difference * difference > nearest.farthest()) {
+        return;
+      }
+      from = difference <= 0 ? mid + 1 : from;
+      to = difference <= 0 ? to : mid;
+    }
+  }
+
+  /**
+   * The k nearest points found so far, in a max heap by distance so the farthest can be
+   * replaced
+   */
+  private final class Nearest {
+    final double latitude;
+    final double longitude;
+    final double longitudeScale;
+    final int[] heap;
+    final double[] distances;
+    int count = 0;
+
+    Nearest(int k, double latitude, double longitude) {
+      this.latitude = latitude;
+      this.longitude = longitude;
+      this.longitudeScale = Math.cos(Math.toRadians(latitude));
+      heap = new int[k];
+      distances = new double[k];
+    }
+
+    /**
+     * @return the squared distance to the farthest point kept, or infinity if fewer than k are
+     */
+    double farthest() {
+      return count < heap.length ? Double.POSITIVE_INFINITY : distances[0];
+    }
+
+    void offer(int point) {
+      double dy = latitude - latitudes[point];
+      double dx = (longitude - longitudes[point]) * longitudeScale;
+      double distance = dx * dx + dy * dy;
+      if (count < heap.length) {
+        // sift up
+        int i = count++;
+        while (i > 0 && distances[(i - 1) / 2] < distance) {
+          heap[i] = heap[(i - 1) / 2];
+          distances[i] = distances[(i - 1) / 2];
+          i = (i - 1) / 2;
+        }
+        heap[i] = point;
+        distances[i] = distance;
+      } else if (distance < distances[0]) {
+        siftDown(point, distance, count);
+      }
+    }
+
+    /**
+     * Replaces the root with a point and moves it down to where it belongs
+     */
+    private void siftDown(int point, double distance, int heapSize) {
+      int i = 0;
+      while (true) {
+        int child = 2 * i + 1;
+        if (child >= heapSize) {
+          break;
+        }
+        if (child + 1 < heapSize && distances[child + 1] > distances[child]) {
+          ++child;
+        }
+        if (distances[child] <= distance) {
+          break;
+        }
+        heap[i] = heap[child];
+        distances[i] = distances[child];
+        i = child;
+      }
+      heap[i] = point;
+      distances[i] = distance;
+    }
+
+    /**
+     * Empties the heap, farthest first
+     */
+    int[] sortedRows() {
+      int[] sorted = new int[count];
+      for (int n = count; n > 0; --n) {
+        sorted[n - 1] = rows[heap[0]];
+        int last = heap[n - 1];
+        double lastDistance = distances[n - 1];
+        siftDown(last, lastDistance, n - 1);
+      }
+      return sorted;
+    }
+  }
+
+  /**
+   * Puts the points from one index up to another into tree order: the median on the split axis
+   * in the middle, the points no greater before it and the points no smaller after it, and each
+   * half the same way on the other axis
+   */
+  private void build(int from, int to, int depth) {
+    while (to - from > 1) {
+      int mid = (from + to) >>> 1;
+      select(from, to - 1, mid, (depth & 1) == 0 ? latitudes : longitudes);
+      ++depth;
+      build(from, mid, depth);
+      from = mid + 1;
+    }
+  }
+
+  /**
+   * Moves the point that would be at index k if the points from left to right were sorted by
+   * one coordinate to k, with the smaller ones before it and the larger ones after it
+   */
+  private void select(int left, int right, int k, double[] keys) {
+    while (right > left) {
+      // median of three, so sorted or clustered input doesn't make it quadratic
+      int mid = (left + right) >>> 1;
+      if (keys[mid] < keys[left]) {
+        swap(mid, left);
+      }
+      if (keys[right] < keys[left]) {
+        swap(right, left);
+      }
+      if (keys[right] < keys[mid]) {
+        swap(right, mid);
+      }
+      double pivot = keys[mid];
+      int i = left;
+      int j = right;
+      while (i <= j) {
+        while (keys[i] < pivot) {
+          ++i;
+        }
+        while (keys[j] > pivot) {
+          --j;
+        }
+        if (i <= j) {
+          swap(i, j);
+          ++i;
+          --j;
+        }
+      }
+      if (k <= j) {
+        right = j;
+      } else if (k >= i) {
+        left = i;
+      } else {
+        return;
+      }
+    }
+  }
+
+  private void swap(int a, int b) {
+    double latitude = latitudes[a];
+    latitudes[a] = latitudes[b];
+    latitudes[b] = latitude;
+    double longitude = longitudes[a];
+    longitudes[a] = longitudes[b];
+    longitudes[b] = longitude;
+    int row = rows[a];
+    rows[a] = rows[b];
+    rows[b] = row;
+  }
+
+  private static double[] copy(double[] values, int count) {
+    double[] copy = new double[count];
+    System.arraycopy(values, 0, copy, 0, count);
+    return copy;
+  }
+
+  private static int[] identity(int count) {
+    int[] rows = new int[count];
+    for (int i = 0; i < count; ++i) {
+      rows[i] = i;
+    }
+    return rows;
+  }
+}
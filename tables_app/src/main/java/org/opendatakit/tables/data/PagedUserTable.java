@@ -0,0 +1,670 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import org.opendatakit.aggregate.odktables.rest.ElementType;
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.TypedRow;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.database.utilities.QueryUtil;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.tables.tasks.DatabaseExecutor;
+import org.opendatakit.tables.utils.SQLQueryStruct;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * A windowed view onto the result of a query against a table. Rather than
+ * pulling every row into memory, the number of rows is computed up front with a
+ * COUNT(*) and the rows themselves are fetched on demand in fixed-size pages
+ * using LIMIT/OFFSET. Only the most recently used pages are kept, so the memory
+ * used stays bounded no matter how large the table is.
+ * <p>
+ * Pages are fetched with the same where, group by, having and order by clauses
+ * as the full query, so row n of this table is row n of the full result. A
+ * sorted query is also sorted by _id last, so rows that tie on the sort columns
+ * come back in the same order from every query and no row is skipped or
+ * repeated between pages. If the table is given a projection, only those
+ * columns are fetched, see {@link ColumnProjection}.
+ * <p>
+ * The rows can also be re-sorted in memory with
+ * {@link #sortInMemory(String[], String[])}, which only reads the sort columns.
+ * The pages are left as they were fetched and the rows are displayed through a
+ * permutation, so the pages that were already fetched are kept.
+ * <p>
+ * Pages may be asked for from more than one thread, so the page cache is
+ * guarded by this object's lock. Views drawn on the UI thread shouldn't wait on
+ * the database, so they check {@link #isRowLoaded(int, Runnable)} first, which
+ * fetches missing pages in the background.
+ */
+public final class PagedUserTable {
+
+  /**
+   * The number of rows fetched with each query
+   */
+  public static final int DEFAULT_PAGE_SIZE = 200;
+  /**
+   * The number of pages kept in memory at any one time
+   */
+  public static final int DEFAULT_MAX_CACHED_PAGES = 8;
+  /**
+   * The number of rows fetched with each query when reading the sort columns of every row. Only
+   * a few columns are read, so these pages can be much bigger than the displayed ones
+   */
+  static final int SORT_KEY_PAGE_SIZE = 2000;
+
+  private static final String TAG = PagedUserTable.class.getSimpleName();
+  private static final String COUNT_COLUMN = "row_count";
+  private static final String[] EMPTY_ARRAY = {};
+  private static final String ASCENDING = "ASC";
+
+  private final String appName;
+  private final String tableId;
+  private final OrderedColumns orderedDefns;
+  private final SQLQueryStruct query;
+  private final Source source;
+  // whether the query is sorted, and so ends with an _id, see getOrderBy
+  private final boolean sorted;
+  // the columns fetched with each page, or null to fetch every column
+  private final String[] projection;
+  private final int pageSize;
+  // The cached pages and which page of the result each one is. The cache is small, so a linear
+  // scan finds a page without boxing its index the way a map lookup would, which keeps lookups
+  // from the draw loop allocation free.
+  private final int[] cachedPageIndexes;
+  private final UserTable[] cachedPages;
+  // when each cached page was last used, to find the least recently used one
+  private final long[] cachedPageLastUse;
+  private long useCounter = 0;
+  // guarded by this, since it shrinks if a page comes back short
+  private int numberOfRows;
+  // The row of the query result displayed at each index once the rows have been sorted in
+  // memory, or null if they are displayed in the order the query returned them. Guarded by this
+  private int[] rowOrder = null;
+  // the pages being fetched in the background, guarded by this
+  private final Set<Integer> pagesInFlight = new HashSet<>();
+
+  /**
+   * Where the rows come from. Outside of tests that is always the database, see
+   * {@link DatabaseSource}.
+   */
+  interface Source {
+    /**
+     * @return the number of rows the query returns
+     * @throws ServicesAvailabilityException if the database is down
+     */
+    int countRows() throws ServicesAvailabilityException;
+
+    /**
+     * Fetches some of the rows the query returns, in the query's order
+     *
+     * @param columns the columns to fetch, or null to fetch every column
+     * @param limit   the most rows to fetch
+     * @param offset  the index of the first row to fetch
+     * @return the rows
+     * @throws ServicesAvailabilityException if the database is down
+     */
+    UserTable fetchRows(String[] columns, int limit, int offset)
+        throws ServicesAvailabilityException;
+  }
+
+  /**
+   * Constructs a paged table with the default page size and cache size and counts the rows
+   * that the query will return.
+   *
+   * @param database     the database handle to lease for each query
+   * @param tableId      the id of the table to query
+   * @param orderedDefns the columns in the table
+   * @param query        the where, group by, having and order by clauses to page through
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  public PagedUserTable(SharedDbHandle database, String tableId, OrderedColumns orderedDefns,
+      SQLQueryStruct query) throws ServicesAvailabilityException {
+    this(database, tableId, orderedDefns, query, null, DEFAULT_PAGE_SIZE,
+        DEFAULT_MAX_CACHED_PAGES);
+  }
+
+  /**
+   * Constructs a paged table that only fetches some of the columns, with the default page size
+   * and cache size, and counts the rows that the query will return.
+   *
+   * @param database     the database handle to lease for each query
+   * @param tableId      the id of the table to query
+   * @param orderedDefns the columns in the table
+   * @param query        the where, group by, having and order by clauses to page through
+   * @param projection   the columns to fetch, from {@link ColumnProjection#getColumns}, or null
+   *                     to fetch every column
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  public PagedUserTable(SharedDbHandle database, String tableId, OrderedColumns orderedDefns,
+      SQLQueryStruct query, String[] projection) throws ServicesAvailabilityException {
+    this(database, tableId, orderedDefns, query, projection, DEFAULT_PAGE_SIZE,
+        DEFAULT_MAX_CACHED_PAGES);
+  }
+
+  /**
+   * Constructs a paged table and counts the rows that the query will return.
+   *
+   * @param database       the database handle to lease for each query
+   * @param tableId        the id of the table to query
+   * @param orderedDefns   the columns in the table
+   * @param query          the where, group by, having and order by clauses to page through
+   * @param projection     the columns to fetch, or null to fetch every column
+   * @param pageSize       the number of rows to fetch with each query
+   * @param maxCachedPages the maximum number of pages to keep in memory
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  public PagedUserTable(SharedDbHandle database, String tableId, OrderedColumns orderedDefns,
+      SQLQueryStruct query, String[] projection, int pageSize, int maxCachedPages)
+      throws ServicesAvailabilityException {
+    this(database.getAppName(), tableId, orderedDefns, query, projection,
+        new DatabaseSource(database, tableId, orderedDefns, query), pageSize, maxCachedPages);
+  }
+
+  /**
+   * Constructs a paged table over rows from anywhere, and counts them
+   *
+   * @param appName        the app name, for logging
+   * @param tableId        the id of the table to query
+   * @param orderedDefns   the columns in the table
+   * @param query          the where, group by, having and order by clauses to page through
+   * @param projection     the columns to fetch, or null to fetch every column
+   * @param source         where to fetch the rows from
+   * @param pageSize       the number of rows to fetch with each query
+   * @param maxCachedPages the maximum number of pages to keep in memory
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  PagedUserTable(String appName, String tableId, OrderedColumns orderedDefns,
+      SQLQueryStruct query, String[] projection, Source source, int pageSize, int maxCachedPages)
+      throws ServicesAvailabilityException {
+    if (pageSize <= 0 || maxCachedPages <= 0) {
+      throw new IllegalArgumentException("page size and cache size must be positive");
+    }
+    this.appName = appName;
+    this.tableId = tableId;
+    this.orderedDefns = orderedDefns;
+    this.query = query;
+    this.source = source;
+    this.sorted = getOrderBy(query)[0] != null;
+    this.projection = projection;
+    this.pageSize = pageSize;
+    this.cachedPageIndexes = new int[maxCachedPages];
+    this.cachedPages = new UserTable[maxCachedPages];
+    this.cachedPageLastUse = new long[maxCachedPages];
+    this.numberOfRows = source.countRows();
+  }
+
+  /**
+   * Works out the order by of the paged queries. If the query is sorted, _id is added as the
+   * last sort column so that rows that tie on every sort column can't change places between two
+   * queries, which would skip or repeat rows between pages and would leave the rows in a
+   * different order than {@link RowSorter} puts them in.
+   *
+   * @param query the query to page through
+   * @return the element keys to sort by and the direction of each one, both null if the query
+   * isn't sorted
+   */
+  private static String[][] getOrderBy(SQLQueryStruct query) {
+    String[] elementKeys = QueryUtil.convertStringToArray(query.orderByElementKey);
+    if (elementKeys == null || elementKeys.length == 0) {
+      return new String[2][];
+    }
+    String[] directions = QueryUtil.convertStringToArray(query.orderByDirection);
+    boolean sortsByRowId = Arrays.asList(elementKeys).contains(DataTableColumns.ID);
+    int numberOfKeys = elementKeys.length + (sortsByRowId ? 0 : 1);
+    String[] orderByElementKeys = Arrays.copyOf(elementKeys, numberOfKeys);
+    String[] orderByDirections = new String[numberOfKeys];
+    for (int i = 0; i < numberOfKeys; ++i) {
+      orderByDirections[i] = directions != null && i < directions.length && directions[i] != null
+          ? directions[i] : ASCENDING;
+    }
+    if (!sortsByRowId) {
+      orderByElementKeys[numberOfKeys - 1] = DataTableColumns.ID;
+      orderByDirections[numberOfKeys - 1] = ASCENDING;
+    }
+    return new String[][] { orderByElementKeys, orderByDirections };
+  }
+
+  /**
+   * Fetches the rows of a query from the database, each time on a lease of the shared database
+   * handle
+   */
+  private static final class DatabaseSource implements Source {
+    private final SharedDbHandle database;
+    private final String appName;
+    private final String tableId;
+    private final OrderedColumns orderedDefns;
+    private final SQLQueryStruct query;
+    // the query's order by, followed by _id if it has one
+    private final String[] orderByElementKeys;
+    private final String[] orderByDirections;
+
+    DatabaseSource(SharedDbHandle database, String tableId, OrderedColumns orderedDefns,
+        SQLQueryStruct query) {
+      this.database = database;
+      this.appName = database.getAppName();
+      this.tableId = tableId;
+      this.orderedDefns = orderedDefns;
+      this.query = query;
+      String[][] orderBy = getOrderBy(query);
+      this.orderByElementKeys = orderBy[0];
+      this.orderByDirections = orderBy[1];
+    }
+
+    /**
+     * Builds the query that counts the rows that would be returned by the paged query. Grouped
+     * queries are wrapped in a sub-select so that groups are counted rather than rows.
+     *
+     * @return a sql statement that returns a single row with the number of rows in it
+     */
+    private String buildCountStatement() {
+      StringBuilder b = new StringBuilder();
+      b.append("SELECT COUNT(*) AS ").append(COUNT_COLUMN).append(" FROM (SELECT * FROM \"")
+          .append(tableId).append("\"");
+      if (query.whereClause != null && !query.whereClause.isEmpty()) {
+        b.append(" WHERE ").append(query.whereClause);
+      }
+      if (query.groupBy != null && query.groupBy.length != 0) {
+        b.append(" GROUP BY ");
+        for (int i = 0; i < query.groupBy.length; ++i) {
+          if (i != 0) {
+            b.append(", ");
+          }
+          b.append("\"").append(query.groupBy[i]).append("\"");
+        }
+        if (query.having != null && !query.having.isEmpty()) {
+          b.append(" HAVING ").append(query.having);
+        }
+      }
+      b.append(")");
+      return b.toString();
+    }
+
+    @Override
+    public int countRows() throws ServicesAvailabilityException {
+      BaseTable result;
+      try (SharedDbHandle.Lease lease = database.lease()) {
+        result = database.getDatabase()
+            .arbitrarySqlQuery(appName, lease.getHandle(), null, buildCountStatement(),
+                query.selectionArgs, null, null);
+      }
+      if (result == null || result.getNumberOfRows() == 0) {
+        return 0;
+      }
+      String count = result.getRowAtIndex(0).getRawStringByKey(COUNT_COLUMN);
+      try {
+        return count == null ? 0 : Integer.parseInt(count);
+      } catch (NumberFormatException e) {
+        WebLogger.getLogger(appName).printStackTrace(e);
+        return 0;
+      }
+    }
+
+    @Override
+    public UserTable fetchRows(String[] columns, int limit, int offset)
+        throws ServicesAvailabilityException {
+      try (SharedDbHandle.Lease lease = database.lease()) {
+        UserDbInterface dbInterface = database.getDatabase();
+        DbHandle db = lease.getHandle();
+        if (columns != null) {
+          String sql = ColumnProjection.buildSelect(tableId, columns, query.whereClause,
+              query.groupBy, query.having, orderByElementKeys, orderByDirections);
+          return dbInterface
+              .arbitrarySqlQuery(appName, db, tableId, orderedDefns, sql, query.selectionArgs,
+                  limit, offset);
+        }
+        return dbInterface
+            .simpleQuery(appName, db, tableId, orderedDefns, query.whereClause,
+                query.selectionArgs, query.groupBy == null ? EMPTY_ARRAY : query.groupBy,
+                query.having, orderByElementKeys, orderByDirections, limit, offset);
+      }
+    }
+  }
+
+  /**
+   * Fetches the given page
+   *
+   * @param pageIndex the index of the page to fetch
+   * @return the rows in that page
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  private UserTable fetchPage(int pageIndex) throws ServicesAvailabilityException {
+    return source.fetchRows(projection, pageSize, pageIndex * pageSize);
+  }
+
+  /**
+   * Looks a page up in the cache and marks it as the most recently used
+   *
+   * @param pageIndex the index of the page
+   * @return the page, or null if it isn't cached
+   */
+  private UserTable getCachedPage(int pageIndex) {
+    for (int i = 0; i < cachedPages.length; ++i) {
+      if (cachedPages[i] != null && cachedPageIndexes[i] == pageIndex) {
+        cachedPageLastUse[i] = ++useCounter;
+        return cachedPages[i];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Puts a page in the cache, replacing the least recently used page if the cache is full
+   *
+   * @param pageIndex the index of the page
+   * @param page      the rows in the page
+   */
+  private void cachePage(int pageIndex, UserTable page) {
+    int slot = 0;
+    for (int i = 0; i < cachedPages.length; ++i) {
+      if (cachedPages[i] == null) {
+        slot = i;
+        break;
+      }
+      if (cachedPageLastUse[i] < cachedPageLastUse[slot]) {
+        slot = i;
+      }
+    }
+    cachedPageIndexes[slot] = pageIndex;
+    cachedPages[slot] = page;
+    cachedPageLastUse[slot] = ++useCounter;
+  }
+
+  /**
+   * Gets the page that holds the row at the given index, fetching it if it isn't cached. Pages
+   * are in the order the query returned the rows, see {@link #getSourceIndex(int)}.
+   *
+   * @param rowIndex the index of a row in the full result, as returned by the query
+   * @return the page holding that row, or null if the row doesn't exist or the database is down
+   */
+  public UserTable getPageForRow(int rowIndex) {
+    int pageIndex = rowIndex / pageSize;
+    synchronized (this) {
+      if (rowIndex < 0 || rowIndex >= numberOfRows) {
+        return null;
+      }
+      UserTable page = getCachedPage(pageIndex);
+      if (page != null) {
+        return page;
+      }
+    }
+    // The page is fetched without holding the lock, so a thread drawing from a page that is
+    // already cached isn't held up by another thread waiting on the database
+    UserTable page;
+    try {
+      page = fetchPage(pageIndex);
+    } catch (ServicesAvailabilityException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      WebLogger.getLogger(appName).e(TAG, "Unable to fetch page " + pageIndex);
+      return null;
+    }
+    if (page == null) {
+      return null;
+    }
+    synchronized (this) {
+      UserTable fetchedMeanwhile = getCachedPage(pageIndex);
+      if (fetchedMeanwhile != null) {
+        // another thread fetched the same page first, use its copy
+        return fetchedMeanwhile;
+      }
+      cachePage(pageIndex, page);
+      int pageEnd = pageIndex * pageSize + page.getNumberOfRows();
+      if (page.getNumberOfRows() < pageSize && pageEnd < numberOfRows) {
+        // The table shrank, or access filtering hid rows the count could see. Either way, there
+        // are no rows past the end of this page.
+        WebLogger.getLogger(appName)
+            .w(TAG, "Expected " + numberOfRows + " rows but found " + pageEnd);
+        numberOfRows = pageEnd;
+      }
+    }
+    return page;
+  }
+
+  /**
+   * Gets the page that holds the row at the given index only if it is already cached, so it
+   * never waits on the database
+   *
+   * @param rowIndex the index of a row in the full result, as returned by the query
+   * @return the page holding that row, or null if the row doesn't exist or isn't in memory
+   */
+  public synchronized UserTable getLoadedPageForRow(int rowIndex) {
+    if (rowIndex < 0 || rowIndex >= numberOfRows) {
+      return null;
+    }
+    return getCachedPage(rowIndex / pageSize);
+  }
+
+  /**
+   * Checks whether the row at the given index can be read without waiting on the database. If
+   * it can't, the page it is in is fetched on a database thread.
+   *
+   * @param rowIndex the index the row is displayed at
+   * @param onLoaded run on the UI thread once the page has been fetched, may be null
+   * @return true if the row is in memory, or doesn't exist, false if it is being fetched
+   */
+  public boolean isRowLoaded(int rowIndex, final Runnable onLoaded) {
+    int sourceIndex = getSourceIndex(rowIndex);
+    final int pageIndex = sourceIndex / pageSize;
+    synchronized (this) {
+      if (sourceIndex < 0 || sourceIndex >= numberOfRows || getCachedPage(pageIndex) != null) {
+        return true;
+      }
+      if (!pagesInFlight.add(pageIndex)) {
+        // already on its way
+        return false;
+      }
+    }
+    DatabaseExecutor.execute(appName, new DatabaseExecutor.Task<UserTable>() {
+      @Override
+      public UserTable run() {
+        try {
+          return getPageForRow(pageIndex * pageSize);
+        } finally {
+          synchronized (PagedUserTable.this) {
+            pagesInFlight.remove(pageIndex);
+          }
+        }
+      }
+    }, new DatabaseExecutor.Callback<UserTable>() {
+      @Override
+      public void onSuccess(UserTable page) {
+        // a page that couldn't be fetched is tried again the next time it is drawn
+        if (page != null && onLoaded != null) {
+          onLoaded.run();
+        }
+      }
+
+      @Override
+      public void onFailure(Exception e) {
+      }
+    });
+    return false;
+  }
+
+  /**
+   * @return the number of rows returned by the query
+   */
+  public synchronized int getNumberOfRows() {
+    return numberOfRows;
+  }
+
+  /**
+   * Gets the row at the requested index, fetching the page it is in if needed
+   *
+   * @param rowIndex the index of the row in the full result
+   * @return the row, or null if the index is out of bounds or the database is down
+   */
+  public TypedRow getRowAtIndex(int rowIndex) {
+    rowIndex = getSourceIndex(rowIndex);
+    return getRowInPage(getPageForRow(rowIndex), rowIndex);
+  }
+
+  /**
+   * Gets the row at the requested index only if the page it is in is already cached, so it can
+   * be called from threads that mustn't wait on the database. See
+   * {@link #isRowLoaded(int, Runnable)} for fetching it in the background.
+   *
+   * @param rowIndex the index the row is displayed at
+   * @return the row, or null if the index is out of bounds or the row isn't in memory
+   */
+  public TypedRow getLoadedRowAtIndex(int rowIndex) {
+    rowIndex = getSourceIndex(rowIndex);
+    return getRowInPage(getLoadedPageForRow(rowIndex), rowIndex);
+  }
+
+  /**
+   * @param page     the page holding the row, may be null
+   * @param rowIndex the index of the row in the full result
+   * @return the row, or null if there's no page or the page ends before the row
+   */
+  private TypedRow getRowInPage(UserTable page, int rowIndex) {
+    if (page == null) {
+      return null;
+    }
+    int indexInPage = rowIndex - (rowIndex / pageSize) * pageSize;
+    if (indexInPage >= page.getNumberOfRows()) {
+      return null;
+    }
+    return page.getRowAtIndex(indexInPage);
+  }
+
+  /**
+   * Gets the text that should be displayed for the given cell.
+   *
+   * @param rowIndex   the index of the row in the full result
+   * @param type       the element type of the column
+   * @param elementKey the element key of the column
+   * @return the display text, or null if the cell is empty or doesn't exist
+   */
+  public String getDisplayTextOfData(int rowIndex, ElementType type, String elementKey) {
+    rowIndex = getSourceIndex(rowIndex);
+    UserTable page = getPageForRow(rowIndex);
+    if (page == null) {
+      return null;
+    }
+    int indexInPage = rowIndex - (rowIndex / pageSize) * pageSize;
+    if (indexInPage >= page.getNumberOfRows()) {
+      return null;
+    }
+    return page.getDisplayTextOfData(indexInPage, type, elementKey);
+  }
+
+  /**
+   * Maps the index a row is displayed at to its index in the result of the query, which differ
+   * once the rows have been sorted in memory
+   *
+   * @param rowIndex the index the row is displayed at
+   * @return the index of that row in the query result
+   */
+  public synchronized int getSourceIndex(int rowIndex) {
+    if (rowOrder == null || rowIndex < 0 || rowIndex >= rowOrder.length) {
+      return rowIndex;
+    }
+    return rowOrder[rowIndex];
+  }
+
+  /**
+   * Re-sorts the rows in memory rather than querying them again. Only the sort columns and the
+   * _id of every row are read, a few thousand rows at a time, in the same order as the pages,
+   * and the permutation is built from those. The pages already fetched stay cached, since the
+   * rows are only displayed in a different order.
+   * <p>
+   * The rows are always sorted from the order the query returned them in, never from an
+   * earlier in-memory sort. The query's rows have to come back in the same order for the sort
+   * keys as for the pages, so this is only done for a query that is sorted, and so ends with an
+   * _id, and isn't grouped, since which row of a group the database picks for a column that
+   * isn't grouped by is up to it.
+   *
+   * @param elementKeys the columns to sort by, most significant first
+   * @param directions  ASC or DESC for each of those columns
+   * @return false if the rows can't be sorted in memory or the sort keys couldn't be read, in
+   * which case nothing changes and the caller has to query the rows again in the new order
+   */
+  public boolean sortInMemory(String[] elementKeys, String[] directions) {
+    if (!sorted || (query.groupBy != null && query.groupBy.length != 0)) {
+      return false;
+    }
+    Set<String> columns = new LinkedHashSet<>();
+    if (elementKeys != null) {
+      columns.addAll(Arrays.asList(elementKeys));
+    }
+    columns.add(DataTableColumns.ID);
+    String[] keyColumns = columns.toArray(new String[columns.size()]);
+
+    int rowsToSort = getNumberOfRows();
+    UserTable[] keyPages = new UserTable[(rowsToSort + SORT_KEY_PAGE_SIZE - 1)
+        / SORT_KEY_PAGE_SIZE];
+    try {
+      for (int p = 0; p < keyPages.length; ++p) {
+        keyPages[p] = source
+            .fetchRows(keyColumns, SORT_KEY_PAGE_SIZE, p * SORT_KEY_PAGE_SIZE);
+        int expectedRows = Math.min(SORT_KEY_PAGE_SIZE, rowsToSort - p * SORT_KEY_PAGE_SIZE);
+        if (keyPages[p] == null || keyPages[p].getNumberOfRows() != expectedRows) {
+          // the table changed since the rows were counted
+          return false;
+        }
+      }
+    } catch (ServicesAvailabilityException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      WebLogger.getLogger(appName).e(TAG, "Unable to read the sort columns");
+      return false;
+    }
+    int[] newOrder = RowSorter
+        .sort(keyPages, SORT_KEY_PAGE_SIZE, rowsToSort, orderedDefns, elementKeys, directions);
+    synchronized (this) {
+      if (newOrder.length != numberOfRows) {
+        // a page came back short while we were sorting
+        return false;
+      }
+      rowOrder = newOrder;
+    }
+    return true;
+  }
+
+  /**
+   * @return the number of rows fetched with each query
+   */
+  public int getPageSize() {
+    return pageSize;
+  }
+
+  /**
+   * @return the maximum number of pages kept in memory
+   */
+  public int getMaxCachedPages() {
+    return cachedPages.length;
+  }
+
+  public String getAppName() {
+    return appName;
+  }
+
+  public String getTableId() {
+    return tableId;
+  }
+
+  public OrderedColumns getColumnDefinitions() {
+    return orderedDefns;
+  }
+}
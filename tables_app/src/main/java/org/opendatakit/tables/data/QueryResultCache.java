@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.queries.ArbitraryQuery;
+import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.database.queries.ResumableQuery;
+import org.opendatakit.database.queries.SimpleQuery;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.tables.utils.SQLQueryStruct;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The results of the queries run by the views of one activity, so that views
+ * showing the same rows share them rather than each querying the database.
+ * Results are keyed by the query and the columns it fetches, see
+ * {@link #getKey(ResumableQuery, String[])}.
+ * <p>
+ * Loads are single flight: the first caller for a key runs the query on its
+ * own thread, and anyone else asking for the same key meanwhile waits for that
+ * load rather than starting another. A load that fails isn't kept, so the next
+ * caller tries again.
+ * <p>
+ * Only the results of the few queries used most recently are kept, so views
+ * that each ask for different columns don't hold on to a whole table apiece
+ * for as long as the activity lives.
+ * <p>
+ * Nothing here knows when the table changes, so whoever writes to it has to
+ * {@link #invalidate()} the cache. Every load is tagged with the write
+ * generation it started in, and no one asking after an invalidate is handed a
+ * load from before it.
+ */
+public final class QueryResultCache {
+
+  /**
+   * Runs a query against the database
+   */
+  public interface Loader {
+    /**
+     * @return the result of the query, may be null
+     * @throws ServicesAvailabilityException if the database is down
+     */
+    UserTable load() throws ServicesAvailabilityException;
+  }
+
+  // How many results are kept, enough for the main view and the few views over the same query
+  private static final int MAX_RESULTS = 4;
+
+  /**
+   * A result, or the load in flight, and the write generation the load started in
+   */
+  private static final class Entry {
+    final FutureTask<UserTable> load;
+    final int generation;
+
+    Entry(FutureTask<UserTable> load, int generation) {
+      this.load = load;
+      this.generation = generation;
+    }
+  }
+
+  // the result, or the load in flight, for each of the keys used most recently, in the order they
+  // were last used so the least recently used one is dropped first. Guarded by itself
+  private final Map<String, Entry> results =
+      new LinkedHashMap<String, Entry>(MAX_RESULTS * 2, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+          return size() > MAX_RESULTS;
+        }
+      };
+  // bumped by every invalidate. Guarded by results
+  private int generation = 0;
+
+  /**
+   * Gets the result of a query, loading it if no one has yet
+   *
+   * @param key    the normalized query, from one of the getKey methods
+   * @param loader runs the query if its result isn't cached
+   * @return the result of the query, or null if the load was interrupted
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  public UserTable get(String key, final Loader loader) throws ServicesAvailabilityException {
+    Entry entry;
+    boolean run = false;
+    synchronized (results) {
+      entry = results.get(key);
+      if (entry == null || entry.generation != generation) {
+        entry = new Entry(new FutureTask<>(new Callable<UserTable>() {
+          @Override
+          public UserTable call() throws Exception {
+            return loader.load();
+          }
+        }), generation);
+        results.put(key, entry);
+        run = true;
+      }
+    }
+    if (run) {
+      // no one else has this load yet, so the query runs on this thread
+      entry.load.run();
+    }
+    try {
+      return entry.load.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      // only drop the failed load, a newer one may have replaced it already
+      synchronized (results) {
+        if (results.get(key) == entry) {
+          results.remove(key);
+        }
+      }
+      Throwable cause = e.getCause();
+      if (cause instanceof ServicesAvailabilityException) {
+        throw (ServicesAvailabilityException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  /**
+   * Drops every result, e.g. after the table was written to. Loads that are in flight still
+   * finish for whoever was already waiting on them, but their results aren't kept or handed to
+   * anyone who asks from now on.
+   */
+  public void invalidate() {
+    synchronized (results) {
+      ++generation;
+      results.clear();
+    }
+  }
+
+  /**
+   * Builds the key for the result of a fragment's query
+   *
+   * @param query      the query
+   * @param projection the columns fetched, or null if every column is
+   * @return the key, or null if the query is of a type that can't be cached
+   */
+  public static String getKey(ResumableQuery query, String[] projection) {
+    if (query instanceof ArbitraryQuery) {
+      ArbitraryQuery arbitraryQuery = (ArbitraryQuery) query;
+      return buildKey(arbitraryQuery.getTableId(), projection, arbitraryQuery.getSqlCommand(),
+          arbitraryQuery.getSqlBindArgs(), null, null, null, null);
+    } else if (query instanceof SimpleQuery) {
+      SimpleQuery simpleQuery = (SimpleQuery) query;
+      return buildKey(simpleQuery.getTableId(), projection, simpleQuery.getWhereClause(),
+          simpleQuery.getSqlBindArgs(), simpleQuery.getGroupByArgs(),
+          simpleQuery.getHavingClause(), simpleQuery.getOrderByColNames(),
+          simpleQuery.getOrderByDirections());
+    }
+    return null;
+  }
+
+  /**
+   * Builds the key for the result of a query built from a {@link SQLQueryStruct}
+   *
+   * @param tableId    the table queried
+   * @param query      the clauses of the query
+   * @param projection the columns fetched, or null if every column is
+   * @return the key
+   */
+  public static String getKey(String tableId, SQLQueryStruct query, String[] projection) {
+    return buildKey(tableId, projection, query.whereClause, query.selectionArgs, query.groupBy,
+        query.having, new String[] { query.orderByElementKey },
+        new String[] { query.orderByDirection });
+  }
+
+  /**
+   * Every part is written with its length in front of it, so that no two different queries can
+   * end up with the same key however odd their clauses are
+   */
+  private static String buildKey(String tableId, String[] projection, String sql,
+      BindArgs bindArgs, String[] groupBy, String having, String[] orderBy,
+      String[] orderByDirections) {
+    StringBuilder b = new StringBuilder();
+    appendPart(b, tableId);
+    appendParts(b, projection);
+    appendPart(b, sql);
+    if (bindArgs == null || bindArgs.bindArgs == null) {
+      b.append('-');
+    } else {
+      b.append(bindArgs.bindArgs.length).append('[');
+      for (Object arg : bindArgs.bindArgs) {
+        // the type matters as well as the text, 1 and "1" don't compare the same in sqlite
+        appendPart(b, arg == null ? null : arg.getClass().getSimpleName());
+        appendPart(b, arg == null ? null : arg.toString());
+      }
+    }
+    appendParts(b, groupBy);
+    appendPart(b, having);
+    appendParts(b, orderBy);
+    appendParts(b, orderByDirections);
+    return b.toString();
+  }
+
+  private static void appendParts(StringBuilder b, String[] parts) {
+    if (parts == null) {
+      b.append('-');
+      return;
+    }
+    b.append(parts.length).append('[');
+    for (String part : parts) {
+      appendPart(b, part);
+    }
+  }
+
+  private static void appendPart(StringBuilder b, String part) {
+    if (part == null) {
+      b.append('-');
+    } else {
+      b.append(part.length()).append(':').append(part);
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import org.opendatakit.database.data.UserTable;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Finds the index of a row in a {@link UserTable} from its _id. Looking a row
+ * up on the table itself scans every row, which adds up when it is done for
+ * every marker or every selection change.
+ * <p>
+ * The ids are kept in an open addressing hash table with linear probing: the
+ * ids in one array and their row indexes in another, at most half full so
+ * probes stay short. A lookup only uses the id's cached hash code and the two
+ * arrays, so it never allocates.
+ * <p>
+ * The index is built the first time a table is looked up in, with
+ * {@link #of(UserTable)}, and shared by everyone looking up rows in the same
+ * table. A table's rows don't change once it is loaded, so neither does its
+ * index.
+ */
+public final class RowIdIndex {
+
+  /**
+   * Returned for ids that aren't in the table
+   */
+  public static final int NOT_FOUND = -1;
+
+  // the index of every table that has been looked up in and is still in use. The tables are only
+  // weakly held, so a table that is dropped takes its index with it
+  private static final Map<UserTable, RowIdIndex> indexes = new WeakHashMap<>();
+
+  // the ids, null where a slot is empty. The length is a power of two
+  private final String[] ids;
+  // the index of the row with the id in the same slot
+  private final int[] rowIndexes;
+  private final int mask;
+
+  /**
+   * Builds the index of a table's rows. Rows without an id are left out, and if two rows have
+   * the same id the first one is found.
+   *
+   * @param table the table to index
+   */
+  RowIdIndex(UserTable table) {
+    int numberOfRows = table.getNumberOfRows();
+    int capacity = Integer.highestOneBit(Math.max(numberOfRows, 1) * 2 - 1) << 1;
+    ids = new String[capacity];
+    rowIndexes = new int[capacity];
+    mask = capacity - 1;
+    for (int i = 0; i < numberOfRows; ++i) {
+      String id = table.getRowId(i);
+      if (id == null) {
+        continue;
+      }
+      int slot = spread(id.hashCode()) & mask;
+      while (ids[slot] != null && !ids[slot].equals(id)) {
+        slot = (slot + 1) & mask;
+      }
+      if (ids[slot] == null) {
+        ids[slot] = id;
+        rowIndexes[slot] = i;
+      }
+    }
+  }
+
+  /**
+   * Gets the index of a table's rows, building it the first time it is asked for
+   *
+   * @param table the table to look rows up in
+   * @return the index of the table's rows
+   */
+  public static RowIdIndex of(UserTable table) {
+    synchronized (indexes) {
+      RowIdIndex index = indexes.get(table);
+      if (index == null) {
+        index = new RowIdIndex(table);
+        indexes.put(table, index);
+      }
+      return index;
+    }
+  }
+
+  /**
+   * Finds the row with the given id
+   *
+   * @param rowId the _id of the row
+   * @return the index of the row in the table, or {@link #NOT_FOUND}
+   */
+  public int indexOf(String rowId) {
+    if (rowId == null) {
+      return NOT_FOUND;
+    }
+    int slot = spread(rowId.hashCode()) & mask;
+    String id;
+    while ((id = ids[slot]) != null) {
+      if (id.equals(rowId)) {
+        return rowIndexes[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+    return NOT_FOUND;
+  }
+
+  /**
+   * Mixes the high bits of a hash code into the low ones, since only the low bits pick a slot
+   * and ids that share a prefix tend to differ in the high bits
+   */
+  private static int spread(int hashCode) {
+    return hashCode ^ (hashCode >>> 16);
+  }
+}
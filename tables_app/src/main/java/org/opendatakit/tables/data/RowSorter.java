@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.provider.DataTableColumns;
+
+import java.util.Arrays;
+
+/**
+ * Sorts rows that are already in memory, the same way the database would for
+ * an ORDER BY on the same columns. Rather than moving the rows around, it
+ * returns a permutation: the index of the row that belongs at each position.
+ * <p>
+ * Numeric sort columns are copied out of each page's {@link ColumnVectors}
+ * into one primitive array, so comparing two rows never parses or boxes
+ * anything, and a column the pages have already parsed, e.g. for their colors,
+ * isn't parsed again. Nulls sort first when ascending and last when descending,
+ * as in SQLite. Rows that tie on every sort column are ordered by their _id,
+ * the same last sort key the paged queries use, so sorting in memory puts the
+ * rows in the same order as querying them again would. The sort is stable, so
+ * rows that still tie, e.g. groups without an _id, keep the order the pages
+ * have them in.
+ */
+public final class RowSorter {
+
+  private static final String DESCENDING = "DESC";
+
+  /**
+   * Do not instantiate this class
+   */
+  private RowSorter() {
+  }
+
+  /**
+   * Sorts the rows of a table that is split into pages
+   *
+   * @param pages        the pages of the table, in order, every one full except maybe the last,
+   *                     each with an _id column
+   * @param pageSize     the number of rows in a full page
+   * @param numberOfRows the number of rows in all the pages
+   * @param orderedDefns the columns of the table
+   * @param elementKeys  the columns to sort by, most significant first
+   * @param directions   ASC or DESC for each of those columns, may be null or shorter than
+   *                     elementKeys, in which case the rest are ascending
+   * @return the index in rows of the row that should be displayed at each position, or the
+   * rows in the order they are in if there are no columns to sort by
+   */
+  public static int[] sort(UserTable[] pages, int pageSize, int numberOfRows,
+      OrderedColumns orderedDefns, String[] elementKeys, String[] directions) {
+    int[] order = new int[numberOfRows];
+    for (int i = 0; i < order.length; ++i) {
+      order[i] = i;
+    }
+    if (elementKeys == null || elementKeys.length == 0 || numberOfRows < 2) {
+      return order;
+    }
+    boolean sortsByRowId = Arrays.asList(elementKeys).contains(DataTableColumns.ID);
+    SortKey[] keys = new SortKey[elementKeys.length + (sortsByRowId ? 0 : 1)];
+    for (int k = 0; k < elementKeys.length; ++k) {
+      boolean descending = directions != null && k < directions.length && DESCENDING
+          .equalsIgnoreCase(directions[k]);
+      keys[k] = buildKey(pages, pageSize, numberOfRows, orderedDefns, elementKeys[k],
+          descending);
+    }
+    if (!sortsByRowId) {
+      keys[elementKeys.length] = new StringKey(pages, pageSize, numberOfRows,
+          DataTableColumns.ID, false);
+    }
+    mergeSort(order, keys);
+    return order;
+  }
+
+  /**
+   * Reads the values of one column out of every page into the key that suits its data type
+   */
+  private static SortKey buildKey(UserTable[] pages, int pageSize, int numberOfRows,
+      OrderedColumns orderedDefns, String elementKey, boolean descending) {
+    ElementDataType dataType;
+    try {
+      dataType = orderedDefns.find(elementKey).getType().getDataType();
+    } catch (IllegalArgumentException e) {
+      // not a user defined column, e.g. one of the metadata columns, which are all text
+      dataType = ElementDataType.string;
+    }
+    if (dataType == ElementDataType.integer || dataType == ElementDataType.bool) {
+      return new LongKey(pages, pageSize, numberOfRows, elementKey, descending);
+    } else if (dataType == ElementDataType.number) {
+      return new DoubleKey(pages, pageSize, numberOfRows, elementKey, descending);
+    } else {
+      // dates and times are stored as ISO 8601 strings, so they sort as text too. Packing them
+      // would drop time zones, which the text order keeps the same as the database's
+      return new StringKey(pages, pageSize, numberOfRows, elementKey, descending);
+    }
+  }
+
+  /**
+   * A bottom up merge sort of the permutation, which unlike a quicksort is stable
+   */
+  private static void mergeSort(int[] order, SortKey[] keys) {
+    int[] from = order;
+    int[] to = new int[order.length];
+    for (int width = 1; width < order.length; width *= 2) {
+      for (int lo = 0; lo < order.length; lo += 2 * width) {
+        int mid = Math.min(lo + width, order.length);
+        int hi = Math.min(lo + 2 * width, order.length);
+        int i = lo;
+        int j = mid;
+        int out = lo;
+        while (i < mid && j < hi) {
+          // take from the left run on ties, that's what keeps the sort stable
+          if (compare(keys, from[j], from[i]) < 0) {
+            to[out++] = from[j++];
+          } else {
+            to[out++] = from[i++];
+          }
+        }
+        while (i < mid) {
+          to[out++] = from[i++];
+        }
+        while (j < hi) {
+          to[out++] = from[j++];
+        }
+      }
+      int[] swap = from;
+      from = to;
+      to = swap;
+    }
+    if (from != order) {
+      System.arraycopy(from, 0, order, 0, order.length);
+    }
+  }
+
+  private static int compare(SortKey[] keys, int a, int b) {
+    for (SortKey key : keys) {
+      int result = key.compare(a, b);
+      if (result != 0) {
+        return result;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * The values of one sort column, indexed by row
+   */
+  private static abstract class SortKey {
+    private final boolean descending;
+    // which rows have a null in this column
+    private final boolean[] isNull;
+
+    SortKey(int numberOfRows, boolean descending) {
+      this.descending = descending;
+      this.isNull = new boolean[numberOfRows];
+    }
+
+    void setNull(int row) {
+      isNull[row] = true;
+    }
+
+    final int compare(int a, int b) {
+      int result;
+      if (isNull[a] || isNull[b]) {
+        result = isNull[a] == isNull[b] ? 0 : (isNull[a] ? -1 : 1);
+      } else {
+        result = compareValues(a, b);
+      }
+      return descending ? -result : result;
+    }
+
+    /**
+     * Compares two rows that both have a value in this column
+     */
+    abstract int compareValues(int a, int b);
+  }
+
+  private static final class LongKey extends SortKey {
+    private final long[] values;
+
+    LongKey(UserTable[] pages, int pageSize, int numberOfRows, String elementKey,
+        boolean descending) {
+      super(numberOfRows, descending);
+      values = new long[numberOfRows];
+      for (int p = 0; p * pageSize < numberOfRows; ++p) {
+        ColumnVectors.LongVector vector = ColumnVectors.of(pages[p]).getIntegers(elementKey);
+        int offset = p * pageSize;
+        vector.copyTo(values, offset);
+        int rowsInPage = Math.min(pages[p].getNumberOfRows(), numberOfRows - offset);
+        for (int r = 0; r < rowsInPage; ++r) {
+          if (!vector.hasValue(r)) {
+            setNull(offset + r);
+          }
+        }
+      }
+    }
+
+    @Override
+    int compareValues(int a, int b) {
+      return values[a] < values[b] ? -1 : (values[a] == values[b] ? 0 : 1);
+    }
+  }
+
+  private static final class DoubleKey extends SortKey {
+    private final double[] values;
+
+    DoubleKey(UserTable[] pages, int pageSize, int numberOfRows, String elementKey,
+        boolean descending) {
+      super(numberOfRows, descending);
+      values = new double[numberOfRows];
+      for (int p = 0; p * pageSize < numberOfRows; ++p) {
+        ColumnVectors.DoubleVector vector = ColumnVectors.of(pages[p]).getNumbers(elementKey);
+        int offset = p * pageSize;
+        vector.copyTo(values, offset);
+        int rowsInPage = Math.min(pages[p].getNumberOfRows(), numberOfRows - offset);
+        for (int r = 0; r < rowsInPage; ++r) {
+          if (!vector.hasValue(r)) {
+            setNull(offset + r);
+          }
+        }
+      }
+    }
+
+    @Override
+    int compareValues(int a, int b) {
+      return Double.compare(values[a], values[b]);
+    }
+  }
+
+  private static final class StringKey extends SortKey {
+    private final String[] values;
+
+    StringKey(UserTable[] pages, int pageSize, int numberOfRows, String elementKey,
+        boolean descending) {
+      super(numberOfRows, descending);
+      values = new String[numberOfRows];
+      for (int i = 0; i < numberOfRows; ++i) {
+        values[i] = pages[i / pageSize].getRowAtIndex(i % pageSize).getRawStringByKey(elementKey);
+        if (values[i] == null) {
+          setNull(i);
+        }
+      }
+    }
+
+    @Override
+    int compareValues(int a, int b) {
+      // SQLite's default collation compares the raw bytes, which agrees with compareTo for
+      // everything outside of the supplementary planes
+      return values[a].compareTo(values[b]);
+    }
+  }
+}
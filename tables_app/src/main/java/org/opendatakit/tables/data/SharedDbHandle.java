@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import android.os.Handler;
+import android.os.Looper;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.tasks.DatabaseExecutor;
+
+/**
+ * One database handle shared by everything an activity does, rather than a
+ * handle opened and closed around every call. Opening and closing a handle
+ * are each a round trip to the database services, so a burst of small reads
+ * like loading a table's properties spends more time on handles than on the
+ * reads themselves.
+ * <p>
+ * Callers lease the handle and close the lease when they are done, e.g.
+ * <pre>
+ * try (SharedDbHandle.Lease lease = activity.getSharedDbHandle().lease()) {
+ *   dbInterface.simpleQuery(appName, lease.getHandle(), ...);
+ * }
+ * </pre>
+ * The handle is opened by the first lease and kept open while any lease is,
+ * then closed once it has gone unused for {@link #IDLE_TIMEOUT_MILLIS}, so a
+ * burst of calls shares one handle without the handle being held forever.
+ * <p>
+ * Safe to use from any thread. The handle is opened and closed without holding
+ * the lock, so a slow round trip only holds up the threads that are waiting for
+ * the handle being opened.
+ */
+public final class SharedDbHandle {
+
+  private static final String TAG = SharedDbHandle.class.getSimpleName();
+
+  /**
+   * How long the handle is kept open after the last lease on it is closed
+   */
+  public static final long IDLE_TIMEOUT_MILLIS = 5000;
+
+  /**
+   * A handle that was opened, and the number of leases on it that are still open
+   */
+  private static final class OpenHandle {
+    final DbHandle handle;
+    int leases = 0;
+    // set if the database services went away, so the handle is already gone
+    boolean dead = false;
+
+    OpenHandle(DbHandle handle) {
+      this.handle = handle;
+    }
+  }
+
+  /**
+   * A lease on the shared handle. Close it, ideally with try-with-resources, as soon as the
+   * calls that need the handle are done. Closing it more than once does nothing.
+   */
+  public final class Lease implements AutoCloseable {
+    private final OpenHandle openHandle;
+    private boolean closed = false;
+
+    private Lease(OpenHandle openHandle) {
+      this.openHandle = openHandle;
+    }
+
+    /**
+     * @return the open handle, only valid until this lease is closed
+     */
+    public DbHandle getHandle() {
+      return openHandle.handle;
+    }
+
+    /**
+     * Gives the handle back. Doesn't close the handle itself unless no one else needs it and
+     * whoever owns it is done with it.
+     */
+    @Override
+    public void close() {
+      synchronized (SharedDbHandle.this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        release(openHandle);
+      }
+    }
+  }
+
+  /**
+   * Opens and closes the handle. Outside of tests each is a round trip to the database services,
+   * see {@link ServicesOpener}.
+   */
+  interface Opener {
+    /**
+     * @return a newly opened handle
+     * @throws ServicesAvailabilityException if the database is down
+     */
+    DbHandle open() throws ServicesAvailabilityException;
+
+    /**
+     * @param handle a handle that was opened and that no one will use again
+     * @throws ServicesAvailabilityException if the database is down
+     */
+    void close(DbHandle handle) throws ServicesAvailabilityException;
+  }
+
+  /**
+   * Opens the app's database through the database services
+   */
+  private static final class ServicesOpener implements Opener {
+    private final String appName;
+
+    ServicesOpener(String appName) {
+      this.appName = appName;
+    }
+
+    @Override
+    public DbHandle open() throws ServicesAvailabilityException {
+      return getServices().openDatabase(appName);
+    }
+
+    @Override
+    public void close(DbHandle handle) throws ServicesAvailabilityException {
+      getServices().closeDatabase(appName, handle);
+    }
+  }
+
+  private final String appName;
+  private final Opener opener;
+  private final long idleTimeoutMillis;
+  private final Handler mainThread = new Handler(Looper.getMainLooper());
+  private final Runnable idleTimeout = new Runnable() {
+    @Override
+    public void run() {
+      // closing is a round trip to the services too, so it isn't done on the UI thread
+      DatabaseExecutor.execute(appName, new DatabaseExecutor.Task<Void>() {
+        @Override
+        public Void run() {
+          closeIfIdle();
+          return null;
+        }
+      }, null);
+    }
+  };
+
+  // the handle that new leases get, null if none is open. Guarded by this
+  private OpenHandle current = null;
+  // set while a thread is opening a handle, so the others wait for it rather than open another
+  private boolean opening = false;
+  // set once the owner is done, so handles are closed as soon as they are released
+  private boolean shutDown = false;
+
+  /**
+   * @param appName the app whose database to open
+   */
+  public SharedDbHandle(String appName) {
+    this(appName, new ServicesOpener(appName), IDLE_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * @param appName           the app whose database to open
+   * @param opener            opens and closes the handle
+   * @param idleTimeoutMillis how long the handle is kept open after the last lease is closed
+   */
+  SharedDbHandle(String appName, Opener opener, long idleTimeoutMillis) {
+    this.appName = appName;
+    this.opener = opener;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+  }
+
+  /**
+   * @return the app whose database is opened
+   */
+  public String getAppName() {
+    return appName;
+  }
+
+  /**
+   * @return the interface to the database services, to make calls on the leased handle with
+   * @throws ServicesAvailabilityException if the services aren't connected
+   */
+  public UserDbInterface getDatabase() throws ServicesAvailabilityException {
+    return getServices();
+  }
+
+  private static UserDbInterface getServices() throws ServicesAvailabilityException {
+    UserDbInterface dbInterface = Tables.getInstance().getDatabase();
+    if (dbInterface == null) {
+      throw new ServicesAvailabilityException("Database services are not connected");
+    }
+    return dbInterface;
+  }
+
+  /**
+   * Leases the shared handle, opening it if it isn't open. Call from a database thread if the
+   * handle might not be open yet, since opening it is a round trip to the services. If another
+   * thread is already opening it, waits for that thread rather than opening a second handle.
+   *
+   * @return the lease, to be closed when done with the handle
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  public Lease lease() throws ServicesAvailabilityException {
+    synchronized (this) {
+      while (current == null && opening) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new ServicesAvailabilityException("Interrupted waiting for the database");
+        }
+      }
+      if (current != null) {
+        mainThread.removeCallbacks(idleTimeout);
+        ++current.leases;
+        return new Lease(current);
+      }
+      opening = true;
+    }
+    // the round trip is made without the lock, so leases on an open handle and releases aren't
+    // held up by it
+    OpenHandle opened = null;
+    try {
+      opened = new OpenHandle(opener.open());
+      opened.leases = 1;
+    } finally {
+      synchronized (this) {
+        opening = false;
+        if (opened != null && !shutDown) {
+          // once shut down it is closed as soon as this lease is, see release
+          current = opened;
+        }
+        // the others lease the new handle, or try to open one themselves if this failed
+        notifyAll();
+      }
+    }
+    return new Lease(opened);
+  }
+
+  /**
+   * Forgets the handle without closing it, for when the database services went away and took
+   * the handle with them. The next lease opens a new one.
+   */
+  public synchronized void discard() {
+    mainThread.removeCallbacks(idleTimeout);
+    if (current != null) {
+      current.dead = true;
+      current = null;
+    }
+  }
+
+  /**
+   * Closes the handle as soon as every lease on it is closed, for when the owner is done, e.g.
+   * the activity was destroyed. Anything still running may lease again, but its handles are
+   * closed as soon as it is done with them rather than kept open.
+   */
+  public synchronized void shutDown() {
+    shutDown = true;
+    mainThread.removeCallbacks(idleTimeout);
+    if (current != null && current.leases == 0) {
+      closeLater(current);
+      current = null;
+    }
+  }
+
+  /**
+   * Called with this locked when a lease is closed
+   *
+   * @param openHandle the handle the lease was on
+   */
+  private void release(OpenHandle openHandle) {
+    if (--openHandle.leases > 0) {
+      return;
+    }
+    if (openHandle != current) {
+      // replaced while it was leased, no one will lease it again
+      closeLater(openHandle);
+    } else if (shutDown) {
+      current = null;
+      closeLater(openHandle);
+    } else {
+      mainThread.postDelayed(idleTimeout, idleTimeoutMillis);
+    }
+  }
+
+  /**
+   * Closes the handle if it is still unused once the idle timeout has passed. Only the decision
+   * is made under the lock, the handle is closed without it.
+   */
+  private void closeIfIdle() {
+    OpenHandle idle;
+    synchronized (this) {
+      if (current == null || current.leases != 0) {
+        return;
+      }
+      idle = current;
+      current = null;
+    }
+    closeHandle(idle);
+  }
+
+  /**
+   * Closes a handle no one will lease again on a database thread, since the last lease may well
+   * have been closed on the UI thread
+   *
+   * @param openHandle the handle to close
+   */
+  private void closeLater(final OpenHandle openHandle) {
+    DatabaseExecutor.execute(appName, new DatabaseExecutor.Task<Void>() {
+      @Override
+      public Void run() {
+        closeHandle(openHandle);
+        return null;
+      }
+    }, null);
+  }
+
+  private void closeHandle(OpenHandle openHandle) {
+    if (openHandle.dead) {
+      return;
+    }
+    try {
+      opener.close(openHandle.handle);
+    } catch (ServicesAvailabilityException e) {
+      WebLogger.getLogger(appName).e(TAG, "Error closing database");
+      WebLogger.getLogger(appName).printStackTrace(e);
+    }
+  }
+}
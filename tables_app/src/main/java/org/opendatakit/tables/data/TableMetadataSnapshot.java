@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import android.content.Context;
+import org.opendatakit.aggregate.odktables.rest.KeyValueStoreConstants;
+import org.opendatakit.data.utilities.ColumnUtil;
+import org.opendatakit.data.utilities.TableUtil;
+import org.opendatakit.database.LocalKeyValueStoreConstants;
+import org.opendatakit.database.data.KeyValueStoreEntry;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.TableMetaDataEntries;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.properties.CommonToolProperties;
+import org.opendatakit.utilities.LocalizationUtils;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The properties of a table that are needed to display it, read out of the
+ * key value store in one pass: the sort, group by, frozen column and column
+ * order, the display name and width of every column, the spreadsheet font size
+ * and which views the table can be shown in.
+ * <p>
+ * Reading these one at a time costs a database round trip each, and several of
+ * them are per column. Instead the whole of the table's metadata is fetched at
+ * once and picked apart here. Snapshots are kept per table and reused for as
+ * long as the table's properties revision (its ETag) doesn't change, so opening
+ * a table again only costs the fetch that checks the revision, and the read of
+ * the font size, which also depends on the user's preferences. Only the
+ * snapshots of the few tables opened most recently are kept.
+ * <p>
+ * A snapshot never changes once it is built. Anything that changes the table's
+ * properties also changes the revision, so the next load builds a new one.
+ */
+public final class TableMetadataSnapshot {
+
+  private static final String TAG = TableMetadataSnapshot.class.getSimpleName();
+
+  // How many tables' snapshots are kept, enough for switching back and forth between a few
+  private static final int MAX_SNAPSHOTS = 8;
+
+  // The most recent snapshot of each of the tables opened most recently, by app name and table
+  // id, in the order they were last used so the least recently used one is dropped first
+  private static final Map<String, TableMetadataSnapshot> snapshots =
+      new LinkedHashMap<String, TableMetadataSnapshot>(MAX_SNAPSHOTS * 2, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TableMetadataSnapshot> eldest) {
+          return size() > MAX_SNAPSHOTS;
+        }
+      };
+
+  private final String appName;
+  private final String tableId;
+  private final String revId;
+  // the locale the display names were localized for
+  private final String locale;
+  private final String sortColumn;
+  private final String sortOrder;
+  private final List<String> groupByColumns;
+  private final String indexColumn;
+  private final List<String> columnOrder;
+  private final Map<String, String> displayNames;
+  private final Map<String, Integer> columnWidths;
+  private final int fontSize;
+  private final PossibleTableViewTypes possibleViewTypes;
+
+  /**
+   * What the database works out about a table when its key value store doesn't say
+   */
+  interface Defaults {
+    /**
+     * @param elementKey a column that never had a display name stored
+     * @return the column's display name in the user's locale
+     * @throws ServicesAvailabilityException if the database is down
+     */
+    String getDefaultDisplayName(String elementKey) throws ServicesAvailabilityException;
+
+    /**
+     * @return which views the table can be shown in, and their default files
+     * @throws ServicesAvailabilityException if the database is down
+     */
+    PossibleTableViewTypes getPossibleTableViewTypes() throws ServicesAvailabilityException;
+  }
+
+  /**
+   * Picks the table's properties out of its key value store entries
+   *
+   * @param appName      the app name
+   * @param tableId      the id of the table
+   * @param orderedDefns the columns of the table
+   * @param revId        the revision of the table's properties
+   * @param entries      the table's key value store entries
+   * @param locale       the locale to localize the display names for
+   * @param fontSize     the font size to draw the spreadsheet with
+   * @param defaults     for what the entries don't say
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  TableMetadataSnapshot(String appName, String tableId, OrderedColumns orderedDefns,
+      String revId, List<KeyValueStoreEntry> entries, String locale, int fontSize,
+      Defaults defaults) throws ServicesAvailabilityException {
+    this.appName = appName;
+    this.tableId = tableId;
+    this.revId = revId;
+    this.locale = locale;
+    this.fontSize = fontSize;
+
+    String sortColumn = null;
+    String sortOrder = null;
+    String indexColumn = null;
+    String groupBy = null;
+    String colOrder = null;
+    Map<String, String> displayNameJson = new HashMap<>();
+    Map<String, Integer> columnWidths = new HashMap<>();
+    for (KeyValueStoreEntry entry : entries) {
+      if (KeyValueStoreConstants.PARTITION_TABLE.equals(entry.partition)
+          && KeyValueStoreConstants.ASPECT_DEFAULT.equals(entry.aspect)) {
+        switch (entry.key) {
+        case KeyValueStoreConstants.TABLE_SORT_COL:
+          sortColumn = entry.value;
+          break;
+        case KeyValueStoreConstants.TABLE_SORT_ORDER:
+          sortOrder = entry.value;
+          break;
+        case KeyValueStoreConstants.TABLE_INDEX_COL:
+          indexColumn = entry.value;
+          break;
+        case KeyValueStoreConstants.TABLE_GROUP_BY_COLS:
+          groupBy = entry.value;
+          break;
+        case KeyValueStoreConstants.TABLE_COL_ORDER:
+          colOrder = entry.value;
+          break;
+        default:
+          break;
+        }
+      } else if (KeyValueStoreConstants.PARTITION_COLUMN.equals(entry.partition)
+          && KeyValueStoreConstants.COLUMN_DISPLAY_NAME.equals(entry.key)) {
+        // the aspect of a column property is the element key of the column
+        displayNameJson.put(entry.aspect, entry.value);
+      } else if (LocalKeyValueStoreConstants.Spreadsheet.PARTITION.equals(entry.partition)
+          && LocalKeyValueStoreConstants.Spreadsheet.KEY_COLUMN_WIDTH.equals(entry.key)) {
+        try {
+          columnWidths.put(entry.aspect, Integer.valueOf(entry.value));
+        } catch (NumberFormatException e) {
+          WebLogger.getLogger(appName).w(TAG, "Bad column width for " + entry.aspect);
+        }
+      }
+    }
+    this.sortColumn = sortColumn;
+    this.sortOrder = sortOrder;
+    this.indexColumn = indexColumn;
+    this.groupByColumns = Collections.unmodifiableList(parseList(groupBy));
+    List<String> order = parseList(colOrder);
+    if (order.isEmpty()) {
+      order = new ArrayList<>(orderedDefns.getRetentionColumnNames());
+    }
+    this.columnOrder = Collections.unmodifiableList(order);
+    this.columnWidths = Collections.unmodifiableMap(columnWidths);
+
+    Map<String, String> displayNames = new HashMap<>();
+    for (String elementKey : orderedDefns.getRetentionColumnNames()) {
+      String json = displayNameJson.get(elementKey);
+      if (json != null) {
+        displayNames.put(elementKey,
+            LocalizationUtils.getLocalizedDisplayName(appName, tableId, locale, json));
+      } else {
+        // no display name was ever stored, let the database work out the default one
+        displayNames.put(elementKey, defaults.getDefaultDisplayName(elementKey));
+      }
+    }
+    this.displayNames = Collections.unmodifiableMap(displayNames);
+
+    // the default view falls back on other settings, so it is read through the utility that
+    // knows how, while the database is still open
+    this.possibleViewTypes = defaults.getPossibleTableViewTypes();
+  }
+
+  private List<String> parseList(String json) {
+    if (json == null || json.isEmpty()) {
+      return new ArrayList<>();
+    }
+    try {
+      return new ArrayList<>(Arrays.asList(ODKFileUtils.mapper.readValue(json, String[].class)));
+    } catch (IOException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      return new ArrayList<>();
+    }
+  }
+
+  /**
+   * Gets the metadata of a table. The table's metadata is fetched once; if its revision is the
+   * same as the last snapshot of the table, that snapshot is returned rather than building a
+   * new one.
+   *
+   * @param context      the context, for the user's locale and font size preferences
+   * @param dbInterface  the database interface to use
+   * @param appName      the app name
+   * @param db           an open database handle
+   * @param tableId      the id of the table
+   * @param orderedDefns the columns of the table
+   * @return the table's metadata
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  public static TableMetadataSnapshot load(Context context, final UserDbInterface dbInterface,
+      final String appName, final DbHandle db, final String tableId,
+      final OrderedColumns orderedDefns) throws ServicesAvailabilityException {
+    final String locale = CommonToolProperties.get(context, appName).getUserSelectedDefaultLocale();
+    // the font size falls back on the user's preferences, which can change without the table
+    // changing, so it is always read
+    int fontSize = TableUtil.get()
+        .getSpreadsheetViewFontSize(context, dbInterface, appName, db, tableId);
+    TableMetaDataEntries metadata = dbInterface
+        .getTableMetadata(appName, db, tableId, null, null, null, null);
+    String key = appName + "/" + tableId;
+    synchronized (snapshots) {
+      TableMetadataSnapshot cached = snapshots.get(key);
+      if (cached != null && cached.isCurrent(metadata.getRevId(), locale, fontSize)) {
+        return cached;
+      }
+    }
+    TableMetadataSnapshot snapshot = new TableMetadataSnapshot(appName, tableId, orderedDefns,
+        metadata.getRevId(), metadata.getEntries(), locale, fontSize, new Defaults() {
+      @Override
+      public String getDefaultDisplayName(String elementKey)
+          throws ServicesAvailabilityException {
+        return ColumnUtil.get()
+            .getLocalizedDisplayName(locale, dbInterface, appName, db, tableId, elementKey);
+      }
+
+      @Override
+      public PossibleTableViewTypes getPossibleTableViewTypes()
+          throws ServicesAvailabilityException {
+        return new PossibleTableViewTypes(dbInterface, appName, db, tableId, orderedDefns);
+      }
+    });
+    synchronized (snapshots) {
+      snapshots.put(key, snapshot);
+    }
+    return snapshot;
+  }
+
+  /**
+   * Whether this snapshot can be handed out again rather than building a new one. It can if
+   * the table's properties haven't changed and the display names and font size would come out
+   * the same, since the user's preferences can change those without the table changing.
+   *
+   * @param revId    the table's current properties revision, a snapshot without one is never
+   *                 reused
+   * @param locale   the user's current locale
+   * @param fontSize the font size the table is drawn with now
+   * @return true if the snapshot is still good
+   */
+  boolean isCurrent(String revId, String locale, int fontSize) {
+    return this.revId != null && this.revId.equals(revId)
+        && (this.locale == null ? locale == null : this.locale.equals(locale))
+        && this.fontSize == fontSize;
+  }
+
+  /**
+   * @return the revision of the table's properties this snapshot was built from
+   */
+  public String getRevId() {
+    return revId;
+  }
+
+  /**
+   * @return the id of the table
+   */
+  public String getTableId() {
+    return tableId;
+  }
+
+  /**
+   * @return the element key of the column the table is sorted by, or null
+   */
+  public String getSortColumn() {
+    return sortColumn;
+  }
+
+  /**
+   * @return ASC or DESC, or null if the table has no sort order
+   */
+  public String getSortOrder() {
+    return sortOrder;
+  }
+
+  /**
+   * @return the element keys of the columns the table is grouped by, may be empty
+   */
+  public List<String> getGroupByColumns() {
+    return groupByColumns;
+  }
+
+  /**
+   * @return the element key of the frozen column, or null
+   */
+  public String getIndexColumn() {
+    return indexColumn;
+  }
+
+  /**
+   * @return the element keys of the columns in the order they are displayed
+   */
+  public List<String> getColumnOrder() {
+    return columnOrder;
+  }
+
+  /**
+   * @param elementKey the column to get the display name of
+   * @return the display name of the column in the user's locale, or the element key if the
+   * column isn't known
+   */
+  public String getLocalizedDisplayName(String elementKey) {
+    String displayName = displayNames.get(elementKey);
+    return displayName == null ? elementKey : displayName;
+  }
+
+  /**
+   * @param elementKey the column to get the width of
+   * @return the width of the column in the spreadsheet
+   */
+  public int getColumnWidth(String elementKey) {
+    Integer width = columnWidths.get(elementKey);
+    return width == null ? LocalKeyValueStoreConstants.Spreadsheet.DEFAULT_COL_WIDTH : width;
+  }
+
+  /**
+   * @return the font size to draw the spreadsheet with
+   */
+  public int getFontSize() {
+    return fontSize;
+  }
+
+  /**
+   * @return which views the table can be shown in, and their default files
+   */
+  public PossibleTableViewTypes getPossibleTableViewTypes() {
+    return possibleViewTypes;
+  }
+}
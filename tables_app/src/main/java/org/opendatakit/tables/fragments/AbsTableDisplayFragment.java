@@ -18,9 +18,10 @@ package org.opendatakit.tables.fragments;
 import android.support.v4.app.Fragment;
 import android.content.Context;
 import org.opendatakit.database.data.OrderedColumns;
-import org.opendatakit.database.data.UserTable;
 import org.opendatakit.tables.activities.AbsTableActivity;
 import org.opendatakit.tables.activities.TableDisplayActivity;
+import org.opendatakit.tables.data.PagedUserTable;
+import org.opendatakit.tables.data.TableMetadataSnapshot;
 
 /**
  * The base class for any {@link Fragment} that displays a table.
@@ -57,12 +58,22 @@ public abstract class AbsTableDisplayFragment extends AbsTablesFragment {
   }
 
   /**
-   * Get the {@link UserTable} being held by the {@link TableDisplayActivity}.
+   * Get the {@link PagedUserTable} being held by the {@link TableDisplayActivity}.
    *
-   * @return the user table (data in the table) from the enclosing activity
+   * @return a windowed view of the data in the table from the enclosing activity, or null if it
+   * hasn't been loaded
    */
-  public UserTable getUserTable() {
-    return ((TableDisplayActivity) getActivity()).getUserTable();
+  public PagedUserTable getPagedUserTable() {
+    return ((TableDisplayActivity) getActivity()).getPagedUserTable();
+  }
+
+  /**
+   * Get the {@link TableMetadataSnapshot} being held by the {@link TableDisplayActivity}.
+   *
+   * @return the properties of the table, or null if they haven't been loaded
+   */
+  public TableMetadataSnapshot getTableMetadata() {
+    return ((TableDisplayActivity) getActivity()).getTableMetadata();
   }
 
 }
@@ -22,6 +22,7 @@ import android.support.v7.preference.PreferenceFragmentCompat ;
 import org.opendatakit.activities.IAppAwareActivity;
 import org.opendatakit.database.data.OrderedColumns;
 import org.opendatakit.tables.activities.AbsTableActivity;
+import org.opendatakit.tables.data.SharedDbHandle;
 
 /**
  * This fragment should be extended to display any preferences that apply at a
@@ -58,6 +59,10 @@ public abstract class AbsTableLevelPreferenceFragment extends PreferenceFragment
     return ((AbsTableActivity) getActivity()).getColumnDefinitions();
   }
 
+  SharedDbHandle getSharedDbHandle() {
+    return ((AbsTableActivity) getActivity()).getSharedDbHandle();
+  }
+
   /**
    * Find an {@link EditTextPreference} with the given key.
    * Convenience method for
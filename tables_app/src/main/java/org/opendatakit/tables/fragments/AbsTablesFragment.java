@@ -26,6 +26,7 @@ import org.opendatakit.application.CommonApplication;
 import org.opendatakit.listener.DatabaseConnectionListener;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.tables.activities.AbsBaseActivity;
+import org.opendatakit.tables.data.SharedDbHandle;
 import org.opendatakit.utilities.AppNameUtil;
 
 /**
@@ -100,4 +101,14 @@ public abstract class AbsTablesFragment extends Fragment
     return mAppName;
   }
 
+  /**
+   * Get the database handle shared by the activity this fragment is attached to. Lease it
+   * rather than opening a handle of your own.
+   *
+   * @return the shared handle
+   */
+  public SharedDbHandle getSharedDbHandle() {
+    return ((AbsBaseActivity) getActivity()).getSharedDbHandle();
+  }
+
 }
@@ -34,6 +34,7 @@ import org.opendatakit.properties.PropertiesSingleton;
 import org.opendatakit.tables.activities.AbsTableActivity;
 import org.opendatakit.tables.activities.TableLevelPreferencesActivity;
 import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.data.SharedDbHandle;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -104,9 +105,8 @@ public class ColumnListFragment extends ListFragment {
     String userSelectedDefaultLocale = props.getUserSelectedDefaultLocale();
     UserDbInterface dbInterface = Tables.getInstance().getDatabase();
     TableUtil.TableColumns tc;
-    DbHandle db = null;
-    try {
-      db = dbInterface.openDatabase(appName);
+    try (SharedDbHandle.Lease lease = activity.getSharedDbHandle().lease()) {
+      DbHandle db = lease.getHandle();
       tc = TableUtil.get().getTableColumns(userSelectedDefaultLocale, dbInterface, appName, db,
           activity.getTableId());
 
@@ -120,10 +120,6 @@ public class ColumnListFragment extends ListFragment {
         displayNames.add(localizedDisplayName);
       }
       this.mDisplayNames = displayNames;
-    } finally {
-      if (db != null) {
-        dbInterface.closeDatabase(appName, db);
-      }
     }
   }
 
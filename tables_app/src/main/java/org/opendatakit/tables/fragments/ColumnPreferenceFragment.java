@@ -36,6 +36,7 @@ import org.opendatakit.properties.PropertiesSingleton;
 import org.opendatakit.tables.R;
 import org.opendatakit.tables.activities.TableLevelPreferencesActivity;
 import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.data.SharedDbHandle;
 import org.opendatakit.tables.utils.Constants;
 import org.opendatakit.tables.utils.PreferenceUtil;
 
@@ -164,9 +165,8 @@ public class ColumnPreferenceFragment extends AbsTableLevelPreferenceFragment {
         .findEditTextPreference(Constants.PreferenceKeys.Column.DISPLAY_NAME);
 
     UserDbInterface dbInterface = Tables.getInstance().getDatabase();
-    DbHandle db = null;
-    try {
-      db = dbInterface.openDatabase(getAppName());
+    try (SharedDbHandle.Lease lease = getSharedDbHandle().lease()) {
+      DbHandle db = lease.getHandle();
       PropertiesSingleton props = CommonToolProperties
           .get(getActivity().getApplication(), getAppName());
       String userSelectedDefaultLocale = props.getUserSelectedDefaultLocale();
@@ -174,10 +174,6 @@ public class ColumnPreferenceFragment extends AbsTableLevelPreferenceFragment {
           .getLocalizedDisplayName(userSelectedDefaultLocale, dbInterface, getAppName(), db,
               getTableId(), retrieveColumnDefinition().getElementKey());
       pref.setSummary(localizedDisplayName);
-    } finally {
-      if (db != null) {
-        dbInterface.closeDatabase(getAppName(), db);
-      }
     }
   }
 
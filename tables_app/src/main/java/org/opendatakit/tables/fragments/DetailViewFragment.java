@@ -22,9 +22,11 @@ import org.opendatakit.database.data.BaseTable;
 import org.opendatakit.database.queries.BindArgs;
 import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.database.service.UserDbInterface;
-import org.opendatakit.logging.WebLogger;
 import org.opendatakit.tables.R;
 import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.data.SharedDbHandle;
+import org.opendatakit.tables.tasks.DatabaseExecutor;
+
 /**
  * {@link Fragment} for displaying a detail view.
  *
@@ -49,31 +51,45 @@ public class DetailViewFragment extends AbsWebTableFragment {
       });
     }
   }
+  /**
+   * Hides the edit button if the user can't edit the displayed row. The row's access is read on
+   * a database thread.
+   */
   private void checkAccess() {
-    String tableId = ((IOdkCommonActivity) getActivity()).getTableId();
-    String rowId = ((IOdkCommonActivity) getActivity()).getInstanceId();
-    UserDbInterface dbInt = Tables.getInstance().getDatabase();
-    boolean can_edit = true;
-    try {
-      DbHandle db = dbInt.openDatabase(getAppName());
-
-      BaseTable result = dbInt
+    final String tableId = ((IOdkCommonActivity) getActivity()).getTableId();
+    final String rowId = ((IOdkCommonActivity) getActivity()).getInstanceId();
+    final String appName = getAppName();
+    final SharedDbHandle database = getSharedDbHandle();
+    DatabaseExecutor.execute(appName, new DatabaseExecutor.Task<Boolean>() {
+      @Override
+      public Boolean run() throws Exception {
+        UserDbInterface dbInt = Tables.getInstance().getDatabase();
+        try (SharedDbHandle.Lease lease = database.lease()) {
+          DbHandle db = lease.getHandle();
+          BaseTable result = dbInt
               // we know it's safe to dump the table id in there because we got it from the TDA
-              .arbitrarySqlQuery(getAppName(), db,tableId, "SELECT * FROM "+tableId+" WHERE _id = ?",
-                      new BindArgs(new String[] {rowId}), 1, 0);
-      String access = result.getRowAtIndex(0).getRawStringByKey("_effective_access");
-      if (access != null) {
-        can_edit = access.contains("w");
+              .arbitrarySqlQuery(appName, db, tableId,
+                  "SELECT * FROM " + tableId + " WHERE _id = ?",
+                  new BindArgs(new String[] { rowId }), 1, 0);
+          String access = result.getRowAtIndex(0).getRawStringByKey("_effective_access");
+          return access == null || access.contains("w");
+        }
       }
-      dbInt.closeDatabase(getAppName(), db);
-    } catch (Exception e) {
-      WebLogger.getLogger(getAppName()).printStackTrace(e);
-    }
-    if (!can_edit) {
-      View edit_button = getActivity().findViewById(R.id.menu_edit_row);
-      if (edit_button != null) {
-        edit_button.setVisibility(View.GONE);
+    }, new DatabaseExecutor.Callback<Boolean>() {
+      @Override
+      public void onSuccess(Boolean canEdit) {
+        if (!canEdit && getActivity() != null) {
+          View edit_button = getActivity().findViewById(R.id.menu_edit_row);
+          if (edit_button != null) {
+            edit_button.setVisibility(View.GONE);
+          }
+        }
       }
-    }
+
+      @Override
+      public void onFailure(Exception e) {
+        // already logged, leave the button as it is
+      }
+    });
   }
 }
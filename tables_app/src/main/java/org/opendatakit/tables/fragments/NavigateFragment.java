@@ -24,7 +24,11 @@ import org.opendatakit.logging.WebLogger;
 import org.opendatakit.tables.R;
 import org.opendatakit.tables.activities.TableDisplayActivity;
 import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.data.ColumnVectors;
+import org.opendatakit.tables.data.RowIdIndex;
+import org.opendatakit.tables.data.SharedDbHandle;
 import org.opendatakit.tables.providers.GeoProvider;
+import org.opendatakit.tables.tasks.DatabaseExecutor;
 import org.opendatakit.tables.utils.DistanceUtil;
 import org.opendatakit.tables.views.CompassView;
 
@@ -138,29 +142,8 @@ public class NavigateFragment extends Fragment implements IMapListViewCallbacks,
       }
     });
 
-    mTable = activity.getUserTable();
-    OrderedColumns orderedDefns = activity.getColumnDefinitions();
-
-    UserDbInterface dbInterface = Tables.getInstance().getDatabase();
-
-    try {
-      DbHandle db = dbInterface.openDatabase(activity.getAppName());
-
-      mLatitudeColumn = orderedDefns.find(getLatitudeElementKey(db));
-      mLongitudeColumn = orderedDefns.find(getLongitudeElementKey(db));
-    } catch (ServicesAvailabilityException e) {
-      WebLogger.getLogger(activity.getAppName()).printStackTrace(e);
-      WebLogger.getLogger(activity.getAppName()).e(TAG, "Unable to access database");
-    }
-
-    // Check for a passed in rowId to default to. Only use it if we haven't already restored a
-    // selected index
-    Bundle args = getArguments();
-    if (args != null && this.mSelectedItemIndex == INVALID_INDEX &&
-        args.containsKey(ROW_ID_KEY)) {
-      String rowId = args.getString(ROW_ID_KEY);
-      setIndexOfSelectedItem(mTable.getRowNumFromId(rowId));
-    }
+    // the distance reads "-" until the rows and location columns have been loaded
+    loadTableAndLocationColumns(activity);
 
     if (mGeoProvider.isGpsProviderOn() == false
         && mGeoProvider.isNetworkOn() == false) {
@@ -385,13 +368,25 @@ public class NavigateFragment extends Fragment implements IMapListViewCallbacks,
       mDestinationLocation.setVisibility(View.VISIBLE);
     }
 
-    TypedRow selectedRow = mTable.getRowAtIndex(mSelectedItemIndex);
-    String lat = selectedRow.getStringValueByKey(mLatitudeColumn.getElementKey());
-    String lon = selectedRow.getStringValueByKey(mLongitudeColumn.getElementKey());
+    if (mTable == null || mLatitudeColumn == null || mLongitudeColumn == null) {
+      // still loading, the view is reset again once the rows arrive
+      return;
+    }
+
+    ColumnVectors vectors = ColumnVectors.of(mTable);
+    ColumnVectors.DoubleVector lat = vectors.getNumbers(mLatitudeColumn.getElementKey());
+    ColumnVectors.DoubleVector lon = vectors.getNumbers(mLongitudeColumn.getElementKey());
+    if (!lat.hasValue(mSelectedItemIndex) || !lon.hasValue(mSelectedItemIndex)) {
+      // the selected row has no location to navigate to
+      mGeoProvider.clearDestinationLocation();
+      mDistanceTextView.setText(getActivity().getString(R.string.distance, "-"));
+      mBearingTextView.setText("");
+      return;
+    }
 
     Location destination = new Location(TAG);
-    destination.setLatitude(Double.parseDouble(lat));
-    destination.setLongitude(Double.parseDouble(lon));
+    destination.setLatitude(lat.get(mSelectedItemIndex));
+    destination.setLongitude(lon.get(mSelectedItemIndex));
 
     mGeoProvider.setDestinationLocation(destination);
     if (mGeoProvider.getCurrentLocation() != null) {
@@ -428,25 +423,114 @@ public class NavigateFragment extends Fragment implements IMapListViewCallbacks,
     this.resetView();
   }
 
-  private String getLatitudeElementKey(DbHandle dbHandle) throws ServicesAvailabilityException {
-    TableDisplayActivity activity = (TableDisplayActivity) getActivity();
+  /**
+   * Reads which columns hold the location and the rows to navigate between on a database
+   * thread, then selects the row that was passed in, if any
+   *
+   * @param activity the activity displaying the table
+   */
+  private void loadTableAndLocationColumns(final TableDisplayActivity activity) {
+    final String appName = activity.getAppName();
+    final String tableId = activity.getTableId();
+    final OrderedColumns orderedDefns = activity.getColumnDefinitions();
+    DatabaseExecutor.execute(appName, new DatabaseExecutor.Task<String[]>() {
+      @Override
+      public String[] run() throws ServicesAvailabilityException {
+        UserDbInterface dbInterface = Tables.getInstance().getDatabase();
+        try (SharedDbHandle.Lease lease = activity.getSharedDbHandle().lease()) {
+          DbHandle db = lease.getHandle();
+          return new String[] { TableUtil.get()
+              .getMapListViewLatitudeElementKey(dbInterface, appName, db, tableId, orderedDefns),
+              TableUtil.get()
+                  .getMapListViewLongitudeElementKey(dbInterface, appName, db, tableId,
+                      orderedDefns) };
+        }
+      }
+    }, new DatabaseExecutor.Callback<String[]>() {
+      @Override
+      public void onSuccess(String[] elementKeys) {
+        if (!isAdded()) {
+          return;
+        }
+        mLatitudeColumn = orderedDefns.find(elementKeys[0]);
+        mLongitudeColumn = orderedDefns.find(elementKeys[1]);
+        activity.loadUserTable(new DatabaseExecutor.Callback<UserTable>() {
+          @Override
+          public void onSuccess(UserTable result) {
+            if (isAdded()) {
+              warmTable(appName, result);
+            }
+          }
+
+          @Override
+          public void onFailure(Exception e) {
+            WebLogger.getLogger(appName).e(TAG, "Unable to access database");
+          }
+        });
+      }
 
-    OrderedColumns orderedDefns = activity.getColumnDefinitions();
-    return TableUtil.get()
-        .getMapListViewLatitudeElementKey(Tables.getInstance().getDatabase(),
-            activity.getAppName(), dbHandle, activity.getTableId(), orderedDefns);
+      @Override
+      public void onFailure(Exception e) {
+        WebLogger.getLogger(appName).e(TAG, "Unable to access database");
+      }
+    });
   }
 
-  private String getLongitudeElementKey(DbHandle dbHandle) throws ServicesAvailabilityException {
-    TableDisplayActivity activity = (TableDisplayActivity) getActivity();
-    OrderedColumns orderedDefns = activity.getColumnDefinitions();
-    return TableUtil.get()
-        .getMapListViewLongitudeElementKey(Tables.getInstance().getDatabase(),
-            activity.getAppName(), dbHandle, activity.getTableId(), orderedDefns);
+  /**
+   * Parses the location columns and indexes the row ids of the whole table on a database thread,
+   * so that showing or looking up the selected row on the UI thread only reads what is already
+   * there. Then hands the table over.
+   *
+   * @param appName the app, for logging
+   * @param table   the rows to navigate between
+   */
+  private void warmTable(final String appName, final UserTable table) {
+    final String latitudeElementKey = mLatitudeColumn.getElementKey();
+    final String longitudeElementKey = mLongitudeColumn.getElementKey();
+    DatabaseExecutor.execute(appName, new DatabaseExecutor.Task<UserTable>() {
+      @Override
+      public UserTable run() {
+        ColumnVectors vectors = ColumnVectors.of(table);
+        vectors.getNumbers(latitudeElementKey);
+        vectors.getNumbers(longitudeElementKey);
+        RowIdIndex.of(table);
+        return table;
+      }
+    }, new DatabaseExecutor.Callback<UserTable>() {
+      @Override
+      public void onSuccess(UserTable result) {
+        if (isAdded()) {
+          mTable = result;
+          onTableLoaded();
+        }
+      }
+
+      @Override
+      public void onFailure(Exception e) {
+        WebLogger.getLogger(appName).printStackTrace(e);
+      }
+    });
+  }
+
+  /**
+   * Selects the row that was passed in, or shows the row that was selected before the rows
+   * were loaded
+   */
+  private void onTableLoaded() {
+    // Check for a passed in rowId to default to. Only use it if we haven't already restored a
+    // selected index
+    Bundle args = getArguments();
+    if (args != null && this.mSelectedItemIndex == INVALID_INDEX &&
+        args.containsKey(ROW_ID_KEY)) {
+      String rowId = args.getString(ROW_ID_KEY);
+      setIndexOfSelectedItem(RowIdIndex.of(mTable).indexOf(rowId));
+    } else if (this.mSelectedItemIndex != INVALID_INDEX) {
+      resetView();
+    }
   }
 
   private void arrive(View view) {
-    if (mSelectedItemIndex == INVALID_INDEX) {
+    if (mSelectedItemIndex == INVALID_INDEX || mTable == null) {
       getActivity().setResult(Activity.RESULT_CANCELED);
       getActivity().finish();
       return;
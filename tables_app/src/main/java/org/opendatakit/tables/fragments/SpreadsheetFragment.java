@@ -31,7 +31,8 @@ import android.widget.Toast;
 import org.opendatakit.consts.RequestCodeConsts;
 import org.opendatakit.data.JoinColumn;
 import org.opendatakit.data.utilities.ColumnUtil;
-import org.opendatakit.database.data.ColumnDefinition;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.TypedRow;
 import org.opendatakit.database.queries.BindArgs;
 import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.database.service.UserDbInterface;
@@ -40,11 +41,14 @@ import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.provider.DataTableColumns;
 import org.opendatakit.tables.R;
-import org.opendatakit.tables.activities.AbsBaseActivity;
 import org.opendatakit.tables.activities.ISpreadsheetFragmentContainer;
 import org.opendatakit.tables.activities.TableDisplayActivity;
 import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.data.PagedUserTable;
+import org.opendatakit.tables.data.SharedDbHandle;
 import org.opendatakit.tables.data.ViewFragmentType;
+import org.opendatakit.tables.tasks.AutoFitColumnWidthsTask;
+import org.opendatakit.tables.tasks.DatabaseExecutor;
 import org.opendatakit.tables.utils.ActivityUtil;
 import org.opendatakit.tables.utils.Constants;
 import org.opendatakit.tables.utils.IntentUtil;
@@ -57,6 +61,9 @@ import org.opendatakit.tables.views.SpreadsheetView;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Fragment responsible for displaying a spreadsheet view. This class is a hideous monstrosity
@@ -88,11 +95,21 @@ public class SpreadsheetFragment extends AbsTableDisplayFragment
   private static final int MENU_ITEM_ID_SORT_ASC = 12;
   private static final int MENU_ITEM_ID_SORT_DESC = 13;
   private static final int MENU_ITEM_ID_PREFS = 14;
+  private static final int MENU_ITEM_ID_AUTO_FIT_COLUMNS = 15;
 
   /**
    * The object that contains the actual rows of the table and their data
    */
   private SpreadsheetUserTable spreadsheetTable;
+  /**
+   * The spreadsheet being displayed, or null if there isn't one, e.g. because the table is empty
+   */
+  private SpreadsheetView spreadsheetView;
+  /**
+   * The join columns set on each column that has any, read along with the color rules so that
+   * building the row actions menu doesn't touch the database
+   */
+  private Map<String, ArrayList<JoinColumn>> columnJoins = Collections.emptyMap();
 
   /**
    * theView is used to store the SpreadsheetView once we have one, but before we can create one
@@ -147,46 +164,152 @@ public class SpreadsheetFragment extends AbsTableDisplayFragment
   @Override
   public void databaseAvailable() {
     WebLogger.getLogger(getAppName()).i(TAG, "SpreadsheetFragment databaseAvailable called");
-    try {
-
-      spreadsheetTable = new SpreadsheetUserTable(this);
-      if (!spreadsheetTable.hasData()) {
-        TextView textView = new TextView(getActivity());
-        textView.setText(getString(R.string.no_data));
-        theView.removeAllViews();
-        theView.addView(textView);
-      } else {
-        theView.removeAllViews();
-        final SpreadsheetView theSpreadsheetView = buildSpreadsheetView();
-        theView.addView(theSpreadsheetView);
-        final SpreadsheetProps props = getProps();
-        container.post(new Runnable() {
+    Activity act = getActivity();
+    if (!(act instanceof TableDisplayActivity)) {
+      return;
+    }
+    showMessage(R.string.loading_data);
+    // the rows are counted and the color rules read on a database thread, so a large table
+    // doesn't hold up the UI thread while the spreadsheet is built
+    ((TableDisplayActivity) act)
+        .loadPagedUserTable(new DatabaseExecutor.Callback<PagedUserTable>() {
           @Override
-          public void run() {
+          public void onSuccess(PagedUserTable result) {
             if (getActivity() == null) {
-              WebLogger.getLogger(mAppName).i(TAG, "activity was null in post, this fragment "
-                  + "was probably destroyed and recreated via showCurrentDisplayFragment before "
-                  + "the rotation completed.");
-            } else {
-              if (props.headerMenuOpen) {
-                theSpreadsheetView.openHeaderMenu();
-              } else if (props.dataMenuOpen) {
-                theSpreadsheetView.openDataMenu();
-              } else if (props.deleteDialogOpen) {
-                openDeleteDialog();
-              }
+              // destroyed while the rows were being counted
+              return;
+            }
+            try {
+              spreadsheetTable = new SpreadsheetUserTable(SpreadsheetFragment.this);
+            } catch (ServicesAvailabilityException e) {
+              onFailure(e);
+              return;
+            }
+            spreadsheetView = null;
+            if (!spreadsheetTable.hasData()) {
+              showMessage(R.string.no_data);
+              return;
             }
+            final SpreadsheetUserTable table = spreadsheetTable;
+            final SharedDbHandle database = getSharedDbHandle();
+            final String appName = getAppName();
+            final String tableId = getTableId();
+            final OrderedColumns orderedDefns = getColumnDefinitions();
+            DatabaseExecutor.execute(appName,
+                new DatabaseExecutor.Task<Map<String, ArrayList<JoinColumn>>>() {
+                  @Override
+                  public Map<String, ArrayList<JoinColumn>> run()
+                      throws ServicesAvailabilityException {
+                    table.loadColorRules();
+                    return readJoins(database, appName, tableId, orderedDefns);
+                  }
+                }, new DatabaseExecutor.Callback<Map<String, ArrayList<JoinColumn>>>() {
+              @Override
+              public void onSuccess(Map<String, ArrayList<JoinColumn>> joins) {
+                if (getActivity() != null && table == spreadsheetTable) {
+                  columnJoins = joins;
+                  showSpreadsheet();
+                }
+              }
+
+              @Override
+              public void onFailure(Exception e) {
+                showDatabaseError(e);
+              }
+            });
+          }
+
+          @Override
+          public void onFailure(Exception e) {
+            showDatabaseError(e);
           }
         });
+  }
+
+  /**
+   * Reads the join columns set on every column of the table. Called on a database thread.
+   *
+   * @param database     the database to read from
+   * @param appName      the app name
+   * @param tableId      the table
+   * @param orderedDefns the columns of the table
+   * @return the join columns of each column that has any
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  private static Map<String, ArrayList<JoinColumn>> readJoins(SharedDbHandle database,
+      String appName, String tableId, OrderedColumns orderedDefns)
+      throws ServicesAvailabilityException {
+    Map<String, ArrayList<JoinColumn>> joins = new HashMap<>();
+    UserDbInterface dbInterface = Tables.getInstance().getDatabase();
+    try (SharedDbHandle.Lease lease = database.lease()) {
+      DbHandle db = lease.getHandle();
+      for (String elementKey : orderedDefns.getRetentionColumnNames()) {
+        ArrayList<JoinColumn> joinColumns = ColumnUtil.get()
+            .getJoins(dbInterface, appName, db, tableId, elementKey);
+        if (joinColumns != null && !joinColumns.isEmpty()) {
+          joins.put(elementKey, joinColumns);
+        }
       }
-    } catch (ServicesAvailabilityException e) {
-      WebLogger.getLogger(getAppName()).printStackTrace(e);
-      WebLogger.getLogger(getAppName()).e(TAG, "Error while constructing spreadsheet view: " + e);
-      TextView textView = new TextView(getActivity());
-      textView.setText(getString(R.string.error_accessing_database));
-      theView.removeAllViews();
-      theView.addView(textView);
     }
+    return joins;
+  }
+
+  /**
+   * Replaces whatever is displayed with a message
+   *
+   * @param message the id of the string to display
+   */
+  private void showMessage(int message) {
+    TextView textView = new TextView(getActivity());
+    textView.setText(getString(message));
+    theView.removeAllViews();
+    theView.addView(textView);
+  }
+
+  /**
+   * Displays a database error in place of the spreadsheet
+   *
+   * @param e what went wrong
+   */
+  private void showDatabaseError(Exception e) {
+    if (getActivity() == null) {
+      return;
+    }
+    WebLogger.getLogger(getAppName()).e(TAG, "Error while constructing spreadsheet view: " + e);
+    showMessage(R.string.error_accessing_database);
+  }
+
+  /**
+   * Builds the spreadsheet view once the table and its color rules are loaded, and reopens any
+   * menu or dialog that was open before the fragment was recreated
+   */
+  private void showSpreadsheet() {
+    theView.removeAllViews();
+    final SpreadsheetView theSpreadsheetView = buildSpreadsheetView();
+    spreadsheetView = theSpreadsheetView;
+    // the spreadsheet view only draws what fits on screen, so it has to fill the screen
+    theView.addView(theSpreadsheetView,
+        new LinearLayout.LayoutParams(LinearLayout.LayoutParams.MATCH_PARENT,
+            LinearLayout.LayoutParams.MATCH_PARENT));
+    final SpreadsheetProps props = getProps();
+    container.post(new Runnable() {
+      @Override
+      public void run() {
+        if (getActivity() == null) {
+          WebLogger.getLogger(mAppName).i(TAG, "activity was null in post, this fragment "
+              + "was probably destroyed and recreated via showCurrentDisplayFragment before "
+              + "the rotation completed.");
+        } else {
+          if (props.headerMenuOpen) {
+            theSpreadsheetView.openHeaderMenu();
+          } else if (props.dataMenuOpen) {
+            theSpreadsheetView.openDataMenu();
+          } else if (props.deleteDialogOpen) {
+            openDeleteDialog();
+          }
+        }
+      }
+    });
   }
 
   /**
@@ -200,9 +323,8 @@ public class SpreadsheetFragment extends AbsTableDisplayFragment
    * Build a {@link SpreadsheetView} view to display.
    *
    * @return a new spreadsheet view with the correct activity, table, etc..
-   * @throws ServicesAvailabilityException if the database is down
    */
-  SpreadsheetView buildSpreadsheetView() throws ServicesAvailabilityException {
+  SpreadsheetView buildSpreadsheetView() {
     return new SpreadsheetView(this.getActivity(), this, spreadsheetTable);
   }
 
@@ -264,7 +386,7 @@ public class SpreadsheetFragment extends AbsTableDisplayFragment
     String[] sqlGroupBy = getProps().getGroupBy();
     // Construct a new where clause
     // We don't need to set sqlQueryStruct.groupBy to an empty array because
-    // TableDisplayActivity::getUserTable does that on the other end.
+    // TableDisplayActivity::loadUserTable does that on the other end.
     StringBuilder s = new StringBuilder();
     if (sqlQueryStruct.whereClause != null && !sqlQueryStruct.whereClause.isEmpty()) {
       s.append("(").append(sqlQueryStruct.whereClause).append(") AND ");
@@ -322,22 +444,195 @@ public class SpreadsheetFragment extends AbsTableDisplayFragment
   }
 
   /**
-   * Deletes a row from the table
+   * Applies a change to the sort column or direction in the props. The rows are re-sorted in
+   * memory if they are all loaded, or queried again if not, and the spreadsheet is updated in
+   * place. Falls back to rebuilding the fragment if there is no spreadsheet to update.
+   */
+  private void resortSpreadsheet() {
+    Activity act = getActivity();
+    if (!(act instanceof TableDisplayActivity) || spreadsheetView == null) {
+      destroyAndRecreateFragment();
+      return;
+    }
+    ((TableDisplayActivity) act).resortData(getDataChangedCallback());
+  }
+
+  /**
+   * Applies a change to the group by columns in the props. The rows are queried again with the
+   * new grouping and the spreadsheet is updated in place, recoloring the headers. Falls back to
+   * rebuilding the fragment if there is no spreadsheet to update.
+   */
+  private void regroupSpreadsheet() {
+    Activity act = getActivity();
+    if (act == null || act.isFinishing()) {
+      // removing the last group by in a collection closes it
+      return;
+    }
+    if (!(act instanceof TableDisplayActivity) || spreadsheetView == null) {
+      destroyAndRecreateFragment();
+      return;
+    }
+    ((TableDisplayActivity) act).requeryData(getDataChangedCallback());
+  }
+
+  /**
+   * @return a callback that updates the spreadsheet in place once the rows have been re-sorted
+   * or queried again
+   */
+  private DatabaseExecutor.Callback<PagedUserTable> getDataChangedCallback() {
+    final SpreadsheetView view = spreadsheetView;
+    return new DatabaseExecutor.Callback<PagedUserTable>() {
+      @Override
+      public void onSuccess(PagedUserTable result) {
+        if (getActivity() != null && view == spreadsheetView) {
+          view.onDataChanged();
+        }
+      }
+
+      @Override
+      public void onFailure(Exception e) {
+        showDatabaseError(e);
+      }
+    };
+  }
+
+  /**
+   * Applies a change to the frozen column in the props by moving columns between the frozen and
+   * main parts of the spreadsheet, without reloading anything. Falls back to rebuilding the
+   * fragment if there is no spreadsheet to update.
+   */
+  private void refreezeSpreadsheet() {
+    if (spreadsheetView == null) {
+      destroyAndRecreateFragment();
+      return;
+    }
+    spreadsheetView.onFrozenColumnChanged();
+  }
+
+  /**
+   * Sizes every column to fit a sample of its contents on a background thread, then saves the
+   * widths and applies them to the spreadsheet in place
+   */
+  private void autoFitColumnWidths() {
+    if (spreadsheetView == null || spreadsheetTable == null) {
+      return;
+    }
+    final String appName = getAppName();
+    DatabaseExecutor.execute(appName,
+        new AutoFitColumnWidthsTask(spreadsheetTable, getSharedDbHandle(),
+            spreadsheetView.getFontSize()), new DatabaseExecutor.Callback<int[]>() {
+          @Override
+          public void onSuccess(int[] columnWidths) {
+            Activity act = getActivity();
+            if (act == null || act.isFinishing()) {
+              return;
+            }
+            // the saved widths changed the table's properties
+            ((TableDisplayActivity) act).refreshTableMetadata();
+            if (spreadsheetView != null) {
+              spreadsheetView.setColumnWidths(columnWidths);
+            }
+          }
+
+          @Override
+          public void onFailure(Exception e) {
+            WebLogger.getLogger(appName).printStackTrace(e);
+            WebLogger.getLogger(appName).e(TAG, "Unable to save the column widths");
+            Activity act = getActivity();
+            if (act == null || act.isFinishing()) {
+              return;
+            }
+            Toast.makeText(act, R.string.change_column_width_error, Toast.LENGTH_LONG).show();
+          }
+        });
+  }
+
+  /**
+   * Deletes a row from the table. Called on a database thread.
    *
-   * @param rowId the id of the row to delete
+   * @param database     the database to write to
+   * @param appName      the app name
+   * @param tableId      the table to delete the row from
+   * @param orderedDefns the columns of the table
+   * @param rowId        the id of the row to delete
    * @throws ServicesAvailabilityException if the database is down
    * @throws ActionNotAuthorizedException  if the user doesn't have permission to delete the row
    */
-  private void deleteRow(String rowId)
+  private static void deleteRow(SharedDbHandle database, String appName, String tableId,
+      OrderedColumns orderedDefns, String rowId)
       throws ServicesAvailabilityException, ActionNotAuthorizedException {
-    DbHandle db = null;
-    try {
-      db = Tables.getInstance().getDatabase().openDatabase(getAppName());
+    try (SharedDbHandle.Lease lease = database.lease()) {
+      DbHandle db = lease.getHandle();
       Tables.getInstance().getDatabase()
-          .deleteRowWithId(getAppName(), db, getTableId(), getColumnDefinitions(), rowId);
-    } finally {
-      if (db != null) {
-        Tables.getInstance().getDatabase().closeDatabase(getAppName(), db);
+          .deleteRowWithId(appName, db, tableId, orderedDefns, rowId);
+    }
+  }
+
+  /**
+   * Something to do with the cell the row actions menu was opened on
+   */
+  private interface CellAction {
+    /**
+     * Called on the UI thread once the cell's row is loaded
+     *
+     * @param cell the cell, never null
+     */
+    void run(SpreadsheetCell cell);
+  }
+
+  /**
+   * Loads the row of the cell the row actions menu was opened on, on a database thread since its
+   * page may have been dropped, then acts on it. Nothing happens if the row is gone or the
+   * fragment was replaced in the meantime.
+   *
+   * @param action what to do with the cell
+   */
+  private void withMenuedCell(final CellAction action) {
+    final SpreadsheetUserTable table = spreadsheetTable;
+    final CellInfo cellInfo = getProps().lastDataCellMenued;
+    if (table == null || cellInfo == null) {
+      return;
+    }
+    final String appName = getAppName();
+    DatabaseExecutor.execute(appName, new DatabaseExecutor.Task<SpreadsheetCell>() {
+      @Override
+      public SpreadsheetCell run() {
+        return table.getSpreadsheetCell(cellInfo);
+      }
+    }, new DatabaseExecutor.Callback<SpreadsheetCell>() {
+      @Override
+      public void onSuccess(SpreadsheetCell cell) {
+        // the row was deleted or couldn't be read since the menu was opened
+        if (cell != null && getActivity() != null && table == spreadsheetTable) {
+          action.run(cell);
+        }
+      }
+
+      @Override
+      public void onFailure(Exception e) {
+        showActionError(appName, e);
+      }
+    });
+  }
+
+  /**
+   * Logs a failed row action and tells the user
+   *
+   * @param appName the app name, for logging
+   * @param e       what went wrong
+   */
+  private void showActionError(String appName, Exception e) {
+    WebLogger.getLogger(appName).printStackTrace(e);
+    Activity activity = getActivity();
+    if (e instanceof ActionNotAuthorizedException) {
+      WebLogger.getLogger(appName).e(TAG, "Not authorized for action while accessing database");
+      if (activity != null) {
+        Toast.makeText(activity, getString(R.string.no_permissions), Toast.LENGTH_LONG).show();
+      }
+    } else {
+      WebLogger.getLogger(appName).e(TAG, "Error while accessing database");
+      if (activity != null) {
+        Toast.makeText(activity, "Error while accessing database", Toast.LENGTH_LONG).show();
       }
     }
   }
@@ -377,16 +672,18 @@ public class SpreadsheetFragment extends AbsTableDisplayFragment
       //return false;
     }
     // end temp
-    SpreadsheetCell cell;
-    TableDisplayActivity activity = (TableDisplayActivity) getActivity();
 
     switch (item.getItemId()) {
     // When the user long taps or double taps on a cell, and they have edit permission, and the
     // table has group buys, then this option is displayed in the drop down menu. It opens a
     // collection
     case MENU_ITEM_ID_OPEN_COLLECTION:
-      cell = spreadsheetTable.getSpreadsheetCell(getProps().lastDataCellMenued);
-      openCollectionView(cell);
+      withMenuedCell(new CellAction() {
+        @Override
+        public void run(SpreadsheetCell cell) {
+          openCollectionView(cell);
+        }
+      });
       return true;
     // This is in the Row Actions menu that pops up when you double click or long tap on a cell
     // if you have the permissions to open the menu
@@ -395,141 +692,52 @@ public class SpreadsheetFragment extends AbsTableDisplayFragment
       return true;
     // This is in the same Row Actions menu as delete row
     case MENU_ITEM_ID_EDIT_ROW:
-      cell = spreadsheetTable.getSpreadsheetCell(getProps().lastDataCellMenued);
-      // It is possible that a custom form has been defined for this table.
-      // We will get the strings we need, and then set the parameter object.
-      try {
-        ActivityUtil.editRow(activity, activity.getAppName(), activity.getTableId(), cell.row);
-      } catch (ServicesAvailabilityException e) {
-        WebLogger.getLogger(activity.getAppName()).printStackTrace(e);
-        WebLogger.getLogger(activity.getAppName()).e(TAG, "Error while accessing database");
-        Toast.makeText(activity, "Error while accessing database", Toast.LENGTH_LONG).show();
-        return true;
-      }
-      // launch ODK Collect
-      return true;
-    // Also in the row actions menu, but only if applicable
-    case MENU_ITEM_ID_OPEN_JOIN_TABLE:
-      cell = spreadsheetTable.getSpreadsheetCell(getProps().lastDataCellMenued);
-      ColumnDefinition cd = spreadsheetTable.getColumnByElementKey(cell.elementKey);
-      // Get the JoinColumn.
-      ArrayList<JoinColumn> joinColumns;
-      DbHandle db = null;
-      try {
-        db = dbInterface.openDatabase(getAppName());
-        joinColumns = ColumnUtil.get()
-            .getJoins(dbInterface, getAppName(), db, getTableId(), cd.getElementKey());
-
-        AlertDialog.Builder badJoinDialog;
-        // TODO should check for valid table properties and column properties here. or rather valid
-        // ids and keys.
-        if (joinColumns == null || joinColumns.isEmpty()) {
-          badJoinDialog = new AlertDialog.Builder(this.getActivity());
-          badJoinDialog.setTitle("Bad Join");
-          badJoinDialog.setMessage("A join column has not been set in Column Properties.");
-          badJoinDialog.create().show();
-          WebLogger.getLogger(getAppName()).e(TAG,
-              "cp.getJoins was null but open join table was " + "requested for cp: " + cd
-                  .getElementKey());
-        } else if (joinColumns.size() != 1) {
-          badJoinDialog = new AlertDialog.Builder(this.getActivity());
-          badJoinDialog.setTitle("Bad Join");
-          badJoinDialog
-              .setMessage("Multiple join associations have been set in Column Properties.");
-          badJoinDialog.create().show();
-          WebLogger.getLogger(getAppName()).e(TAG,
-              "cp.getJoins has multiple joins (missing code is needed to handle this) for cp: " + cd
-                  .getElementKey());
-        } else {
-          JoinColumn joinColumn = joinColumns.get(0);
-          if (joinColumn.getTableId().equals(JoinColumn.DEFAULT_NOT_SET_VALUE) || joinColumn
-              .getElementKey().equals(JoinColumn.DEFAULT_NOT_SET_VALUE)) {
-            badJoinDialog = new AlertDialog.Builder(this.getActivity());
-            badJoinDialog.setTitle("Bad Join");
-            badJoinDialog.setMessage("Both a table and column must be set.");
-            badJoinDialog.create().show();
-            WebLogger.getLogger(getAppName()).e(TAG,
-                "Bad elementKey or tableId in open join table. tableId: " + joinColumn.getTableId()
-                    + " elementKey: " + joinColumn.getElementKey());
-          } else {
-            db = null;
-            try {
-              db = dbInterface.openDatabase(getAppName());
-            } catch (ServicesAvailabilityException e) {
-              WebLogger.getLogger(activity.getAppName()).printStackTrace(e);
-              WebLogger.getLogger(activity.getAppName()).e(TAG, "Error while accessing database");
-              Toast.makeText(activity, "Error while accessing database", Toast.LENGTH_LONG).show();
-            } finally {
-              if (db != null) {
-                try {
-                  dbInterface.closeDatabase(getAppName(), db);
-                } catch (ServicesAvailabilityException e) {
-                  WebLogger.getLogger(activity.getAppName()).printStackTrace(e);
-                  WebLogger.getLogger(activity.getAppName()).e(TAG, "Error closing database");
-                  Toast.makeText(activity, "Error closing database", Toast.LENGTH_LONG).show();
-                }
-              }
-            }
-
-            // I would prefer this kind of query to be set in another
-            // object, but alas, it looks like atm it is hardcoded.
-            Intent intent = new Intent(this.getActivity(), TableDisplayActivity.class);
-            Bundle extras = new Bundle();
-            IntentUtil.addAppNameToBundle(extras, getAppName());
-            IntentUtil.addFragmentViewTypeToBundle(extras, ViewFragmentType.SPREADSHEET);
-            // TODO: Pass a query!
-            IntentUtil.addTableIdToBundle(extras, getTableId());
-            extras.putParcelable("props", getProps());
-            // Do not pass inCollection because that will set groupBy to null in TableDispAct
-            extras.putString(Constants.IntentKeys.CONTAINS_PROPS, "");
-            intent.putExtras(extras);
-            getActivity().startActivityForResult(intent, RequestCodeConsts.RequestCodes.LAUNCH_VIEW);
-          }
-        }
-      } catch (ServicesAvailabilityException e) {
-        WebLogger.getLogger(activity.getAppName()).printStackTrace(e);
-        WebLogger.getLogger(activity.getAppName()).e(TAG, "Error while accessing database");
-        Toast.makeText(activity, "Error while accessing database", Toast.LENGTH_LONG).show();
-        return true;
-      } finally {
-        if (db != null) {
+      withMenuedCell(new CellAction() {
+        @Override
+        public void run(SpreadsheetCell cell) {
+          // It is possible that a custom form has been defined for this table.
+          // We will get the strings we need, and then set the parameter object.
+          TableDisplayActivity activity = (TableDisplayActivity) getActivity();
           try {
-            dbInterface.closeDatabase(getAppName(), db);
+            ActivityUtil.editRow(activity, activity.getAppName(), activity.getTableId(), cell.row);
           } catch (ServicesAvailabilityException e) {
-            WebLogger.getLogger(activity.getAppName()).printStackTrace(e);
-            WebLogger.getLogger(activity.getAppName()).e(TAG, "Error closing database");
-            Toast.makeText(activity, "Error closing database", Toast.LENGTH_LONG).show();
+            showActionError(activity.getAppName(), e);
           }
+          // launch ODK Collect
         }
-      }
+      });
+      return true;
+    // Also in the row actions menu, but only if applicable
+    case MENU_ITEM_ID_OPEN_JOIN_TABLE:
+      openJoinTable();
       return true;
     // In the context menu when you double click on a column heading.
     case MENU_ITEM_ID_SET_COLUMN_AS_GROUP_BY:
       addGroupByColumn(getProps().lastHeaderCellMenued.elementKey);
-      destroyAndRecreateFragment();
+      regroupSpreadsheet();
       return true;
     // In the same context menu you get from double tapping on a column heading
     case MENU_ITEM_ID_UNSET_COLUMN_AS_GROUP_BY:
       removeGroupByColumn(getProps().lastHeaderCellMenued.elementKey);
-      destroyAndRecreateFragment();
+      regroupSpreadsheet();
       return true;
     // In the same context menu you get from double tapping on a column heading
     case MENU_ITEM_ID_SET_COLUMN_AS_SORT:
       getProps().setSort(getProps().lastHeaderCellMenued.elementKey);
-      destroyAndRecreateFragment();
+      resortSpreadsheet();
       return true;
     // In the same context menu
     case MENU_ITEM_ID_UNSET_COLUMN_AS_SORT:
       getProps().setSort(null);
-      destroyAndRecreateFragment();
+      resortSpreadsheet();
       return true;
     case MENU_ITEM_ID_SET_AS_INDEXED_COL:
       getProps().setFrozen(getProps().lastHeaderCellMenued.elementKey);
-      destroyAndRecreateFragment();
+      refreezeSpreadsheet();
       return true;
     case MENU_ITEM_ID_UNSET_AS_INDEXED_COL:
       getProps().setFrozen(null);
-      destroyAndRecreateFragment();
+      refreezeSpreadsheet();
       return true;
     // In the same context menu you get from double tapping on a column heading
     case MENU_ITEM_ID_EDIT_COLUMN_COLOR_RULES:
@@ -541,11 +749,11 @@ public class SpreadsheetFragment extends AbsTableDisplayFragment
       return true;
     case MENU_ITEM_ID_SORT_ASC:
       getProps().setSortOrder("ASC");
-      destroyAndRecreateFragment();
+      resortSpreadsheet();
       return true;
     case MENU_ITEM_ID_SORT_DESC:
       getProps().setSortOrder("DESC");
-      destroyAndRecreateFragment();
+      resortSpreadsheet();
       return true;
     case MENU_ITEM_ID_PREFS:
       ActivityUtil
@@ -553,6 +761,9 @@ public class SpreadsheetFragment extends AbsTableDisplayFragment
               getProps().lastHeaderCellMenued.elementKey);
       destroyAndRecreateFragment();
       return true;
+    case MENU_ITEM_ID_AUTO_FIT_COLUMNS:
+      autoFitColumnWidths();
+      return true;
     default:
       WebLogger.getLogger(getAppName())
           .e(TAG, "unrecognized menu item selected: " + item.getItemId());
@@ -561,6 +772,102 @@ public class SpreadsheetFragment extends AbsTableDisplayFragment
 
   }
 
+  /**
+   * Reads the joins of the column the row actions menu was opened on, along with the row to make
+   * sure it is still there, on a database thread, then opens the joined table
+   */
+  private void openJoinTable() {
+    final SpreadsheetUserTable table = spreadsheetTable;
+    final CellInfo cellInfo = getProps().lastDataCellMenued;
+    if (table == null || cellInfo == null) {
+      return;
+    }
+    final SharedDbHandle database = getSharedDbHandle();
+    final String appName = getAppName();
+    final String tableId = getTableId();
+    DatabaseExecutor.execute(appName, new DatabaseExecutor.Task<ArrayList<JoinColumn>>() {
+      @Override
+      public ArrayList<JoinColumn> run() throws ServicesAvailabilityException {
+        if (table.getSpreadsheetCell(cellInfo) == null) {
+          // the row was deleted or couldn't be read since the menu was opened
+          return null;
+        }
+        UserDbInterface dbInterface = Tables.getInstance().getDatabase();
+        try (SharedDbHandle.Lease lease = database.lease()) {
+          ArrayList<JoinColumn> joinColumns = ColumnUtil.get()
+              .getJoins(dbInterface, appName, lease.getHandle(), tableId, cellInfo.elementKey);
+          return joinColumns == null ? new ArrayList<JoinColumn>() : joinColumns;
+        }
+      }
+    }, new DatabaseExecutor.Callback<ArrayList<JoinColumn>>() {
+      @Override
+      public void onSuccess(ArrayList<JoinColumn> joinColumns) {
+        if (joinColumns != null && getActivity() != null && table == spreadsheetTable) {
+          showJoinTable(cellInfo.elementKey, joinColumns);
+        }
+      }
+
+      @Override
+      public void onFailure(Exception e) {
+        showActionError(appName, e);
+      }
+    });
+  }
+
+  /**
+   * Opens the table joined to a column, or explains why it can't be opened
+   *
+   * @param elementKey  the column the row actions menu was opened on
+   * @param joinColumns the joins set on that column
+   */
+  private void showJoinTable(String elementKey, ArrayList<JoinColumn> joinColumns) {
+    AlertDialog.Builder badJoinDialog;
+    // TODO should check for valid table properties and column properties here. or rather valid
+    // ids and keys.
+    if (joinColumns.isEmpty()) {
+      badJoinDialog = new AlertDialog.Builder(this.getActivity());
+      badJoinDialog.setTitle("Bad Join");
+      badJoinDialog.setMessage("A join column has not been set in Column Properties.");
+      badJoinDialog.create().show();
+      WebLogger.getLogger(getAppName()).e(TAG,
+          "cp.getJoins was null but open join table was " + "requested for cp: " + elementKey);
+    } else if (joinColumns.size() != 1) {
+      badJoinDialog = new AlertDialog.Builder(this.getActivity());
+      badJoinDialog.setTitle("Bad Join");
+      badJoinDialog.setMessage("Multiple join associations have been set in Column Properties.");
+      badJoinDialog.create().show();
+      WebLogger.getLogger(getAppName()).e(TAG,
+          "cp.getJoins has multiple joins (missing code is needed to handle this) for cp: "
+              + elementKey);
+    } else {
+      JoinColumn joinColumn = joinColumns.get(0);
+      if (joinColumn.getTableId().equals(JoinColumn.DEFAULT_NOT_SET_VALUE) || joinColumn
+          .getElementKey().equals(JoinColumn.DEFAULT_NOT_SET_VALUE)) {
+        badJoinDialog = new AlertDialog.Builder(this.getActivity());
+        badJoinDialog.setTitle("Bad Join");
+        badJoinDialog.setMessage("Both a table and column must be set.");
+        badJoinDialog.create().show();
+        WebLogger.getLogger(getAppName()).e(TAG,
+            "Bad elementKey or tableId in open join table. tableId: " + joinColumn.getTableId()
+                + " elementKey: " + joinColumn.getElementKey());
+      } else {
+        // I would prefer this kind of query to be set in another
+        // object, but alas, it looks like atm it is hardcoded.
+        Intent intent = new Intent(this.getActivity(), TableDisplayActivity.class);
+        Bundle extras = new Bundle();
+        IntentUtil.addAppNameToBundle(extras, getAppName());
+        IntentUtil.addFragmentViewTypeToBundle(extras, ViewFragmentType.SPREADSHEET);
+        // TODO: Pass a query!
+        IntentUtil.addTableIdToBundle(extras, getTableId());
+        extras.putParcelable("props", getProps());
+        // Do not pass inCollection because that will set groupBy to null in TableDispAct
+        extras.putString(Constants.IntentKeys.CONTAINS_PROPS, "");
+        intent.putExtras(extras);
+        getActivity().startActivityForResult(intent, RequestCodeConsts.RequestCodes.LAUNCH_VIEW);
+      }
+    }
+  }
+
   /**
    * Return true if group bys are currently being displayed.
    *
@@ -601,8 +908,9 @@ public class SpreadsheetFragment extends AbsTableDisplayFragment
           R.string.view_collection);
     }
 
-    String access = spreadsheetTable.getRowAtIndex(cellInfo.rowId)
-        .getStringValueByKey(DataTableColumns.EFFECTIVE_ACCESS);
+    // a row that isn't loaded gets no row actions, its page isn't fetched on the UI thread
+    TypedRow row = spreadsheetTable.getLoadedRowAtIndex(cellInfo.rowId);
+    String access = row == null ? null : row.getStringValueByKey(DataTableColumns.EFFECTIVE_ACCESS);
     if (access == null)
       access = "";
 
@@ -616,21 +924,8 @@ public class SpreadsheetFragment extends AbsTableDisplayFragment
     }
 
     // check a join association with this column; add a join... option if
-    // it is applicable.
-    ArrayList<JoinColumn> joinColumns;
-    UserDbInterface dbInterface = Tables.getInstance().getDatabase();
-    DbHandle db = null;
-    try {
-      db = dbInterface.openDatabase(getAppName());
-      joinColumns = ColumnUtil.get()
-          .getJoins(dbInterface, getAppName(), db, getTableId(), cellInfo.elementKey);
-    } finally {
-      if (db != null) {
-        dbInterface.closeDatabase(getAppName(), db);
-      }
-    }
-
-    if (joinColumns != null && !joinColumns.isEmpty()) {
+    // it is applicable. The joins were read along with the color rules
+    if (columnJoins.containsKey(cellInfo.elementKey)) {
       menu.add(ContextMenu.NONE, MENU_ITEM_ID_OPEN_JOIN_TABLE, ContextMenu.NONE,
           getString(R.string.open_join_table));
     }
@@ -709,6 +1004,9 @@ public class SpreadsheetFragment extends AbsTableDisplayFragment
     menu.add(ContextMenu.NONE, MENU_ITEM_ID_PREFS, ContextMenu.NONE,
         getString(R.string.column_prefs));
 
+    menu.add(ContextMenu.NONE, MENU_ITEM_ID_AUTO_FIT_COLUMNS, ContextMenu.NONE,
+        getString(R.string.auto_fit_columns));
+
     menu.add(ContextMenu.NONE, MENU_ITEM_ID_EDIT_COLUMN_COLOR_RULES, ContextMenu.NONE,
         getString(R.string.edit_column_color_rules));
 
@@ -737,9 +1035,22 @@ public class SpreadsheetFragment extends AbsTableDisplayFragment
    * deleteDialogOpen already set to true (they clicked delete then rotated the screen)
    */
   private void openDeleteDialog() {
+    withMenuedCell(new CellAction() {
+      @Override
+      public void run(SpreadsheetCell cell) {
+        showDeleteDialog(cell);
+      }
+    });
+  }
+
+  /**
+   * Asks the user to confirm deleting the row the row actions menu was opened on
+   *
+   * @param cell the cell the menu was opened on, read on a database thread
+   */
+  private void showDeleteDialog(SpreadsheetCell cell) {
     // Make sure it will re-open if we rotate the screen
     getProps().deleteDialogOpen = true;
-    SpreadsheetCell cell = spreadsheetTable.getSpreadsheetCell(getProps().lastDataCellMenued);
     AlertDialog confirmDeleteAlert;
     // Prompt an alert box
     final String rowId = cell.row.getStringValueByKey(DataTableColumns.ID);
@@ -749,21 +1060,30 @@ public class SpreadsheetFragment extends AbsTableDisplayFragment
     // OK Action => delete the row
     alert.setPositiveButton(getString(R.string.ok), new DialogInterface.OnClickListener() {
       public void onClick(DialogInterface dialog, int whichButton) {
-        AbsBaseActivity activity = (AbsBaseActivity) getActivity();
-        try {
-          getProps().deleteDialogOpen = false;
-          deleteRow(rowId);
-          destroyAndRecreateFragment();
-        } catch (ActionNotAuthorizedException e) {
-          WebLogger.getLogger(activity.getAppName()).printStackTrace(e);
-          WebLogger.getLogger(activity.getAppName())
-              .e(TAG, "Not authorized for action while accessing database");
-          Toast.makeText(activity, getString(R.string.no_permissions), Toast.LENGTH_LONG).show();
-        } catch (ServicesAvailabilityException e) {
-          WebLogger.getLogger(activity.getAppName()).printStackTrace(e);
-          WebLogger.getLogger(activity.getAppName()).e(TAG, "Error while accessing database");
-          Toast.makeText(activity, "Error while accessing database", Toast.LENGTH_LONG).show();
-        }
+        getProps().deleteDialogOpen = false;
+        final SharedDbHandle database = getSharedDbHandle();
+        final String appName = getAppName();
+        final String tableId = getTableId();
+        final OrderedColumns orderedDefns = getColumnDefinitions();
+        DatabaseExecutor.execute(appName, new DatabaseExecutor.Task<Void>() {
+          @Override
+          public Void run() throws ServicesAvailabilityException {
+            deleteRow(database, appName, tableId, orderedDefns, rowId);
+            return null;
+          }
+        }, new DatabaseExecutor.Callback<Void>() {
+          @Override
+          public void onSuccess(Void result) {
+            if (getActivity() != null) {
+              destroyAndRecreateFragment();
+            }
+          }
+
+          @Override
+          public void onFailure(Exception e) {
+            showActionError(appName, e);
+          }
+        });
       }
     });
 
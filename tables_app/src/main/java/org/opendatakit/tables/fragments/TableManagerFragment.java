@@ -48,6 +48,8 @@ import org.opendatakit.tables.activities.MainActivity;
 import org.opendatakit.tables.activities.TableDisplayActivity;
 import org.opendatakit.tables.activities.TableLevelPreferencesActivity;
 import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.data.SharedDbHandle;
+import org.opendatakit.tables.tasks.DatabaseExecutor;
 import org.opendatakit.tables.utils.ActivityUtil;
 import org.opendatakit.tables.utils.Constants;
 import org.opendatakit.tables.utils.TableNameStruct;
@@ -96,7 +98,8 @@ public class TableManagerFragment extends ListFragment implements DatabaseConnec
   }
 
   /**
-   * Refresh the list of tables that is being displayed by the fragment.
+   * Refresh the list of tables that is being displayed by the fragment. The tables and their
+   * display names are read on a database thread, the list keeps what it had until they arrive.
    */
   protected void updateTableIdList() {
     AbsBaseActivity baseActivity = (AbsBaseActivity) getActivity();
@@ -104,21 +107,57 @@ public class TableManagerFragment extends ListFragment implements DatabaseConnec
       return;
     }
 
-    String appName = baseActivity.getAppName();
+    final String appName = baseActivity.getAppName();
+    final SharedDbHandle database = baseActivity.getSharedDbHandle();
     PropertiesSingleton props = CommonToolProperties.get(getActivity().getApplication(), appName);
-    String userSelectedDefaultLocale = props.getUserSelectedDefaultLocale();
+    final String userSelectedDefaultLocale = props.getUserSelectedDefaultLocale();
+    final Constants.TABLE_SORT_ORDER fragSortOrder = getArguments() == null ? null : Constants.TABLE_SORT_ORDER.valueOf(this.getArguments().getString(CommonToolProperties.KEY_PREF_TABLES_SORT_BY_ORDER) );
+
+    if (Tables.getInstance().getDatabase() == null) {
+      showTableIdList(new ArrayList<TableNameStruct>());
+      return;
+    }
+    if (mTpAdapter == null) {
+      showLoading();
+    }
+
+    DatabaseExecutor.execute(appName, new DatabaseExecutor.Task<List<TableNameStruct>>() {
+      @Override
+      public List<TableNameStruct> run() {
+        return loadTableIdList(database, userSelectedDefaultLocale, fragSortOrder);
+      }
+    }, new DatabaseExecutor.Callback<List<TableNameStruct>>() {
+      @Override
+      public void onSuccess(List<TableNameStruct> tableNameStructs) {
+        showTableIdList(tableNameStructs);
+      }
 
+      @Override
+      public void onFailure(Exception e) {
+        showTableIdList(new ArrayList<TableNameStruct>());
+      }
+    });
+  }
+
+  /**
+   * Reads the tables and their display names from the database. Called on a database thread.
+   *
+   * @param database                  the database handle to lease
+   * @param userSelectedDefaultLocale the locale to get the display names in
+   * @param fragSortOrder             how to sort the tables, or null to leave them unsorted
+   * @return the tables, empty if the database is down
+   */
+  private static List<TableNameStruct> loadTableIdList(SharedDbHandle database,
+      String userSelectedDefaultLocale, final Constants.TABLE_SORT_ORDER fragSortOrder) {
+    String appName = database.getAppName();
     UserDbInterface dbInterface = Tables.getInstance().getDatabase();
-    DbHandle db = null;
 
     List<TableNameStruct> tableNameStructs = new ArrayList<>();
-    final Constants.TABLE_SORT_ORDER fragSortOrder = getArguments() == null ? null : Constants.TABLE_SORT_ORDER.valueOf(this.getArguments().getString(CommonToolProperties.KEY_PREF_TABLES_SORT_BY_ORDER) );
-
-    if (Tables.getInstance().getDatabase() != null) {
 
-      try {
-        db = dbInterface.openDatabase(appName);
+    if (dbInterface != null) {
 
+      try (SharedDbHandle.Lease lease = database.lease()) {
+        DbHandle db = lease.getHandle();
         List<String> tableIds = dbInterface.getAllTableIds(appName, db);
 
         for (String tableId : tableIds) {
@@ -130,20 +169,11 @@ public class TableManagerFragment extends ListFragment implements DatabaseConnec
 
           tableNameStructs.add(tableNameStruct);
         }
-        WebLogger.getLogger(baseActivity.getAppName())
+        WebLogger.getLogger(appName)
             .e(TAG, "got tableId list of size: " + tableNameStructs.size());
       } catch (ServicesAvailabilityException e) {
-        WebLogger.getLogger(baseActivity.getAppName()).e(TAG, "error while fetching tableId list");
-        WebLogger.getLogger(baseActivity.getAppName()).printStackTrace(e);
-      } finally {
-        if (db != null) {
-          try {
-            dbInterface.closeDatabase(appName, db);
-          } catch (ServicesAvailabilityException e) {
-            WebLogger.getLogger(baseActivity.getAppName()).e(TAG, "error while closing database");
-            WebLogger.getLogger(baseActivity.getAppName()).printStackTrace(e);
-          }
-        }
+        WebLogger.getLogger(appName).e(TAG, "error while fetching tableId list");
+        WebLogger.getLogger(appName).printStackTrace(e);
       }
     }
     if(fragSortOrder != null) {
@@ -158,7 +188,33 @@ public class TableManagerFragment extends ListFragment implements DatabaseConnec
         }
       });
     }
+    return tableNameStructs;
+  }
 
+  /**
+   * Shows a loading message in place of the list while the tables are read for the first time
+   */
+  private void showLoading() {
+    if (this.getView() != null) {
+      TextView none = this.getView().findViewById(android.R.id.empty);
+      View listing = this.getView().findViewById(android.R.id.list);
+      none.setText(R.string.loading_data);
+      none.setVisibility(View.VISIBLE);
+      listing.setVisibility(View.GONE);
+    }
+  }
+
+  /**
+   * Displays the tables that were read from the database
+   *
+   * @param tableNameStructs the tables to display
+   */
+  private void showTableIdList(List<TableNameStruct> tableNameStructs) {
+    AbsBaseActivity baseActivity = (AbsBaseActivity) getActivity();
+    if (baseActivity == null) {
+      // detached while the tables were being read
+      return;
+    }
     if (mTpAdapter == null) {
       this.mTpAdapter = new TableNameStructAdapter(baseActivity, tableNameStructs);
       this.setListAdapter(this.mTpAdapter);
@@ -223,6 +279,7 @@ public class TableManagerFragment extends ListFragment implements DatabaseConnec
     final String tableIdOfSelectedItem = selectedStruct.getTableId();
     final AbsBaseActivity baseActivity = (AbsBaseActivity) getActivity();
     final String appName = baseActivity.getAppName();
+    final SharedDbHandle database = baseActivity.getSharedDbHandle();
 
     String localizedDisplayName = selectedStruct.getLocalizedDisplayName();
 
@@ -237,24 +294,31 @@ public class TableManagerFragment extends ListFragment implements DatabaseConnec
       alert.setPositiveButton(getString(R.string.yes), new DialogInterface.OnClickListener() {
         public void onClick(DialogInterface dialog, int whichButton) {
           // treat delete as a local removal -- not a server side deletion
-          DbHandle db = null;
-          try {
-            try {
-              db = Tables.getInstance().getDatabase().openDatabase(appName);
-              Tables.getInstance().getDatabase()
-                  .deleteTableAndAllData(appName, db, tableIdOfSelectedItem);
-            } finally {
-              if (db != null) {
-                Tables.getInstance().getDatabase().closeDatabase(appName, db);
+          DatabaseExecutor.execute(appName, new DatabaseExecutor.Task<Void>() {
+            @Override
+            public Void run() throws ServicesAvailabilityException {
+              try (SharedDbHandle.Lease lease = database.lease()) {
+                DbHandle db = lease.getHandle();
+                Tables.getInstance().getDatabase()
+                    .deleteTableAndAllData(appName, db, tableIdOfSelectedItem);
+              }
+              return null;
+            }
+          }, new DatabaseExecutor.Callback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+              // Now update the list.
+              updateTableIdList();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+              if (getActivity() != null) {
+                Toast.makeText(getActivity(), "Unable to access database", Toast.LENGTH_LONG)
+                    .show();
               }
             }
-            // Now update the list.
-            updateTableIdList();
-          } catch (ServicesAvailabilityException e) {
-            WebLogger.getLogger(((IAppAwareActivity) getActivity()).getAppName())
-                .printStackTrace(e);
-            Toast.makeText(getActivity(), "Unable to access database", Toast.LENGTH_LONG).show();
-          }
+          });
         }
       });
 
@@ -16,18 +16,26 @@
 package org.opendatakit.tables.fragments;
 
 import android.Manifest;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Point;
 import android.os.Bundle;
+import android.support.v4.content.ContextCompat;
 import android.view.View;
 import android.widget.Toast;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.GoogleMap.OnCameraIdleListener;
 import com.google.android.gms.maps.GoogleMap.OnMapClickListener;
 import com.google.android.gms.maps.GoogleMap.OnMapLongClickListener;
 import com.google.android.gms.maps.GoogleMap.OnMarkerClickListener;
 import com.google.android.gms.maps.SupportMapFragment;
 import com.google.android.gms.maps.OnMapReadyCallback;
+import com.google.android.gms.maps.Projection;
+import com.google.android.gms.maps.model.BitmapDescriptor;
 import com.google.android.gms.maps.model.BitmapDescriptorFactory;
 import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.LatLng;
@@ -36,15 +44,10 @@ import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
 import org.opendatakit.activities.IAppAwareActivity;
 import org.opendatakit.data.ColorGuide;
-import org.opendatakit.data.ColorGuideGroup;
 import org.opendatakit.data.ColorRuleGroup;
 import org.opendatakit.data.utilities.TableUtil;
 import org.opendatakit.database.LocalKeyValueStoreConstants;
 import org.opendatakit.database.data.*;
-import org.opendatakit.database.queries.ArbitraryQuery;
-import org.opendatakit.database.queries.ResumableQuery;
-import org.opendatakit.database.queries.SimpleQuery;
-import org.opendatakit.database.queries.SingleRowQuery;
 import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.database.service.UserDbInterface;
 import org.opendatakit.exception.ServicesAvailabilityException;
@@ -53,16 +56,32 @@ import org.opendatakit.tables.R;
 import org.opendatakit.tables.activities.AbsBaseActivity;
 import org.opendatakit.tables.activities.TableDisplayActivity;
 import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.data.ColumnVectors;
+import org.opendatakit.tables.data.CompiledColorRuleGroup;
+import org.opendatakit.tables.data.GeoPointIndex;
+import org.opendatakit.tables.data.RowIdIndex;
+import org.opendatakit.tables.data.SharedDbHandle;
+import org.opendatakit.tables.logic.MarkerClusterer;
+import org.opendatakit.tables.tasks.DatabaseExecutor;
 import org.opendatakit.tables.utils.Constants;
 import org.opendatakit.utilities.ODKFileUtils;
 import org.opendatakit.utilities.RuntimePermissionUtils;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 /**
  * The InnerMapFragment has the capability of showing a map. It displays markers
- * for records in a database.
+ * for records in a database. Markers that would overlap at the current zoom
+ * level are shown as a single cluster marker with a count, see
+ * {@link MarkerClusterer}, which zooms in when tapped. Only the markers in
+ * view, and a margin around it, are on the map; they are added and removed as
+ * the camera moves and as the rows are loaded again, rather than all cleared
+ * and added again.
  *
  * @author Chris Gelon (cgelon)
  * @author sudar.sam@gmail.com
@@ -80,11 +99,21 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
    * The default hue for markers if no color rules are applied.
    */
   private static final float DEFAULT_SELECTED_MARKER_HUE = BitmapDescriptorFactory.HUE_GREEN;
+  /**
+   * Marker hues are rounded to one of this many steps around the color wheel, so that rows of
+   * nearly the same color share an icon. The default hues are on a step.
+   */
+  private static final int HUE_STEPS = 72;
 
   /**
    * The index of the currently selected marker. Used when saving the instance.
    */
   private static final String SAVE_KEY_INDEX = "saveKeyIndex";
+  /**
+   * The _id of the row of the currently selected marker, which finds the same row again even if
+   * the rows come back in a different order. Used when saving the instance.
+   */
+  private static final String SAVE_KEY_ROW_ID = "saveKeyRowId";
   /**
    * The latitude of the center position where the camera is looking. Used when
    * saving the instance.
@@ -104,6 +133,11 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
    * Minimum distance from a marker to the edge of the screen when setting up the initial camera position
    */
   private static final int PADDING = 50;
+  /**
+   * How far past each edge of the screen markers are kept on the map, as a part of the screen
+   * size, so that panning a little shows markers that are already there
+   */
+  private static final double VIEWPORT_MARGIN = 0.5;
 
   private static final float initCameraValue = -1;
   /**
@@ -117,12 +151,55 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
   /**
    * A mapping of all markers to index to determine which marker is selected.
    */
-  private Map<Marker, Integer> mMarkerIds = null;
+  private Map<Marker, Integer> mMarkerIds = new HashMap<>();
+  /**
+   * The row markers on the map by the _id of their row, so that they can be kept when the
+   * rows are loaded again
+   */
+  private Map<String, Marker> mRowMarkers = new HashMap<>();
+  /**
+   * The cluster markers on the map, and which cluster each one is
+   */
+  private Map<Marker, Integer> mClusterMarkers = new HashMap<>();
+  /**
+   * The cluster markers on the map by cluster, null for clusters out of view
+   */
+  private Marker[] mClusterMarkersByIndex = null;
+  /**
+   * Bumped every time the markers in view are worked out. A row or cluster is in view if its
+   * entry in {@link #mRowStamps} or {@link #mClusterStamps} is the current stamp.
+   */
+  private int mViewStamp = 0;
+  private int[] mRowStamps = null;
+  private int[] mClusterStamps = null;
+  /**
+   * Where the clusters in view are put when they are looked up
+   */
+  private int[] mVisibleClusters = null;
+  /**
+   * The icon for each cluster label, so that clusters of the same size share one bitmap
+   */
+  private Map<String, BitmapDescriptor> mClusterIcons = new HashMap<>();
+  /**
+   * The icon for each step of hue, made the first time a marker of that hue is shown
+   */
+  private BitmapDescriptor[] mHueIcons = new BitmapDescriptor[HUE_STEPS];
   /**
-   * The currently selected marker.
+   * The currently selected marker, null if none is or if the selected row is in a cluster
    */
   private Marker mCurrentMarker = null;
-  private ColorGuideGroup mColorGuideGroup = null;
+  /**
+   * Where the markers go, from the last load
+   */
+  private MarkerData mMarkerData = null;
+  /**
+   * The clusters the markers on the map are drawn for
+   */
+  private MarkerClusterer.Clusters mClusters = null;
+  /**
+   * The hue of each row's marker, from the first color rule the row matches
+   */
+  private float[] mRowHues = null;
   /**
    * the latitide elementKey to use for plotting
    */
@@ -132,11 +209,25 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
    */
   private String mLongitudeElementKey = null;
   /**
-   * This value is only set after the activity was saved and then reinstated. It
-   * is used to figure out which marker was selected before the activity was
-   * previously destroyed. It will be set to -1 if no index was selected.
+   * Bumped every time the markers are loaded again, so that a load that finishes after a newer
+   * one started is dropped rather than replacing the newer markers
    */
-  private int mCurrentIndex = 0;
+  private int mMarkerGeneration = 0;
+  /**
+   * The index of the row of the selected marker. Kept even while the row is in a cluster, so
+   * that the marker is selected again once it is shown on its own. It is also restored after
+   * the activity was saved and then reinstated. It will be set to -1 if no index was selected.
+   */
+  private int mCurrentIndex = INVALID_INDEX;
+  /**
+   * The _id of the row to select once the markers are placed, or null to go by
+   * {@link #mCurrentIndex}
+   */
+  private String mCurrentRowId = null;
+  /**
+   * The rows the markers were placed for
+   */
+  private UserTable mMarkerTable = null;
 
   /**
    * Gets an index from the passed bundle if it exists
@@ -157,6 +248,9 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
     super.onCreate(savedInstanceState);
     // AppName may not yet be available...
     this.mCurrentIndex = TableMapInnerFragment.retrieveSavedIndexFromBundle(savedInstanceState);
+    if (savedInstanceState != null) {
+      this.mCurrentRowId = savedInstanceState.getString(SAVE_KEY_ROW_ID);
+    }
   }
 
   @Override
@@ -164,13 +258,11 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
     super.onSaveInstanceState(outState);
     AbsBaseActivity activity = (AbsBaseActivity) getActivity();
     WebLogger.getLogger(activity.getAppName()).d(TAG, "[onSaveInstanceState]");
-    int markerIndexToSave = INVALID_INDEX;
-    if (mCurrentMarker != null) {
-      markerIndexToSave = mMarkerIds.get(mCurrentMarker);
-    }
+    int markerIndexToSave = mCurrentIndex;
     WebLogger.getLogger(activity.getAppName())
         .d(TAG, "[onSaveInstanceState] saving markder index: " + markerIndexToSave);
     outState.putInt(SAVE_KEY_INDEX, markerIndexToSave);
+    outState.putString(SAVE_KEY_ROW_ID, getSelectedRowId());
 
     if (map != null) {
       CameraPosition pos = map.getCameraPosition();
@@ -211,6 +303,8 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
 
       this.map.setOnMapLongClickListener(getOnMapLongClickListener());
       this.map.setOnMapClickListener(getOnMapClickListener());
+      this.map.setOnMarkerClickListener(getOnMarkerClickListener());
+      this.map.setOnCameraIdleListener(getOnCameraIdleListener());
 
       String[] permissions = new String[] {
               Manifest.permission.ACCESS_FINE_LOCATION,
@@ -228,21 +322,32 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
   }
 
   /**
-   * Re-initializes the map, including the markers.
+   * Re-initializes the map, including the markers. The rows and color rules are read on a
+   * database thread and the markers are added once they arrive.
    **/
   public void clearAndInitializeMap() {
     AbsBaseActivity activity = (AbsBaseActivity) getActivity();
     WebLogger.getLogger(activity.getAppName()).d(TAG, "[clearAndInitializeMap]");
-    if (map != null) {
-      map.clear();
+    // the rows may come back in a different order, so remember which row was selected rather
+    // than where it was
+    String selectedRowId = getSelectedRowId();
+    if (selectedRowId != null) {
+      mCurrentRowId = selectedRowId;
     }
-    try {
-      resetColorProperties();
-      setMarkers();
-    } catch (ServicesAvailabilityException e) {
-      WebLogger.getLogger(activity.getAppName()).printStackTrace(e);
-      WebLogger.getLogger(activity.getAppName()).e(TAG, "Unable to access database");
+    // the markers stay on the map until the rows arrive, then only those that changed are
+    // replaced
+    loadMarkers();
+  }
+
+  /**
+   * @return the _id of the row of the selected marker, or null if none is selected
+   */
+  private String getSelectedRowId() {
+    if (mCurrentIndex == INVALID_INDEX || mMarkerTable == null
+        || mCurrentIndex >= mMarkerTable.getNumberOfRows()) {
+      return null;
     }
+    return mMarkerTable.getRowId(mCurrentIndex);
   }
 
   @Override
@@ -254,169 +359,484 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
     // references to the markers, otherwise leaks will happen.
     if (map != null) {
       mMarkerIds.clear();
+      mRowMarkers.clear();
+      mClusterMarkers.clear();
+      mClusterMarkersByIndex = null;
+      mClusterIcons.clear();
+      Arrays.fill(mHueIcons, null);
       mCurrentMarker = null;
       map = null;
     }
   }
 
   /**
-   * Sets up the color properties used for color rules.
+   * What is needed to place the markers, read from the database and worked out in the
+   * background so that the UI thread only has to add the markers
+   */
+  private static final class MarkerData {
+    String latitudeElementKey;
+    String longitudeElementKey;
+    CompiledColorRuleGroup colorRules;
+    UserTable table;
+    // the hue of every row, whether or not it has a location
+    float[] rowHues;
+    // the rows that have a location, and where each one is
+    int markerCount = 0;
+    int[] markerRows;
+    // the other way around, the marker of each row or -1 if it has no location
+    int[] markerOfRows;
+    double[] latitudes;
+    double[] longitudes;
+    // the area that takes in every marker, null if there are fewer than two
+    LatLngBounds bounds;
+    MarkerClusterer clusterer;
+  }
+
+  /**
+   * Reads the location columns, the color rules and the rows on a database thread, parses the
+   * locations and works out the colors there too, then places the markers on the UI thread
+   */
+  private void loadMarkers() {
+    final TableDisplayActivity activity = (TableDisplayActivity) getActivity();
+    final String appName = activity.getAppName();
+    final int generation = ++mMarkerGeneration;
+    DatabaseExecutor.execute(appName, new DatabaseExecutor.Task<MarkerData>() {
+      @Override
+      public MarkerData run() throws ServicesAvailabilityException {
+        MarkerData data = new MarkerData();
+        findColorGroupAndDbConfiguration(activity, data);
+        if (data.latitudeElementKey == null || data.longitudeElementKey == null) {
+          return data;
+        }
+        // only fetch the location and the columns the color rules test
+        List<String> elementKeys = new ArrayList<>();
+        elementKeys.add(data.latitudeElementKey);
+        elementKeys.add(data.longitudeElementKey);
+        if (data.colorRules != null) {
+          elementKeys.addAll(data.colorRules.getColumnElementKeys());
+        }
+        data.table = activity
+            .getProjectedViewTable(Constants.FragmentTags.MAP_INNER_MAP, elementKeys);
+        if (data.table != null) {
+          buildMarkers(appName, data);
+        }
+        return data;
+      }
+    }, new DatabaseExecutor.Callback<MarkerData>() {
+      @Override
+      public void onSuccess(MarkerData data) {
+        if (!isAdded() || generation != mMarkerGeneration) {
+          return;
+        }
+        mLatitudeElementKey = data.latitudeElementKey;
+        mLongitudeElementKey = data.longitudeElementKey;
+        setMarkers(data);
+      }
+
+      @Override
+      public void onFailure(Exception e) {
+        if (generation != mMarkerGeneration) {
+          return;
+        }
+        WebLogger.getLogger(appName).e(TAG, "Unable to access database");
+      }
+    });
+  }
+
+  /**
+   * Works out where every marker goes, its hue and the area the markers cover. Called on a
+   * database thread.
    *
-   * @throws ServicesAvailabilityException if the database is down
+   * @param appName the app, for logging
+   * @param data    the rows and columns to place markers for, and where to put the result
    */
-  public void resetColorProperties() throws ServicesAvailabilityException {
-    findColorGroupAndDbConfiguration();
+  private static void buildMarkers(String appName, MarkerData data) {
+    UserTable table = data.table;
+    int numberOfRows = table.getNumberOfRows();
+
+    // the markers are indexed by row, so the colors are too. Each rule hands out the same
+    // guide for every row it matches, so the hue is only worked out again when the guide changes
+    data.rowHues = new float[numberOfRows];
+    ColorGuide[] guides = data.colorRules == null ? null : data.colorRules.getColorGuides(table);
+    float[] hsv = new float[3];
+    ColorGuide lastGuide = null;
+    float lastHue = DEFAULT_MARKER_HUE;
+    for (int i = 0; i < numberOfRows; ++i) {
+      ColorGuide guide = guides == null ? null : guides[i];
+      if (guide == null) {
+        data.rowHues[i] = DEFAULT_MARKER_HUE;
+        continue;
+      }
+      if (guide != lastGuide) {
+        Color.colorToHSV(guide.getBackground(), hsv);
+        lastGuide = guide;
+        lastHue = roundHue(hsv[0]);
+      }
+      data.rowHues[i] = lastHue;
+    }
+
+    ColumnVectors vectors = ColumnVectors.of(table);
+    ColumnVectors.DoubleVector latitudes = vectors.getNumbers(data.latitudeElementKey);
+    ColumnVectors.DoubleVector longitudes = vectors.getNumbers(data.longitudeElementKey);
+    data.markerRows = new int[numberOfRows];
+    data.markerOfRows = new int[numberOfRows];
+    Arrays.fill(data.markerOfRows, -1);
+    data.latitudes = new double[numberOfRows];
+    data.longitudes = new double[numberOfRows];
+    // the area the markers cover, tracked as they are filled in rather than through a LatLng each
+    double south = Double.POSITIVE_INFINITY;
+    double north = Double.NEGATIVE_INFINITY;
+    double west = Double.POSITIVE_INFINITY;
+    double east = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < numberOfRows; ++i) {
+      if (latitudes.isNull(i) || longitudes.isNull(i)) {
+        continue;
+      }
+      if (!latitudes.hasValue(i) || !longitudes.hasValue(i)) {
+        logUnparsedLocation(appName, data, table.getRowAtIndex(i));
+        continue;
+      }
+      int marker = data.markerCount++;
+      data.markerRows[marker] = i;
+      data.markerOfRows[i] = marker;
+      double latitude = latitudes.get(i);
+      double longitude = longitudes.get(i);
+      data.latitudes[marker] = latitude;
+      data.longitudes[marker] = longitude;
+      south = Math.min(south, latitude);
+      north = Math.max(north, latitude);
+      west = Math.min(west, longitude);
+      east = Math.max(east, longitude);
+    }
+    if (data.markerCount > 1) {
+      data.bounds = new LatLngBounds(new LatLng(south, west), new LatLng(north, east));
+    }
+    data.clusterer = new MarkerClusterer(data.latitudes, data.longitudes, data.markerCount);
+    // built here so the first tap on the map doesn't build it on the UI thread
+    GeoPointIndex.of(table, data.latitudeElementKey, data.longitudeElementKey);
   }
 
   /**
-   * Finds the color group that will be needed when making color rules.
+   * Finds the location columns and the color group that will be needed when making color
+   * rules. Called on a database thread.
    *
+   * @param activity the activity displaying the table
+   * @param data     where to put what was found
    * @throws ServicesAvailabilityException if the database is down
    */
-  private void findColorGroupAndDbConfiguration() throws ServicesAvailabilityException {
-    // Grab the color group
-    TableDisplayActivity activity = (TableDisplayActivity) getActivity();
+  private static void findColorGroupAndDbConfiguration(TableDisplayActivity activity,
+      MarkerData data) throws ServicesAvailabilityException {
+    String appName = activity.getAppName();
+    String tableId = activity.getTableId();
+    OrderedColumns orderedDefns = activity.getColumnDefinitions();
 
     UserDbInterface dbInterface = Tables.getInstance().getDatabase();
-    DbHandle db = null;
-    try {
-      db = dbInterface.openDatabase(activity.getAppName());
+    try (SharedDbHandle.Lease lease = activity.getSharedDbHandle().lease()) {
+      DbHandle db = lease.getHandle();
 
       // get the elementKey for the latitude and longitude columns
-      mLatitudeElementKey = getLatitudeElementKey(db);
-      mLongitudeElementKey = getLongitudeElementKey(db);
+      data.latitudeElementKey = TableUtil.get()
+          .getMapListViewLatitudeElementKey(dbInterface, appName, db, tableId, orderedDefns);
+      data.longitudeElementKey = TableUtil.get()
+          .getMapListViewLongitudeElementKey(dbInterface, appName, db, tableId, orderedDefns);
 
       String[] adminColumns = dbInterface.getAdminColumns();
 
       TableUtil.MapViewColorRuleInfo colorRuleInfo = TableUtil.get()
-          .getMapListViewColorRuleInfo(dbInterface, activity.getAppName(), db,
-              activity.getTableId());
+          .getMapListViewColorRuleInfo(dbInterface, appName, db, tableId);
 
       // Create a guide depending on what type of color rule is selected.
-      /*
-    Used for coloring markers.
-   */
-      ColorRuleGroup mColorGroup = null;
+      ColorRuleGroup colorGroup = null;
       if (colorRuleInfo.colorType != null && colorRuleInfo.colorType.equals(LocalKeyValueStoreConstants.Map.COLOR_TYPE_TABLE)) {
-        mColorGroup = ColorRuleGroup
-            .getTableColorRuleGroup(dbInterface, activity.getAppName(), db, activity.getTableId(),
-                adminColumns);
+        colorGroup = ColorRuleGroup
+            .getTableColorRuleGroup(dbInterface, appName, db, tableId, adminColumns);
       }
       if (colorRuleInfo.colorType != null && colorRuleInfo.colorType.equals(LocalKeyValueStoreConstants.Map.COLOR_TYPE_STATUS)) {
-        mColorGroup = ColorRuleGroup
-            .getStatusColumnRuleGroup(dbInterface, activity.getAppName(), db, activity.getTableId(),
-                adminColumns);
+        colorGroup = ColorRuleGroup
+            .getStatusColumnRuleGroup(dbInterface, appName, db, tableId, adminColumns);
       }
 
-      if (mColorGroup != null) {
-        UserTable userTableForColor = activity.getUserTable();
-        mColorGuideGroup = new ColorGuideGroup(mColorGroup, userTableForColor);
-      }
-    } finally {
-      if (db != null) {
-        dbInterface.closeDatabase(activity.getAppName(), db);
-      }
+      // the rules are evaluated against the rows fetched for the markers
+      data.colorRules = CompiledColorRuleGroup.compile(colorGroup, orderedDefns);
     }
   }
 
   /**
    * Sets the location markers based off of the columns set in the table
-   * properties.
+   * properties. Everything but adding the markers was done in the background.
+   * Markers already on the map are kept for rows that are still in the same
+   * place, and the rest are replaced as they come into view.
+   *
+   * @param data the rows to place markers for and where each marker goes
    */
-  private void setMarkers() {
-    TableDisplayActivity activity = (TableDisplayActivity) getActivity();
+  private void setMarkers(MarkerData data) {
+    // the clusters are different for every load, so none of their markers are kept
+    removeClusterMarkers();
+    mClusters = null;
 
-    if (mMarkerIds != null) {
-      mMarkerIds.clear();
+    if (mLatitudeElementKey == null || mLongitudeElementKey == null || data.table == null
+        || map == null) {
+      removeMarkers();
+      mMarkerData = null;
+      mMarkerTable = data.table;
+      if (mLatitudeElementKey == null || mLongitudeElementKey == null) {
+        Toast.makeText(getActivity(), getActivity().getString(R.string.lat_long_not_set),
+                Toast.LENGTH_LONG).show();
+      }
+      return;
     }
 
-    mMarkerIds = new HashMap<>();
+    if (mCurrentRowId != null) {
+      int index = RowIdIndex.of(data.table).indexOf(mCurrentRowId);
+      mCurrentIndex = index == RowIdIndex.NOT_FOUND ? INVALID_INDEX : index;
+      mCurrentRowId = null;
+    }
+    keepUnchangedRowMarkers(data);
+    mMarkerData = data;
+    mMarkerTable = data.table;
+    mRowHues = data.rowHues;
+    mRowStamps = new int[data.table.getNumberOfRows()];
 
-    if (mLatitudeElementKey == null || mLongitudeElementKey == null) {
-      Toast.makeText(getActivity(), getActivity().getString(R.string.lat_long_not_set),
-              Toast.LENGTH_LONG).show();
-      return;
+    if (data.bounds != null) {
+      map.moveCamera(CameraUpdateFactory.newLatLngBounds(data.bounds, PADDING));
+    } else if (data.markerCount == 1) {
+      map.moveCamera(CameraUpdateFactory
+          .newLatLngZoom(new LatLng(data.latitudes[0], data.longitudes[0]), 12f));
     }
+    updateMarkers();
+  }
 
-    OrderedColumns orderedDefns = activity.getColumnDefinitions();
-    ResumableQuery resumableQuery = activity.getViewQuery(Constants.FragmentTags.MAP_INNER_MAP);
+  /**
+   * Matches the row markers on the map up with the newly loaded rows. A marker is kept if its
+   * row is still there in the same place, and its color is updated if that changed; the others
+   * are taken off.
+   *
+   * @param data the newly loaded rows
+   */
+  private void keepUnchangedRowMarkers(MarkerData data) {
+    MarkerData oldData = mMarkerData;
+    RowIdIndex rowIds = RowIdIndex.of(data.table);
+    Map<Marker, Integer> kept = new HashMap<>();
+    Iterator<Map.Entry<String, Marker>> entries = mRowMarkers.entrySet().iterator();
+    while (entries.hasNext()) {
+      Map.Entry<String, Marker> entry = entries.next();
+      Marker marker = entry.getValue();
+      int oldRow = mMarkerIds.get(marker);
+      int row = rowIds.indexOf(entry.getKey());
+      int newMarker = row == RowIdIndex.NOT_FOUND ? -1 : data.markerOfRows[row];
+      int oldMarker = oldData == null ? -1 : oldData.markerOfRows[oldRow];
+      if (newMarker < 0 || oldMarker < 0
+          || data.latitudes[newMarker] != oldData.latitudes[oldMarker]
+          || data.longitudes[newMarker] != oldData.longitudes[oldMarker]) {
+        if (marker.equals(mCurrentMarker)) {
+          mCurrentMarker = null;
+        }
+        marker.remove();
+        entries.remove();
+        continue;
+      }
+      if (marker.equals(mCurrentMarker) && row != mCurrentIndex) {
+        // the selection went to another row, or nowhere
+        mCurrentMarker = null;
+        marker.setIcon(getMarkerIcon(data.rowHues[row]));
+      } else if (!marker.equals(mCurrentMarker) && data.rowHues[row] != getHueForRow(oldRow)) {
+        marker.setIcon(getMarkerIcon(data.rowHues[row]));
+      }
+      kept.put(marker, row);
+    }
+    mMarkerIds = kept;
+  }
 
-    UserTable table;
-    try {
-      if (resumableQuery instanceof ArbitraryQuery) {
-        ArbitraryQuery query = (ArbitraryQuery) resumableQuery;
-        table = Tables.getInstance().getDatabase().arbitrarySqlQuery(activity.getAppName(),
-            Tables.getInstance().getDatabase().openDatabase(activity.getAppName()),
-            query.getTableId(), orderedDefns, query.getSqlCommand(), query.getSqlBindArgs(), -1, 0);
-      } else if (resumableQuery instanceof SimpleQuery || resumableQuery instanceof SingleRowQuery) {
-        SimpleQuery query = (SimpleQuery) resumableQuery;
-        table = Tables.getInstance().getDatabase().simpleQuery(activity.getAppName(),
-            Tables.getInstance().getDatabase().openDatabase(activity.getAppName()),
-            query.getTableId(), orderedDefns, query.getWhereClause(), query.getSqlBindArgs(),
-            query.getGroupByArgs(), query.getHavingClause(), query.getOrderByColNames(),
-            query.getOrderByDirections(), -1, 0);
+  /**
+   * Makes the markers on the map match the current zoom level and what is in view: a marker
+   * for each cluster or for each row that is on its own, out to a margin around the screen.
+   * Markers that are already there are left alone, those that went out of view are taken off
+   * and those that came into view are added.
+   */
+  private void updateMarkers() {
+    if (map == null || mMarkerData == null) {
+      return;
+    }
+    MarkerData data = mMarkerData;
+    int zoom = Math.min((int) map.getCameraPosition().zoom, MarkerClusterer.MAX_CLUSTER_ZOOM);
+    if (mClusters == null || mClusters.getZoom() != zoom) {
+      removeClusterMarkers();
+      mClusters = data.clusterer.cluster(zoom);
+      mClusterMarkersByIndex = new Marker[mClusters.size()];
+      mClusterStamps = new int[mClusters.size()];
+      mVisibleClusters = new int[mClusters.size()];
+    }
+
+    // find what is in view, with a margin around it
+    LatLngBounds bounds = map.getProjection().getVisibleRegion().latLngBounds;
+    double south = bounds.southwest.latitude;
+    double north = bounds.northeast.latitude;
+    double west = bounds.southwest.longitude;
+    double east = bounds.northeast.longitude;
+    double width = east >= west ? east - west : east - west + 360;
+    double latitudeMargin = (north - south) * VIEWPORT_MARGIN;
+    double longitudeMargin = width * VIEWPORT_MARGIN;
+    south = Math.max(-90, south - latitudeMargin);
+    north = Math.min(90, north + latitudeMargin);
+    if (width + 2 * longitudeMargin >= 360) {
+      west = -180;
+      east = 180;
+    } else {
+      west -= longitudeMargin;
+      east += longitudeMargin;
+      if (west < -180) {
+        west += 360;
+      }
+      if (east > 180) {
+        east -= 360;
+      }
+    }
+    int found = mClusters.findInBounds(south, west, north, east, mVisibleClusters);
+    int stamp = ++mViewStamp;
+    for (int k = 0; k < found; ++k) {
+      int c = mVisibleClusters[k];
+      if (mClusters.getCount(c) > 1) {
+        mClusterStamps[c] = stamp;
       } else {
-        String appName = ((IAppAwareActivity) getActivity()).getAppName();
-        WebLogger.getLogger(appName).e(TAG, "invalid query type");
-        return;
+        mRowStamps[data.markerRows[mClusters.getFirstMarker(c)]] = stamp;
       }
-    } catch (ServicesAvailabilityException sae) {
-      String appName = ((IAppAwareActivity) getActivity()).getAppName();
-      WebLogger.getLogger(appName).e(TAG, "simpleQuery failed");
-      WebLogger.getLogger(appName).printStackTrace(sae);
-      return;
     }
 
-    if (table != null && orderedDefns != null) {
-      // Try to find the map columns in the store.
-      ColumnDefinition latitudeColumn = orderedDefns.find(mLatitudeElementKey);
-      ColumnDefinition longitudeColumn = orderedDefns.find(mLongitudeElementKey);
-
-      // Find the locations from entries in the table.
-      LatLngBounds.Builder builder = new LatLngBounds.Builder();
-      int markers = 0;
-      LatLng onlyLocation = null;
-
-      // Go through each row and create a marker at the specified location.
-      for (int i = 0; i < table.getNumberOfRows(); i++) {
-        TypedRow row = table.getRowAtIndex(i);
-        String latitudeString = row.getStringValueByKey(latitudeColumn.getElementKey());
-        String longitudeString = row.getStringValueByKey(longitudeColumn.getElementKey());
-        if (latitudeString == null || longitudeString == null || latitudeString.isEmpty()
-                || longitudeString.isEmpty()) {
-          continue;
+    // take off the markers that went out of view, or into a cluster
+    Iterator<Map.Entry<Marker, Integer>> clusterEntries = mClusterMarkers.entrySet().iterator();
+    while (clusterEntries.hasNext()) {
+      Map.Entry<Marker, Integer> entry = clusterEntries.next();
+      if (mClusterStamps[entry.getValue()] != stamp) {
+        entry.getKey().remove();
+        mClusterMarkersByIndex[entry.getValue()] = null;
+        clusterEntries.remove();
+      }
+    }
+    Iterator<Map.Entry<String, Marker>> rowEntries = mRowMarkers.entrySet().iterator();
+    while (rowEntries.hasNext()) {
+      Marker marker = rowEntries.next().getValue();
+      if (mRowStamps[mMarkerIds.get(marker)] != stamp) {
+        if (marker.equals(mCurrentMarker)) {
+          mCurrentMarker = null;
         }
+        marker.remove();
+        mMarkerIds.remove(marker);
+        rowEntries.remove();
+      }
+    }
 
-        // Create a LatLng from the latitude and longitude strings.
-        LatLng location = parseLocationFromString(latitudeString, longitudeString);
-        if (location == null) {
-          continue;
-        }
-        markers++;
-        builder.include(location);
-        onlyLocation = location;
-
-        if (map != null) {
-          Marker marker = map.addMarker(new MarkerOptions().position(location).draggable(false)
-                  .icon(BitmapDescriptorFactory.defaultMarker(getHueForRow(i))));
-          mMarkerIds.put(marker, i);
-          if (mCurrentIndex == i) {
-            WebLogger.getLogger(activity.getAppName())
-                    .d(TAG, "[setMarkers] selecting marker: " + i);
-            selectMarker(marker);
-          }
+    // add the markers that came into view
+    for (int k = 0; k < found; ++k) {
+      int c = mVisibleClusters[k];
+      if (mClusters.getCount(c) > 1) {
+        if (mClusterMarkersByIndex[c] == null) {
+          LatLng position = new LatLng(mClusters.getLatitude(c), mClusters.getLongitude(c));
+          Marker marker = map.addMarker(new MarkerOptions().position(position).draggable(false)
+              .anchor(0.5f, 0.5f).icon(getClusterIcon(mClusters.getCount(c))));
+          mClusterMarkersByIndex[c] = marker;
+          mClusterMarkers.put(marker, c);
         }
+        continue;
       }
-
-      if (markers > 1) {
-        map.moveCamera(CameraUpdateFactory.newLatLngBounds(builder.build(), PADDING));
-      } else if (markers == 1) {
-        map.moveCamera(CameraUpdateFactory.newLatLngZoom(onlyLocation, 12f));
+      int i = data.markerRows[mClusters.getFirstMarker(c)];
+      String rowId = data.table.getRowId(i);
+      Marker marker = mRowMarkers.get(rowId);
+      if (marker == null) {
+        LatLng position = new LatLng(mClusters.getLatitude(c), mClusters.getLongitude(c));
+        marker = map.addMarker(new MarkerOptions().position(position).draggable(false)
+            .icon(getMarkerIcon(getHueForRow(i))));
+        mRowMarkers.put(rowId, marker);
+        mMarkerIds.put(marker, i);
       }
-      map.setOnMarkerClickListener(getOnMarkerClickListener());
+      if (mCurrentIndex == i && !marker.equals(mCurrentMarker)) {
+        WebLogger.getLogger(((AbsBaseActivity) getActivity()).getAppName())
+            .d(TAG, "[updateMarkers] selecting marker: " + i);
+        selectMarker(marker);
+      }
+    }
+  }
+
+  /**
+   * Takes every marker off the map. The selected row stays selected.
+   */
+  private void removeMarkers() {
+    for (Marker marker : mMarkerIds.keySet()) {
+      marker.remove();
+    }
+    mMarkerIds.clear();
+    mRowMarkers.clear();
+    mCurrentMarker = null;
+    removeClusterMarkers();
+    mClusters = null;
+  }
+
+  /**
+   * Takes the cluster markers off the map
+   */
+  private void removeClusterMarkers() {
+    for (Marker marker : mClusterMarkers.keySet()) {
+      marker.remove();
+    }
+    mClusterMarkers.clear();
+    if (mClusterMarkersByIndex != null) {
+      Arrays.fill(mClusterMarkersByIndex, null);
     }
   }
 
+  /**
+   * Gets the icon of a cluster marker, a circle with the number of markers in it
+   *
+   * @param count the number of markers in the cluster
+   * @return the icon, shared by clusters with the same label
+   */
+  private BitmapDescriptor getClusterIcon(int count) {
+    String label = count < 1000 ? Integer.toString(count) : (count / 1000) + "k";
+    BitmapDescriptor icon = mClusterIcons.get(label);
+    if (icon == null) {
+      int size = getResources().getDimensionPixelSize(R.dimen.map_cluster_size);
+      Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+      Canvas canvas = new Canvas(bitmap);
+      Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+      paint.setColor(ContextCompat.getColor(getActivity(), R.color.map_cluster));
+      canvas.drawCircle(size / 2f, size / 2f, size / 2f, paint);
+      paint.setColor(ContextCompat.getColor(getActivity(), R.color.white));
+      paint.setTextSize(getResources().getDimension(R.dimen.map_cluster_text_size));
+      paint.setTextAlign(Paint.Align.CENTER);
+      // center the text vertically on the circle
+      float baseline = size / 2f - (paint.descent() + paint.ascent()) / 2f;
+      canvas.drawText(label, size / 2f, baseline, paint);
+      icon = BitmapDescriptorFactory.fromBitmap(bitmap);
+      mClusterIcons.put(label, icon);
+    }
+    return icon;
+  }
+
+  /**
+   * Rounds a hue to its step, see {@link #HUE_STEPS}
+   *
+   * @param hue a hue from 0 to 360
+   * @return the hue of the step it is on
+   */
+  private static float roundHue(float hue) {
+    return (Math.round(hue * HUE_STEPS / 360f) % HUE_STEPS) * 360f / HUE_STEPS;
+  }
+
+  /**
+   * Gets the icon of a row marker of a hue, shared by every marker of that hue
+   *
+   * @param hue a hue from 0 to 360, rounded to its step
+   * @return the icon
+   */
+  private BitmapDescriptor getMarkerIcon(float hue) {
+    int step = Math.round(hue * HUE_STEPS / 360f) % HUE_STEPS;
+    BitmapDescriptor icon = mHueIcons[step];
+    if (icon == null) {
+      icon = BitmapDescriptorFactory.defaultMarker(step * 360f / HUE_STEPS);
+      mHueIcons[step] = icon;
+    }
+    return icon;
+  }
+
   /**
    * Retrieves the hue of the specified row depending on the current color
    * rules.
@@ -426,40 +846,12 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
    * marker color if no rules apply to the row.
    */
   private float getHueForRow(int index) {
-    TableDisplayActivity activity = (TableDisplayActivity) getActivity();
-
-    UserTable table = activity.getUserTable();
-    // Create a guide depending on the color group.
-    if (table != null && mColorGuideGroup != null) {
-      ColorGuide guide = mColorGuideGroup.getColorGuideForRowIndex(index);
-      // Based on if the guide matched or not, grab the hue.
-      if (guide != null) {
-        float[] hsv = new float[3];
-        Color.colorToHSV(guide.getBackground(), hsv);
-        return hsv[0];
-      }
+    if (mRowHues != null && index < mRowHues.length) {
+      return mRowHues[index];
     }
-
     return DEFAULT_MARKER_HUE;
   }
 
-  private String getLatitudeElementKey(DbHandle dbHandle) throws ServicesAvailabilityException {
-    TableDisplayActivity activity = (TableDisplayActivity) getActivity();
-
-    OrderedColumns orderedDefns = activity.getColumnDefinitions();
-    return TableUtil.get()
-        .getMapListViewLatitudeElementKey(Tables.getInstance().getDatabase(),
-            activity.getAppName(), dbHandle, activity.getTableId(), orderedDefns);
-  }
-
-  private String getLongitudeElementKey(DbHandle dbHandle) throws ServicesAvailabilityException {
-    TableDisplayActivity activity = (TableDisplayActivity) getActivity();
-    OrderedColumns orderedDefns = activity.getColumnDefinitions();
-    return TableUtil.get()
-        .getMapListViewLongitudeElementKey(Tables.getInstance().getDatabase(),
-            activity.getAppName(), dbHandle, activity.getTableId(), orderedDefns);
-  }
-
   /**
    * Parses the location string and creates a LatLng. The format of the string
    * should be: lat,lng
@@ -479,32 +871,68 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
   }
 
   /**
-   * Parses the latitude and longitude strings and creates a LatLng.
+   * Logs a row whose latitude or longitude is there but isn't a number. Empty values are just
+   * rows without a location, so they aren't logged.
    */
-  private LatLng parseLocationFromString(String latitude, String longitude) {
-    try {
-      return new LatLng(Double.parseDouble(latitude), Double.parseDouble(longitude));
-    } catch (Exception e) {
-      String appName = ((IAppAwareActivity) getActivity()).getAppName();
-      WebLogger.getLogger(appName)
-          .e(TAG, "The following location did not parse correctly: " + latitude + "," + longitude);
-      WebLogger.getLogger(appName).printStackTrace(e);
+  private static void logUnparsedLocation(String appName, MarkerData data, TypedRow row) {
+    String latitude = row.getStringValueByKey(data.latitudeElementKey);
+    String longitude = row.getStringValueByKey(data.longitudeElementKey);
+    if (latitude == null || longitude == null || latitude.isEmpty() || longitude.isEmpty()) {
+      return;
     }
-    return null;
+    WebLogger.getLogger(appName)
+        .e(TAG, "The following location did not parse correctly: " + latitude + "," + longitude);
   }
 
   /**
-   * If a marker is selected, deselect it.
+   * A click just beside a marker counts as a click on it. Otherwise, if a
+   * marker is selected, deselect it.
    */
   private OnMapClickListener getOnMapClickListener() {
     return new OnMapClickListener() {
       @Override
       public void onMapClick(LatLng point) {
-        deselectCurrentMarker();
+        Marker nearest = findMarkerNear(point);
+        if (nearest != null) {
+          toggleMarker(nearest);
+        } else {
+          deselectCurrentMarker();
+        }
       }
     };
   }
 
+  /**
+   * Finds the row marker nearest a point on the map, if it is shown on its own and close enough
+   * on screen to have been meant by a tap there
+   *
+   * @param point where the map was tapped
+   * @return the marker, or null if there isn't one close enough
+   */
+  private Marker findMarkerNear(LatLng point) {
+    if (map == null || mMarkerTable == null || mLatitudeElementKey == null
+        || mLongitudeElementKey == null) {
+      return null;
+    }
+    int row = GeoPointIndex.of(mMarkerTable, mLatitudeElementKey, mLongitudeElementKey)
+        .findNearest(point.latitude, point.longitude);
+    if (row == GeoPointIndex.NOT_FOUND) {
+      return null;
+    }
+    Marker marker = mRowMarkers.get(mMarkerTable.getRowId(row));
+    if (marker == null) {
+      // out of view, or in a cluster
+      return null;
+    }
+    Projection projection = map.getProjection();
+    Point tapped = projection.toScreenLocation(point);
+    Point found = projection.toScreenLocation(marker.getPosition());
+    int dx = tapped.x - found.x;
+    int dy = tapped.y - found.y;
+    int radius = getResources().getDimensionPixelSize(R.dimen.map_touch_radius);
+    return dx * dx + dy * dy <= radius * radius ? marker : null;
+  }
+
   /**
    * On a long click, add a row to the data table at the position clicked.
    */
@@ -551,24 +979,78 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
     return new OnMarkerClickListener() {
       @Override
       public boolean onMarkerClick(Marker clickedMarker) {
-        int index = mCurrentMarker == null ? INVALID_INDEX : mMarkerIds.get(mCurrentMarker);
-        // Make the marker visible if it is either invisible or a
-        // new marker.
-        // Make the marker invisible if clicking on the already
-        // selected marker.
-        if (index != mMarkerIds.get(clickedMarker)) {
-          deselectCurrentMarker();
-          int newIndex = mMarkerIds.get(clickedMarker);
-          selectMarker(clickedMarker);
-          listener.onSetSelectedItemIndex(newIndex);
-        } else {
-          deselectCurrentMarker();
+        Integer cluster = mClusterMarkers.get(clickedMarker);
+        if (cluster != null) {
+          expandCluster(cluster);
+          return true;
+        }
+        if (mMarkerIds.containsKey(clickedMarker)) {
+          toggleMarker(clickedMarker);
         }
         return true;
       }
     };
   }
 
+  /**
+   * Selects a row marker that was clicked and tells the listener, or deselects it if it was
+   * already selected
+   *
+   * @param clickedMarker the marker of a row
+   */
+  private void toggleMarker(Marker clickedMarker) {
+    int index = mCurrentIndex;
+    // Make the marker visible if it is either invisible or a
+    // new marker.
+    // Make the marker invisible if clicking on the already
+    // selected marker.
+    if (index != mMarkerIds.get(clickedMarker)) {
+      deselectCurrentMarker();
+      int newIndex = mMarkerIds.get(clickedMarker);
+      selectMarker(clickedMarker);
+      listener.onSetSelectedItemIndex(newIndex);
+    } else {
+      deselectCurrentMarker();
+    }
+  }
+
+  /**
+   * Zooms in on a cluster far enough to split it up. A cluster whose markers are all in the same
+   * place can't be split, so the map zooms in to where markers are shown on their own.
+   *
+   * @param cluster the index of the cluster in {@link #mClusters}
+   */
+  private void expandCluster(int cluster) {
+    if (map == null || mClusters == null) {
+      return;
+    }
+    double minLatitude = mClusters.getMinLatitude(cluster);
+    double maxLatitude = mClusters.getMaxLatitude(cluster);
+    double minLongitude = mClusters.getMinLongitude(cluster);
+    double maxLongitude = mClusters.getMaxLongitude(cluster);
+    if (minLatitude == maxLatitude && minLongitude == maxLongitude) {
+      map.animateCamera(CameraUpdateFactory
+          .newLatLngZoom(new LatLng(minLatitude, minLongitude), MarkerClusterer.MAX_CLUSTER_ZOOM));
+    } else {
+      map.animateCamera(CameraUpdateFactory.newLatLngBounds(
+          new LatLngBounds(new LatLng(minLatitude, minLongitude),
+              new LatLng(maxLatitude, maxLongitude)), PADDING));
+    }
+  }
+
+  /**
+   * Updates the markers for what is in view once the camera stops, grouping them again if the
+   * zoom level changed
+   */
+  private OnCameraIdleListener getOnCameraIdleListener() {
+    return new OnCameraIdleListener() {
+      @Override
+      public void onCameraIdle() {
+        updateMarkers();
+      }
+    };
+  }
+
   /**
    * Selects a marker, updating the marker list, and changing the marker's color
    * to green. Makes the marker the currently selected marker.
@@ -578,8 +1060,9 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
   private void selectMarker(Marker marker) {
     if (mCurrentMarker != null && mCurrentMarker.equals(marker))
       return;
-    marker.setIcon(BitmapDescriptorFactory.defaultMarker(DEFAULT_SELECTED_MARKER_HUE));
+    marker.setIcon(getMarkerIcon(DEFAULT_SELECTED_MARKER_HUE));
     mCurrentMarker = marker;
+    mCurrentIndex = mMarkerIds.get(marker);
   }
 
   /**
@@ -587,12 +1070,14 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
    * changing the marker back to a default color.
    */
   private void deselectCurrentMarker() {
-    if (mCurrentMarker == null) {
+    if (mCurrentIndex == INVALID_INDEX) {
       return;
     }
-    int index = mMarkerIds.get(mCurrentMarker);
-    mCurrentMarker.setIcon(BitmapDescriptorFactory.defaultMarker(getHueForRow(index)));
-    mCurrentMarker = null;
+    if (mCurrentMarker != null) {
+      mCurrentMarker.setIcon(getMarkerIcon(getHueForRow(mCurrentIndex)));
+      mCurrentMarker = null;
+    }
+    mCurrentIndex = INVALID_INDEX;
     listener.setNoItemSelected();
   }
 
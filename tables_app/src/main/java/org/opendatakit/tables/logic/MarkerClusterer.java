@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.logic;
+
+import org.opendatakit.tables.data.GeoPointIndex;
+
+/**
+ * Groups map markers that would be drawn on top of each other into clusters,
+ * so a table with tens of thousands of locations doesn't need a marker for
+ * every one of them.
+ * <p>
+ * The markers are projected once, onto the same Web Mercator square the map
+ * uses. For a zoom level the square is cut into a grid of cells about
+ * {@link #CELL_SIZE} map pixels wide, and the markers in each cell make up one
+ * cluster placed at their average location. The cells are found through an
+ * open addressing hash table keyed by cell, so clustering is linear in the
+ * number of markers and doesn't box anything.
+ * <p>
+ * The clusters of a zoom level can be looked up by area, see
+ * {@link Clusters#findInBounds(double, double, double, double, int[])}, so the
+ * map only needs markers for the clusters on screen.
+ * <p>
+ * Doesn't touch any Android classes, so clusters can be worked out on any
+ * thread.
+ */
+public final class MarkerClusterer {
+
+  /**
+   * The width of a grid cell, in pixels of a map whose whole world is 256 pixels wide at zoom
+   * level 0, the same as the map's density independent pixels
+   */
+  public static final int CELL_SIZE = 64;
+  /**
+   * From this zoom level in, every marker is shown on its own
+   */
+  public static final int MAX_CLUSTER_ZOOM = 17;
+
+  // the width of the world at zoom level 0
+  private static final double TILE_SIZE = 256;
+  // web mercator doesn't reach the poles, locations past this are drawn at the edge
+  private static final double MAX_LATITUDE = 85.0511287798;
+
+  private final double[] latitudes;
+  private final double[] longitudes;
+  // where each marker is on the map, from 0 to 1 left to right and top to bottom
+  private final double[] x;
+  private final double[] y;
+  private final int count;
+
+  /**
+   * The clusters for one zoom level. Clusters are numbered from 0 to {@link #size()}, and every
+   * marker is in exactly one of them.
+   * <p>
+   * Finding clusters by area goes through a {@link GeoPointIndex} of where the clusters are. It
+   * is built by the first lookup, so lookups should all be made from the same thread.
+   */
+  public static final class Clusters {
+    private final int zoom;
+    private final int size;
+    // for each marker, the cluster it's in
+    private final int[] clusterOfMarker;
+    // for each cluster
+    private final int[] counts;
+    private final int[] firstMarkers;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final double[] minLatitudes;
+    private final double[] maxLatitudes;
+    private final double[] minLongitudes;
+    private final double[] maxLongitudes;
+
+    // where the clusters are, built by the first lookup
+    private GeoPointIndex index = null;
+
+    private Clusters(int zoom, int size, int[] clusterOfMarker, int[] counts, int[] firstMarkers,
+        double[] latitudes, double[] longitudes, double[] minLatitudes, double[] maxLatitudes,
+        double[] minLongitudes, double[] maxLongitudes) {
+      this.zoom = zoom;
+      this.size = size;
+      this.clusterOfMarker = clusterOfMarker;
+      this.counts = counts;
+      this.firstMarkers = firstMarkers;
+      this.latitudes = latitudes;
+      this.longitudes = longitudes;
+      this.minLatitudes = minLatitudes;
+      this.maxLatitudes = maxLatitudes;
+      this.minLongitudes = minLongitudes;
+      this.maxLongitudes = maxLongitudes;
+    }
+
+    /**
+     * @return the zoom level the clusters were worked out for
+     */
+    public int getZoom() {
+      return zoom;
+    }
+
+    /**
+     * @return the number of clusters
+     */
+    public int size() {
+      return size;
+    }
+
+    /**
+     * @param marker the index of a marker
+     * @return the cluster the marker is in
+     */
+    public int getClusterOf(int marker) {
+      return clusterOfMarker[marker];
+    }
+
+    /**
+     * @param cluster the index of a cluster
+     * @return the number of markers in it, 1 for a marker shown on its own
+     */
+    public int getCount(int cluster) {
+      return counts[cluster];
+    }
+
+    /**
+     * @param cluster the index of a cluster
+     * @return the marker that was put in it first, the only one if its count is 1
+     */
+    public int getFirstMarker(int cluster) {
+      return firstMarkers[cluster];
+    }
+
+    /**
+     * @param cluster the index of a cluster
+     * @return the average latitude of its markers
+     */
+    public double getLatitude(int cluster) {
+      return latitudes[cluster];
+    }
+
+    /**
+     * @param cluster the index of a cluster
+     * @return the average longitude of its markers
+     */
+    public double getLongitude(int cluster) {
+      return longitudes[cluster];
+    }
+
+    public double getMinLatitude(int cluster) {
+      return minLatitudes[cluster];
+    }
+
+    public double getMaxLatitude(int cluster) {
+      return maxLatitudes[cluster];
+    }
+
+    public double getMinLongitude(int cluster) {
+      return minLongitudes[cluster];
+    }
+
+    public double getMaxLongitude(int cluster) {
+      return maxLongitudes[cluster];
+    }
+
+    /**
+     * Finds the clusters placed in an area. An area that crosses the antimeridian has a west
+     * edge greater than its east edge.
+     *
+     * @param south the southern edge
+     * @param west  the western edge
+     * @param north the northern edge
+     * @param east  the eastern edge
+     * @param into  where to put the indexes of the clusters found, at least {@link #size()} long
+     * @return the number of clusters found
+     */
+    public int findInBounds(double south, double west, double north, double east, int[] into) {
+      if (index == null) {
+        index = new GeoPointIndex(latitudes, longitudes, size);
+      }
+      return index.findInBounds(south, west, north, east, into);
+    }
+  }
+
+  /**
+   * @param latitudes  the latitude of each marker
+   * @param longitudes the longitude of each marker
+   * @param count      the number of markers, the arrays may be longer
+   */
+  public MarkerClusterer(double[] latitudes, double[] longitudes, int count) {
+    this.latitudes = latitudes;
+    this.longitudes = longitudes;
+    this.count = count;
+    x = new double[count];
+    y = new double[count];
+    for (int i = 0; i < count; ++i) {
+      x[i] = (longitudes[i] + 180) / 360;
+      double latitude = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitudes[i]));
+      double sin = Math.sin(Math.toRadians(latitude));
+      y[i] = 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+    }
+  }
+
+  /**
+   * @return the number of markers
+   */
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * Groups the markers for a zoom level
+   *
+   * @param zoom the zoom level, markers aren't grouped at all from {@link #MAX_CLUSTER_ZOOM} in
+   * @return the clusters
+   */
+  public Clusters cluster(int zoom) {
+    int[] clusterOfMarker = new int[count];
+    int[] counts = new int[count];
+    int[] firstMarkers = new int[count];
+    double[] sumLatitudes = new double[count];
+    double[] sumLongitudes = new double[count];
+    double[] minLatitudes = new double[count];
+    double[] maxLatitudes = new double[count];
+    double[] minLongitudes = new double[count];
+    double[] maxLongitudes = new double[count];
+
+    // the cell of each cluster, in a hash table at most half full
+    boolean grouped = zoom < MAX_CLUSTER_ZOOM;
+    int capacity = Integer.highestOneBit(Math.max(count, 1) * 2 - 1) << 1;
+    long[] cellKeys = grouped ? new long[capacity] : null;
+    int[] cellClusters = grouped ? new int[capacity] : null;
+    int mask = capacity - 1;
+    double cells = Math.floor(TILE_SIZE * Math.pow(2, Math.max(zoom, 0)) / CELL_SIZE);
+
+    int size = 0;
+    for (int i = 0; i < count; ++i) {
+      int cluster = -1;
+      int slot = 0;
+      long key = 0;
+      if (grouped) {
+        long cellX = (long) Math.min(cells - 1, Math.max(0, Math.floor(x[i] * cells)));
+        long cellY = (long) Math.min(cells - 1, Math.max(0, Math.floor(y[i] * cells)));
+        // 0 marks an empty slot, so keys start at 1
+        key = cellX * (long) cells + cellY + 1;
+        slot = spread(key) & mask;
+        while (cellKeys[slot] != 0) {
+          if (cellKeys[slot] == key) {
+            cluster = cellClusters[slot];
+            break;
+          }
+          slot = (slot + 1) & mask;
+        }
+      }
+      if (cluster < 0) {
+        cluster = size++;
+        if (grouped) {
+          cellKeys[slot] = key;
+          cellClusters[slot] = cluster;
+        }
+        firstMarkers[cluster] = i;
+        minLatitudes[cluster] = maxLatitudes[cluster] = latitudes[i];
+        minLongitudes[cluster] = maxLongitudes[cluster] = longitudes[i];
+      } else {
+        minLatitudes[cluster] = Math.min(minLatitudes[cluster], latitudes[i]);
+        maxLatitudes[cluster] = Math.max(maxLatitudes[cluster], latitudes[i]);
+        minLongitudes[cluster] = Math.min(minLongitudes[cluster], longitudes[i]);
+        maxLongitudes[cluster] = Math.max(maxLongitudes[cluster], longitudes[i]);
+      }
+      clusterOfMarker[i] = cluster;
+      ++counts[cluster];
+      sumLatitudes[cluster] += latitudes[i];
+      sumLongitudes[cluster] += longitudes[i];
+    }
+
+    // the sums become averages
+    for (int c = 0; c < size; ++c) {
+      sumLatitudes[c] /= counts[c];
+      sumLongitudes[c] /= counts[c];
+    }
+    return new Clusters(zoom, size, clusterOfMarker, counts, firstMarkers, sumLatitudes,
+        sumLongitudes, minLatitudes, maxLatitudes, minLongitudes, maxLongitudes);
+  }
+
+  /**
+   * Mixes a cell key into a hash code, since neighbouring cells only differ in their low bits
+   */
+  private static int spread(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.tasks;
+
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.database.LocalKeyValueStoreConstants;
+import org.opendatakit.database.data.KeyValueStoreEntry;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.database.utilities.KeyValueStoreUtils;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.tables.data.SharedDbHandle;
+import org.opendatakit.tables.views.ColumnWidthEstimator;
+import org.opendatakit.tables.views.SpreadsheetUserTable;
+
+/**
+ * A task that sizes every column of a spreadsheet to fit its contents and saves the new widths
+ * to the table's properties. Run it with {@link DatabaseExecutor}, it reads the sampled rows and
+ * writes every width through one lease on the shared handle.
+ */
+public class AutoFitColumnWidthsTask implements DatabaseExecutor.Task<int[]> {
+
+  private final SpreadsheetUserTable table;
+  private final SharedDbHandle database;
+  private final int fontSize;
+
+  /**
+   * Constructor that stores off its arguments
+   *
+   * @param table    the spreadsheet's table, whose text is measured
+   * @param database the handle to save the widths with
+   * @param fontSize the font size the spreadsheet is drawn with
+   */
+  public AutoFitColumnWidthsTask(SpreadsheetUserTable table, SharedDbHandle database,
+      int fontSize) {
+    this.table = table;
+    this.database = database;
+    this.fontSize = fontSize;
+  }
+
+  /**
+   * Measures the columns and saves their new widths
+   *
+   * @return the new width of each column, in spreadsheet order
+   * @throws ServicesAvailabilityException if the widths couldn't be saved
+   */
+  @Override
+  public int[] run() throws ServicesAvailabilityException {
+    int[] columnWidths = ColumnWidthEstimator.estimate(table, fontSize);
+    String appName = table.getAppName();
+    String tableId = table.getTableId();
+    UserDbInterface dbInterface = database.getDatabase();
+    try (SharedDbHandle.Lease lease = database.lease()) {
+      DbHandle db = lease.getHandle();
+      for (int i = 0; i < columnWidths.length; ++i) {
+        // the same entry ColumnUtil#atomicSetColumnWidth writes, without a handle of its own
+        KeyValueStoreEntry entry = KeyValueStoreUtils
+            .buildEntry(tableId, LocalKeyValueStoreConstants.Spreadsheet.PARTITION,
+                table.getHeaderKey(i), LocalKeyValueStoreConstants.Spreadsheet.KEY_COLUMN_WIDTH,
+                ElementDataType.integer, Integer.toString(columnWidths[i]));
+        dbInterface.replaceTableMetadata(appName, db, entry);
+      }
+    }
+    return columnWidths;
+  }
+}
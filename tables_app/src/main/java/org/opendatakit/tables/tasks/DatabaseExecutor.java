@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.tasks;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import org.opendatakit.logging.WebLogger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs database work off the UI thread. Every call into the database
+ * services is a round trip to another process, and on a large table a query
+ * can take long enough to freeze the app, so the views hand their reads and
+ * writes to this executor and get the result back on the UI thread.
+ * <p>
+ * The work runs on a small pool of threads of its own rather than the shared
+ * AsyncTask executor, so it isn't held up behind imports and exports, and a
+ * long query doesn't hold up the page the user just scrolled to.
+ */
+public final class DatabaseExecutor {
+
+  private static final String TAG = DatabaseExecutor.class.getSimpleName();
+
+  // enough for a page to be fetched while a whole table is being queried
+  private static final int THREADS = 2;
+
+  private static final ExecutorService executor = Executors
+      .newFixedThreadPool(THREADS, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+          Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+              Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+              r.run();
+            }
+          }, "tables-db-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private static final Handler mainThread = new Handler(Looper.getMainLooper());
+
+  /**
+   * Work to do against the database, on one of the database threads
+   *
+   * @param <T> what the work produces
+   */
+  public interface Task<T> {
+    /**
+     * @return the result of the work, handed to the callback
+     * @throws Exception if the work failed, e.g. because the database is down
+     */
+    T run() throws Exception;
+  }
+
+  /**
+   * Told how the work went, on the UI thread
+   *
+   * @param <T> what the work produces
+   */
+  public interface Callback<T> {
+    /**
+     * @param result the result of the work
+     */
+    void onSuccess(T result);
+
+    /**
+     * @param e why the work failed, already logged
+     */
+    void onFailure(Exception e);
+  }
+
+  /**
+   * Do not instantiate this class
+   */
+  private DatabaseExecutor() {
+  }
+
+  /**
+   * Runs the work on a database thread, then hands the result to the callback on the UI thread
+   *
+   * @param appName  the app name, for logging
+   * @param task     the work to do
+   * @param callback told how it went, may be null
+   * @param <T>      what the work produces
+   * @return the pending work. Cancelling it before it starts means it never runs and the
+   * callback is never told; work that already started runs to the end, so callers that cancel
+   * should still check whether they want the result.
+   */
+  public static <T> Future<?> execute(final String appName, final Task<T> task,
+      final Callback<T> callback) {
+    return executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          final T result = task.run();
+          if (callback != null) {
+            mainThread.post(new Runnable() {
+              @Override
+              public void run() {
+                callback.onSuccess(result);
+              }
+            });
+          }
+        } catch (final Exception e) {
+          WebLogger.getLogger(appName).e(TAG, "Database task failed");
+          WebLogger.getLogger(appName).printStackTrace(e);
+          if (callback != null) {
+            mainThread.post(new Runnable() {
+              @Override
+              public void run() {
+                callback.onFailure(e);
+              }
+            });
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Runs something on the UI thread, e.g. to tell a view that data it asked for arrived
+   *
+   * @param runnable what to run
+   */
+  public static void postToMainThread(Runnable runnable) {
+    mainThread.post(runnable);
+  }
+}
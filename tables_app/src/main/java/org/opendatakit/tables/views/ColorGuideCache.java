@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views;
+
+import org.opendatakit.data.ColorGuide;
+import org.opendatakit.data.ColorRuleGroup;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.tables.data.CompiledColorRuleGroup;
+import org.opendatakit.tables.data.PagedUserTable;
+
+/**
+ * Remembers which color rule matched each row of a {@link PagedUserTable}, so
+ * that the rules are evaluated once per row rather than once per pane per
+ * frame. One cache is shared by every pane of a spreadsheet.
+ * <p>
+ * Like {@link DisplayTextCache}, the guides are kept for one page of rows at a
+ * time and a rule group is evaluated for the whole page the first time one of
+ * its rows is drawn. The rule groups are compiled once, when the cache is
+ * made, so evaluating a page is a run of typed comparisons. Blocks remember
+ * the page they were evaluated against, so they are thrown away when the paged
+ * table drops the page. Guides are kept by the row's position in the pages, so
+ * they stay good when the rows are sorted in memory. A new cache is made when
+ * the rows are queried again or the rules change.
+ * <p>
+ * Only pages that are already loaded are evaluated, a row whose page isn't in
+ * memory has no guide, so looking one up never waits on the database.
+ */
+final class ColorGuideCache {
+
+  // the index of the table and status column rule groups, the column groups follow them
+  private static final int ROW_RULES = 0;
+  private static final int STATUS_RULES = 1;
+  private static final int FIRST_COLUMN_RULES = 2;
+
+  private final PagedUserTable pagedTable;
+  // every rule group, indexed as above, null where a group has no rules
+  private final CompiledColorRuleGroup[] ruleGroups;
+  // blocks are indexed by page index modulo the number of blocks
+  private final Block[] blocks;
+
+  /**
+   * @param pagedTable   the rows to evaluate the rules against
+   * @param orderedDefns the columns of the table
+   * @param rowRules     the rules that color whole rows, may be null
+   * @param statusRules  the rules that color the status column, may be null
+   * @param columnRules  the rules for each column, by spreadsheet index, null for a column with
+   *                     no rules
+   */
+  ColorGuideCache(PagedUserTable pagedTable, OrderedColumns orderedDefns, ColorRuleGroup rowRules,
+      ColorRuleGroup statusRules, ColorRuleGroup[] columnRules) {
+    this.pagedTable = pagedTable;
+    this.ruleGroups = new CompiledColorRuleGroup[FIRST_COLUMN_RULES + columnRules.length];
+    ruleGroups[ROW_RULES] = CompiledColorRuleGroup.compile(rowRules, orderedDefns);
+    ruleGroups[STATUS_RULES] = CompiledColorRuleGroup.compile(statusRules, orderedDefns);
+    for (int i = 0; i < columnRules.length; ++i) {
+      ruleGroups[FIRST_COLUMN_RULES + i] = CompiledColorRuleGroup
+          .compile(columnRules[i], orderedDefns);
+    }
+    this.blocks = new Block[pagedTable.getMaxCachedPages()];
+  }
+
+  /**
+   * @param rowIndex the index the row is displayed at
+   * @return the colors of the first row rule the row matches, or null if none match
+   */
+  ColorGuide getRowGuide(int rowIndex) {
+    return get(rowIndex, ROW_RULES);
+  }
+
+  /**
+   * @param rowIndex the index the row is displayed at
+   * @return the colors of the first status column rule the row matches, or null if none match
+   */
+  ColorGuide getStatusGuide(int rowIndex) {
+    return get(rowIndex, STATUS_RULES);
+  }
+
+  /**
+   * @param rowIndex    the index the row is displayed at
+   * @param columnIndex the index of the column in the spreadsheet
+   * @return the colors of the first rule for that column the row matches, or null if none match
+   */
+  ColorGuide getColumnGuide(int rowIndex, int columnIndex) {
+    if (columnIndex < 0) {
+      return null;
+    }
+    return get(rowIndex, FIRST_COLUMN_RULES + columnIndex);
+  }
+
+  private synchronized ColorGuide get(int rowIndex, int group) {
+    CompiledColorRuleGroup rules = ruleGroups[group];
+    if (rules == null) {
+      // nothing to evaluate, and nothing worth caching
+      return null;
+    }
+    int sourceIndex = pagedTable.getSourceIndex(rowIndex);
+    UserTable page = pagedTable.getLoadedPageForRow(sourceIndex);
+    if (page == null) {
+      return null;
+    }
+    int pageSize = pagedTable.getPageSize();
+    int pageIndex = sourceIndex / pageSize;
+    int indexInPage = sourceIndex - pageIndex * pageSize;
+    if (indexInPage >= page.getNumberOfRows()) {
+      return null;
+    }
+    int slot = pageIndex % blocks.length;
+    Block block = blocks[slot];
+    if (block == null || block.pageIndex != pageIndex || block.page != page) {
+      block = new Block(pageIndex, page, ruleGroups.length);
+      blocks[slot] = block;
+    }
+    ColorGuide[] guides = block.guides[group];
+    if (guides == null) {
+      guides = rules.getColorGuides(page);
+      block.guides[group] = guides;
+    }
+    return guides[indexInPage];
+  }
+
+  /**
+   * The color guides for one page, filled in a rule group at a time
+   */
+  private static final class Block {
+    final int pageIndex;
+    final UserTable page;
+    // guides[rule group][row in page], null until that group is first drawn
+    final ColorGuide[][] guides;
+
+    Block(int pageIndex, UserTable page, int numberOfGroups) {
+      this.pageIndex = pageIndex;
+      this.page = page;
+      this.guides = new ColorGuide[numberOfGroups][];
+    }
+  }
+}
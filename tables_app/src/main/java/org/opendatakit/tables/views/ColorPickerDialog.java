@@ -24,11 +24,10 @@ import android.os.Bundle;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup.LayoutParams;
+import android.widget.HorizontalScrollView;
 import android.widget.ScrollView;
 import org.opendatakit.tables.R;
 
-//import org.opendatakit.views.WScrollView;
-
 /**
  * Based heavily upon:
  * http://www.yougli.net/android/a-photoshop-like-color-picker
@@ -75,11 +74,9 @@ public class ColorPickerDialog extends Dialog {
       }
     };
 
-    // BIDIRECTIONAL SCROLLVIEW
+    // BIDIRECTIONAL SCROLLVIEW, each scroll view handles drags along its own axis
     ScrollView sv = new ScrollView(this.getContext());
-    WScrollView hsv = new WScrollView(this.getContext());
-    hsv.sv = sv;
-    // END OF BIDIRECTIONAL SCROLLVIEW
+    HorizontalScrollView hsv = new HorizontalScrollView(this.getContext());
 
     sv.addView(new ColorPickerView(getContext(), l, mInitialColor, mDefaultColor),
         new LayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT));
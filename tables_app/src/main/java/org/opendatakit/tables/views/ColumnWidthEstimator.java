@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views;
+
+import android.graphics.Paint;
+import org.opendatakit.database.LocalKeyValueStoreConstants;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Works out how wide each column of a spreadsheet needs to be to show its
+ * text. Rather than measuring every row, it measures a sample: the first
+ * rows, the last rows, and a few short runs of rows from random places in
+ * between. Runs of neighbouring rows mostly fall in the same page of the
+ * table, so only a handful of pages are read however big the table is.
+ * <p>
+ * A column is made wide enough for most of its sampled values rather than
+ * the widest one, so a few unusually long values don't waste space, and
+ * always wide enough for its header. Text is measured with the paint and
+ * typeface it is drawn with, see {@link TabularView#createTextPaint(int,
+ * android.graphics.Typeface)}. Fetches the pages of the sampled rows that
+ * aren't loaded yet, so it must be called on a database thread.
+ */
+public final class ColumnWidthEstimator {
+
+  // the rows measured at each end of the table
+  private static final int END_SAMPLE_SIZE = 50;
+  // the runs of rows measured from the rest of the table, and how long each run is
+  private static final int RANDOM_RUNS = 4;
+  private static final int RUN_LENGTH = 25;
+  // the fraction of the sampled values that should fit in the column
+  private static final double PERCENTILE = 0.9;
+
+  /**
+   * Do not instantiate this class
+   */
+  private ColumnWidthEstimator() {
+  }
+
+  /**
+   * Estimates the width of every column in the spreadsheet
+   *
+   * @param table    the spreadsheet's table
+   * @param fontSize the font size the spreadsheet is drawn with
+   * @return the width for each column, in spreadsheet order
+   */
+  public static int[] estimate(SpreadsheetUserTable table, int fontSize) {
+    Paint dataPaint = TabularView.createTextPaint(fontSize, TabularView.DATA_TYPEFACE);
+    Paint headerPaint = TabularView.createTextPaint(fontSize, TabularView.HEADER_TYPEFACE);
+    Paint nullPaint = TabularView.createTextPaint(fontSize, TabularView.NULL_DATA_TYPEFACE);
+
+    int[] rows = sampleRows(table.getNumberOfRows(), new Random());
+    int numberOfColumns = table.getNumberOfDisplayColumns();
+    int[] widths = new int[numberOfColumns];
+    // textWidths[column][sampled row]
+    float[][] textWidths = new float[numberOfColumns][rows.length];
+    float nullWidth = nullPaint.measureText(TabularView.NULL_DATA_TEXT);
+    // a row at a time, so each row's page is fetched once and only needs to stay loaded while
+    // that row is measured
+    for (int i = 0; i < rows.length; ++i) {
+      boolean loaded = table.getRowAtIndex(rows[i]) != null;
+      for (int j = 0; j < numberOfColumns; ++j) {
+        String text = loaded ? table.getDisplayTextOfData(rows[i], j) : null;
+        textWidths[j][i] = text == null ? nullWidth : dataPaint.measureText(text);
+      }
+    }
+    for (int j = 0; j < numberOfColumns; ++j) {
+      float textWidth = nullWidth;
+      if (rows.length > 0) {
+        Arrays.sort(textWidths[j]);
+        textWidth = textWidths[j][(int) Math.ceil(PERCENTILE * rows.length) - 1];
+      }
+      String header = table.getHeader(j);
+      if (header != null) {
+        textWidth = Math.max(textWidth, headerPaint.measureText(header));
+      }
+      widths[j] = toColumnWidth(textWidth);
+    }
+    return widths;
+  }
+
+  /**
+   * The text is drawn a cell padding in from the left of the cell and clipped two cell paddings
+   * in from the right
+   */
+  private static int toColumnWidth(float textWidth) {
+    int width = (int) Math.ceil(textWidth) + 3 * TabularView.HORIZONTAL_CELL_PADDING;
+    return Math.min(width, LocalKeyValueStoreConstants.Spreadsheet.MAX_COL_WIDTH);
+  }
+
+  /**
+   * Picks the rows to measure
+   *
+   * @param numberOfRows the number of rows in the table
+   * @param random       where to put the runs of rows in the middle of the table
+   * @return the indexes of the rows to measure, in order, without duplicates
+   */
+  private static int[] sampleRows(int numberOfRows, Random random) {
+    int sampleSize = 2 * END_SAMPLE_SIZE + RANDOM_RUNS * RUN_LENGTH;
+    if (numberOfRows <= sampleSize) {
+      int[] rows = new int[numberOfRows];
+      for (int i = 0; i < numberOfRows; ++i) {
+        rows[i] = i;
+      }
+      return rows;
+    }
+    int[] rows = new int[sampleSize];
+    int count = 0;
+    for (int i = 0; i < END_SAMPLE_SIZE; ++i) {
+      rows[count++] = i;
+      rows[count++] = numberOfRows - 1 - i;
+    }
+    // the runs start somewhere after the head and end before the tail
+    int middle = numberOfRows - 2 * END_SAMPLE_SIZE - RUN_LENGTH;
+    for (int r = 0; r < RANDOM_RUNS; ++r) {
+      int start = END_SAMPLE_SIZE + (middle > 0 ? random.nextInt(middle + 1) : 0);
+      for (int i = 0; i < RUN_LENGTH; ++i) {
+        rows[count++] = start + i;
+      }
+    }
+    Arrays.sort(rows);
+    int unique = 0;
+    for (int i = 0; i < rows.length; ++i) {
+      if (unique == 0 || rows[i] != rows[unique - 1]) {
+        rows[unique++] = rows[i];
+      }
+    }
+    return Arrays.copyOf(rows, unique);
+  }
+}
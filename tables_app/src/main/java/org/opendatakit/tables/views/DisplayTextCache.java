@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views;
+
+import org.opendatakit.database.data.ColumnDefinition;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.tables.data.PagedUserTable;
+
+import java.util.Locale;
+
+/**
+ * Caches the display text of the cells of a {@link PagedUserTable}, one column
+ * of one page at a time. The first time a cell in a page is drawn, the display
+ * text of every row of that page is formatted for that column, so scrolling
+ * within loaded pages does no formatting at all.
+ * <p>
+ * A block of text remembers the page it was formatted from. If the paged table
+ * drops that page and fetches it again, or the locale changes, the text is
+ * formatted again. The cache holds as many pages as the paged table does, so
+ * it stays bounded the same way. The spreadsheet draws from both the UI thread
+ * and the tile thread, so access is synchronized.
+ */
+final class DisplayTextCache {
+
+  private final PagedUserTable pagedTable;
+  private final int numberOfColumns;
+  // blocks are indexed by page index modulo the number of blocks
+  private final Block[] blocks;
+  private Locale locale;
+
+  /**
+   * @param pagedTable      the table to cache display text for
+   * @param numberOfColumns the number of columns in the spreadsheet
+   */
+  DisplayTextCache(PagedUserTable pagedTable, int numberOfColumns) {
+    this.pagedTable = pagedTable;
+    this.numberOfColumns = numberOfColumns;
+    this.blocks = new Block[pagedTable.getMaxCachedPages()];
+    this.locale = Locale.getDefault();
+  }
+
+  /**
+   * Gets the display text of a cell, formatting the rest of the column for that page if it
+   * hasn't been formatted yet. Never fetches the page.
+   *
+   * @param rowIndex    the index of the row in the table
+   * @param columnIndex the index of the column in the spreadsheet
+   * @param cd          the definition of that column
+   * @return the display text, or null if the cell is empty or the row isn't in memory
+   */
+  synchronized String get(int rowIndex, int columnIndex, ColumnDefinition cd) {
+    if (Locale.getDefault() != locale) {
+      // choice labels, dates and numbers may all be formatted differently now
+      locale = Locale.getDefault();
+      clear();
+    }
+    // the text is cached by the row's position in the pages, which doesn't change when the rows
+    // are sorted in memory. Only a page that is already loaded is read, this is called under the
+    // lock from both drawing threads and must never wait on the database, see
+    // PagedUserTable#isRowLoaded for fetching it
+    int sourceIndex = pagedTable.getSourceIndex(rowIndex);
+    UserTable page = pagedTable.getLoadedPageForRow(sourceIndex);
+    if (page == null) {
+      return null;
+    }
+    int pageSize = pagedTable.getPageSize();
+    int pageIndex = sourceIndex / pageSize;
+    int indexInPage = sourceIndex - pageIndex * pageSize;
+    if (indexInPage >= page.getNumberOfRows()) {
+      return null;
+    }
+    int slot = pageIndex % blocks.length;
+    Block block = blocks[slot];
+    if (block == null || block.pageIndex != pageIndex || block.page != page) {
+      block = new Block(pageIndex, page, numberOfColumns);
+      blocks[slot] = block;
+    }
+    String[] text = block.text[columnIndex];
+    if (text == null) {
+      text = new String[page.getNumberOfRows()];
+      for (int i = 0; i < text.length; ++i) {
+        text[i] = page.getDisplayTextOfData(i, cd.getType(), cd.getElementKey());
+      }
+      block.text[columnIndex] = text;
+    }
+    return text[indexInPage];
+  }
+
+  /**
+   * Drops all of the cached text
+   */
+  synchronized void clear() {
+    for (int i = 0; i < blocks.length; ++i) {
+      blocks[i] = null;
+    }
+  }
+
+  /**
+   * The display text of one page, filled in a column at a time
+   */
+  private static final class Block {
+    final int pageIndex;
+    final UserTable page;
+    // text[column][row in page], null until that column is first drawn
+    final String[][] text;
+
+    Block(int pageIndex, UserTable page, int numberOfColumns) {
+      this.pageIndex = pageIndex;
+      this.page = page;
+      this.text = new String[numberOfColumns][];
+    }
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views;
+
+import android.os.Debug;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.tables.BuildConfig;
+
+/**
+ * Counts the objects allocated by the UI thread while a view draws. Drawing the
+ * spreadsheet should not allocate once scrolling reaches a steady state, so in
+ * debug builds any frame that allocates more than any frame before it is logged.
+ * In release builds this does nothing.
+ */
+final class DrawAllocationCounter {
+
+  private static final String TAG = DrawAllocationCounter.class.getSimpleName();
+
+  // The most allocations seen in a single frame so far, so only regressions are logged
+  private int maxAllocations = 0;
+
+  /**
+   * Starts counting allocations on this thread. Call at the start of onDraw
+   */
+  @SuppressWarnings("deprecation")
+  void start() {
+    if (BuildConfig.DEBUG) {
+      Debug.resetThreadAllocCount();
+      Debug.startAllocCounting();
+    }
+  }
+
+  /**
+   * Stops counting and logs the count if this frame allocated more than any before it. Call at
+   * the end of onDraw
+   *
+   * @param appName the app name to log under
+   * @param tag     the tag of the view that was drawing
+   */
+  @SuppressWarnings("deprecation")
+  void stop(String appName, String tag) {
+    if (BuildConfig.DEBUG) {
+      Debug.stopAllocCounting();
+      int allocations = Debug.getThreadAllocCount();
+      if (allocations > maxAllocations) {
+        maxAllocations = allocations;
+        WebLogger.getLogger(appName)
+            .w(TAG, tag + " allocated " + allocations + " objects while drawing a frame");
+      }
+    }
+  }
+}
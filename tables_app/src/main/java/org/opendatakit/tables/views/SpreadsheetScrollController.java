@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views;
+
+import android.support.v4.view.ViewCompat;
+import android.view.MotionEvent;
+import android.view.VelocityTracker;
+import android.view.View;
+import android.view.ViewConfiguration;
+import android.widget.OverScroller;
+
+/**
+ * The one scroll position of a spreadsheet, shared by all of its panes. Drags
+ * and flings move this position and nothing else; the panes read it when they
+ * draw, so the status, frozen and main panes always move together. A fling is
+ * driven by a single {@link OverScroller} that is stepped once a frame from
+ * {@link View#computeScroll()}, and each step only invalidates the panes that
+ * move, so scrolling never lays anything out.
+ * <p>
+ * Only used from the UI thread.
+ */
+final class SpreadsheetScrollController {
+
+  /**
+   * The view whose panes are scrolled
+   */
+  interface Host {
+    /**
+     * @return the furthest the table can be scrolled horizontally
+     */
+    int getMaxScrollX();
+
+    /**
+     * @return the furthest the table can be scrolled vertically
+     */
+    int getMaxScrollY();
+
+    /**
+     * Called when the scroll position changed, to redraw the panes that moved
+     *
+     * @param scrolledX whether the table moved horizontally
+     * @param scrolledY whether the table moved vertically
+     */
+    void onScrolled(boolean scrolledX, boolean scrolledY);
+  }
+
+  private final View view;
+  private final Host host;
+  private final OverScroller scroller;
+  private final int touchSlop;
+  private final int minFlingVelocity;
+  private final int maxFlingVelocity;
+
+  // The state of the drag in progress
+  private VelocityTracker velocityTracker;
+  private boolean isDragging = false;
+  private float downTouchX;
+  private float downTouchY;
+  private float lastTouchX;
+  private float lastTouchY;
+
+  private int scrollX = 0;
+  private int scrollY = 0;
+
+  /**
+   * @param view the view that gets the touches and is stepped each frame of a fling
+   * @param host the panes to move
+   */
+  SpreadsheetScrollController(View view, Host host) {
+    this.view = view;
+    this.host = host;
+    this.scroller = new OverScroller(view.getContext());
+    ViewConfiguration configuration = ViewConfiguration.get(view.getContext());
+    this.touchSlop = configuration.getScaledTouchSlop();
+    this.minFlingVelocity = configuration.getScaledMinimumFlingVelocity();
+    this.maxFlingVelocity = configuration.getScaledMaximumFlingVelocity();
+  }
+
+  /**
+   * @return how far the table is scrolled horizontally
+   */
+  int getScrollX() {
+    return scrollX;
+  }
+
+  /**
+   * @return how far the table is scrolled vertically
+   */
+  int getScrollY() {
+    return scrollY;
+  }
+
+  /**
+   * Scrolls the table to the given position, clamped to the size of the table
+   *
+   * @param x how far the table should be scrolled horizontally
+   * @param y how far the table should be scrolled vertically
+   */
+  void scrollTo(int x, int y) {
+    x = Math.max(0, Math.min(x, host.getMaxScrollX()));
+    y = Math.max(0, Math.min(y, host.getMaxScrollY()));
+    if (x == scrollX && y == scrollY) {
+      return;
+    }
+    boolean scrolledX = x != scrollX;
+    boolean scrolledY = y != scrollY;
+    scrollX = x;
+    scrollY = y;
+    host.onScrolled(scrolledX, scrolledY);
+  }
+
+  /**
+   * Pulls the scroll position back inside the table, e.g. after the table or the panes changed
+   * size. Does nothing if it is still inside.
+   */
+  void clamp() {
+    scrollTo(scrollX, scrollY);
+  }
+
+  /**
+   * Stops a running fling where it is
+   */
+  void stop() {
+    scroller.forceFinished(true);
+  }
+
+  /**
+   * Watches touches on the way to the panes. Once a touch has moved far enough to be a drag it is
+   * taken over and scrolls the table, otherwise the panes get it as a tap. A touch that lands
+   * while a fling is running stops the fling and is not passed on as a tap.
+   *
+   * @param event the touch event
+   * @return whether the rest of the gesture should be taken over
+   */
+  boolean onInterceptTouchEvent(MotionEvent event) {
+    trackVelocity(event);
+    switch (event.getActionMasked()) {
+    case MotionEvent.ACTION_DOWN:
+      lastTouchX = downTouchX = event.getX();
+      lastTouchY = downTouchY = event.getY();
+      isDragging = !scroller.isFinished();
+      scroller.forceFinished(true);
+      break;
+    case MotionEvent.ACTION_MOVE:
+      if (!isDragging && isPastSlop(event)) {
+        isDragging = true;
+        lastTouchX = event.getX();
+        lastTouchY = event.getY();
+        if (view.getParent() != null) {
+          view.getParent().requestDisallowInterceptTouchEvent(true);
+        }
+      }
+      break;
+    case MotionEvent.ACTION_UP:
+    case MotionEvent.ACTION_CANCEL:
+      endDrag();
+      break;
+    }
+    return isDragging;
+  }
+
+  /**
+   * Scrolls the table while the user drags it, and flings it when they let go
+   *
+   * @param event the touch event
+   * @return true, every touch that reaches the view is handled
+   */
+  boolean onTouchEvent(MotionEvent event) {
+    trackVelocity(event);
+    switch (event.getActionMasked()) {
+    case MotionEvent.ACTION_DOWN:
+      lastTouchX = downTouchX = event.getX();
+      lastTouchY = downTouchY = event.getY();
+      scroller.forceFinished(true);
+      break;
+    case MotionEvent.ACTION_MOVE:
+      if (!isDragging && isPastSlop(event)) {
+        isDragging = true;
+      }
+      if (isDragging) {
+        int dx = (int) (lastTouchX - event.getX());
+        int dy = (int) (lastTouchY - event.getY());
+        // only consume the whole pixels we actually scrolled by so no distance is lost
+        lastTouchX -= dx;
+        lastTouchY -= dy;
+        scrollTo(scrollX + dx, scrollY + dy);
+      }
+      break;
+    case MotionEvent.ACTION_UP:
+      if (isDragging && velocityTracker != null) {
+        velocityTracker.computeCurrentVelocity(1000, maxFlingVelocity);
+        int velocityX = (int) velocityTracker.getXVelocity();
+        int velocityY = (int) velocityTracker.getYVelocity();
+        if (Math.abs(velocityX) > minFlingVelocity || Math.abs(velocityY) > minFlingVelocity) {
+          scroller.fling(scrollX, scrollY, -velocityX, -velocityY, 0, host.getMaxScrollX(), 0,
+              host.getMaxScrollY());
+          ViewCompat.postInvalidateOnAnimation(view);
+        }
+      }
+      endDrag();
+      break;
+    case MotionEvent.ACTION_CANCEL:
+      endDrag();
+      break;
+    }
+    return true;
+  }
+
+  /**
+   * Advances a running fling by a frame. Call from the view's computeScroll
+   */
+  void computeScroll() {
+    if (scroller.computeScrollOffset()) {
+      scrollTo(scroller.getCurrX(), scroller.getCurrY());
+      ViewCompat.postInvalidateOnAnimation(view);
+    }
+  }
+
+  private boolean isPastSlop(MotionEvent event) {
+    return Math.abs(event.getX() - downTouchX) > touchSlop
+        || Math.abs(event.getY() - downTouchY) > touchSlop;
+  }
+
+  private void trackVelocity(MotionEvent event) {
+    if (velocityTracker == null) {
+      velocityTracker = VelocityTracker.obtain();
+    }
+    velocityTracker.addMovement(event);
+  }
+
+  private void endDrag() {
+    isDragging = false;
+    if (velocityTracker != null) {
+      velocityTracker.recycle();
+      velocityTracker = null;
+    }
+  }
+}
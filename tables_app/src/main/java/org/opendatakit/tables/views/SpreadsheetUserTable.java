@@ -16,21 +16,21 @@
 package org.opendatakit.tables.views;
 
 import android.app.Activity;
+import org.opendatakit.data.ColorGuide;
 import org.opendatakit.data.ColorRuleGroup;
-import org.opendatakit.data.utilities.ColumnUtil;
-import org.opendatakit.data.utilities.TableUtil;
 import org.opendatakit.database.data.*;
 import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.database.service.UserDbInterface;
 import org.opendatakit.exception.ServicesAvailabilityException;
-import org.opendatakit.properties.CommonToolProperties;
-import org.opendatakit.properties.PropertiesSingleton;
 import org.opendatakit.tables.activities.ISpreadsheetFragmentContainer;
 import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.data.PagedUserTable;
+import org.opendatakit.tables.data.SharedDbHandle;
+import org.opendatakit.tables.data.TableMetadataSnapshot;
 import org.opendatakit.tables.fragments.AbsTableDisplayFragment;
 
-import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -44,15 +44,32 @@ public class SpreadsheetUserTable implements ISpreadsheetFragmentContainer {
   private final AbsTableDisplayFragment fragment;
 
   // Which column is indexed, if any
-  private final String indexColumnElementKey;
+  private String indexColumnElementKey;
   // The localized display names for the columns of the table
   private final String[] header;
   private final String[] header_keys;
   //
   private final String[] spreadsheetIndexToElementKey;
+  private final ColumnDefinition[] spreadsheetIndexToColumn;
   private final Map<String, Integer> elementKeyToSpreadsheetIndex;
   private SpreadsheetProps props;
-  private UserTable userTable;
+  // The properties of the table the spreadsheet was built from
+  private final TableMetadataSnapshot metadata;
+  // leased to read the color rules, which may happen after the fragment was detached
+  private final SharedDbHandle database;
+  // The rows of the table, fetched a page at a time as they are drawn. Replaced when the rows are
+  // queried again, and read from the tile thread, hence volatile
+  private volatile PagedUserTable pagedTable;
+  // The formatted text of the cells that have been drawn, filled a page at a time
+  private volatile DisplayTextCache displayTextCache;
+  // The color rules, set by the spreadsheet once it has loaded them
+  private ColorRuleGroup rowColorRules;
+  private ColorRuleGroup statusColorRules;
+  private ColorRuleGroup[] columnColorRules;
+  // Which rules matched the rows that have been drawn, shared by every pane
+  private volatile ColorGuideCache colorGuideCache;
+  // Run on the UI thread when rows that were drawn as placeholders have been fetched
+  private Runnable onRowsLoaded;
 
   /**
    * Constructs a SpreadsheetUserTable
@@ -66,51 +83,144 @@ public class SpreadsheetUserTable implements ISpreadsheetFragmentContainer {
     if (frag == null) {
       throw new IllegalStateException("Must have a fragment to get appname to open database");
     }
+    this.database = frag.getSharedDbHandle();
     Activity act = frag.getActivity();
     if (act instanceof ISpreadsheetFragmentContainer) {
       props = ((ISpreadsheetFragmentContainer) act).getProps();
     }
-    PropertiesSingleton props = CommonToolProperties.get(frag.getCommonApplication(), getAppName());
-    String userSelectedDefaultLocale = props.getUserSelectedDefaultLocale();
+    metadata = frag.getTableMetadata();
+    if (metadata == null) {
+      throw new ServicesAvailabilityException("Unable to read the properties of the table");
+    }
+    pagedTable = frag.getPagedUserTable();
+    if (this.props != null) {
+      indexColumnElementKey = this.props.getFrozen();
+    } else {
+      indexColumnElementKey = metadata.getIndexColumn();
+    }
+    List<String> colOrder = metadata.getColumnOrder();
+
+    header = new String[colOrder.size()];
+    header_keys = new String[colOrder.size()];
+    spreadsheetIndexToElementKey = new String[colOrder.size()];
+    spreadsheetIndexToColumn = new ColumnDefinition[colOrder.size()];
+    elementKeyToSpreadsheetIndex = new HashMap<>();
+
+    for (int i = 0; i < colOrder.size(); ++i) {
+      String elementKey = colOrder.get(i);
+      header[i] = metadata.getLocalizedDisplayName(elementKey);
+      header_keys[i] = elementKey;
+      spreadsheetIndexToElementKey[i] = elementKey;
+      spreadsheetIndexToColumn[i] = frag.getColumnDefinitions().find(elementKey);
+      elementKeyToSpreadsheetIndex.put(elementKey, i);
+    }
+    displayTextCache = pagedTable == null ? null : new DisplayTextCache(pagedTable, header.length);
+  }
+
+  /**
+   * Picks up the fragment's current rows after they have been re-sorted or queried again. If
+   * they were only re-sorted in memory the formatted text is still good and is kept.
+   */
+  void refreshData() {
+    PagedUserTable newTable = fragment.getPagedUserTable();
+    if (newTable == pagedTable) {
+      return;
+    }
+    displayTextCache = newTable == null ? null : new DisplayTextCache(newTable, header.length);
+    pagedTable = newTable;
+    colorGuideCache = buildColorGuideCache();
+  }
 
+  /**
+   * Reads the color rules of the table, its status column and each of its columns and sets them
+   * as the rules the cells are colored by. Reads from the database on the calling thread, so
+   * should be called on a database thread before the spreadsheet is built.
+   *
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  public void loadColorRules() throws ServicesAvailabilityException {
+    String appName = getAppName();
     UserDbInterface dbInterface = Tables.getInstance().getDatabase();
-    ArrayList<String> colOrder;
-    DbHandle db = null;
-    try {
-      db = dbInterface.openDatabase(frag.getAppName());
-      userTable = getUserTable();
-      if (this.props != null) {
-        indexColumnElementKey = this.props.getFrozen();
-      } else {
-        indexColumnElementKey = TableUtil.get()
-            .getIndexColumn(dbInterface, getAppName(), db, getTableId());
-        //indexColumnElementKey = null;
-      }
-      colOrder = TableUtil.get()
-          .getColumnOrder(dbInterface, frag.getAppName(), db, frag.getTableId(),
-              frag.getColumnDefinitions());
-
-      header = new String[colOrder.size()];
-      header_keys = new String[colOrder.size()];
-      spreadsheetIndexToElementKey = new String[colOrder.size()];
-      elementKeyToSpreadsheetIndex = new HashMap<>();
-
-      for (int i = 0; i < colOrder.size(); ++i) {
-        String elementKey = colOrder.get(i);
-        String localizedDisplayName;
-        localizedDisplayName = ColumnUtil.get()
-            .getLocalizedDisplayName(userSelectedDefaultLocale, dbInterface, getAppName(), db,
-                frag.getTableId(), elementKey);
-
-        header[i] = localizedDisplayName;
-        header_keys[i] = elementKey;
-        spreadsheetIndexToElementKey[i] = elementKey;
-        elementKeyToSpreadsheetIndex.put(elementKey, i);
-      }
-    } finally {
-      if (db != null) {
-        dbInterface.closeDatabase(frag.getAppName(), db);
+    try (SharedDbHandle.Lease lease = database.lease()) {
+      DbHandle db = lease.getHandle();
+      String[] adminColumns = dbInterface.getAdminColumns();
+      Map<String, ColorRuleGroup> elementKeyToColorRuleGroup = new HashMap<>();
+      for (ColumnDefinition cd : getColumnDefinitions().getColumnDefinitions()) {
+        elementKeyToColorRuleGroup.put(cd.getElementKey(),
+            getColumnColorRuleGroup(dbInterface, db, cd.getElementKey(), adminColumns));
       }
+      ColorRuleGroup statusColumnRuleGroup = ColorRuleGroup
+          .getStatusColumnRuleGroup(dbInterface, appName, db, getTableId(), adminColumns);
+      ColorRuleGroup tableColorRuleGroup = ColorRuleGroup
+          .getTableColorRuleGroup(dbInterface, appName, db, getTableId(), adminColumns);
+      // The rules are shared by every pane through the table, which evaluates them lazily as
+      // rows are drawn
+      setColorRules(tableColorRuleGroup, statusColumnRuleGroup, elementKeyToColorRuleGroup);
+    }
+  }
+
+  /**
+   * Sets the color rules the cells are colored by. The rules are evaluated lazily as rows are
+   * drawn and the results are shared by every pane.
+   *
+   * @param rowRules    the rules that color whole rows
+   * @param statusRules the rules that color the status column
+   * @param columnRules the rules for each column, by element key
+   */
+  void setColorRules(ColorRuleGroup rowRules, ColorRuleGroup statusRules,
+      Map<String, ColorRuleGroup> columnRules) {
+    rowColorRules = rowRules;
+    statusColorRules = statusRules;
+    columnColorRules = new ColorRuleGroup[header_keys.length];
+    for (int i = 0; i < header_keys.length; ++i) {
+      columnColorRules[i] = columnRules.get(header_keys[i]);
+    }
+    colorGuideCache = buildColorGuideCache();
+  }
+
+  private ColorGuideCache buildColorGuideCache() {
+    PagedUserTable table = pagedTable;
+    if (table == null || columnColorRules == null) {
+      return null;
+    }
+    return new ColorGuideCache(table, getColumnDefinitions(), rowColorRules, statusColorRules,
+        columnColorRules);
+  }
+
+  /**
+   * @param index the index of the row
+   * @return the colors of the first row rule the row matches, or null if none match
+   */
+  ColorGuide getRowColorGuide(int index) {
+    ColorGuideCache cache = colorGuideCache;
+    return cache == null ? null : cache.getRowGuide(index);
+  }
+
+  /**
+   * @param index the index of the row
+   * @return the colors of the first status column rule the row matches, or null if none match
+   */
+  ColorGuide getStatusColorGuide(int index) {
+    ColorGuideCache cache = colorGuideCache;
+    return cache == null ? null : cache.getStatusGuide(index);
+  }
+
+  /**
+   * @param index       the index of the row
+   * @param columnIndex the index of the column in the spreadsheet
+   * @return the colors of the first rule for that column the row matches, or null if none match
+   */
+  ColorGuide getColumnColorGuide(int index, int columnIndex) {
+    ColorGuideCache cache = colorGuideCache;
+    return cache == null ? null : cache.getColumnGuide(index, columnIndex);
+  }
+
+  /**
+   * Picks up a change to the frozen column in the props
+   */
+  void refreshIndexedColumn() {
+    if (props != null) {
+      indexColumnElementKey = props.getFrozen();
     }
   }
 
@@ -126,6 +236,13 @@ public class SpreadsheetUserTable implements ISpreadsheetFragmentContainer {
     return fragment.getAppName();
   }
 
+  /**
+   * @return the properties of the table, such as its column widths and font size
+   */
+  public TableMetadataSnapshot getTableMetadata() {
+    return metadata;
+  }
+
   public OrderedColumns getColumnDefinitions() {
     return fragment.getColumnDefinitions();
   }
@@ -148,13 +265,35 @@ public class SpreadsheetUserTable implements ISpreadsheetFragmentContainer {
   }
 
   int getNumberOfRows() {
-    UserTable table = fragment.getUserTable();
+    PagedUserTable table = pagedTable;
     if (table == null) {
       return 0;
     }
     return table.getNumberOfRows();
   }
 
+  /**
+   * Sets what to do when rows that weren't loaded when they were drawn have been fetched,
+   * normally redrawing them
+   *
+   * @param onRowsLoaded run on the UI thread, may be null
+   */
+  void setOnRowsLoaded(Runnable onRowsLoaded) {
+    this.onRowsLoaded = onRowsLoaded;
+  }
+
+  /**
+   * Checks whether a row can be drawn without waiting on the database, and starts fetching it
+   * in the background if it can't
+   *
+   * @param index the index of the row
+   * @return whether the row is loaded
+   */
+  boolean isRowLoaded(int index) {
+    PagedUserTable table = pagedTable;
+    return table == null || table.isRowLoaded(index, onRowsLoaded);
+  }
+
   /**
    * Gets the row at the requested index from the table, or null if the index is out of bounds
    *
@@ -162,19 +301,43 @@ public class SpreadsheetUserTable implements ISpreadsheetFragmentContainer {
    * @return the requested row or null
    */
   public TypedRow getRowAtIndex(int index) {
-    UserTable table = fragment.getUserTable();
+    PagedUserTable table = pagedTable;
     if (table == null) {
       return null;
     }
     return table.getRowAtIndex(index);
   }
 
-  UserTable getUserTable() {
-    return fragment.getUserTable();
+  /**
+   * Gets the row at the requested index only if it is already in memory, so it can be used while
+   * drawing without waiting on the database
+   *
+   * @param index the index of the row
+   * @return the requested row, or null if it is out of bounds or not loaded
+   */
+  public TypedRow getLoadedRowAtIndex(int index) {
+    PagedUserTable table = pagedTable;
+    if (table == null) {
+      return null;
+    }
+    return table.getLoadedRowAtIndex(index);
   }
 
-  UserTable getCachedUserTable() {
-    return userTable;
+  /**
+   * Gets the text to display for a cell of a row that is in memory, see
+   * {@link #isRowLoaded(int)}. The text is formatted once and cached until the page is dropped or
+   * the locale changes.
+   *
+   * @param index       the index of the row
+   * @param columnIndex the index of the column in the spreadsheet
+   * @return the display text, or null if the cell is empty or the row isn't loaded
+   */
+  String getDisplayTextOfData(int index, int columnIndex) {
+    DisplayTextCache cache = displayTextCache;
+    if (cache == null || columnIndex < 0) {
+      return null;
+    }
+    return cache.get(index, columnIndex, spreadsheetIndexToColumn[columnIndex]);
   }
 
   // Whether or not we have a frozen column...
@@ -196,27 +359,30 @@ public class SpreadsheetUserTable implements ISpreadsheetFragmentContainer {
    * @return whether there is data in the user table
    */
   public boolean hasData() {
-    UserTable table = fragment.getUserTable();
-    return !(table == null || header.length == 0);
+    return !(pagedTable == null || header.length == 0);
   }
 
   /**
-   * Gets a cell from the given CellInfo object. Used in SpreadsheetFragment
+   * Gets a cell from the given CellInfo object. Used in SpreadsheetFragment. This may have to
+   * fetch the row's page, so call it on a database thread
    *
    * @param cellInfo an object that has a row id and column (elementKey) in it
-   * @return a SpreadsheetCell object from the CellInfo object
+   * @return a SpreadsheetCell object from the CellInfo object, or null if the row is gone or
+   * couldn't be read
    */
   public SpreadsheetCell getSpreadsheetCell(CellInfo cellInfo) {
+    TypedRow row = cellInfo == null ? null : getRowAtIndex(cellInfo.rowId);
+    if (row == null) {
+      return null;
+    }
     SpreadsheetCell cell = new SpreadsheetCell();
-    userTable = getUserTable();
     cell.rowNum = cellInfo.rowId;
-    cell.row = userTable.getRowAtIndex(cellInfo.rowId);
+    cell.row = row;
     cell.elementKey = cellInfo.elementKey;
-    OrderedColumns orderedDefns = getColumnDefinitions();
-    ColumnDefinition cd = orderedDefns.find(cellInfo.elementKey);
-    getTableId();
-    cell.displayText = userTable
-        .getDisplayTextOfData(cellInfo.rowId, cd.getType(), cellInfo.elementKey);
+    Integer columnIndex = getColumnIndexOfElementKey(cellInfo.elementKey);
+    cell.displayText = columnIndex == null ?
+        null :
+        getDisplayTextOfData(cellInfo.rowId, columnIndex);
     cell.value = cell.row.getStringValueByKey(cellInfo.elementKey);
     return cell;
   }
@@ -228,7 +394,7 @@ public class SpreadsheetUserTable implements ISpreadsheetFragmentContainer {
    * @return
    */
   ColumnDefinition getColumnByIndex(int headerCellNum) {
-    return getColumnByElementKey(spreadsheetIndexToElementKey[headerCellNum]);
+    return spreadsheetIndexToColumn[headerCellNum];
   }
 
   /**
@@ -263,7 +429,7 @@ public class SpreadsheetUserTable implements ISpreadsheetFragmentContainer {
     return header[colNum];
   }
 
-  String getHeaderKey(int colNum) {
+  public String getHeaderKey(int colNum) {
     if (colNum < 0 || colNum >= header_keys.length)
       return null;
     return header_keys[colNum];
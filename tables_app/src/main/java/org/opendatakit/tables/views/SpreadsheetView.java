@@ -19,31 +19,26 @@ import android.content.Context;
 import android.view.ContextMenu;
 import android.view.MotionEvent;
 import android.view.View;
-import android.view.ViewGroup;
-import android.widget.HorizontalScrollView;
 import android.widget.LinearLayout;
-import android.widget.ScrollView;
 import android.widget.Toast;
-import org.opendatakit.data.ColorRuleGroup;
-import org.opendatakit.data.utilities.ColumnUtil;
-import org.opendatakit.data.utilities.TableUtil;
 import org.opendatakit.database.data.ColumnDefinition;
-import org.opendatakit.database.service.DbHandle;
-import org.opendatakit.database.service.UserDbInterface;
 import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.tables.R;
-import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.data.TableMetadataSnapshot;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
  * A view similar to a spreadsheet. Builds TabularViews for the header and body
  * (builds two sets of these if a column is frozen to the left).
  * <p>
+ * Every TabularView is only as big as its part of the screen. This view keeps
+ * track of how far the table has been scrolled and the TabularViews draw only
+ * the rows and columns that are visible at that position, so drawing a frame
+ * costs the same no matter how many rows or columns the table has.
+ * <p>
  * SS: I made some changes to this to try and make scrolling more efficient. I
  * am leaving some of the seemingly unreferenced and now unnecessary
  * methods/fields in case changes someone has made to this class in parallel
@@ -67,22 +62,18 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
   private final int fontSize;
   private final int completeColWidths[];
 
-  private final Map<String, ColorRuleGroup> mElementKeyToColorRuleGroup;
-
-  private final ColorRuleGroup mStatusColumnRuleGroup;
-  private final ColorRuleGroup mTableColorRuleGroup;
 
-  // Keeping this for now in case someone else needs to work with the code
-  // and relied on this variable.
-  private ScrollView dataStatusScroll;
-  private HorizontalScrollView wrapScroll;
+  // How far the table has been scrolled, and the drags and flings that scroll it. The panes only
+  // show the part of the table that fits on screen and read the position to find out which part
+  // that is.
+  private final SpreadsheetScrollController scroller;
 
-  private ScrollView mainScroll = null;
-  private ScrollView indexScroll;
   private TabularView mainData = null;
   private TabularView mainHeader = null;
   private TabularView indexData;
   private TabularView indexHeader;
+  private TabularView statusData;
+  private TabularView statusHeader;
 
   private View.OnTouchListener mainDataCellClickListener;
   private View.OnTouchListener mainHeaderCellClickListener;
@@ -97,55 +88,59 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
 
   /**
    * Initializes a new spreadsheet view to the specified table. It pulls the app name out of the
-   * context, detects the correct font size, gets the column definitions from the database, and
+   * context, detects the correct font size and column widths from the table's properties, and
    * handles whether the table is indexed or not
    *
    * @param context    The context the spreadsheet is executing in, saved
    * @param controller a SpreadsheetFragment
    * @param table      the table to be displayed by the spreadsheet
-   * @throws ServicesAvailabilityException if the database is down
    */
-  public SpreadsheetView(Context context, Controller controller, SpreadsheetUserTable table)
-      throws ServicesAvailabilityException {
+  public SpreadsheetView(Context context, Controller controller, SpreadsheetUserTable table) {
     super(context);
     this.context = context;
     this.controller = controller;
     this.table = table;
+    this.scroller = new SpreadsheetScrollController(this, new SpreadsheetScrollController.Host() {
+      @Override
+      public int getMaxScrollX() {
+        return Math.max(0, mainData.getTableWidth() - mainData.getWidth());
+      }
 
-    // TODO: figure out if we can invalidate a screen region to get it to render the screen
-    // rather than disabling the hardware acceleration on this view. Disable it so that you don't
-    // have to tap the screen to after a scroll action to see the new portion of the spreadsheet.
-    this.setLayerType(View.LAYER_TYPE_SOFTWARE, null);
+      @Override
+      public int getMaxScrollY() {
+        return Math.max(0, mainData.getTableHeight() - mainData.getHeight());
+      }
 
-    // We have to initialize the items that will be shared across the TabularView objects.
-    this.mElementKeyToColorRuleGroup = new HashMap<>();
+      @Override
+      public void onScrolled(boolean scrolledX, boolean scrolledY) {
+        invalidateScrolledPanes(scrolledX, scrolledY);
+      }
+    });
+
+    // the table's color rules were loaded on a database thread before the view was built, see
+    // SpreadsheetUserTable.loadColorRules, and rows that aren't loaded yet are drawn as
+    // placeholders and redrawn once they arrive
+    table.setOnRowsLoaded(new Runnable() {
+      @Override
+      public void run() {
+        invalidateAllPanes();
+      }
+    });
 
+    completeColWidths = getColumnWidths();
     // if a custom font size is defined in the KeyValueStore, use that if not, use the general
     // font size defined in preferences
-    String appName = table.getAppName();
-    UserDbInterface dbInterface = Tables.getInstance().getDatabase();
-    DbHandle db = null;
-    try {
-      db = dbInterface.openDatabase(appName);
-      String[] adminColumns = dbInterface.getAdminColumns();
-      for (ColumnDefinition cd : table.getColumnDefinitions().getColumnDefinitions()) {
-        mElementKeyToColorRuleGroup.put(cd.getElementKey(),
-            table.getColumnColorRuleGroup(dbInterface, db, cd.getElementKey(), adminColumns));
-      }
-      mStatusColumnRuleGroup = ColorRuleGroup
-          .getStatusColumnRuleGroup(dbInterface, appName, db, table.getTableId(), adminColumns);
-      mTableColorRuleGroup = ColorRuleGroup
-          .getTableColorRuleGroup(dbInterface, appName, db, table.getTableId(), adminColumns);
-      completeColWidths = getColumnWidths(db);
-      fontSize = TableUtil.get()
-          .getSpreadsheetViewFontSize(getContext(), dbInterface, appName, db, table.getTableId());
-    } finally {
-      if (db != null) {
-        dbInterface.closeDatabase(appName, db);
-      }
-    }
+    fontSize = table.getTableMetadata().getFontSize();
 
     initListeners();
+    buildPanes();
+  }
+
+  /**
+   * Builds the panes of the spreadsheet, with or without a frozen column depending on the table,
+   * and hooks up their touch listeners
+   */
+  private void buildPanes() {
     if (!table.isIndexed()) {
       buildNonIndexedTable();
     } else {
@@ -157,6 +152,46 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
     mainHeader.setOnTouchListener(mainHeaderCellClickListener);
   }
 
+  /**
+   * Moves columns between the frozen and main parts of the spreadsheet after the frozen column
+   * in the props changed. Only the panes are rebuilt; the rows, their formatted text, the color
+   * rules and the column widths that are already loaded are all reused, so nothing is read from
+   * the database. The rows stay scrolled where they were.
+   */
+  public void onFrozenColumnChanged() {
+    table.refreshIndexedColumn();
+    scroller.stop();
+    removeAllViews();
+    mainData = null;
+    mainHeader = null;
+    indexData = null;
+    indexHeader = null;
+    statusData = null;
+    statusHeader = null;
+    buildPanes();
+    // the main pane changes width, so the horizontal position is clamped once it is laid out
+    requestLayout();
+  }
+
+  /**
+   * @return the font size the spreadsheet is drawn with
+   */
+  public int getFontSize() {
+    return fontSize;
+  }
+
+  /**
+   * Changes the widths of the columns, e.g. after they were fitted to their contents. Only the
+   * panes are rebuilt, the rows and everything else that is loaded are reused.
+   *
+   * @param columnWidths the new width of each column, in spreadsheet order
+   */
+  public void setColumnWidths(int[] columnWidths) {
+    System.arraycopy(columnWidths, 0, completeColWidths, 0,
+        Math.min(columnWidths.length, completeColWidths.length));
+    onFrozenColumnChanged();
+  }
+
   /**
    * Called when the user double taps or long taps a data cell, picks the view to open a context
    * menu on and passes that through to the controller
@@ -181,6 +216,24 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
     }
   }
 
+  /**
+   * Updates the spreadsheet in place after the rows underneath it have been re-sorted or queried
+   * again, rather than building a new one. The panes pick up the new rows and header colors and
+   * the scroll position is kept as far as it still fits in the table.
+   */
+  public void onDataChanged() {
+    table.refreshData();
+    TabularView[] panes = { mainData, mainHeader, indexData, indexHeader, statusData,
+        statusHeader };
+    for (TabularView pane : panes) {
+      if (pane != null) {
+        pane.onDataChanged();
+      }
+    }
+    scroller.stop();
+    scroller.clamp();
+  }
+
   /**
    * Initializes the click listeners. There are four right now
    */
@@ -388,49 +441,19 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
 
   /**
    * Internal helper method to build a non indexed table, called by the SpreadsheetView constructor
-   * It constructs some views and sets the onTouch event for the main scroll view
+   * It lays out the status column to the left of the main table
    */
   private void buildNonIndexedTable() {
     // the false is to indicate that we're building a non-indexed table
     View wrapper = buildTable(null, false);
-    wrapScroll = new HorizontalScrollView(context);
-    wrapScroll.addView(wrapper, LinearLayout.LayoutParams.WRAP_CONTENT,
-        LinearLayout.LayoutParams.MATCH_PARENT);
-    // this was all here before
-    LinearLayout.LayoutParams wrapLp = new LinearLayout.LayoutParams(
-        LinearLayout.LayoutParams.WRAP_CONTENT, LinearLayout.LayoutParams.MATCH_PARENT);
-    wrapLp.weight = 1;
-    wrapScroll.setHorizontalFadingEdgeEnabled(true); // works
-
-    ViewGroup completeWrapper = new LinearLayout(context);
-    View statusWrapper = buildStatusTable();
-    statusWrapper.setHorizontalFadingEdgeEnabled(true);
-    statusWrapper.setVerticalFadingEdgeEnabled(true);
-    completeWrapper.addView(statusWrapper);
-    completeWrapper.addView(wrapScroll);
-    completeWrapper.setHorizontalFadingEdgeEnabled(true);
-    completeWrapper.setVerticalFadingEdgeEnabled(true);
-
-    addView(completeWrapper, wrapLp);
-    mainScroll.setOnTouchListener(new View.OnTouchListener() {
-      @Override
-      public boolean onTouch(View view, MotionEvent event) {
-        dataStatusScroll.scrollTo(dataStatusScroll.getScrollX(), view.getScrollY());
-        /*
-        if (event.getAction() == MotionEvent.ACTION_UP) {
-          mainScroll.startScrollerTask();
-        }
-        */
-        return false;
-      }
-    });
+    addView(buildStatusTable());
+    addView(wrapper, new LinearLayout.LayoutParams(0, LinearLayout.LayoutParams.MATCH_PARENT, 1));
   }
 
   /**
    * This is also called by the SpreadsheetView constructor. It makes a non indexed table for the
-   * main wrapper, an indexed table for the index wrapper, and a status wrapper. It puts them in a
-   * scroll view and adds it, then it sets the on touch listener to get the x and y values from
-   * the scroll view and lock one of them while the other scrolls
+   * main wrapper, an indexed table for the index wrapper, and a status wrapper, and lays them out
+   * left to right. Only the main wrapper takes up the remaining width.
    */
   private void buildIndexedTable() {
     String indexElementKey = table.getIndexedColumnElementKey();
@@ -438,49 +461,10 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
     View mainWrapper = buildTable(indexElementKey, false);
     // Here the true indicates that we are building an indexed table
     View indexWrapper = buildTable(indexElementKey, true);
-    wrapScroll = new HorizontalScrollView(context);
-    wrapScroll.addView(mainWrapper, LinearLayout.LayoutParams.WRAP_CONTENT,
-        LinearLayout.LayoutParams.MATCH_PARENT);
-    wrapScroll.setHorizontalFadingEdgeEnabled(true);
-    ViewGroup wrapper = new LinearLayout(context);
-    wrapper.addView(indexWrapper);
-    wrapper.addView(wrapScroll);
-
-    ViewGroup completeWrapper = new LinearLayout(context);
-    View statusWrapper = buildStatusTable();
-    completeWrapper.addView(statusWrapper);
-    completeWrapper.addView(wrapper);
-
-    addView(completeWrapper);
-
-    indexScroll.setOnTouchListener(new View.OnTouchListener() {
-      @Override
-      public boolean onTouch(View view, MotionEvent event) {
-        mainScroll.scrollTo(mainScroll.getScrollX(), view.getScrollY());
-        dataStatusScroll.scrollTo(mainScroll.getScrollX(), view.getScrollY());
-        /*
-        if (event.getAction() == MotionEvent.ACTION_UP) {
-          indexScroll.startScrollerTask();
-          mainScroll.startScrollerTask();
-        }
-        */
-        return false;
-      }
-    });
-    mainScroll.setOnTouchListener(new View.OnTouchListener() {
-      @Override
-      public boolean onTouch(View view, MotionEvent event) {
-        indexScroll.scrollTo(indexScroll.getScrollX(), view.getScrollY());
-        dataStatusScroll.scrollTo(indexScroll.getScrollX(), view.getScrollY());
-        /*
-        if (event.getAction() == MotionEvent.ACTION_UP) {
-          indexScroll.startScrollerTask();
-          mainScroll.startScrollerTask();
-        }
-        */
-        return false;
-      }
-    });
+    addView(buildStatusTable());
+    addView(indexWrapper);
+    addView(mainWrapper,
+        new LinearLayout.LayoutParams(0, LinearLayout.LayoutParams.MATCH_PARENT, 1));
   }
 
   /**
@@ -505,11 +489,9 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
       colWidths = new int[1];
       colWidths[0] = completeColWidths[table.getColumnIndexOfElementKey(indexElementKey)];
       dataTable = TabularView
-          .getIndexDataTable(context, this, table, elementKeysToDisplay, colWidths, fontSize,
-              this.mElementKeyToColorRuleGroup, mTableColorRuleGroup);
+          .getIndexDataTable(context, this, table, elementKeysToDisplay, colWidths, fontSize);
       headerTable = TabularView
-          .getIndexHeaderTable(context, this, table, elementKeysToDisplay, colWidths, fontSize,
-              this.mElementKeyToColorRuleGroup, mTableColorRuleGroup);
+          .getIndexHeaderTable(context, this, table, elementKeysToDisplay, colWidths, fontSize);
     } else {
       int width = indexElementKey == null || indexElementKey.isEmpty() ?
           table.getWidth() :
@@ -526,34 +508,43 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
         addIndex++;
       }
       dataTable = TabularView
-          .getMainDataTable(context, this, table, elementKeysToDisplay, colWidths, fontSize,
-              this.mElementKeyToColorRuleGroup, mTableColorRuleGroup);
+          .getMainDataTable(context, this, table, elementKeysToDisplay, colWidths, fontSize);
       headerTable = TabularView
-          .getMainHeaderTable(context, this, table, elementKeysToDisplay, colWidths, fontSize,
-              this.mElementKeyToColorRuleGroup, mTableColorRuleGroup);
+          .getMainHeaderTable(context, this, table, elementKeysToDisplay, colWidths, fontSize);
     }
 
-    ScrollView dataScroll = new ScrollView(context);
-    dataScroll.addView(dataTable,
-        new ViewGroup.LayoutParams(dataTable.getTableWidth(), dataTable.getTableHeight()));
-    dataScroll.setVerticalFadingEdgeEnabled(true);
-    dataScroll.setHorizontalFadingEdgeEnabled(true);
     if (isIndexed) {
       indexData = dataTable;
       indexHeader = headerTable;
-      indexScroll = dataScroll;
     } else {
       mainData = dataTable;
       mainHeader = headerTable;
-      mainScroll = dataScroll;
     }
+    // The index column is exactly as wide as its column, the main table takes whatever is left
+    int wrapperWidth = isIndexed ?
+        dataTable.getTableWidth() :
+        LinearLayout.LayoutParams.MATCH_PARENT;
+    return wrapPanes(headerTable, dataTable, wrapperWidth);
+  }
+
+  /**
+   * Stacks a header pane on top of a data pane. The header is exactly as tall as the header row
+   * and the data pane fills the rest of the height, showing only the rows that fit on screen.
+   *
+   * @param headerTable the header pane
+   * @param dataTable   the data pane
+   * @param width       the width of both panes, in pixels or as a layout constant
+   * @return a vertical LinearLayout holding both panes
+   */
+  private View wrapPanes(TabularView headerTable, TabularView dataTable, int width) {
     LinearLayout wrapper = new LinearLayout(context);
     wrapper.setOrientation(LinearLayout.VERTICAL);
-    wrapper.addView(headerTable, headerTable.getTableWidth(), headerTable.getTableHeight());
-    LinearLayout.LayoutParams dataLp = new LinearLayout.LayoutParams(
-        LinearLayout.LayoutParams.WRAP_CONTENT, LinearLayout.LayoutParams.MATCH_PARENT);
+    wrapper.addView(headerTable, width, headerTable.getTableHeight());
+    LinearLayout.LayoutParams dataLp = new LinearLayout.LayoutParams(width, 0);
     dataLp.weight = 1;
-    wrapper.addView(dataScroll, dataLp);
+    wrapper.addView(dataTable, dataLp);
+    wrapper.setLayoutParams(
+        new LinearLayout.LayoutParams(width, LinearLayout.LayoutParams.MATCH_PARENT));
     return wrapper;
   }
 
@@ -568,29 +559,11 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
     colWidths = new int[1];
     colWidths[0] = TabularView.DEFAULT_STATUS_COLUMN_WIDTH;
 
-    dataStatusScroll = new ScrollView(context);
-    TabularView dataTable = TabularView
-        .getStatusDataTable(context, this, table, colWidths, fontSize,
-            this.mElementKeyToColorRuleGroup, mStatusColumnRuleGroup);
-    dataTable.setVerticalFadingEdgeEnabled(true);
-    dataTable.setVerticalScrollBarEnabled(false);
-    dataStatusScroll.addView(dataTable,
-        new ViewGroup.LayoutParams(dataTable.getTableWidth(), dataTable.getTableHeight()));
-    dataStatusScroll.setVerticalFadingEdgeEnabled(true);
-    dataStatusScroll.setHorizontalFadingEdgeEnabled(true);
-    TabularView headerTable = TabularView
-        .getStatusHeaderTable(context, this, table, colWidths, fontSize,
-            this.mElementKeyToColorRuleGroup, mTableColorRuleGroup);
-    LinearLayout wrapper = new LinearLayout(context);
-    wrapper.setOrientation(LinearLayout.VERTICAL);
-    wrapper.addView(headerTable, headerTable.getTableWidth(), headerTable.getTableHeight());
-    LinearLayout.LayoutParams dataLp = new LinearLayout.LayoutParams(
-        LinearLayout.LayoutParams.WRAP_CONTENT, LinearLayout.LayoutParams.MATCH_PARENT);
-    dataLp.weight = 1;
-    wrapper.addView(dataStatusScroll, dataLp);
-    wrapper.setVerticalFadingEdgeEnabled(true);
-    wrapper.setHorizontalFadingEdgeEnabled(true);
-    return wrapper;
+    statusData = TabularView
+        .getStatusDataTable(context, this, table, colWidths, fontSize);
+    statusHeader = TabularView
+        .getStatusHeaderTable(context, this, table, colWidths, fontSize);
+    return wrapPanes(statusHeader, statusData, statusData.getTableWidth());
   }
 
   /**
@@ -601,9 +574,7 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
    */
   @Override
   public int getMainScrollX() {
-    // this is getting the correct x
-    return wrapScroll.getScrollX();
-    // return from wrapScroll, because getMainScrollY uses mainScroll
+    return scroller.getScrollX();
   }
 
   /**
@@ -615,9 +586,83 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
    */
   @Override
   public int getMainScrollY() {
-    // this is getting the correct y
-    return mainScroll.getScrollY();
-    // return from mainScroll, because getMainScrollX uses wrapScroll
+    return scroller.getScrollY();
+  }
+
+  /**
+   * Redraws the panes after the table was scrolled. Every pane reads the same position, so they
+   * always stay aligned. Only the panes that move along the axis that changed are redrawn; the
+   * headers don't move vertically and the index and status columns don't move horizontally.
+   *
+   * @param scrolledX whether the table moved horizontally
+   * @param scrolledY whether the table moved vertically
+   */
+  private void invalidateScrolledPanes(boolean scrolledX, boolean scrolledY) {
+    mainData.invalidate();
+    if (scrolledX) {
+      mainHeader.invalidate();
+    }
+    if (scrolledY) {
+      statusData.invalidate();
+      if (table.isIndexed()) {
+        indexData.invalidate();
+      }
+    }
+  }
+
+  /**
+   * Redraws every pane, e.g. once rows that were drawn as placeholders have been fetched
+   */
+  private void invalidateAllPanes() {
+    TabularView[] panes = { mainData, mainHeader, indexData, indexHeader, statusData,
+        statusHeader };
+    for (TabularView pane : panes) {
+      if (pane != null) {
+        pane.invalidate();
+      }
+    }
+  }
+
+  /**
+   * Keeps the scroll position inside the table when the view or its panes change size, e.g. on
+   * rotation or when a column is frozen
+   */
+  @Override
+  protected void onLayout(boolean changed, int l, int t, int r, int b) {
+    super.onLayout(changed, l, t, r, b);
+    // does nothing if the position is still inside the table
+    scroller.clamp();
+  }
+
+  /**
+   * Watches touches on the way to the panes. Drags are taken over by the scroll controller,
+   * everything else goes through to the panes as taps.
+   *
+   * @param event the touch event
+   * @return whether we are taking over the rest of the gesture
+   */
+  @Override
+  public boolean onInterceptTouchEvent(MotionEvent event) {
+    return scroller.onInterceptTouchEvent(event);
+  }
+
+  /**
+   * Scrolls the table while the user drags it, and flings it when they let go
+   *
+   * @param event the touch event
+   * @return true, we handle every touch that reaches us
+   */
+  @Override
+  public boolean onTouchEvent(MotionEvent event) {
+    return scroller.onTouchEvent(event);
+  }
+
+  /**
+   * Advances a running fling by a frame
+   */
+  @Override
+  public void computeScroll() {
+    scroller.computeScroll();
   }
 
   /**
@@ -663,26 +708,14 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
    * NB: If getting this from outside of spreadsheet view, you should really
    * consider if you need to be accessing column widths.
    *
-   * @param db The database to use
-   * @return an array of the widths for each column, taken from the database
-   * @throws ServicesAvailabilityException if the database is down
+   * @return an array of the widths for each column, from the table's properties
    */
-  public int[] getColumnWidths(DbHandle db) throws ServicesAvailabilityException {
-    // So what we want to do is go through and get the column widths for each
-    // column. A problem here is that there is no caching, and if you have a
-    // lot of columns you're really working the gut of the database.
+  public int[] getColumnWidths() {
     int numberOfDisplayColumns = table.getNumberOfDisplayColumns();
     int[] columnWidths = new int[numberOfDisplayColumns];
-    String appName = table.getAppName();
-
-    Map<String, Integer> colWidths = ColumnUtil.get()
-        .getColumnWidths(Tables.getInstance().getDatabase(), appName, db,
-            table.getTableId(), table.getColumnDefinitions());
-
+    TableMetadataSnapshot metadata = table.getTableMetadata();
     for (int i = 0; i < numberOfDisplayColumns; i++) {
-      ColumnDefinition cd = table.getColumnByIndex(i);
-      String elementKey = cd.getElementKey();
-      columnWidths[i] = colWidths.get(elementKey);
+      columnWidths[i] = metadata.getColumnWidth(table.getColumnByIndex(i).getElementKey());
     }
     return columnWidths;
   }
@@ -19,25 +19,18 @@ import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.Typeface;
-import android.util.DisplayMetrics;
 import android.view.ContextMenu;
 import android.view.View;
 import org.opendatakit.activities.IAppAwareActivity;
 import org.opendatakit.data.ColorGuide;
-import org.opendatakit.data.ColorGuideGroup;
-import org.opendatakit.data.ColorRuleGroup;
-import org.opendatakit.database.data.ColumnDefinition;
-import org.opendatakit.database.data.Row;
 import org.opendatakit.database.data.TypedRow;
 import org.opendatakit.logging.WebLogger;
-import org.opendatakit.provider.DataTableColumns;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
 
 /**
  * A view that draws a single table. A single table is essentially a grid of of
@@ -47,7 +40,7 @@ import java.util.TreeMap;
  *
  * @author sudar.sam@gmail.com
  */
-final class TabularView extends View {
+final class TabularView extends View implements TileCache.Renderer {
 
   public static final String TAG = TabularView.class.getSimpleName();
   public static final int DEFAULT_STATUS_COLUMN_WIDTH = 10;
@@ -65,21 +58,43 @@ final class TabularView extends View {
   private static final int FROZEN_COLOR = Color.rgb(0xcc, 0xcc, 0xcc); // a lighter grey
   private static final int NULL_COLOR = Color.rgb(127, 127, 127); // grey
   private static final int ROW_HEIGHT_PADDING = 14;
-  private static final int HORIZONTAL_CELL_PADDING = 5;
+  static final int HORIZONTAL_CELL_PADDING = 5;
   private static final int VERTICAL_CELL_PADDING = 9;
   private static final int BORDER_WIDTH = 1;
   //private static final String NULL_DATA_TEXT = "(NULL)";
-  private static final String NULL_DATA_TEXT = "null";
+  static final String NULL_DATA_TEXT = "null";
+  // Drawn in the cells of rows whose page is still being fetched
+  private static final String LOADING_DATA_TEXT = "\u2026";
+  // Typefaces for data cells, for header cells and for cells with no data in them. Shared with
+  // ColumnWidthEstimator, so columns are sized for the text as it is drawn
+  static final Typeface DATA_TYPEFACE = Typeface.create(Typeface.DEFAULT, Typeface.NORMAL);
+  static final Typeface HEADER_TYPEFACE = Typeface.create(Typeface.DEFAULT, Typeface.NORMAL);
+  static final Typeface NULL_DATA_TYPEFACE = Typeface.create(Typeface.DEFAULT, Typeface.ITALIC);
+  // Flags in the header state of a column
+  private static final int HEADER_GROUP_BY = 1;
+  private static final int HEADER_SORT = 1 << 1;
+  private static final int HEADER_FROZEN = 1 << 2;
   private final Controller controller;
   private final int defaultBackgroundColor;
   private final int defaultForegroundColor;
   private final int[] columnWidths;
   private final TableLayoutType type;
   private final int rowHeight;
-  private final Paint textPaint;
-  private final Paint bgPaint;
-  private final Paint borderPaint;
+  // the paints used on the UI thread
+  private final CellPaints paints;
+  // the paints used on the tile thread, since the two can be drawing at the same time
+  private final CellPaints tilePaints;
   private final Paint highlightPaint;
+  // the part of the view being redrawn, in table coordinates
+  private final Rect clipBounds = new Rect();
+  // the part of a tile that has to be drawn directly because the tile isn't ready
+  private final Rect tileRegion = new Rect();
+  /**
+   * Rendered tiles of the table, only used for the main data, which is the only
+   * part of the spreadsheet wide enough for redrawing every cell to be slow.
+   * Null for the other parts, which are drawn directly.
+   */
+  private final TileCache tileCache;
   /**
    * The abstraction of the table onto which this {@link TabularView} is
    * providing a view.
@@ -90,13 +105,18 @@ final class TabularView extends View {
    * displaying. It is a (not strict) subset.
    */
   private final List<String> mElementKeys;
-  // trying to get the dimensions of the screen
-  private final DisplayMetrics metrics;
+  /*
+   * Everything the draw loop needs to know about a column, looked up once by
+   * the column's position in this view rather than by element key per cell.
+   */
+  // the index of each column in the SpreadsheetUserTable, or -1 for the status column
+  private final int[] mColumnSpreadsheetIndexes;
+  // whether each column is grouped by, sorted by or frozen, as HEADER_* flags
+  private final int[] mHeaderState;
+  private final DrawAllocationCounter allocationCounter = new DrawAllocationCounter();
   private int totalHeight;
   private int totalWidth;
   private CellInfo highlightedCellInfo;
-  private Map<String, ColorGuideGroup> mColumnColorGuideGroup = null;
-  private ColorGuideGroup mRowColorGuideGroup = null;
   // this should hold the x location of the column. so xs[12] should hold the
   // x displacement of the left side of that column.
   private int[] xs;
@@ -133,13 +153,10 @@ final class TabularView extends View {
    * @param columnWidths
    * @param type
    * @param fontSize
-   * @param elementKeyToColorRuleGroup mapping of element key to their corresponding
-   *                                   {@link ColorRuleGroup} objects.
    */
   private TabularView(Context context, Controller controller, SpreadsheetUserTable table,
       List<String> elementKeys, int defaultForegroundColor, int defaultBackgroundColor,
-      int borderColor, int[] columnWidths, TableLayoutType type, int fontSize,
-      Map<String, ColorRuleGroup> elementKeyToColorRuleGroup, ColorRuleGroup rowColorRuleGroup) {
+      int borderColor, int[] columnWidths, TableLayoutType type, int fontSize) {
     super(context);
     this.controller = controller;
     this.mTable = table;
@@ -159,42 +176,20 @@ final class TabularView extends View {
           .e(TAG, "Unrecognized TableType in constructor: " + this.type.name());
       this.mNumberOfRows = this.mTable.getNumberOfRows();
     }
-    /*
-    The map of element key to {@link ColorRuleGroup} objects for the columns of
-    the table. This will be responsible for coloring the cells of a column.
-   */
-
-    /*
-    The {@link ColorRuleGroup} object for the table. This will be responsible
-    for things like determining row color.
-   */
-
-    // Initialized the ColorGuideGroups
-    if (mTable != null) {
-      this.mRowColorGuideGroup = new ColorGuideGroup(rowColorRuleGroup, mTable.getUserTable());
-
-      for (Map.Entry<String, ColorRuleGroup> stringColorRuleGroupEntry : elementKeyToColorRuleGroup
-          .entrySet()) {
-        ColorRuleGroup crg = stringColorRuleGroupEntry.getValue();
-        if (crg != null) {
-          if (this.mColumnColorGuideGroup == null) {
-            this.mColumnColorGuideGroup = new TreeMap<>();
-          }
-          this.mColumnColorGuideGroup.put(stringColorRuleGroupEntry.getKey(),
-              new ColorGuideGroup(crg, mTable.getUserTable()));
-        }
-      }
+    int numberOfColumns = this.mElementKeys.size();
+    this.mColumnSpreadsheetIndexes = new int[numberOfColumns];
+    this.mHeaderState = new int[numberOfColumns];
+    for (int j = 0; j < numberOfColumns; ++j) {
+      String elementKey = this.mElementKeys.get(j);
+      Integer idx = this.mTable.getColumnIndexOfElementKey(elementKey);
+      mColumnSpreadsheetIndexes[j] = idx == null ? -1 : idx;
     }
+    refreshHeaderState();
 
     rowHeight = fontSize + ROW_HEIGHT_PADDING;
     highlightedCellInfo = null;
-    textPaint = new Paint();
-    textPaint.setAntiAlias(true);
-    textPaint.setTextSize(fontSize);
-    bgPaint = new Paint();
-    bgPaint.setColor(defaultBackgroundColor);
-    borderPaint = new Paint();
-    borderPaint.setColor(borderColor);
+    paints = new CellPaints(fontSize, defaultBackgroundColor, borderColor);
+    tilePaints = new CellPaints(fontSize, defaultBackgroundColor, borderColor);
     highlightPaint = new Paint();
     highlightPaint.setColor(Color.CYAN);
     highlightPaint.setStrokeWidth(3);
@@ -203,26 +198,22 @@ final class TabularView extends View {
     for (int cw : columnWidths) {
       totalWidth += cw + BORDER_WIDTH;
     }
-    setVerticalScrollBarEnabled(true);
-    setVerticalFadingEdgeEnabled(true);
-    setHorizontalFadingEdgeEnabled(true);
-    setMinimumHeight(totalHeight);
-    setMinimumWidth(totalWidth);
+    this.tileCache = this.type == TableLayoutType.MAIN_DATA ?
+        new TileCache(table.getAppName(), this, totalWidth, totalHeight) :
+        null;
+    // This view is only as big as the part of the table that is on screen. The SpreadsheetView
+    // lays it out and tells it which part of the table that is through the controller.
     setClickable(true);
-    this.metrics = getResources().getDisplayMetrics();
-    if (this.mNumberOfRows > 0) {
-      this.xs = new int[this.mElementKeys.size()];
-      if (xs.length == 0) {
-        // There are no columns. This happens in a table with only one column and the user
-        // freezes it, then we get an out of bounds exception setting xs[0] and tables crashes
-        return;
-      }
+    // The columns are laid out even when there are no rows yet, since re-querying the rows can
+    // give this view some without building it again
+    this.xs = new int[this.mElementKeys.size()];
+    if (xs.length != 0) {
+      // There may be no columns. This happens in a table with only one column and the user
+      // freezes it, then we would get an out of bounds exception setting xs[0]
       xs[0] = BORDER_WIDTH;
       for (int i = 0; i < this.mElementKeys.size() - 1; i++) {
         xs[i + 1] = xs[i] + columnWidths[i] + BORDER_WIDTH;
       }
-    } else {
-      this.xs = new int[0];
     }
     this.spans = new int[xs.length];
     if (spans.length > 0) {
@@ -244,17 +235,14 @@ final class TabularView extends View {
    * @param elementKeysToDisplay
    * @param columnWidths
    * @param fontSize
-   * @param elementKeyToColorRuleGroup
-   * @param rowColorRuleGroup
    * @return
    */
   public static TabularView getMainDataTable(Context context, Controller controller,
       SpreadsheetUserTable table, List<String> elementKeysToDisplay, int[] columnWidths,
-      int fontSize, Map<String, ColorRuleGroup> elementKeyToColorRuleGroup,
-      ColorRuleGroup rowColorRuleGroup) {
+      int fontSize) {
     return new TabularView(context, controller, table, elementKeysToDisplay,
         DEFAULT_FOREGROUND_COLOR, DEFAULT_DATA_BACKGROUND_COLOR, DEFAULT_BORDER_COLOR, columnWidths,
-        TableLayoutType.MAIN_DATA, fontSize, elementKeyToColorRuleGroup, rowColorRuleGroup);
+        TableLayoutType.MAIN_DATA, fontSize);
   }
 
   /**
@@ -267,18 +255,14 @@ final class TabularView extends View {
    * @param elementKeysToDisplay
    * @param columnWidths
    * @param fontSize
-   * @param elementKeyToColorRuleGroup
-   * @param rowColorRuleGroup
    * @return
    */
   public static TabularView getMainHeaderTable(Context context, Controller controller,
       SpreadsheetUserTable table, List<String> elementKeysToDisplay, int[] columnWidths,
-      int fontSize, Map<String, ColorRuleGroup> elementKeyToColorRuleGroup,
-      ColorRuleGroup rowColorRuleGroup) {
+      int fontSize) {
     return new TabularView(context, controller, table, elementKeysToDisplay,
         DEFAULT_FOREGROUND_COLOR, DEFAULT_HEADER_BACKGROUND_COLOR, DEFAULT_BORDER_COLOR,
-        columnWidths, TableLayoutType.MAIN_HEADER, fontSize, elementKeyToColorRuleGroup,
-        rowColorRuleGroup);
+        columnWidths, TableLayoutType.MAIN_HEADER, fontSize);
   }
 
   /**
@@ -291,17 +275,14 @@ final class TabularView extends View {
    * @param elementKeysToDisplay
    * @param columnWidths
    * @param fontSize
-   * @param elementKeyToColorRuleGroup
-   * @param rowColorRuleGroup
    * @return
    */
   public static TabularView getIndexDataTable(Context context, Controller controller,
       SpreadsheetUserTable table, List<String> elementKeysToDisplay, int[] columnWidths,
-      int fontSize, Map<String, ColorRuleGroup> elementKeyToColorRuleGroup,
-      ColorRuleGroup rowColorRuleGroup) {
+      int fontSize) {
     return new TabularView(context, controller, table, elementKeysToDisplay,
         DEFAULT_FOREGROUND_COLOR, DEFAULT_DATA_BACKGROUND_COLOR, DEFAULT_BORDER_COLOR, columnWidths,
-        TableLayoutType.INDEX_DATA, fontSize, elementKeyToColorRuleGroup, rowColorRuleGroup);
+        TableLayoutType.INDEX_DATA, fontSize);
   }
 
   /**
@@ -314,18 +295,14 @@ final class TabularView extends View {
    * @param elementKeysToDisplay
    * @param columnWidths
    * @param fontSize
-   * @param elementKeyToColorRuleGroup
-   * @param rowColorRuleGroup
    * @return
    */
   public static TabularView getIndexHeaderTable(Context context, Controller controller,
       SpreadsheetUserTable table, List<String> elementKeysToDisplay, int[] columnWidths,
-      int fontSize, Map<String, ColorRuleGroup> elementKeyToColorRuleGroup,
-      ColorRuleGroup rowColorRuleGroup) {
+      int fontSize) {
     return new TabularView(context, controller, table, elementKeysToDisplay,
         DEFAULT_FOREGROUND_COLOR, DEFAULT_HEADER_BACKGROUND_COLOR, DEFAULT_BORDER_COLOR,
-        columnWidths, TableLayoutType.INDEX_HEADER, fontSize, elementKeyToColorRuleGroup,
-        rowColorRuleGroup);
+        columnWidths, TableLayoutType.INDEX_HEADER, fontSize);
   }
 
   /**
@@ -337,20 +314,17 @@ final class TabularView extends View {
    * @param table
    * @param columnWidths
    * @param fontSize
-   * @param elementKeyToColorRuleGroup
-   * @param rowColorRuleGroup
    * @return
    */
   public static TabularView getStatusDataTable(Context context, Controller controller,
-      SpreadsheetUserTable table, int[] columnWidths, int fontSize,
-      Map<String, ColorRuleGroup> elementKeyToColorRuleGroup, ColorRuleGroup rowColorRuleGroup) {
+      SpreadsheetUserTable table, int[] columnWidths, int fontSize) {
     List<String> dummyElementKeys = new ArrayList<String>();
     // We need to make this a size one so that the status table knows there's
     // something to display.
     dummyElementKeys.add("data");
     return new TabularView(context, controller, table, dummyElementKeys, DEFAULT_FOREGROUND_COLOR,
         DEFAULT_DATA_BACKGROUND_COLOR, DEFAULT_BORDER_COLOR, columnWidths,
-        TableLayoutType.STATUS_DATA, fontSize, elementKeyToColorRuleGroup, rowColorRuleGroup);
+        TableLayoutType.STATUS_DATA, fontSize);
   }
 
   /**
@@ -362,20 +336,17 @@ final class TabularView extends View {
    * @param table
    * @param columnWidths
    * @param fontSize
-   * @param elementKeyToColorRuleGroup
-   * @param rowColorRuleGroup
    * @return
    */
   public static TabularView getStatusHeaderTable(Context context, Controller controller,
-      SpreadsheetUserTable table, int[] columnWidths, int fontSize,
-      Map<String, ColorRuleGroup> elementKeyToColorRuleGroup, ColorRuleGroup rowColorRuleGroup) {
+      SpreadsheetUserTable table, int[] columnWidths, int fontSize) {
     List<String> dummyElementKeys = new ArrayList<String>();
     // We need to make this a size one so that the status table knows there's
     // something to display.
     dummyElementKeys.add("header");
     return new TabularView(context, controller, table, dummyElementKeys, DEFAULT_FOREGROUND_COLOR,
         DEFAULT_HEADER_BACKGROUND_COLOR, DEFAULT_BORDER_COLOR, columnWidths,
-        TableLayoutType.STATUS_HEADER, fontSize, elementKeyToColorRuleGroup, rowColorRuleGroup);
+        TableLayoutType.STATUS_HEADER, fontSize);
   }
 
   public int getTableHeight() {
@@ -386,7 +357,109 @@ final class TabularView extends View {
     return totalWidth;
   }
 
+  /**
+   * Recomputes which header cells are grouped by, sorted by or frozen from the
+   * current props. Called when the props change, so the draw loop only reads
+   * flags.
+   */
+  void refreshHeaderState() {
+    SpreadsheetProps props = mTable.getProps();
+    boolean isHeader =
+        this.type == TableLayoutType.INDEX_HEADER || this.type == TableLayoutType.MAIN_HEADER;
+    String[] groupBy = props == null ? null : props.getGroupBy();
+    String sort = props == null ? null : props.getSort();
+    String frozen = props == null ? null : props.getFrozen();
+    for (int j = 0; j < mHeaderState.length; ++j) {
+      int state = 0;
+      String elementKey = this.mElementKeys.get(j);
+      if (isHeader) {
+        if (groupBy != null && Arrays.asList(groupBy).contains(elementKey)) {
+          state |= HEADER_GROUP_BY;
+        }
+        if (elementKey.equals(sort)) {
+          state |= HEADER_SORT;
+        }
+        if (elementKey.equals(frozen)) {
+          state |= HEADER_FROZEN;
+        }
+      }
+      mHeaderState[j] = state;
+    }
+  }
+
+  /**
+   * Picks up a change to the rows or the props underneath this view, e.g. after the rows have
+   * been re-sorted. Recolors the header, takes on the new number of rows, throws away anything
+   * rendered from the old rows and redraws.
+   */
+  void onDataChanged() {
+    refreshHeaderState();
+    if (this.type == TableLayoutType.INDEX_DATA || this.type == TableLayoutType.MAIN_DATA
+        || this.type == TableLayoutType.STATUS_DATA) {
+      this.mNumberOfRows = this.mTable.getNumberOfRows();
+      totalHeight = (rowHeight + BORDER_WIDTH) * this.mNumberOfRows + BORDER_WIDTH;
+    }
+    // the highlighted row index now points at a different row
+    highlightedCellInfo = null;
+    if (tileCache != null) {
+      tileCache.setTableSize(totalWidth, totalHeight);
+    }
+    invalidate();
+  }
+
+  @Override
+  protected void onAttachedToWindow() {
+    super.onAttachedToWindow();
+    if (tileCache != null) {
+      tileCache.start();
+    }
+  }
+
+  @Override
+  protected void onDetachedFromWindow() {
+    if (tileCache != null) {
+      tileCache.release();
+    }
+    super.onDetachedFromWindow();
+  }
+
+  /**
+   * @return how far the table has been scrolled horizontally under this view. Only the main
+   * portion of the table scrolls horizontally, the index and status columns stay put.
+   */
+  private int getTableScrollX() {
+    if (this.type == TableLayoutType.MAIN_DATA || this.type == TableLayoutType.MAIN_HEADER) {
+      return Math.max(0, controller.getMainScrollX());
+    }
+    return 0;
+  }
+
+  /**
+   * @return how far the table has been scrolled vertically under this view. Only the data
+   * portions of the table scroll vertically, the headers stay put.
+   */
+  private int getTableScrollY() {
+    if (this.type == TableLayoutType.MAIN_DATA || this.type == TableLayoutType.INDEX_DATA
+        || this.type == TableLayoutType.STATUS_DATA) {
+      return Math.max(0, controller.getMainScrollY());
+    }
+    return 0;
+  }
+
+  /**
+   * Finds the cell under a point in this view
+   *
+   * @param x the x coordinate of the point, relative to this view
+   * @param y the y coordinate of the point, relative to this view
+   * @return the cell under that point, or null if there isn't one
+   */
   public CellInfo getCellInfo(int x, int y) {
+    x += getTableScrollX();
+    y += getTableScrollY();
+    if (x >= totalWidth || y >= totalHeight) {
+      // the table doesn't fill the view and the point is past the end of it
+      return null;
+    }
     int row = y / (rowHeight + BORDER_WIDTH);
     int col = -1;
     while (x > 0) {
@@ -411,9 +484,40 @@ final class TabularView extends View {
     return info;
   }
 
+  /**
+   * Moves the highlight to the given cell. Only the cells that gain or lose the highlight are
+   * redrawn.
+   *
+   * @param highlightedCellInfo the cell to highlight, or null to remove the highlight
+   */
   public void highlight(CellInfo highlightedCellInfo) {
+    CellInfo previous = this.highlightedCellInfo;
+    if (previous == highlightedCellInfo || (previous != null && highlightedCellInfo != null
+        && previous.rowId == highlightedCellInfo.rowId
+        && previous.colPos == highlightedCellInfo.colPos)) {
+      return;
+    }
     this.highlightedCellInfo = highlightedCellInfo;
-    invalidate();
+    invalidateCell(previous);
+    invalidateCell(highlightedCellInfo);
+  }
+
+  /**
+   * Invalidates just the area of this view covered by a cell, including its borders and
+   * highlight.
+   *
+   * @param cellInfo the cell to redraw, may be null
+   */
+  private void invalidateCell(CellInfo cellInfo) {
+    if (cellInfo == null || cellInfo.colPos < 0 || cellInfo.colPos >= xs.length) {
+      return;
+    }
+    // the highlight is drawn with a wide stroke that spills over the cell borders
+    int margin = BORDER_WIDTH + (int) Math.ceil(highlightPaint.getStrokeWidth());
+    int left = xs[cellInfo.colPos] - margin - getTableScrollX();
+    int top = cellInfo.rowId * (rowHeight + BORDER_WIDTH) - margin - getTableScrollY();
+    invalidate(left, top, left + columnWidths[cellInfo.colPos] + 2 * margin,
+        top + rowHeight + BORDER_WIDTH + 2 * margin);
   }
 
   @Override
@@ -424,8 +528,97 @@ final class TabularView extends View {
       return;
     }
 
-    // drawing the background--so you're redrawing the background every time...
-    canvas.drawRect(0, 0, totalWidth, totalHeight, bgPaint);
+    // The table is drawn in table coordinates, shifted by however far it has been scrolled.
+    // Nothing outside of this view's bounds is drawn, so the cost of a frame only depends on how
+    // many cells are visible.
+    allocationCounter.start();
+    canvas.save();
+    canvas.translate(-getTableScrollX(), -getTableScrollY());
+    // When only part of the view was invalidated, e.g. by a highlight change, the clip is just
+    // that part, so only the cells under it are redrawn.
+    if (canvas.getClipBounds(clipBounds)) {
+      if (tileCache != null) {
+        drawTiles(canvas, clipBounds);
+      } else {
+        drawTable(canvas, clipBounds, paints);
+      }
+      // The highlight is drawn over the top rather than into the tiles, so moving it never
+      // makes a tile render again
+      if (highlightedCellInfo != null && highlightedCellInfo.colPos >= 0
+          && highlightedCellInfo.colPos < xs.length) {
+        int rowNum = highlightedCellInfo.rowId;
+        int colPos = highlightedCellInfo.colPos;
+        highlightCell(canvas, xs[colPos], (rowNum + 1) * BORDER_WIDTH + rowNum * rowHeight,
+            columnWidths[colPos]);
+      }
+    }
+    canvas.restore();
+    allocationCounter.stop(mTable.getAppName(), TAG);
+  }
+
+  /**
+   * Draws the part of the table that falls inside the given region from the tile cache. Any
+   * tile that isn't rendered yet is drawn directly this frame and asked for, so it can be
+   * copied from the cache next frame.
+   *
+   * @param canvas the canvas to draw on, already translated into table coordinates
+   * @param region the region of the table to draw, in table coordinates
+   */
+  private void drawTiles(Canvas canvas, Rect region) {
+    int right = Math.min(totalWidth, region.right);
+    int bottom = Math.min(totalHeight, region.bottom);
+    if (right <= region.left || bottom <= region.top) {
+      return;
+    }
+    int firstRow = Math.max(0, region.top) / TileCache.TILE_SIZE;
+    int lastRow = (bottom - 1) / TileCache.TILE_SIZE;
+    int firstCol = Math.max(0, region.left) / TileCache.TILE_SIZE;
+    int lastCol = (right - 1) / TileCache.TILE_SIZE;
+    tileCache.setVisibleTiles(firstRow, firstCol, lastRow, lastCol);
+    for (int tileRow = firstRow; tileRow <= lastRow; ++tileRow) {
+      for (int tileCol = firstCol; tileCol <= lastCol; ++tileCol) {
+        if (tileCache.draw(canvas, tileRow, tileCol)) {
+          continue;
+        }
+        tileRegion.set(tileCol * TileCache.TILE_SIZE, tileRow * TileCache.TILE_SIZE,
+            (tileCol + 1) * TileCache.TILE_SIZE, (tileRow + 1) * TileCache.TILE_SIZE);
+        if (tileRegion.intersect(region)) {
+          canvas.save();
+          canvas.clipRect(tileRegion);
+          drawTable(canvas, tileRegion, paints);
+          canvas.restore();
+        }
+      }
+    }
+  }
+
+  @Override
+  public boolean renderTile(Canvas canvas, Rect region) {
+    return drawTable(canvas, region, tilePaints);
+  }
+
+  @Override
+  public void onTileReady(int left, int top, int right, int bottom) {
+    int scrollX = getTableScrollX();
+    int scrollY = getTableScrollY();
+    invalidate(left - scrollX, top - scrollY, right - scrollX, bottom - scrollY);
+  }
+
+  /**
+   * Draws the part of the table that falls inside the given region. Called on the UI thread
+   * and, for the main data, on the tile thread, so it must only use the paints it is given.
+   *
+   * @param canvas the canvas to draw on, already translated into table coordinates
+   * @param region the region of the table to draw, in table coordinates
+   * @param paints the paints to draw with
+   * @return false if a row couldn't be loaded or was drawn as a placeholder, so part of the
+   * region is missing and the drawing shouldn't be kept
+   */
+  private boolean drawTable(Canvas canvas, Rect region, CellPaints paints) {
+    // drawing the background of the visible part of the table
+    paints.bgPaint.setColor(this.defaultBackgroundColor);
+    canvas.drawRect(region.left, region.top, Math.min(totalWidth, region.right),
+        Math.min(totalHeight, region.bottom), paints.bgPaint);
 
     /*
      * SS: I am going to try and fix this method. There are several things that
@@ -444,10 +637,9 @@ final class TabularView extends View {
      *
      * We do not want to draw the whole spreadsheet, as this would be slower and
      * slower the more data you add. Instead we want to only draw the necessary
-     * bits for the screen to display. We have the dimensions of the screen in
-     * the metrics field, which is a DisplayMetrics object. We are currently
-     * drawing the whole canvas. This seems ok, and we might even need to do
-     * that for clipping rects.
+     * bits for the screen to display. This view is only as big as the part of
+     * the table that is on screen, so its width and height are the dimensions
+     * we need to cover.
      *
      * In the diagram below, we have a phone (the asterisks) viewing a small set
      * of the table. I am not bothering to draw all the rows that would fall
@@ -545,14 +737,6 @@ final class TabularView extends View {
      * | | | |leftmost | | | | | | |
      */
 
-    int xScroll = controller.getMainScrollX();
-    int yScroll = controller.getMainScrollY();
-    if (xScroll < 0) {
-      xScroll = 0;
-    }
-    if (yScroll < 0) {
-      yScroll = 0;
-    }
     int topmost;
     int topmostBorder;
     int leftmostBorder;
@@ -575,12 +759,16 @@ final class TabularView extends View {
     } else {
       // Otherwise, we need to compute the value.
       // First let's get the row.
-      topmost = yScroll / (BORDER_WIDTH + rowHeight);
-      bottommost = (yScroll + metrics.heightPixels) / (BORDER_WIDTH + rowHeight);
+      topmost = Math.max(0, region.top) / (BORDER_WIDTH + rowHeight);
+      bottommost = region.bottom / (BORDER_WIDTH + rowHeight);
       if (bottommost >= this.mNumberOfRows) {
         bottommost = this.mNumberOfRows - 1; // don't want to go beyond the last
         // row
       }
+      if (topmost > bottommost) {
+        // the region being drawn is past the end of the table
+        return true;
+      }
     }
     topmostBorder = topmost * (BORDER_WIDTH + rowHeight);
     topTopmost = topmostBorder + BORDER_WIDTH;
@@ -588,12 +776,12 @@ final class TabularView extends View {
     bottomBottommost = topBottommostBorder + BORDER_WIDTH + rowHeight;
     // And now let's get the correct column. The math here can't be as simple,
     // b/c unlike rowHeight, columnWidth is not a fixed unit.
-    int indexOfLeftmostColumn = getLeftmostColumnBasedOnXScroll(xScroll);
+    int indexOfLeftmostColumn = getLeftmostColumnBasedOnXScroll(Math.max(0, region.left));
     @SuppressWarnings("unused") String leftmostElementKey = this.mElementKeys
         .get(indexOfLeftmostColumn);
     leftLeftmost = xs[indexOfLeftmostColumn];
     leftmostBorder = leftLeftmost - BORDER_WIDTH;
-    int indexOfRightmostColumn = getLeftmostColumnBasedOnXScroll(xScroll + metrics.widthPixels);
+    int indexOfRightmostColumn = getLeftmostColumnBasedOnXScroll(region.right);
     @SuppressWarnings("unused") String rightmostElementKey = this.mElementKeys
         .get(indexOfRightmostColumn);
     leftRightmost = xs[indexOfRightmostColumn];
@@ -607,27 +795,21 @@ final class TabularView extends View {
     // pixels
     for (int i = topmost; i < bottommost + 2; i++) {
       canvas.drawRect(leftmostBorder, yCoord, rightRightmostBorder, yCoord + BORDER_WIDTH,
-          borderPaint);
+          paints.borderPaint);
       yCoord += rowHeight + BORDER_WIDTH;
     }
     // draw vertical borders
     int xCoord = leftmostBorder;
     for (int i = indexOfLeftmostColumn; i < indexOfRightmostColumn + 1; i++) {
-      canvas.drawRect(xCoord, topmostBorder, xCoord + BORDER_WIDTH, bottomBottommost, borderPaint);
+      canvas.drawRect(xCoord, topmostBorder, xCoord + BORDER_WIDTH, bottomBottommost,
+          paints.borderPaint);
       xCoord += i == this.mElementKeys.size() ? 0 : columnWidths[i] + BORDER_WIDTH;
     }
 
-    // precompute the correspondence between the displayed elementKeys and the
-    // SpreadsheetUserTable userData index
-    int[] userDataIndex = new int[indexOfRightmostColumn + 1];
-    for (int j = indexOfLeftmostColumn; j < indexOfRightmostColumn + 1; ++j) {
-      String elementKey = this.mElementKeys.get(j);
-      Integer idx = this.mTable.getColumnIndexOfElementKey(elementKey);
-      userDataIndex[j] = idx == null ? -1 : idx;
-    }
-
     // drawing the cells
     int y = topTopmost;
+    // whether every row was drawn with its data rather than as a placeholder
+    boolean complete = true;
     for (int theRowIndex = topmost; theRowIndex < bottommost + 1; theRowIndex++) {
       TypedRow theRow = null;
 
@@ -635,8 +817,22 @@ final class TabularView extends View {
       ColorGuide rowGuide = null;
       if (this.type == TableLayoutType.STATUS_DATA || this.type == TableLayoutType.INDEX_DATA
           || this.type == TableLayoutType.MAIN_DATA) {
-        // these are the only cases (below) where this value is used...
-        theRow = mTable.getRowAtIndex(theRowIndex);
+        // only rows already in memory are read, this may be the tile thread and mustn't wait
+        // on the database
+        theRow = mTable.getLoadedRowAtIndex(theRowIndex);
+        if (theRow == null && !mTable.isRowLoaded(theRowIndex)) {
+          // the row is being fetched in the background and the panes are redrawn when it
+          // arrives, until then it is drawn as a placeholder
+          for (int j = indexOfLeftmostColumn; j < indexOfRightmostColumn + 1; j++) {
+            drawCell(canvas, paints, xs[j], y,
+                this.type == TableLayoutType.STATUS_DATA ? DEFAULT_STATUS_COLUMN_VALUE :
+                    LOADING_DATA_TEXT, true, this.defaultBackgroundColor, NULL_COLOR,
+                columnWidths[j]);
+          }
+          complete = false;
+          y += rowHeight + BORDER_WIDTH;
+          continue;
+        }
         if (theRow == null) {
           // TODO don't know what else to do here, this happens with the really odd
           // IndexOutOfBoundsException
@@ -645,30 +841,26 @@ final class TabularView extends View {
             appName = ((IAppAwareActivity) controller.getContext()).getAppName();
           }
           WebLogger.getLogger(appName).e(TAG, "Out of bounds exception bug AGAIN");
-          return;
+          return false;
         }
-        //rowGuide = mRowColorRuleGroup.getColorGuide(this.mTable.getColumnDefinitions(), theRow);
-        rowGuide = mRowColorGuideGroup
-            .getColorGuideForRowId(theRow.getStringValueByKey(DataTableColumns.ID));
+        // the rules are evaluated once per row and shared with the other panes
+        rowGuide = this.type == TableLayoutType.STATUS_DATA ?
+            mTable.getStatusColorGuide(theRowIndex) :
+            mTable.getRowColorGuide(theRowIndex);
       }
 
       for (int j = indexOfLeftmostColumn; j < indexOfRightmostColumn + 1; j++) {
 
         String datum;
-        String columnKey = null;
         if (this.type == TableLayoutType.STATUS_DATA
             || this.type == TableLayoutType.STATUS_HEADER) {
           datum = DEFAULT_STATUS_COLUMN_VALUE;
         } else if (this.type == TableLayoutType.INDEX_HEADER
             || this.type == TableLayoutType.MAIN_HEADER) {
-          datum = this.mTable.getHeader(userDataIndex[j]);
-          columnKey = mTable.getHeaderKey(userDataIndex[j]);
+          datum = this.mTable.getHeader(mColumnSpreadsheetIndexes[j]);
         } else if (this.type == TableLayoutType.INDEX_DATA
             || this.type == TableLayoutType.MAIN_DATA) {
-
-          ColumnDefinition cd = this.mTable.getColumnByIndex(userDataIndex[j]);
-          datum = this.mTable.getCachedUserTable()
-              .getDisplayTextOfData(theRowIndex, cd.getType(), cd.getElementKey());
+          datum = this.mTable.getDisplayTextOfData(theRowIndex, mColumnSpreadsheetIndexes[j]);
         } else {
           WebLogger.getLogger(this.mTable.getAppName())
               .e(TAG, "unrecognized table type: " + this.type.name());
@@ -682,9 +874,8 @@ final class TabularView extends View {
             foregroundColor = rowGuide.getForeground();
             backgroundColor = rowGuide.getBackground();
           }
-          //ColorGuide columnGuide = mColumnColorRules.get(this.mElementKeys.get(j)).getColorGuide(this.mTable.getColumnDefinitions(), theRow);
-          ColorGuide columnGuide = mColumnColorGuideGroup.get(this.mElementKeys.get(j))
-              .getColorGuideForRowId(theRow.getStringValueByKey(DataTableColumns.ID));
+          ColorGuide columnGuide = mTable
+              .getColumnColorGuide(theRowIndex, mColumnSpreadsheetIndexes[j]);
           // Override the role rule if a column rule matched.
           if (columnGuide != null) {
             foregroundColor = columnGuide.getForeground();
@@ -699,32 +890,34 @@ final class TabularView extends View {
         }
         if (type == TableLayoutType.MAIN_HEADER || type == TableLayoutType.INDEX_HEADER
             || type == TableLayoutType.STATUS_HEADER) {
-          if (Arrays.asList(mTable.getProps().getGroupBy()).contains(columnKey)) {
+          int headerState = mHeaderState[j];
+          if ((headerState & HEADER_GROUP_BY) != 0) {
             backgroundColor = GROUP_BY_COLOR;
-          } else if (columnKey != null && columnKey.equals(mTable.getProps().getSort())) {
+          } else if ((headerState & HEADER_SORT) != 0) {
             backgroundColor = SORT_COLOR;
           }
-          if (columnKey != null && columnKey.equals(mTable.getProps().getFrozen())) {
+          if ((headerState & HEADER_FROZEN) != 0) {
             backgroundColor = FROZEN_COLOR;
           }
         }
         // Override any of that if the data is actually null
-        if (datum == null) {
+        boolean isNull = datum == null;
+        if (isNull) {
           datum = NULL_DATA_TEXT;
           foregroundColor = NULL_COLOR;
         }
-        drawCell(canvas, xs[j], y, datum, backgroundColor, foregroundColor, columnWidths[j]);
+        drawCell(canvas, paints, xs[j], y, datum, isNull, backgroundColor, foregroundColor,
+            columnWidths[j]);
+      }
+      if (theRow != null && !mTable.isRowLoaded(theRowIndex)) {
+        // the page was dropped while the row was drawn, so some of its cells may have been
+        // drawn empty. It is being fetched again, and the drawing isn't kept
+        complete = false;
       }
       y += rowHeight + BORDER_WIDTH;
       // adding to try and fix draw
     }
-    // highlighting cell (if necessary)
-    if (highlightedCellInfo != null) {
-      int rowNum = highlightedCellInfo.rowId;
-      int colPos = highlightedCellInfo.colPos;
-      highlightCell(canvas, xs[colPos], (rowNum + 1) * BORDER_WIDTH + rowNum * rowHeight,
-          columnWidths[colPos]);
-    }
+    return complete;
   }
 
   /**
@@ -754,8 +947,10 @@ final class TabularView extends View {
     }
   }
 
-  private void drawCell(Canvas canvas, int x, int y, String datum, int backgroundColor,
-      int foregroundColor, int columnWidth) {
+  private void drawCell(Canvas canvas, CellPaints paints, int x, int y, String datum,
+      boolean isNull, int backgroundColor, int foregroundColor, int columnWidth) {
+    Paint bgPaint = paints.bgPaint;
+    Paint textPaint = paints.textPaint;
     // have to do this check to reset to the default, otherwise it uses the
     // old object which was previously saved and paints all the columns the
     // wrong color.
@@ -769,11 +964,10 @@ final class TabularView extends View {
     canvas.clipRect(x + HORIZONTAL_CELL_PADDING, y, x + columnWidth - 2 * HORIZONTAL_CELL_PADDING,
         y + rowHeight);
     textPaint.setColor(foregroundColor);
-    if (datum.equals(NULL_DATA_TEXT)) {
-      textPaint.setTypeface(Typeface.create(Typeface.DEFAULT, Typeface.ITALIC));
-    } else {
-      textPaint.setTypeface(Typeface.create(Typeface.DEFAULT, Typeface.NORMAL));
-    }
+    boolean isHeader =
+        this.type == TableLayoutType.INDEX_HEADER || this.type == TableLayoutType.MAIN_HEADER;
+    textPaint
+        .setTypeface(isNull ? NULL_DATA_TYPEFACE : (isHeader ? HEADER_TYPEFACE : DATA_TYPEFACE));
     canvas.drawText(datum, x + HORIZONTAL_CELL_PADDING, y + rowHeight - VERTICAL_CELL_PADDING,
         textPaint);
     canvas.restore();
@@ -803,6 +997,40 @@ final class TabularView extends View {
     }
   }
 
+  /**
+   * Makes a paint for the text of cells, also used by {@link ColumnWidthEstimator} to measure
+   * the text the same way it is drawn
+   *
+   * @param fontSize the font size the spreadsheet is drawn with
+   * @param typeface one of the cell typefaces
+   * @return the paint
+   */
+  static Paint createTextPaint(int fontSize, Typeface typeface) {
+    Paint paint = new Paint();
+    paint.setAntiAlias(true);
+    paint.setTextSize(fontSize);
+    paint.setTypeface(typeface);
+    return paint;
+  }
+
+  /**
+   * The paints needed to draw cells. A Paint can't be shared between two
+   * threads that draw at the same time, so each thread that draws has its own.
+   */
+  private static final class CellPaints {
+    final Paint textPaint;
+    final Paint bgPaint;
+    final Paint borderPaint;
+
+    CellPaints(int fontSize, int backgroundColor, int borderColor) {
+      textPaint = createTextPaint(fontSize, DATA_TYPEFACE);
+      bgPaint = new Paint();
+      bgPaint.setColor(backgroundColor);
+      borderPaint = new Paint();
+      borderPaint.setColor(borderColor);
+    }
+  }
+
   private enum TableLayoutType {
     // NB: After the change to use SpreadsheetUserTable more heavily, there is
     // essentially no difference between the MAIN and INDEX table types. They
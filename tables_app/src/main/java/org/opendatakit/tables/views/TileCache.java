@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import org.opendatakit.logging.WebLogger;
+
+/**
+ * Keeps rendered pieces of a table as bitmaps so that scrolling over them is a
+ * bitmap copy rather than drawing every cell again. The table is cut into
+ * fixed-size square tiles. Tiles are rendered on a background thread as they
+ * are asked for, and the least recently used ones are dropped once the cache
+ * reaches its memory budget.
+ * <p>
+ * Only the UI thread touches the cache itself, so it needs no locking. Lookups
+ * scan a small array of slots rather than a map so that drawing from the cache
+ * doesn't allocate. The renderer is called on the tile thread, so whatever it
+ * reads while drawing must be safe to read from there.
+ */
+final class TileCache {
+
+  /**
+   * The width and height of a tile, in pixels
+   */
+  static final int TILE_SIZE = 256;
+
+  private static final String TAG = TileCache.class.getSimpleName();
+  // The fraction of the heap the tiles are allowed to use
+  private static final int MEMORY_FRACTION = 8;
+  private static final int MAX_TILES = 128;
+  // The most tiles that can be waiting to be rendered at one time
+  private static final int MAX_PENDING = 32;
+  private static final int MSG_RENDER = 1;
+  private static final int MSG_TILE_READY = 2;
+
+  /**
+   * Draws the tiles and hears about them being ready
+   */
+  interface Renderer {
+    /**
+     * Draws part of the table. Called on the tile thread.
+     *
+     * @param canvas the canvas to draw on, translated into table coordinates and clipped to
+     *               the region
+     * @param region the region of the table to draw, in table coordinates
+     * @return false if some of the region couldn't be drawn, in which case the tile is not kept
+     */
+    boolean renderTile(Canvas canvas, Rect region);
+
+    /**
+     * Called on the UI thread when a tile has been rendered and should be drawn
+     *
+     * @param left   the left of the tile, in table coordinates
+     * @param top    the top of the tile, in table coordinates
+     * @param right  the right of the tile, in table coordinates
+     * @param bottom the bottom of the tile, in table coordinates
+     */
+    void onTileReady(int left, int top, int right, int bottom);
+  }
+
+  private final String appName;
+  private final Renderer renderer;
+  private final Handler uiHandler;
+  // read by the tile thread, and changed by the UI thread when the rows change
+  private volatile int tableWidth;
+  private volatile int tableHeight;
+
+  // The cached tiles, each slot holding the key of its tile, its bitmap and when it was last drawn
+  private final long[] keys;
+  private final Bitmap[] bitmaps;
+  private final long[] lastUse;
+  private long useCounter = 0;
+  // The keys of the tiles that have been asked for but haven't come back yet
+  private final long[] pending = new long[MAX_PENDING];
+  private int pendingCount = 0;
+
+  // Bumped whenever the cached tiles go out of date, so tiles rendered before then are thrown away
+  private volatile int generation = 0;
+  // The tiles that are on screen. The tile thread skips anything that has scrolled away
+  private volatile int visibleFirstRow;
+  private volatile int visibleLastRow = -1;
+  private volatile int visibleFirstCol;
+  private volatile int visibleLastCol = -1;
+
+  private HandlerThread tileThread;
+  private Handler tileHandler;
+
+  /**
+   * @param appName     the app name, for logging
+   * @param renderer    draws the tiles
+   * @param tableWidth  the width of the whole table
+   * @param tableHeight the height of the whole table
+   */
+  TileCache(String appName, Renderer renderer, int tableWidth, int tableHeight) {
+    this.appName = appName;
+    this.renderer = renderer;
+    this.tableWidth = tableWidth;
+    this.tableHeight = tableHeight;
+    long tileBytes = (long) TILE_SIZE * TILE_SIZE * 4;
+    long budget = Runtime.getRuntime().maxMemory() / MEMORY_FRACTION;
+    int capacity = (int) Math.max(1, Math.min(MAX_TILES, budget / tileBytes));
+    this.keys = new long[capacity];
+    this.bitmaps = new Bitmap[capacity];
+    this.lastUse = new long[capacity];
+    this.uiHandler = new Handler(Looper.getMainLooper()) {
+      @Override
+      public void handleMessage(Message msg) {
+        if (msg.what == MSG_TILE_READY) {
+          onTileRendered(msg.arg1, msg.arg2, (RenderedTile) msg.obj);
+        }
+      }
+    };
+  }
+
+  private static long key(int tileRow, int tileCol) {
+    return ((long) tileRow << 32) | (tileCol & 0xffffffffL);
+  }
+
+  /**
+   * Starts the tile thread. Call when the view is attached to a window
+   */
+  void start() {
+    if (tileThread != null) {
+      return;
+    }
+    tileThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+    tileThread.start();
+    tileHandler = new Handler(tileThread.getLooper()) {
+      @Override
+      public void handleMessage(Message msg) {
+        if (msg.what == MSG_RENDER) {
+          renderOnTileThread(msg.arg1, msg.arg2);
+        }
+      }
+    };
+  }
+
+  /**
+   * Stops the tile thread and drops every tile. Call when the view is detached from its window
+   */
+  void release() {
+    if (tileThread != null) {
+      tileThread.quit();
+      tileThread = null;
+      tileHandler = null;
+    }
+    clear();
+  }
+
+  /**
+   * Drops every tile and throws away any that are being rendered. Call when anything that is
+   * drawn in the tiles changes
+   */
+  void clear() {
+    ++generation;
+    if (tileHandler != null) {
+      tileHandler.removeMessages(MSG_RENDER);
+    }
+    uiHandler.removeMessages(MSG_TILE_READY);
+    for (int i = 0; i < bitmaps.length; ++i) {
+      bitmaps[i] = null;
+    }
+    pendingCount = 0;
+  }
+
+  /**
+   * Changes the size of the table, which drops every tile
+   *
+   * @param tableWidth  the new width of the whole table
+   * @param tableHeight the new height of the whole table
+   */
+  void setTableSize(int tableWidth, int tableHeight) {
+    clear();
+    this.tableWidth = tableWidth;
+    this.tableHeight = tableHeight;
+  }
+
+  /**
+   * Tells the tile thread which tiles are on screen, so it can skip tiles that have scrolled
+   * away before it got to them
+   */
+  void setVisibleTiles(int firstRow, int firstCol, int lastRow, int lastCol) {
+    visibleFirstRow = firstRow;
+    visibleFirstCol = firstCol;
+    visibleLastRow = lastRow;
+    visibleLastCol = lastCol;
+  }
+
+  /**
+   * Draws a tile if it is cached. If it isn't, asks for it to be rendered so a later frame can
+   * use it.
+   *
+   * @param canvas  the canvas to draw on, in table coordinates
+   * @param tileRow the row of the tile
+   * @param tileCol the column of the tile
+   * @return true if the tile was drawn, false if the caller has to draw that part itself
+   */
+  boolean draw(Canvas canvas, int tileRow, int tileCol) {
+    long key = key(tileRow, tileCol);
+    for (int i = 0; i < bitmaps.length; ++i) {
+      if (bitmaps[i] != null && keys[i] == key) {
+        lastUse[i] = ++useCounter;
+        canvas.drawBitmap(bitmaps[i], tileCol * TILE_SIZE, tileRow * TILE_SIZE, null);
+        return true;
+      }
+    }
+    request(tileRow, tileCol, key);
+    return false;
+  }
+
+  private void request(int tileRow, int tileCol, long key) {
+    if (tileHandler == null || pendingCount == pending.length) {
+      return;
+    }
+    for (int i = 0; i < pendingCount; ++i) {
+      if (pending[i] == key) {
+        return;
+      }
+    }
+    pending[pendingCount++] = key;
+    tileHandler.sendMessage(tileHandler.obtainMessage(MSG_RENDER, tileRow, tileCol));
+  }
+
+  private void removePending(long key) {
+    for (int i = 0; i < pendingCount; ++i) {
+      if (pending[i] == key) {
+        pending[i] = pending[--pendingCount];
+        return;
+      }
+    }
+  }
+
+  /**
+   * Renders a tile and hands it back to the UI thread. Runs on the tile thread
+   */
+  private void renderOnTileThread(int tileRow, int tileCol) {
+    int requestGeneration = generation;
+    Bitmap bitmap = null;
+    if (tileRow >= visibleFirstRow && tileRow <= visibleLastRow && tileCol >= visibleFirstCol
+        && tileCol <= visibleLastCol) {
+      int left = tileCol * TILE_SIZE;
+      int top = tileRow * TILE_SIZE;
+      int width = Math.min(TILE_SIZE, tableWidth - left);
+      int height = Math.min(TILE_SIZE, tableHeight - top);
+      if (width > 0 && height > 0) {
+        try {
+          bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+          Canvas canvas = new Canvas(bitmap);
+          canvas.translate(-left, -top);
+          Rect region = new Rect(left, top, left + width, top + height);
+          canvas.clipRect(region);
+          if (!renderer.renderTile(canvas, region)) {
+            bitmap = null;
+          }
+        } catch (OutOfMemoryError e) {
+          // the direct drawing path still works, it's just slower
+          WebLogger.getLogger(appName).w(TAG, "Out of memory rendering a tile");
+          bitmap = null;
+        }
+      }
+    }
+    // Even a tile that wasn't rendered is sent back, so that it stops being pending
+    uiHandler.sendMessage(uiHandler
+        .obtainMessage(MSG_TILE_READY, tileRow, tileCol,
+            new RenderedTile(bitmap, requestGeneration)));
+  }
+
+  /**
+   * Puts a rendered tile in the cache, replacing the least recently drawn tile if the cache is
+   * full. Runs on the UI thread
+   */
+  private void onTileRendered(int tileRow, int tileCol, RenderedTile tile) {
+    long key = key(tileRow, tileCol);
+    removePending(key);
+    if (tile.generation != generation || tile.bitmap == null) {
+      return;
+    }
+    int slot = 0;
+    for (int i = 0; i < bitmaps.length; ++i) {
+      if (bitmaps[i] == null) {
+        slot = i;
+        break;
+      }
+      if (lastUse[i] < lastUse[slot]) {
+        slot = i;
+      }
+    }
+    keys[slot] = key;
+    bitmaps[slot] = tile.bitmap;
+    lastUse[slot] = ++useCounter;
+    int left = tileCol * TILE_SIZE;
+    int top = tileRow * TILE_SIZE;
+    renderer.onTileReady(left, top, left + tile.bitmap.getWidth(), top + tile.bitmap.getHeight());
+  }
+
+  /**
+   * A tile coming back from the tile thread, with the generation it was rendered for
+   */
+  private static final class RenderedTile {
+    final Bitmap bitmap;
+    final int generation;
+
+    RenderedTile(Bitmap bitmap, int generation) {
+      this.bitmap = bitmap;
+      this.generation = generation;
+    }
+  }
+}
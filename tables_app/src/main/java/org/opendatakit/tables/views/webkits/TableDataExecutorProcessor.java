@@ -17,7 +17,6 @@ package org.opendatakit.tables.views.webkits;
 import android.content.Context;
 import android.widget.Toast;
 import org.opendatakit.data.ColorGuide;
-import org.opendatakit.data.ColorGuideGroup;
 import org.opendatakit.data.ColorRuleGroup;
 import org.opendatakit.data.RowColorObject;
 import org.opendatakit.database.data.KeyValueStoreEntry;
@@ -28,6 +27,7 @@ import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.tables.R;
 import org.opendatakit.tables.activities.IOdkTablesActivity;
+import org.opendatakit.tables.data.CompiledColorRuleGroup;
 import org.opendatakit.views.ExecutorContext;
 import org.opendatakit.views.ExecutorProcessor;
 
@@ -85,11 +85,16 @@ public class TableDataExecutorProcessor extends ExecutorProcessor {
       return;
     }
 
-    ColorGuideGroup cgg = new ColorGuideGroup(crg, userTable);
+    CompiledColorRuleGroup compiled = CompiledColorRuleGroup
+        .compile(crg, userTable.getColumnDefinitions());
+    if (compiled == null) {
+      return;
+    }
+    ColorGuide[] guides = compiled.getColorGuides(userTable);
 
     // Loop through the rows
-    for (int i = 0; i < userTable.getNumberOfRows(); i++) {
-      ColorGuide tcg = cgg.getColorGuideForRowIndex(i);
+    for (int i = 0; i < guides.length; i++) {
+      ColorGuide tcg = guides[i];
 
       if (tcg != null) {
         //String hexFgString = "#" + Integer.toHexString(0x00FFFFFF & tcg.getForeground());